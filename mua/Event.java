@@ -59,6 +59,10 @@ public class Event
     */
     protected long time = 0L;
     
+    /** The game time in milliseconds when this event is to be processed
+    */
+    protected long timeMillis = 0L;
+    
     /** The system time when the event was put on the event queue, used for performance logging
     */
     protected transient long timeQueued = 0L;
@@ -247,6 +251,7 @@ public class Event
     public void setTime(long newTime)
         {
         time = newTime;
+        timeMillis = newTime * 1000;
         }
 
     /** Get the time when this event is to be processed
@@ -256,6 +261,34 @@ public class Event
         return time;
         }
         
+    /** Set the time in milliseconds when this event is to be processed. 
+        The time in seconds is rounded up, so that an event exported with
+        its time in seconds is never processed early.
+    */
+    public void setTimeMillis(long newTime)
+        {
+        timeMillis = newTime;
+        time = (newTime + 999) / 1000;
+        }
+
+    /** Get the time in milliseconds when this event is to be processed
+    */
+    public long getTimeMillis()
+        {
+        return timeMillis;
+        }
+        
+    /** Read a serialized event. Events in worlds serialized before events
+        had a time in milliseconds have only the time in seconds.
+    */
+    private void readObject(java.io.ObjectInputStream in)
+        throws java.io.IOException, ClassNotFoundException
+        {
+        in.defaultReadObject();
+        if (timeMillis == 0)
+            timeMillis = time * 1000;
+        }
+        
     /** If this function returns true, the event is 'bound' and can be executed
         immediately. If this is false, the 'getBindings' function must be called.
     */
@@ -0,0 +1,122 @@
+// $Id$
+// Holds back events while a world is captured
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.util.*;
+
+/** The gate which events pass through, so that they can be held back while
+    the world is captured for a snapshot (see 'SnapshotWriter').
+    <p>
+    Each event processor passes through the gate for each event it
+    processes, and the timer for each set of timed events it posts. While
+    the gate is closed, threads arriving at it wait, and the thread closing
+    it waits for those already through to leave. The thread which closes
+    the gate may itself be processing an event, such as a save command.
+    Such a thread can't leave until it has closed the gate, so a thread
+    outside which is waiting for the others to leave gives way to it, and
+    it doesn't wait for others through the gate which are waiting to close
+    it too. Such a thread must not hold the lock on a zone (see
+    'ZoneTable'), though: an event in another zone which has passed through
+    the gate may be waiting for it, and would never leave. So the save
+    command starts the save on a thread of its own (see 'ModSave').
+    <p>
+    A thread must not pass through the gate again before it has left.
+*/
+final class EventGate
+    {
+    /** The threads which have passed through the gate and not yet left
+    */
+    private Hashtable threads = new Hashtable();
+
+    /** The thread which has closed the gate, or null if it is open
+    */
+    private Thread closer = null;
+
+    /** The number of threads through the gate waiting to close it
+    */
+    private int insideClosers = 0;
+
+    /** Pass through the gate, waiting while it is closed by another thread
+    */
+    synchronized void enter()
+        {
+        Thread current = Thread.currentThread();
+        while (closer != null && closer != current)
+            waitHere();
+        threads.put(current, current);
+        }
+
+    /** Leave, after passing through the gate
+    */
+    synchronized void leave()
+        {
+        threads.remove(Thread.currentThread());
+        notifyAll();
+        }
+
+    /** Close the gate, and wait until the threads which have passed through
+        it have left. Waits while the gate is closed by another thread.
+    */
+    synchronized void close()
+        {
+        Thread current = Thread.currentThread();
+        boolean inside = threads.containsKey(current);
+        while (true)
+            {
+            if (inside)
+                {
+                insideClosers++;
+                notifyAll();
+                }
+            try {
+                while (closer != null)
+                    waitHere();
+                }
+            finally
+                {
+                if (inside)
+                    insideClosers--;
+                }
+
+            // Wait for the others to leave, unless this thread is outside
+            //  and one inside is waiting to close the gate
+            closer = current;
+            int waiting = inside ? insideClosers + 1 : 0;
+            while (threads.size() > waiting && (inside || insideClosers == 0))
+                {
+                waitHere();
+                waiting = inside ? insideClosers + 1 : 0;
+                }
+            if (threads.size() <= waiting)
+                return;
+
+            // Give way, and try again once the thread inside has finished
+            closer = null;
+            notifyAll();
+            while (insideClosers > 0 || closer != null)
+                waitHere();
+            }
+        }
+
+    /** Wait to be notified
+    */
+    private void waitHere()
+        {
+        try {
+            wait();
+            }
+        catch (InterruptedException e)
+            {
+            }
+        }
+
+    /** Open the gate again
+    */
+    synchronized void open()
+        {
+        closer = null;
+        notifyAll();
+        }
+    }
@@ -20,6 +20,37 @@ class EventProcessor
 
     protected World world;
 
+    /** The world's zone table, or null if the world doesn't have zones
+    */
+    private transient ZoneTable zones;
+    
+    /** The number and name of this processor's zone. The default zone is
+        number 0, and has no name.
+    */
+    transient int zoneNumber;
+    private transient String zoneName;
+    
+    /** The lock on this zone, and the zones this processor has locked while
+        processing the current event, in zone order. Used by ZoneTable.
+    */
+    transient ZoneTable.Lock zoneLock;
+    transient Vector heldZones;
+    
+    /** The lock this processor is waiting for, whether the current event
+        has changed the world, and whether it has been abandoned to be run 
+        again and which zone it was waiting for when it was. Used by 
+        ZoneTable, synched on it except for 'eventChanged', which only
+        this processor's thread sets.
+    */
+    transient ZoneTable.Lock waitingFor;
+    transient boolean eventChanged;
+    transient boolean retrying;
+    transient EventProcessor wantedZone;
+    
+    /** The event stack for this processor's thread, used if the world has zones
+    */
+    transient Stack eventStack;
+
     /** Constructor
     */
     EventProcessor(World world)
@@ -27,9 +58,99 @@ class EventProcessor
         this.world = world;
         }
 
-    /** Dispatch the event
+    /** Make this the processor for a zone, or for the whole world if 'zones' is null
+    */
+    void setZone(ZoneTable zones, int number, String name)
+        {
+        this.zones = zones;
+        zoneNumber = number;
+        zoneName = name;
+        zoneLock = new ZoneTable.Lock();
+        heldZones = new Vector();
+        eventStack = new Stack();
+        }
+        
+    /** Get the name of this processor's zone, or null for the default zone
+    */
+    String getZoneName()
+        {
+        return zoneName;
+        }
+        
+    protected String getThreadName()
+        {
+        if (zoneName == null)
+            return super.getThreadName();
+        else
+            return super.getThreadName() + " " + zoneName;
+        }
+
+    /** Process an event. If the world has zones, the zone is locked while the 
+        event is dispatched.
     */
     protected void processEvent(Event event)
+        {
+        // The event passes through the world's event gate before the zone
+        //  locks are taken, as a snapshot being captured may hold it back.
+        //  Its changes are one transaction in the world's journal, which
+        //  is committed before the zone locks are released. A processor 
+        //  keeps every zone it has entered until then, so changes to the
+        //  same atoms are committed in the order they were made.
+        EventGate gate = world.getEventGate();
+        gate.enter();
+        try {
+            WorldJournal journal = world.getAtomDatabase().journal;
+            if (journal != null)
+                journal.begin();
+            if (zones == null)
+                {
+                try {
+                    dispatchEvent(event);
+                    }
+                finally
+                    {
+                    if (journal != null)
+                        journal.commit();
+                    }
+                }
+            else {
+                // If the event has to give way to another zone's, it has
+                //  changed nothing, so we run it again, holding the zones
+                //  it needed from the start (see 'ZoneTable')
+                Vector claim = new Vector();
+                claim.addElement(this);
+                try {
+                    while (true)
+                        {
+                        try {
+                            zones.beginEvent(this, claim);
+                            dispatchEvent(event);
+                            if (!retrying)
+                                break;
+                            }
+                        catch (ZoneTable.Retry e)
+                            {
+                            }
+                        claim = zones.retryEvent(this);
+                        }
+                    }
+                finally
+                    {
+                    if (journal != null)
+                        journal.commit();
+                    zones.endEvent(this);
+                    }
+                }
+            }
+        finally
+            {
+            gate.leave();
+            }
+        }
+
+    /** Dispatch the event
+    */
+    private void dispatchEvent(Event event)
         {
         // The packet that will be sent to the user if the event can't be handled
         OutPkt errorPkt = null;
@@ -48,6 +169,12 @@ class EventProcessor
                 errorPkt = new OutPkt("misc", "msg", "You can't do that.", "debug", "False event result.");
             }
             
+        // The event is to be run again (see 'processEvent')
+        catch (ZoneTable.Retry e)
+            {
+            throw e;
+            }
+            
         // No errors can get past this point!
         catch (Throwable e)
             {
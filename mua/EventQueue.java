@@ -5,12 +5,36 @@
 
 package com.ogalala.mua;
 
+import java.io.*;
 import com.ogalala.util.Queue;
 
 /** A queue and processing structure for events.
+    <p>
+    Events are added by many threads (the connections, via the parser, and
+    the timer) and taken off by the queue's own thread. The events are held
+    in a circular buffer, so adding and taking an event are a few
+    assignments with no allocation, and the lock is only held for that long.
+    Producers only notify the queue thread if it is waiting for an event.
+    <p>
+    Players' commands are added with 'putCommand', and the number of commands
+    on the queue can be limited. When the limit is reached, the queue's policy
+    decides what happens to a new command:
+    <ul>
+    <li> World.QUEUE_DROP_OLDEST (the default): the oldest command from the
+        same actor is dropped. If the actor has no commands queued, the oldest
+        command from the actor with most commands queued is dropped instead.
+        So a player who floods the queue mostly loses their own commands.
+    <li> World.QUEUE_REJECT: the command is not queued, and the actor is told.
+    <li> World.QUEUE_BLOCK: the caller waits until there is room. Commands
+        are put by the connection pool's handler threads, so this holds up
+        a handler, and the other connections waiting for one.
+    </ul>
+    Other events (e.g. timer events and events posted by actions) are always
+    accepted, as are commands added by the queue's own thread, which would
+    otherwise wait for itself.
     <p>
     Synchronization: The 'put' and 'get' functions are synched. This class uses
-    an "Optimistic single-threaded execution" strategy to wait for items to 
+    an "Optimistic single-threaded execution" strategy to wait for items to
     be added to the queue. (See Java Language Reference, O'Reilly, section 8.2.2.)
 */
 abstract class EventQueue
@@ -18,29 +42,57 @@ abstract class EventQueue
     {
     public static final int serialVersionUID = 1;
 
-    // The queue of events
-    Queue queue = new Queue();
-    
+    /** Initial size of the circular buffer
+    */
+    private static final int INITIAL_SIZE = 64;
+
+    /** The queue of events, in a circular buffer, and whether each one is a command
+    */
+    private Event events[] = new Event[INITIAL_SIZE];
+    private boolean commands[] = new boolean[INITIAL_SIZE];
+
+    /** The position of the oldest event, and the number of events and commands
+    */
+    private int head = 0;
+    private int count = 0;
+    private int commandCount = 0;
+
+    /** The greatest number of commands allowed on the queue (0 if unlimited),
+        and what to do when there are more
+    */
+    private int capacity = 0;
+    private int policy = World.QUEUE_DROP_OLDEST;
+
+    /** Is the queue thread waiting for an event? And how many threads are
+        waiting for room on the queue?
+    */
+    private transient boolean consumerWaiting = false;
+    private transient int producersWaiting = 0;
+
+    /** Performance counters
+    */
+    private transient EventQueueMetrics metrics;
+
     private transient Thread thread = null;
-    
+
     public static final int PRIORITY = Thread.NORM_PRIORITY + 1;
-    
+
     public EventQueue()
         {
         }
-    
+
     /** Start the thread
     */
     public void start()
         {
         if (thread == null)
             {
-            thread = new Thread(this, "MUA EventQueue");
+            thread = new Thread(this, getThreadName());
             thread.setPriority(PRIORITY);
             }
         thread.start();
         }
-        
+
     /** Stop the thread
     */
     public void stop()
@@ -48,8 +100,8 @@ abstract class EventQueue
         thread.stop();
         thread = null;
         }
-        
-    /** Pull events off the queue as they become available and 
+
+    /** Pull events off the queue as they become available and
         dispatch to 'processEvent'.
     */
     public void run()
@@ -67,20 +119,97 @@ abstract class EventQueue
                 event.getWorld().logEvent(event, retrievedAt, processedAt);
             }
         }
-    
+
     protected abstract void processEvent(Event event);
-        
+
+    /** Get the name of the queue's thread
+    */
+    protected String getThreadName()
+        {
+        return "MUA EventQueue";
+        }
+
+    /** Is the calling thread the queue's thread?
+    */
+    final boolean isQueueThread()
+        {
+        return thread != null && Thread.currentThread() == thread;
+        }
+
     /** Add an event
     */
-    public synchronized void put(Event event)
+    public void put(Event event)
         {
-        event.timeQueued = System.currentTimeMillis();
-        
-        // Add the object to the queue
-        queue.put(event);
+        put(event, false, System.currentTimeMillis());
+        }
 
-        // Inform waiting processes that something has been added
-        notify();
+    /** Add a player's command, applying the limit on queued commands
+        @return true if the command was queued
+    */
+    public boolean putCommand(Event event)
+        {
+        if (put(event, true, System.currentTimeMillis()))
+            return true;
+
+        // Tell the actor the command was rejected. This is done outside the lock.
+        event.getActor().output(new OutPkt("misc", "msg", "You are typing too fast. Please wait."));
+        return false;
+        }
+
+    /** Add an event, or a command. 'start' is the time the caller began to
+        add it, before waiting for the lock, so that the time taken to add it
+        includes the wait.
+        @return false if a command was rejected
+    */
+    private synchronized boolean put(Event event, boolean isCommand, long start)
+        {
+        event.timeQueued = start;
+        EventQueueMetrics metrics = getMetrics();
+
+        // If the command limit has been reached, apply the policy
+        if (isCommand && capacity > 0 && Thread.currentThread() != thread)
+            {
+            boolean blocked = false;
+            while (commandCount >= capacity)
+                {
+                if (policy == World.QUEUE_BLOCK)
+                    {
+                    if (!blocked)
+                        metrics.commandBlocked();
+                    blocked = true;
+                    producersWaiting++;
+                    try {
+                        wait();
+                        }
+                    catch (InterruptedException e)
+                        {
+                        }
+                    producersWaiting--;
+                    }
+                else if (policy == World.QUEUE_DROP_OLDEST && dropOldestCommand(event.getActor()))
+                    metrics.commandDropped(count, commandCount);
+                else {
+                    metrics.commandRejected();
+                    return false;
+                    }
+                }
+            }
+
+        // Add the event to the queue, making room if necessary
+        if (count == events.length)
+            grow();
+        int i = (head + count) % events.length;
+        events[i] = event;
+        commands[i] = isCommand;
+        count++;
+        if (isCommand)
+            commandCount++;
+        metrics.eventQueued(count, commandCount, System.currentTimeMillis() - start);
+
+        // Inform the queue thread if it is waiting for something to be added
+        if (consumerWaiting)
+            notifyAll();
+        return true;
         }
 
     /* Get an event from the queue.
@@ -88,32 +217,212 @@ abstract class EventQueue
     protected synchronized Event get()
         {
         // Wait until something arrives
-        while (queue.isEmpty())
+        while (count == 0)
             {
+            consumerWaiting = true;
             try {
                 wait();
                 }
             catch (InterruptedException e)
                 {
                 }
+            consumerWaiting = false;
+            }
+
+        // Remove the oldest event
+        Event event = events[head];
+        boolean isCommand = commands[head];
+        events[head] = null;
+        head = (head + 1) % events.length;
+        count--;
+
+        // If a command has been removed, there may be a thread waiting for room
+        if (isCommand)
+            {
+            commandCount--;
+            if (producersWaiting > 0)
+                notifyAll();
             }
+        getMetrics().eventRetrieved(count, commandCount, System.currentTimeMillis() - event.timeQueued);
 
         // Return the queue item
-        return (Event)queue.get();
+        return event;
+        }
+
+    /** Make room for a command from 'actor' by dropping the oldest command
+        from the same actor or, if there are none, from the actor with the most
+        commands on the queue.
+        @return true if a command was dropped
+    */
+    private boolean dropOldestCommand(Atom actor)
+        {
+        int i = findOldestCommand(actor);
+        if (i < 0)
+            i = findOldestCommand(findBusiestActor());
+        if (i < 0)
+            return false;
+        remove(i);
+        return true;
+        }
+
+    /** Find the oldest command from 'actor'
+        @return the position on the queue (counting from the head), or -1 if none
+    */
+    private int findOldestCommand(Atom actor)
+        {
+        for (int i = 0; i < count; i++)
+            {
+            int j = (head + i) % events.length;
+            if (commands[j] && events[j].getActor() == actor)
+                return i;
+            }
+        return -1;
+        }
+
+    /** Find the actor with the most commands on the queue. This is only done
+        when the queue is full, so it isn't worth keeping a running count.
+    */
+    private Atom findBusiestActor()
+        {
+        java.util.Hashtable counts = new java.util.Hashtable();
+        Atom result = null;
+        int resultCount = 0;
+        for (int i = 0; i < count; i++)
+            {
+            int j = (head + i) % events.length;
+            if (!commands[j])
+                continue;
+            Atom actor = events[j].getActor();
+            int n[] = (int [])counts.get(actor);
+            if (n == null)
+                {
+                n = new int[1];
+                counts.put(actor, n);
+                }
+            if (++n[0] > resultCount)
+                {
+                result = actor;
+                resultCount = n[0];
+                }
+            }
+        return result;
+        }
+
+    /** Remove the event at position 'i' on the queue (counting from the head)
+    */
+    private void remove(int i)
+        {
+        if (commands[(head + i) % events.length])
+            commandCount--;
+        for (; i < count - 1; i++)
+            {
+            int j = (head + i) % events.length;
+            int k = (j + 1) % events.length;
+            events[j] = events[k];
+            commands[j] = commands[k];
+            }
+        events[(head + count - 1) % events.length] = null;
+        count--;
+        }
+
+    /** Double the size of the circular buffer
+    */
+    private void grow()
+        {
+        Event newEvents[] = new Event[events.length * 2];
+        boolean newCommands[] = new boolean[events.length * 2];
+        for (int i = 0; i < count; i++)
+            {
+            int j = (head + i) % events.length;
+            newEvents[i] = events[j];
+            newCommands[i] = commands[j];
+            }
+        events = newEvents;
+        commands = newCommands;
+        head = 0;
+        }
+
+    /** Read a serialized queue. Worlds serialized before the queue was a
+        circular buffer have their events in a Queue, which are moved into
+        a new buffer.
+    */
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException
+        {
+        ObjectInputStream.GetField stream = in.readFields();
+        if (stream.getObjectStreamClass().getField("events") == null)
+            {
+            events = new Event[INITIAL_SIZE];
+            commands = new boolean[INITIAL_SIZE];
+            Queue queue = (Queue)stream.get("queue", null);
+            while (queue != null && !queue.isEmpty())
+                {
+                if (count == events.length)
+                    grow();
+                events[count++] = (Event)queue.get();
+                }
+            }
+        else {
+            events = (Event[])stream.get("events", null);
+            commands = (boolean[])stream.get("commands", null);
+            head = stream.get("head", 0);
+            count = stream.get("count", 0);
+            commandCount = stream.get("commandCount", 0);
+            capacity = stream.get("capacity", 0);
+            policy = stream.get("policy", World.QUEUE_DROP_OLDEST);
+            }
+        }
+
+    /** Set the greatest number of commands allowed on the queue (0 for no
+        limit), and the policy to apply when a command arrives and the queue
+        is full.
+    */
+    public synchronized void setLimit(int capacity, int policy)
+        {
+        this.capacity = capacity;
+        this.policy = policy;
+
+        // Waiting threads may now have room
+        if (producersWaiting > 0)
+            notifyAll();
+        }
+
+    /** Get the greatest number of commands allowed on the queue, or 0 if
+        there is no limit
+    */
+    public final int getCapacity()
+        {
+        return capacity;
+        }
+
+    /** Get the policy applied when the queue is full
+    */
+    public final int getPolicy()
+        {
+        return policy;
+        }
+
+    /** Get the performance counters
+    */
+    public final synchronized EventQueueMetrics getMetrics()
+        {
+        if (metrics == null)
+            metrics = new EventQueueMetrics(this);
+        return metrics;
         }
 
     /** Is the queue empty?
     */
     public final boolean isEmpty()
         {
-        return queue.isEmpty();
+        return count == 0;
         }
 
     /** How many items on the queue?
     */
     public final int size()
         {
-        return queue.size();
+        return count;
         }
 
     /** Is the thread running?
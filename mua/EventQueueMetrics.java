@@ -0,0 +1,213 @@
+// $Id$
+// Performance counters for the event queue
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+/** Performance counters for the event queue, so that we can see the queue
+    filling up before the players notice the lag.
+    <p>
+    The counters are updated by the queue while it holds its lock, and are
+    reset under the same lock. They are read without locking, so a set of
+    readings may be slightly inconsistent.
+    <p>
+    Times are in milliseconds. Most events are queued and taken off in
+    well under a millisecond, so most single times are 0; the averages are
+    the total times over the counts, as fractions of a millisecond.
+*/
+public final class EventQueueMetrics
+    {
+    /** The lock the queue holds while it updates the counters
+    */
+    private Object lock;
+
+    /** Current and greatest number of events on the queue
+    */
+    private int depth = 0;
+    private int maxDepth = 0;
+
+    /** Current number of commands on the queue
+    */
+    private int commandDepth = 0;
+
+    /** Number of events queued, and of commands dropped, rejected, and
+        made to wait for room on the queue
+    */
+    private long queued = 0;
+    private long dropped = 0;
+    private long rejected = 0;
+    private long blocked = 0;
+
+    /** Time spent adding events to the queue, including waiting for room
+    */
+    private long enqueueTime = 0;
+    private long maxEnqueueTime = 0;
+
+    /** Number of events taken off the queue, and the time they waited on it
+    */
+    private long retrieved = 0;
+    private long waitTime = 0;
+    private long maxWaitTime = 0;
+
+    EventQueueMetrics(Object lock)
+        {
+        this.lock = lock;
+        }
+
+    /** An event has been added to the queue
+    */
+    void eventQueued(int depth, int commandDepth, long time)
+        {
+        this.depth = depth;
+        this.commandDepth = commandDepth;
+        if (depth > maxDepth)
+            maxDepth = depth;
+        queued++;
+        enqueueTime += time;
+        if (time > maxEnqueueTime)
+            maxEnqueueTime = time;
+        }
+
+    /** An event has been taken off the queue
+    */
+    void eventRetrieved(int depth, int commandDepth, long time)
+        {
+        this.depth = depth;
+        this.commandDepth = commandDepth;
+        retrieved++;
+        waitTime += time;
+        if (time > maxWaitTime)
+            maxWaitTime = time;
+        }
+
+    /** A command has been dropped to make room for another
+    */
+    void commandDropped(int depth, int commandDepth)
+        {
+        this.depth = depth;
+        this.commandDepth = commandDepth;
+        dropped++;
+        }
+
+    /** A command has been rejected because the queue was full
+    */
+    void commandRejected()
+        {
+        rejected++;
+        }
+
+    /** A command has had to wait for room on the queue
+    */
+    void commandBlocked()
+        {
+        blocked++;
+        }
+
+    public int getDepth()
+        {
+        return depth;
+        }
+
+    public int getMaxDepth()
+        {
+        return maxDepth;
+        }
+
+    public int getCommandDepth()
+        {
+        return commandDepth;
+        }
+
+    public long getQueued()
+        {
+        return queued;
+        }
+
+    public long getDropped()
+        {
+        return dropped;
+        }
+
+    public long getRejected()
+        {
+        return rejected;
+        }
+
+    public long getBlocked()
+        {
+        return blocked;
+        }
+
+    public long getMaxEnqueueTime()
+        {
+        return maxEnqueueTime;
+        }
+
+    /** Get the total time taken to add events to the queue
+    */
+    public long getTotalEnqueueTime()
+        {
+        return enqueueTime;
+        }
+
+    /** Get the average time taken to add an event to the queue, to the 
+        nearest hundredth of a millisecond
+    */
+    public double getAverageEnqueueTime()
+        {
+        return average(enqueueTime, queued);
+        }
+
+    public long getMaxWaitTime()
+        {
+        return maxWaitTime;
+        }
+
+    public long getRetrieved()
+        {
+        return retrieved;
+        }
+
+    /** Get the total time events have spent on the queue
+    */
+    public long getTotalWaitTime()
+        {
+        return waitTime;
+        }
+
+    /** Get the average time an event spends on the queue before it is 
+        processed, to the nearest hundredth of a millisecond
+    */
+    public double getAverageWaitTime()
+        {
+        return average(waitTime, retrieved);
+        }
+
+    /** Divide a total time by a count, to the nearest hundredth
+    */
+    private static double average(long total, long count)
+        {
+        return (count == 0) ? 0 : Math.round(total * 100.0 / count) / 100.0;
+        }
+
+    /** Reset the counters. The current depth is not changed.
+    */
+    public void resetCounters()
+        {
+        synchronized (lock)
+            {
+            maxDepth = depth;
+            queued = dropped = rejected = blocked = 0;
+            enqueueTime = maxEnqueueTime = 0;
+            retrieved = waitTime = maxWaitTime = 0;
+            }
+        }
+
+    public String toString()
+        {
+        return "EventQueue: depth=" + depth + " (max " + maxDepth + ", commands " + commandDepth + ")" +
+                " queued=" + queued + " dropped=" + dropped + " rejected=" + rejected + " blocked=" + blocked +
+                " enqueue=" + getAverageEnqueueTime() + "ms (max " + maxEnqueueTime + "ms)" +
+                " wait=" + getAverageWaitTime() + "ms (max " + maxWaitTime + "ms)";
+        }
+    }
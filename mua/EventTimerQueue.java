@@ -7,54 +7,29 @@ package com.ogalala.mua;
 
 import com.ogalala.util.*;
 
-/** A priority queue for events.
-    <p>
-    This class is written as a wrapper round the Priority Queue because
-    of the need for syncronization.
+/** The priority queue of timed events the Timer had before it had a
+    timing wheel. It is only read from worlds serialized then, and its 
+    events are moved to the wheel (see 'Timer.readObject').
 */
 final class EventTimerQueue
     implements java.io.Serializable
     {
     public static final int serialVersionUID = 1;
     
-    private static final int SIZE = 1000;
+    private PQ queue;
     
-    private PQ queue = new PQ();
-    
-    /** Constructor.
+    /** Constructor. Queues are only made by deserialization.
     */
-    public EventTimerQueue()
-        {
-        }
-        
-    synchronized void put(Event event)
-        {
-        queue.put(event);
-        }
-        
-    synchronized Event get()
-        {
-        return (Event)queue.get();
-        }
-        
-    synchronized Event peek()
+    private EventTimerQueue()
         {
-        return (Event)queue.peek();
         }
         
-    synchronized Event elementAt(int i)
-        {
-        return (Event)queue.elementAt(i);
-        }
-        
-    synchronized int count()
-        {
-        return queue.count();
-        }
-
-    synchronized boolean isEmpty()
+    /** Add the events to a timing wheel
+    */
+    void moveTo(TimingWheel wheel)
         {
-        return queue.isEmpty();
+        for (int i = 0; i < queue.count(); i++)
+            wheel.add((Event)queue.elementAt(i));
         }
     
     /** Inner class implements the priority queue
@@ -62,9 +37,13 @@ final class EventTimerQueue
     class PQ
         extends PriorityQueue
         {
+        /** The value computed for the class before one was declared
+        */
+        private static final long serialVersionUID = -4929504657246869728L;
+        
         PQ()
             {
-            super(SIZE, true);
+            super(0, true);
             }
 
         /** Compare events
@@ -17,7 +17,7 @@ public abstract class JavaAction
     */
     private static final long serialVersionUID = 1;
 
-    private static final String actionPackage = "com.ogalala.mua.action.";
+    static final String actionPackage = "com.ogalala.mua.action.";
     
     /** Load an action class file
         <p>
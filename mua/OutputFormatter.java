@@ -32,6 +32,10 @@ import com.ogalala.util.*;
     <li> container/here
     <li> arg
     </ul>
+    <p>
+    Format strings are compiled into OutputTemplates the first time they
+    are formatted, and the templates are cached, so each string is only
+    parsed once.
 */
 public final class OutputFormatter
     {
@@ -46,15 +50,16 @@ public final class OutputFormatter
 	/** A set of userdefined values to substitute into a passed string
 	*/
 	private String value[];
+
+    /** The buffer the result is built in, reused by each call to 'format'
+    */
+    private StringBuffer buf;
 	
     /** Ctor, uses 'event.current' as default atom
     */
     public OutputFormatter(Event event)
         {
-        Atom atom = event.getCurrent();
-        if (atom == null)
-            atom = event.getActor();
-        init(event, atom);
+        init(event, getDefaultAtom(event));
         }
 
 	/**
@@ -92,199 +97,41 @@ public final class OutputFormatter
         this.defaultAtom = defaultAtom;
         }
 
+    /** Format a string
+    */
     public String format(String fmt)
         {
-        // States
-        final int PASSTHRU = 0;
-        final int IN_BRACES = 1;
-        final int IN_OPTIONS = 2;
-        final int IN_VALUE = 3;
-
-        StringBuffer buf = new StringBuffer();
-
-        // Position in source string
-        int srcPos = 0;
-
-        // Start state machine
-        StringBuffer options = null;
-        StringBuffer value = null;
-        int state = PASSTHRU;
-        while (true)
-            {
-            // See if it's time to stop
-            if (srcPos >= fmt.length())
-                break;
-
-            // Get the next char
-            char c = fmt.charAt(srcPos++);
-
-            // Process it
-            switch (state)
-                {
-            // Copy chars to the result
-            case PASSTHRU:
-                if (c == '{')
-                    {
-                    options = new StringBuffer();
-                    value = new StringBuffer();
-                    state = IN_BRACES;
-                    }
-                else
-                    buf.append(c);
-                break;
-
-            // Look for options or value
-            case IN_BRACES:
-                // If it's a brace, back to passthru
-                if (c == '}')
-                    state = PASSTHRU;
-
-                // If it's a dash, start collecting options
-                else if (c == '-')
-                    state = IN_OPTIONS;
-
-                // Any other non-space char is the start of the format value
-                else if (!Character.isWhitespace(c))
-                    {
-                    value.append(c);
-                    state = IN_VALUE;
-                    }
-                break;
-
-            // Collect up options
-            case IN_OPTIONS:
-                if (Character.isWhitespace(c))
-                    state = IN_BRACES;
-                else
-                    options.append(c);
-                break;
-
-            // Collect up the value
-            case IN_VALUE:
-                // If we hit the closing brace, process the value string
-                if (c == '}')
-                    {
-                    String s = expandFormatString(event, value.toString());
-                    s = applyOptions(s, options.toString());
-                    buf.append(s);
-                    state = PASSTHRU;
-                    }
-
-                // Else, add the char to the value
-                else
-                    value.append(c);
-                break;
-                }
-            }
-
+        // Strings without references are returned as they are
+        if (fmt.indexOf('{') < 0)
+            return fmt;
+
+        // Reuse the buffer from the last call
+        if (buf == null)
+            buf = new StringBuffer(fmt.length() + 64);
+        else
+            buf.setLength(0);
+        OutputTemplate.get(fmt).render(buf, event, defaultAtom, value);
         return buf.toString();
         }
 
-	
-	
-    /** 
-    *	Expand a format string
+    /** Format a string without making a formatter. (Used by AtomUtil.)
     */
-    private String expandFormatString(Event event, String formatString)
+    static String format(Event event, Atom defaultAtom, String value[], String fmt)
         {
-        
-        // if this object has been given values to substitute into a string,
-        // see whether the formatString could be a number
-        if( value != null && formatString.length() <= 2 )
-        	{
-        	int numericValue = getIntValue(formatString);
-        	//if it is in fact a number, and there appears to be a string value corresponding 
-        	// to it, return this value.
-        	if( numericValue != -1 && numericValue < value.length )
-        		//recursively format it.
-        		return value[numericValue];
-        	}
-        
-        // Parse the value string
-        LValue lvalue = new LValue(defaultAtom, event);
-        lvalue.parse(formatString);
-        
-        // Get the result
-        Atom atom = lvalue.getAtom();
-        Object value = atom.getProperty(lvalue.getFieldID());
-        
-        // Recursively expand the result
-        Atom oldDefault = defaultAtom;
-        defaultAtom = atom;
-        String result = format(AtomData.toString(value));
-        defaultAtom = oldDefault;
-        return result;
+        if (fmt.indexOf('{') < 0)
+            return fmt;
+        StringBuffer buf = new StringBuffer(fmt.length() + 64);
+        OutputTemplate.get(fmt).render(buf, event, defaultAtom, value);
+        return buf.toString();
         }
 
-    /** Apply format options
+    /** Get the default atom for an event: its current atom, or its actor if it has none
     */
-    private String applyOptions(String s, String options)
+    static Atom getDefaultAtom(Event event)
         {
-        // Option flag values
-        final int INDEFINITE = 1;   // -a
-        final int DEFINITE = 2;     // -t
-        final int POSSESSIVE = 4;   // -p
-        final int TOUPPER = 8;      // -u
-        final int TOLOWER = 16;     // -l
-
-        // Convert the option chars into flags
-        int optFlags = 0;
-        for (int i = 0; i < options.length(); i++)
-            {
-            char c = Character.toLowerCase(options.charAt(i));
-            switch (c)
-                {
-            case 'a':
-                optFlags |= INDEFINITE;
-                break;
-            case 't':
-                optFlags |= DEFINITE;
-                break;
-            case 'p':
-                optFlags |= POSSESSIVE;
-                break;
-            case 'u':
-                optFlags |= TOUPPER;
-                break;
-            case 'l':
-                optFlags |= TOLOWER;
-                break;
-            default:
-                throw new AtomException("Unrecognised format character: \'" + c + "\'");
-                }
-            }
-
-        // Apply the options to the string
-        if ((optFlags & INDEFINITE) != 0)
-            s = StringUtil.addIndefinite(s);
-
-        if ((optFlags & DEFINITE) != 0)
-            s = StringUtil.addDefinite(s);
-
-        if ((optFlags & POSSESSIVE) != 0)
-            s = StringUtil.addPossessive(s);
-
-        if ((optFlags & TOUPPER) != 0)
-            s = StringUtil.firstToUpper(s);
-
-        if ((optFlags & TOLOWER) != 0)
-            s = StringUtil.firstToLower(s);
-
-        return s;
+        Atom atom = event.getCurrent();
+        if (atom == null)
+            atom = event.getActor();
+        return atom;
         }
-        
-        /**
-		*	Converts the string value to an int, returning null if it isn't an int
-		*/
-		private int getIntValue(String string)
-			{
-				try
-        			{
-        			return new Integer(string).intValue();
-        			} 
-        			catch( NumberFormatException e )
-        			{
-        			return -1;
-        			}
-			}
     }
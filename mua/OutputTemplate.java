@@ -0,0 +1,488 @@
+// $Id$
+// Compiled output format strings
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import com.ogalala.util.*;
+
+/** A format string compiled for OutputFormatter.
+    <p>
+    The same few hundred format strings from the ODL scripts are formatted
+    over and over again. Compiling a string splits it into its literal text
+    and its references to atoms ("slots"), with each slot's atom, field and
+    options already worked out. Formatting it is then a matter of looking
+    up the slots' values and appending them to a buffer.
+    <p>
+    Templates don't change once they are compiled, so they are shared
+    between threads. The most recently used templates are kept in a cache,
+    keyed by the identity of the format string: format strings are nearly
+    always property values, so the same string object is formatted each time.
+    A string which is only equal to a cached one is compiled again.
+    <p>
+    Synchronization: the cache is synched on its lock. Compiling is done
+    outside the lock.
+*/
+public final class OutputTemplate
+    {
+    /** Slot atom references
+    */
+    private static final int DEFAULT = 0;
+    private static final int CURRENT = 1;
+    private static final int ACTOR = 2;
+    private static final int CONTAINER = 3;
+    private static final int ARG = 4;
+    private static final int NAMED = 5;
+
+    /** Option flag values
+    */
+    private static final int INDEFINITE = 1;    // -a
+    private static final int DEFINITE = 2;      // -t
+    private static final int POSSESSIVE = 4;    // -p
+    private static final int TOUPPER = 8;       // -u
+    private static final int TOLOWER = 16;      // -l
+
+    /** Greatest number of templates in the cache, and the size of its hash table
+    */
+    public static final int CACHE_SIZE = 1024;
+    private static final int CACHE_BUCKETS = 2048;
+
+    /** The literal text before each slot, and after the last one
+    */
+    private String text[];
+
+    /** The slots
+    */
+    private Slot slots[];
+
+    /** The cache: a hash table of entries, which are also on a list in
+        order of use, most recent first
+    */
+    private static Object cacheLock = new Object();
+    private static CacheEntry buckets[] = new CacheEntry[CACHE_BUCKETS];
+    private static CacheEntry first = null;
+    private static CacheEntry last = null;
+    private static int cacheCount = 0;
+
+    /** Cache counters
+    */
+    private static long hits = 0;
+    private static long misses = 0;
+
+    private OutputTemplate(String text[], Slot slots[])
+        {
+        this.text = text;
+        this.slots = slots;
+        }
+
+    /** Get the template for a format string, compiling it if it isn't in the cache
+    */
+    static OutputTemplate get(String fmt)
+        {
+        int i = System.identityHashCode(fmt) & (CACHE_BUCKETS - 1);
+        synchronized (cacheLock)
+            {
+            for (CacheEntry entry = buckets[i]; entry != null; entry = entry.next)
+                {
+                if (entry.fmt == fmt)
+                    {
+                    hits++;
+                    unlink(entry);
+                    linkFirst(entry);
+                    return entry.template;
+                    }
+                }
+            misses++;
+            }
+
+        // Compile it and add it to the cache. If another thread has added it
+        //  meanwhile, there will be two entries for a while, which is harmless.
+        OutputTemplate result = compile(fmt);
+        synchronized (cacheLock)
+            {
+            CacheEntry entry = new CacheEntry(fmt, result);
+            entry.next = buckets[i];
+            buckets[i] = entry;
+            linkFirst(entry);
+            cacheCount++;
+
+            // Throw out the least recently used template if the cache is full
+            if (cacheCount > CACHE_SIZE)
+                remove(last);
+            }
+        return result;
+        }
+
+    /** Compile a format string. See OutputFormatter for the syntax.
+    */
+    static OutputTemplate compile(String fmt)
+        {
+        // States
+        final int PASSTHRU = 0;
+        final int IN_BRACES = 1;
+        final int IN_OPTIONS = 2;
+        final int IN_VALUE = 3;
+
+        java.util.Vector text = new java.util.Vector();
+        java.util.Vector slots = new java.util.Vector();
+        StringBuffer buf = new StringBuffer();
+
+        // Start state machine
+        StringBuffer options = null;
+        StringBuffer value = null;
+        int state = PASSTHRU;
+        for (int srcPos = 0; srcPos < fmt.length(); srcPos++)
+            {
+            // Get the next char
+            char c = fmt.charAt(srcPos);
+
+            // Process it
+            switch (state)
+                {
+            // Copy chars to the literal text
+            case PASSTHRU:
+                if (c == '{')
+                    {
+                    options = new StringBuffer();
+                    value = new StringBuffer();
+                    state = IN_BRACES;
+                    }
+                else
+                    buf.append(c);
+                break;
+
+            // Look for options or value
+            case IN_BRACES:
+                // If it's a brace, back to passthru
+                if (c == '}')
+                    state = PASSTHRU;
+
+                // If it's a dash, start collecting options
+                else if (c == '-')
+                    state = IN_OPTIONS;
+
+                // Any other non-space char is the start of the format value
+                else if (!Character.isWhitespace(c))
+                    {
+                    value.append(c);
+                    state = IN_VALUE;
+                    }
+                break;
+
+            // Collect up options
+            case IN_OPTIONS:
+                if (Character.isWhitespace(c))
+                    state = IN_BRACES;
+                else
+                    options.append(c);
+                break;
+
+            // Collect up the value
+            case IN_VALUE:
+                // If we hit the closing brace, the text so far is followed by a slot
+                if (c == '}')
+                    {
+                    text.addElement(buf.toString());
+                    buf.setLength(0);
+                    slots.addElement(new Slot(value.toString(), parseOptions(options.toString())));
+                    state = PASSTHRU;
+                    }
+
+                // Else, add the char to the value
+                else
+                    value.append(c);
+                break;
+                }
+            }
+        text.addElement(buf.toString());
+
+        String textArray[] = new String[text.size()];
+        text.copyInto(textArray);
+        Slot slotArray[] = new Slot[slots.size()];
+        slots.copyInto(slotArray);
+        return new OutputTemplate(textArray, slotArray);
+        }
+
+    /** Append the formatted text to 'buf'
+        @param values strings substituted for numeric references, or null
+    */
+    void render(StringBuffer buf, Event event, Atom defaultAtom, String values[])
+        {
+        for (int i = 0; i < slots.length; i++)
+            {
+            buf.append(text[i]);
+            slots[i].render(buf, event, defaultAtom, values);
+            }
+        buf.append(text[slots.length]);
+        }
+
+    /** Format a string into 'buf'. Strings with no references are appended as they are.
+    */
+    static void render(String fmt, StringBuffer buf, Event event, Atom defaultAtom, String values[])
+        {
+        if (fmt.indexOf('{') < 0)
+            buf.append(fmt);
+        else
+            get(fmt).render(buf, event, defaultAtom, values);
+        }
+
+    /** Convert option chars into flags
+    */
+    private static int parseOptions(String options)
+        {
+        int result = 0;
+        for (int i = 0; i < options.length(); i++)
+            {
+            char c = Character.toLowerCase(options.charAt(i));
+            switch (c)
+                {
+            case 'a':
+                result |= INDEFINITE;
+                break;
+            case 't':
+                result |= DEFINITE;
+                break;
+            case 'p':
+                result |= POSSESSIVE;
+                break;
+            case 'u':
+                result |= TOUPPER;
+                break;
+            case 'l':
+                result |= TOLOWER;
+                break;
+            default:
+                throw new AtomException("Unrecognised format character: \'" + c + "\'");
+                }
+            }
+        return result;
+        }
+
+    /** Apply format options
+    */
+    private static String applyOptions(String s, int options)
+        {
+        if ((options & INDEFINITE) != 0)
+            s = StringUtil.addIndefinite(s);
+
+        if ((options & DEFINITE) != 0)
+            s = StringUtil.addDefinite(s);
+
+        if ((options & POSSESSIVE) != 0)
+            s = StringUtil.addPossessive(s);
+
+        if ((options & TOUPPER) != 0)
+            s = StringUtil.firstToUpper(s);
+
+        if ((options & TOLOWER) != 0)
+            s = StringUtil.firstToLower(s);
+
+        return s;
+        }
+
+// Cache
+
+    /** Add an entry to the front of the list
+    */
+    private static void linkFirst(CacheEntry entry)
+        {
+        entry.before = null;
+        entry.after = first;
+        if (first != null)
+            first.before = entry;
+        else
+            last = entry;
+        first = entry;
+        }
+
+    /** Take an entry off the list
+    */
+    private static void unlink(CacheEntry entry)
+        {
+        if (entry.before != null)
+            entry.before.after = entry.after;
+        else
+            first = entry.after;
+        if (entry.after != null)
+            entry.after.before = entry.before;
+        else
+            last = entry.before;
+        }
+
+    /** Remove an entry from the cache
+    */
+    private static void remove(CacheEntry entry)
+        {
+        unlink(entry);
+        int i = System.identityHashCode(entry.fmt) & (CACHE_BUCKETS - 1);
+        if (buckets[i] == entry)
+            buckets[i] = entry.next;
+        else {
+            CacheEntry prev = buckets[i];
+            while (prev.next != entry)
+                prev = prev.next;
+            prev.next = entry.next;
+            }
+        cacheCount--;
+        }
+
+    /** Get the number of templates in the cache
+    */
+    public static int getCacheCount()
+        {
+        return cacheCount;
+        }
+
+    /** Get the number of format strings found in the cache
+    */
+    public static long getHits()
+        {
+        return hits;
+        }
+
+    /** Get the number of format strings compiled because they weren't in the cache
+    */
+    public static long getMisses()
+        {
+        return misses;
+        }
+
+    /** An entry in the cache
+    */
+    private static final class CacheEntry
+        {
+        String fmt;
+        OutputTemplate template;
+
+        /** The next entry in the same bucket
+        */
+        CacheEntry next;
+
+        /** The neighbouring entries in order of use
+        */
+        CacheEntry before;
+        CacheEntry after;
+
+        CacheEntry(String fmt, OutputTemplate template)
+            {
+            this.fmt = fmt;
+            this.template = template;
+            }
+        }
+
+    /** A reference to an atom's field, with its options
+    */
+    private static final class Slot
+        {
+        /** The index into the substituted values, or -1 if the reference isn't a number
+        */
+        private int index = -1;
+
+        /** Which atom is referred to. The ID is used for named atoms, and
+            for special atoms when there is no event.
+        */
+        private int atomRef;
+        private String atomID;
+
+        /** The field
+        */
+        private PropertyName field;
+
+        /** The option flags
+        */
+        private int options;
+
+        /** Compile a reference, which has the form [atomID "."] fieldID
+        */
+        Slot(String value, int options)
+            {
+            this.options = options;
+
+            // Short numbers may refer to the substituted values
+            if (value.length() <= 2)
+                {
+                try {
+                    index = Integer.parseInt(value);
+                    }
+                catch (NumberFormatException e)
+                    {
+                    index = -1;
+                    }
+                }
+
+            // Split the reference at the dot
+            String s = value.trim();
+            int dotPos = s.indexOf('.');
+            if (dotPos < 0)
+                {
+                atomRef = DEFAULT;
+                field = PropertyName.get(s);
+                }
+            else {
+                atomID = s.substring(0, dotPos);
+                field = PropertyName.get(s.substring(dotPos + 1));
+                if ("current".equalsIgnoreCase(atomID))
+                    atomRef = CURRENT;
+                else if ("actor".equalsIgnoreCase(atomID) || "me".equalsIgnoreCase(atomID))
+                    atomRef = ACTOR;
+                else if ("container".equalsIgnoreCase(atomID) || "here".equalsIgnoreCase(atomID))
+                    atomRef = CONTAINER;
+                else if ("arg".equalsIgnoreCase(atomID))
+                    atomRef = ARG;
+                else
+                    atomRef = NAMED;
+                }
+            }
+
+        /** Append the field's value to 'buf'
+        */
+        void render(StringBuffer buf, Event event, Atom defaultAtom, String values[])
+            {
+            int mark = buf.length();
+
+            // If there is a substituted value for the reference, use it
+            if (values != null && index >= 0 && index < values.length)
+                buf.append(values[index]);
+
+            // Else recursively expand the field, with its atom as the default
+            else {
+                Atom atom = getAtom(event, defaultAtom);
+                Object value = atom.getProperty(field);
+                OutputTemplate.render(AtomData.toString(value), buf, event, atom, values);
+                }
+
+            // Apply the options to the text just added
+            if (options != 0)
+                {
+                char chars[] = new char[buf.length() - mark];
+                buf.getChars(mark, buf.length(), chars, 0);
+                buf.setLength(mark);
+                buf.append(applyOptions(new String(chars), options));
+                }
+            }
+
+        /** Get the atom referred to
+        */
+        private Atom getAtom(Event event, Atom defaultAtom)
+            {
+            if (defaultAtom == null)
+                throw new NullPointerException("OutputTemplate: Null default atom");
+            Atom result;
+            if (atomRef == DEFAULT)
+                return defaultAtom;
+            else if (event == null || atomRef == NAMED)
+                result = defaultAtom.getWorld().getAtom(atomID);
+            else if (atomRef == CURRENT)
+                result = event.getCurrent();
+            else if (atomRef == ACTOR)
+                result = event.getActor();
+            else if (atomRef == CONTAINER)
+                result = event.getContainer();
+            else
+                result = AtomData.toAtom(event.getArg(0));
+            if (result == null)
+                throw new AtomException("OutputTemplate: Atom not found: " + atomID);
+            return result;
+            }
+        }
+    }
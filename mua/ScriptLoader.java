@@ -0,0 +1,369 @@
+// $Id$
+// Load scripts of atom definitions directly into the world
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.util.*;
+
+/** Loads scripts, such as those made by the ODL compiler, without sending
+    their atom definitions through the parser.
+    <p>
+    The compiled scripts are mostly !ATOM, !NEW, !SET, !CLEAR and !NOUN
+    commands. Sent through the parser, each one is looked up in the
+    vocabulary, posted as an event to its raw verb action and reported back
+    to the actor; each new atom also makes the AtomSorter visit the whole
+    inheritance hierarchy, so loading a world takes time proportional to
+    the square of its size.
+    <p>
+    The loader scans each line, and if it is one of these commands (found
+    by its raw verb's property ID, so synonyms work too) does what the
+    action would do, directly and without the report. Other lines are given
+    to the parser as before. The whole load is one batch of changes to the
+    atom database (see 'AtomDatabase.beginBatch'), so the hierarchy is
+    sorted when the load ends, or before a line goes to the parser, rather
+    than for every atom.
+    <p>
+    New Things which inherit an ON_CREATE handler get their ON_CREATE event
+    as soon as they are made, before they are moved to the actor's container,
+    as they would from the parser. The handler may look up inherited 
+    properties, so the hierarchy is sorted for it first. The other new
+    Things' ON_CREATE events, which have no handler to call, are put off
+    until the load ends. Scripts run from the script (with !RUN) are part 
+    of the same load.
+    <p>
+    Scripts must only be loaded while the world is not active. While it is
+    running, raw verbs are queued as events, and loading some lines directly
+    would change the order in which they happen.
+*/
+final class ScriptLoader
+    {
+    /** Property IDs of the raw verbs which are loaded directly
+    */
+    private static final String NEW_ATOM = "_new_atom";
+    private static final String NEW_THING = "_new_thing";
+    private static final String SET = "_set";
+    private static final String CLEAR = "_clear";
+    private static final String ADD_NOUN = "_add_noun";
+
+    /** Atom ID which asks for a unique ID to be made
+    */
+    private static final String UNSPECIFIED_ID = "*";
+
+    /** The world being loaded
+    */
+    private World world;
+    private AtomDatabase database;
+    private Vocabulary vocabulary;
+
+    /** The parser used for other lines
+    */
+    private Parser parser;
+
+    /** The new Things with no ON_CREATE handler, waiting for their 
+        ON_CREATE events
+    */
+    private Vector newThings = new Vector();
+
+    /** Is the parser collecting a sentence continued over several lines?
+    */
+    private boolean continued = false;
+
+    /** Start a load. 'end' must be called when it is finished.
+    */
+    ScriptLoader(World world, Parser parser)
+        {
+        this.world = world;
+        this.parser = parser;
+        database = world.getAtomDatabase();
+        vocabulary = world.getVocabulary();
+        database.beginBatch();
+        }
+
+    /** Load a script. An error in a line is reported to the actor, and the
+        rest of the script is still loaded.
+    */
+    void load(BufferedReader in, String fileName, Atom actor)
+        throws IOException
+        {
+        int lineNumber = 0;
+        int loaded = 0;
+        String s;
+        while ((s = in.readLine()) != null)
+            {
+            lineNumber++;
+            try {
+                if (loadLine(s, actor))
+                    loaded++;
+                }
+            catch (RuntimeException e)
+                {
+                String msg = e.getMessage();
+                actor.output(fileName + " line " + lineNumber + ": " + (msg != null ? msg : e.toString()));
+                }
+            }
+        actor.output("Script loaded: " + fileName + " (" + lineNumber + " lines, " + loaded + " loaded directly)");
+        }
+
+    /** End the load. The hierarchy is sorted, then the ON_CREATE events 
+        which were put off are sent to the new Things in the order they were 
+        made.
+    */
+    void end()
+        {
+        // The parser would have reported an error from the AtomSorter (such as
+        //  the hierarchy being too deep) for the line which caused it, and gone on
+        try {
+            database.endBatch();
+            }
+        catch (RuntimeException e)
+            {
+            Debug.printStackTrace(e);
+            }
+
+        Enumeration things = newThings.elements();
+        newThings = new Vector();
+        while (things.hasMoreElements())
+            {
+            Thing thing = (Thing)things.nextElement();
+            if (thing.isDeleted())
+                continue;
+            try {
+                world.initThing(thing);
+                }
+            catch (RuntimeException e)
+                {
+                Debug.printStackTrace(e);
+                }
+            }
+        }
+
+    /** Load a line, directly if possible or else with the parser
+        @return true if the line was loaded directly
+    */
+    private boolean loadLine(String s, Atom actor)
+        {
+        // Scan the line as the parser would. Blank lines and comments are empty.
+        Sentence sentence = new Sentence();
+        SentenceScanner.scan(s, sentence);
+        if (sentence.size() == 0)
+            return false;
+
+        // A line ending with a backslash is continued on the next line, and
+        //  the parser must see all of it
+        boolean continues = sentence.getWordValue(sentence.size() - 1).equals("\\");
+        String command = continued || continues ? null : getCommand(sentence.getWordValue(0));
+        continued = continues;
+
+        // Anything else goes to the parser, which may look up properties, so
+        //  the hierarchy must be sorted first
+        if (command == null)
+            {
+            database.sortAtoms();
+            parser.parseSentence(s, actor);
+            return false;
+            }
+
+        // Get the arguments, as they would be passed to the raw verb
+        String args[] = sentence.getWordValue(1, sentence.size() - 1);
+        if (args == null)
+            args = new String[0];
+
+        if (command == NEW_ATOM)
+            newAtom(args, false, actor);
+        else if (command == NEW_THING)
+            newAtom(args, true, actor);
+        else if (command == SET)
+            setField(args, actor);
+        else if (command == CLEAR)
+            clearField(args, actor);
+        else
+            addNoun(args, actor);
+        return true;
+        }
+
+    /** Get the command for a raw verb, if it is loaded directly
+        @return one of the property ID constants, or null
+    */
+    private String getCommand(String word)
+        {
+        RawVerb rawVerb = vocabulary.getRawVerb(word);
+        if (rawVerb == null || rawVerb.getPrivilege() > parser.getPrivilege())
+            return null;
+        String propertyID = rawVerb.getPropertyID();
+        if (NEW_ATOM.equals(propertyID))
+            return NEW_ATOM;
+        else if (NEW_THING.equals(propertyID))
+            return NEW_THING;
+        else if (SET.equals(propertyID))
+            return SET;
+        else if (CLEAR.equals(propertyID))
+            return CLEAR;
+        else if (ADD_NOUN.equals(propertyID))
+            return ADD_NOUN;
+        else
+            return null;
+        }
+
+    /** !ATOM and !NEW: create an atom or Thing (see 'ModNewAtom', 'ModNewThing')
+    */
+    private void newAtom(String args[], boolean isThing, Atom actor)
+        {
+        if (args.length < 1)
+            throw new AtomException("!ATOM/!NEW atomID/* [parentID...]");
+
+        // Get the parents
+        Vector parents = null;
+        if (args.length > 1)
+            {
+            parents = new Vector();
+            for (int i = 1; i < args.length; i++)
+                parents.addElement(getAtom(args[i]));
+            }
+
+        // Get the ID. If it is '*' a new ID will be made.
+        String atomID = args[0];
+        if (atomID.equals(UNSPECIFIED_ID))
+            atomID = null;
+        else if (!Atom.isValidID(atomID))
+            throw new AtomException("Invalid atom ID: " + atomID);
+        else if (world.getAtom(atomID) != null)
+            throw new AtomException("Atom already exists: " + atomID);
+
+        // Create the atom
+        if (!isThing)
+            {
+            if (parents == null)
+                world.newAtom(atomID, world.getRoot());
+            else
+                world.newAtom(atomID, parents);
+            }
+
+        // Create the Thing with the database, so ON_CREATE is not sent yet.
+        //  If it has a handler it is called now, as the parser's !NEW would,
+        //  before the Thing is moved to the actor's container and any of the
+        //  script's fields are set. Sorting visits every atom, so the other
+        //  Things' events wait for the load to end.
+        else {
+            Thing thing;
+            if (parents == null)
+                thing = database.newThing(atomID, world.getAtom(AtomDatabase.THING_ID));
+            else
+                thing = database.newThing(atomID, parents);
+            if (inheritsOnCreate(thing))
+                {
+                database.sortAtoms();
+                world.initThing(thing);
+                }
+            else
+                newThings.addElement(thing);
+            world.moveAtom(thing, actor.getContainer());
+            }
+        }
+
+    /** Does a Thing inherit an ON_CREATE handler? The ancestors are found
+        from the parents, so this is right before the hierarchy is sorted.
+    */
+    private static boolean inheritsOnCreate(Atom thing)
+        {
+        Enumeration ancestors = thing.getAncestors();
+        while (ancestors.hasMoreElements())
+            {
+            if (((Atom)ancestors.nextElement()).getField(World.ON_CREATE) != null)
+                return true;
+            }
+        return false;
+        }
+
+    /** !SET: set a field (see 'ModSet')
+    */
+    private void setField(String args[], Atom actor)
+        {
+        if (args.length < 2)
+            throw new AtomException("!SET [atom.]field value");
+
+        // If the value is an aggregate type, the arguments are joined together
+        //  again so that it will be parsed properly
+        String value = args[1];
+        if (value.length() > 0 && value.charAt(0) == '[')
+            value = concatenateArgs(args);
+
+        // Parse the lvalue to get the atom
+        LValue lvalue = new LValue(actor);
+        lvalue.parse(args[0]);
+        String fieldID = lvalue.getFieldID();
+        Atom atom = lvalue.getAtom();
+
+        // If there is a dot within the field ID, it's a field of an exit,
+        //  in the form "direction.fieldID"
+        int dotPos = fieldID.indexOf('.');
+        if (dotPos >= 0)
+            {
+            String directionLabel = fieldID.substring(0, dotPos);
+            fieldID = fieldID.substring(dotPos + 1);
+            int direction = ExitTable.toDirection(directionLabel);
+            if (direction == 0)
+                throw new ParserException("Bad direction: " + directionLabel);
+            Object exitObject = atom.getExit(direction);
+            if (exitObject == null)
+                throw new AtomException("Exit not found: " + atom.getID() + "." + directionLabel);
+            if (!(exitObject instanceof Atom))
+                throw new AtomException("Exit not an atom: " + atom.getID() + "." + directionLabel);
+            atom = (Atom)exitObject;
+            }
+
+        atom.setField(fieldID, atom.parseField(value));
+        }
+
+    /** !CLEAR: clear a field (see 'ModClear')
+    */
+    private void clearField(String args[], Atom actor)
+        {
+        if (args.length < 1)
+            throw new AtomException("!CLEAR [atom.]field");
+        LValue lvalue = new LValue(actor);
+        lvalue.parse(args[0]);
+        lvalue.getAtom().clearField(lvalue.getFieldID());
+        }
+
+    /** !NOUN: add a noun (see 'ModAddNoun')
+    */
+    private void addNoun(String args[], Atom actor)
+        {
+        if (args.length < 2)
+            throw new AtomException("!NOUN pattern atom");
+        vocabulary.addNoun(actor, getAtom(args[1]), args[0]);
+        }
+
+    /** Get an atom which must exist
+    */
+    private Atom getAtom(String atomID)
+        {
+        Atom atom = world.getAtom(atomID);
+        if (atom == null)
+            throw new AtomException("Atom not found: " + atomID);
+        return atom;
+        }
+
+    /** Join the arguments from the value onwards, quoting them where needed,
+        so that a list or table can be parsed from them (see 'ModSet')
+    */
+    private static String concatenateArgs(String args[])
+        {
+        StringBuffer result = new StringBuffer();
+        for (int i = 1; i < args.length; i++)
+            {
+            if (i > 1)
+                result.append(" ");
+            String s = args[i];
+            int openListPos = s.indexOf('[');
+            if (openListPos != 0 && (!StringUtil.isSingleWord(s) || openListPos > 0))
+                result.append("\"" + s + "\"");
+            else
+                result.append(s);
+            }
+        return result.toString();
+        }
+    }
@@ -0,0 +1,570 @@
+// $Id$
+// Writes a snapshot of a world while the world goes on
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.util.*;
+
+/** Writes a snapshot of a world (see 'WorldSnapshot') while events go on
+    changing it.
+    <p>
+    Serializing the world while events change it could write a file which
+    was never the state of the world, so saving had to hold back events
+    until the file was written (a journal checkpoint did), or risk it. Now
+    a snapshot is taken in two parts:
+    <ol>
+    <li> The world is captured, with events held back at the event gate
+        (see 'EventGate'). The world apart from its atoms, which is small,
+        is serialized, and from then on the atoms added to and removed from
+        the database are noted. This takes a few milliseconds, however big
+        the world is.
+    <li> Events go on, while the writer's thread lists the atoms which
+        were in the database when the world was captured, and writes them.
+    </ol>
+    While the snapshot is being written, an atom which hasn't been written
+    yet is copied before it changes (see 'Atom.beforeChange'), and the copy
+    is written instead. So the file holds every atom as it was when the
+    world was captured, and only the atoms which change are copied. As for
+    the journal, changes made by altering a list or table in a field
+    without setting the field again are not seen.
+    <p>
+    The frozen atoms are written to a base image instead, which later
+    snapshots refer to (see 'WorldSnapshot'), so that they only write the
+    frozen atoms which have changed since. The image is written with the
+    first snapshot after the world is loaded without one, or frozen, and
+    again when more than half of it has changed. It is written beside the
+    old one, and replaces it after the snapshot has replaced the old
+    snapshot, so that the old snapshot and image go on being read together
+    until then.
+    <p>
+    If the world has a journal, it goes on recording changes while the
+    snapshot is written, and its size at the capture is noted. When the
+    snapshot has been written, the journal is replaced by one holding only
+    the changes since the capture (see 'WorldJournal.checkpointWritten').
+    <p>
+    Only one snapshot of a world is written at a time. The writer's thread
+    reports an error writing the file, and 'waitFor' throws it.
+*/
+public final class SnapshotWriter
+    implements Runnable
+    {
+    /** Size of the buffer for the file
+    */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** The world
+    */
+    private World world;
+    private AtomDatabase database;
+
+    /** The snapshot file, and the base image file
+    */
+    private String fileName;
+    private String baseName;
+
+    /** The world's journal, or null
+    */
+    private WorldJournal journal;
+
+    /** The snapshot's checkpoint number, and the world time and the size
+        of the journal when the world was captured
+    */
+    private long checkpoint;
+    private long timeMillis;
+    private long journalPosition;
+
+    /** The atoms in the database, and the rest of the world serialized,
+        when the world was captured. The atoms are listed and numbered by
+        the writer's thread, with the base image's atoms first.
+    */
+    private Atom atoms[] = null;
+    private Hashtable index = null;
+    private byte worldData[];
+
+    /** The number of the base image the snapshot refers to, and the number
+        of atoms in it. If 'newBase' is set the writer writes the image,
+        and the atoms changed since the capture are noted in 'baseChanges'.
+        If not, 'baseChanged' holds the atoms in the image which had changed
+        when the world was captured and haven't been written yet.
+    */
+    private long baseNumber = 0;
+    private Atom baseAtoms[] = null;
+    private int baseCount = 0;
+    private boolean newBase = false;
+    private Hashtable baseChanges = null;
+    private Hashtable baseChanged = null;
+
+    /** The atoms added to and removed from the database since the world was
+        captured, until the atoms are listed. Guarded by the database's
+        table of atoms, not by the writer.
+    */
+    private Hashtable added = new Hashtable();
+    private Hashtable removed = new Hashtable();
+
+    /** Copies of the atoms which have changed since the world was captured
+        and haven't been written yet, by atom
+    */
+    private Hashtable copies = new Hashtable();
+
+    /** The number of atoms written, which are written in the order they
+        are numbered. If the base image isn't written, its atoms which had
+        changed are written last, and taken out of 'baseChanged' instead.
+    */
+    private int position = 0;
+
+    /** Is the snapshot finished, and did it fail?
+    */
+    private boolean finished = false;
+    private IOException failure = null;
+
+    /** Measurements
+    */
+    private long captureMillis = 0;
+    private long writeMillis = 0;
+    private int copyCount = 0;
+
+    private SnapshotWriter(World world, String fileName, String baseName, WorldJournal journal)
+        {
+        this.world = world;
+        this.fileName = fileName;
+        this.baseName = baseName;
+        this.journal = journal;
+        database = world.getAtomDatabase();
+        }
+
+    /** Capture a world, and start writing its snapshot to 'fileName', and
+        its base image, if it needs one, to 'baseName'. If a snapshot of the
+        world is being written already, it is finished first.
+    */
+    static SnapshotWriter start(World world, String fileName, String baseName, WorldJournal journal)
+        throws IOException
+        {
+        // Close the gate when no other snapshot is being written
+        AtomDatabase database = world.getAtomDatabase();
+        EventGate gate = world.getEventGate();
+        while (true)
+            {
+            SnapshotWriter previous = database.capture;
+            if (previous != null)
+                previous.join();
+            gate.close();
+            if (database.capture == null)
+                break;
+            gate.open();
+            }
+
+        SnapshotWriter writer = new SnapshotWriter(world, fileName, baseName, journal);
+        try {
+            writer.capture();
+            }
+        finally
+            {
+            gate.open();
+            }
+        Thread thread = new Thread(writer, "MUA snapshot writer");
+        thread.setDaemon(true);
+        thread.start();
+        return writer;
+        }
+
+    /** Capture the world, with events held back
+    */
+    private void capture()
+        throws IOException
+        {
+        long start = System.currentTimeMillis();
+        if (journal != null)
+            journalPosition = journal.beginCapture();
+        try {
+            // Atoms changed, added or removed from now on are noted. Listing
+            //  the atoms here would take most of the time in a big world.
+            database.capture = this;
+            checkpoint = WorldFactory.nextCheckpoint();
+            timeMillis = world.getTimeMillis();
+            worldData = WorldSnapshot.writeWorld(world);
+
+            // The base image is written again if the world has been frozen
+            //  since it was written, or if more than half of it has changed
+            synchronized (database)
+                {
+                Atom base[] = database.baseAtoms;
+                if (base != null && database.baseChanged.size() * 2 <= base.length)
+                    {
+                    baseNumber = database.baseNumber;
+                    baseAtoms = base;
+                    baseChanged = (Hashtable)database.baseChanged.clone();
+                    }
+                else {
+                    newBase = true;
+                    baseChanges = new Hashtable();
+                    database.baseNumber = 0;
+                    database.baseAtoms = null;
+                    database.baseChanged = baseChanges;
+                    }
+                }
+            }
+        catch (IOException e)
+            {
+            database.capture = null;
+            throw e;
+            }
+        finally
+            {
+            if (journal != null)
+                journal.endCapture();
+            }
+        captureMillis = System.currentTimeMillis() - start;
+        }
+
+    /** List the atoms which were in the database when the world was
+        captured: those in it now, less those added since, and those
+        removed since. They are numbered with the base image's atoms first:
+        those already in it, or the frozen atoms if it is written.
+    */
+    private void listAtoms()
+        {
+        Atom list[];
+        int count = 0;
+        synchronized (database.atoms)
+            {
+            list = new Atom[database.size() + removed.size()];
+            Enumeration e = database.getAtoms();
+            while (e.hasMoreElements())
+                {
+                Atom atom = (Atom)e.nextElement();
+                if (!added.containsKey(atom))
+                    list[count++] = atom;
+                }
+            e = removed.keys();
+            while (e.hasMoreElements())
+                {
+                Atom atom = (Atom)e.nextElement();
+                if (!added.containsKey(atom))
+                    list[count++] = atom;
+                }
+            }
+
+        Atom result[] = new Atom[count];
+        Hashtable index = new Hashtable(count * 2 + 1);
+        int n = 0;
+        if (!newBase)
+            {
+            for (; n < baseAtoms.length; n++)
+                {
+                result[n] = baseAtoms[n];
+                index.put(baseAtoms[n], new Integer(n));
+                }
+            }
+        else {
+            for (int i = 0; i < count; i++)
+                {
+                if (list[i].isFrozen())
+                    {
+                    result[n] = list[i];
+                    index.put(list[i], new Integer(n++));
+                    }
+                }
+            }
+        int baseCount = n;
+        for (int i = 0; i < count; i++)
+            {
+            if (!index.containsKey(list[i]))
+                {
+                result[n] = list[i];
+                index.put(list[i], new Integer(n++));
+                }
+            }
+        if (n < count)
+            {
+            Atom trimmed[] = new Atom[n];
+            System.arraycopy(result, 0, trimmed, 0, n);
+            result = trimmed;
+            }
+
+        // From now on an atom is in the snapshot if it has been numbered
+        synchronized (this)
+            {
+            atoms = result;
+            this.index = index;
+            this.baseCount = baseCount;
+            synchronized (database.atoms)
+                {
+                added = null;
+                removed = null;
+                }
+            }
+        }
+
+    /** Get the indices of the base image's atoms which had changed when the
+        world was captured
+    */
+    private synchronized int[] getBaseChanged()
+        {
+        if (baseChanged == null)
+            return new int[0];
+        int result[] = new int[baseChanged.size()];
+        int n = 0;
+        Enumeration e = baseChanged.keys();
+        while (e.hasMoreElements())
+            {
+            Integer i = (Integer)index.get(e.nextElement());
+            if (i != null && i.intValue() < baseCount)
+                result[n++] = i.intValue();
+            }
+        int trimmed[] = new int[n];
+        System.arraycopy(result, 0, trimmed, 0, n);
+        return trimmed;
+        }
+
+    /** Write the snapshot
+    */
+    public void run()
+        {
+        long start = System.currentTimeMillis();
+        try {
+            listAtoms();
+
+            // The base image, if the world has frozen atoms and the old one
+            //  can't be used
+            String baseTemp = baseName + WorldFactory.TEMP_SUFFIX;
+            if (newBase && baseCount > 0)
+                {
+                baseNumber = checkpoint;
+                FileOutputStream file = new FileOutputStream(baseTemp);
+                try {
+                    OutputStream out = new BufferedOutputStream(file, BUFFER_SIZE);
+                    WorldSnapshot.writeBase(out, this, baseNumber, atoms, baseCount, index, database.atoms);
+                    out.flush();
+                    file.getFD().sync();
+                    }
+                finally
+                    {
+                    file.close();
+                    }
+                }
+
+            String tempName = fileName + WorldFactory.TEMP_SUFFIX;
+            FileOutputStream file = new FileOutputStream(tempName);
+            try {
+                OutputStream out = new BufferedOutputStream(file, BUFFER_SIZE);
+                WorldSnapshot.write(out, this, checkpoint, baseNumber, atoms, baseCount, getBaseChanged(),
+                        worldData, index, database.atoms);
+                out.flush();
+                file.getFD().sync();
+                }
+            finally
+                {
+                file.close();
+                }
+
+            // Replace the snapshot, and the journal with the changes since
+            //  the capture, then the base image
+            if (journal != null)
+                journal.checkpointWritten(checkpoint, timeMillis, journalPosition, tempName, fileName);
+            else
+                WorldFactory.replaceFile(tempName, fileName);
+            if (newBase && baseCount > 0)
+                WorldFactory.replaceFile(baseTemp, baseName);
+            world.checkpoint = checkpoint;
+
+            // Later snapshots refer to the new image, unless the world has
+            //  been frozen since it was captured
+            if (newBase)
+                {
+                Atom base[] = new Atom[baseCount];
+                System.arraycopy(atoms, 0, base, 0, baseCount);
+                synchronized (database)
+                    {
+                    if (database.baseChanged == baseChanges)
+                        {
+                        database.baseNumber = baseNumber;
+                        database.baseAtoms = base;
+                        }
+                    }
+                }
+            }
+        catch (IOException e)
+            {
+            failure = e;
+            }
+        catch (RuntimeException e)
+            {
+            Debug.printStackTrace(e);
+            failure = new IOException(e.toString());
+            }
+        finally
+            {
+            database.capture = null;
+            synchronized (this)
+                {
+                writeMillis = System.currentTimeMillis() - start;
+                finished = true;
+                copies = null;
+                atoms = null;
+                index = null;
+                baseAtoms = null;
+                baseChanged = null;
+                worldData = null;
+                notifyAll();
+                }
+            }
+
+        if (failure != null)
+            {
+            //### Should be World.warning
+            System.out.println("SnapshotWriter: Can't write snapshot " + fileName + ": " + failure.getMessage());
+            }
+        }
+
+    /** Wait until the snapshot is written
+        @exception IOException if it couldn't be written
+    */
+    public void waitFor()
+        throws IOException
+        {
+        join();
+        if (failure != null)
+            throw failure;
+        }
+
+    /** Wait until the writer has finished, whether or not it failed
+    */
+    synchronized void join()
+        {
+        while (!finished)
+            {
+            try {
+                wait();
+                }
+            catch (InterruptedException e)
+                {
+                }
+            }
+        }
+
+    /** Has the writer finished?
+    */
+    public synchronized boolean isFinished()
+        {
+        return finished;
+        }
+
+    /** Get the time in milliseconds for which events were held back while
+        the world was captured
+    */
+    public long getCaptureMillis()
+        {
+        return captureMillis;
+        }
+
+    /** Get the time in milliseconds taken to write the snapshot, once the
+        writer has finished
+    */
+    public synchronized long getWriteMillis()
+        {
+        return writeMillis;
+        }
+
+    /** Get the number of atoms copied because they changed while the
+        snapshot was written
+    */
+    public synchronized int getCopyCount()
+        {
+        return copyCount;
+        }
+
+    /** Get the snapshot's checkpoint number
+    */
+    public long getCheckpoint()
+        {
+        return checkpoint;
+        }
+
+// Copy on write
+
+    /** An atom is about to change. If it is in the snapshot and hasn't been
+        written yet, it is copied.
+    */
+    synchronized void preserve(Atom atom)
+        {
+        if (finished)
+            return;
+
+        // Until the atoms are numbered, an atom is in the snapshot if it was
+        //  in the database when the world was captured (deleted atoms are
+        //  changed before they are removed, so are copied while they are in
+        //  it), apart from frozen atoms in the base image which hadn't
+        //  changed. Once they are numbered, the base image's atoms which had
+        //  changed are written last.
+        if (index != null)
+            {
+            Integer i = (Integer)index.get(atom);
+            if (i == null)
+                return;
+            else if (baseChanged != null && i.intValue() < baseCount)
+                {
+                if (!baseChanged.containsKey(atom))
+                    return;
+                }
+            else if (i.intValue() < position)
+                return;
+            }
+        else
+            {
+            if (baseChanged != null && atom.isFrozen() && !baseChanged.containsKey(atom))
+                return;
+            synchronized (database.atoms)
+                {
+                if (added.containsKey(atom) ||
+                        database.atoms.get(atom.getID()) != atom && !removed.containsKey(atom))
+                    return;
+                }
+            }
+
+        if (copies.get(atom) == null)
+            {
+            copies.put(atom, atom.copyState());
+            copyCount++;
+            }
+        }
+
+    /** An atom has been added to the database. Called synched on the
+        database's table of atoms.
+    */
+    void atomAdded(Atom atom)
+        {
+        if (added != null)
+            added.put(atom, atom);
+        }
+
+    /** An atom has been removed from the database. Called synched on the
+        database's table of atoms.
+    */
+    void atomRemoved(Atom atom)
+        {
+        if (removed != null)
+            removed.put(atom, atom);
+        }
+
+    /** Called by 'WorldSnapshot.write' and 'writeBase' to write the i'th
+        atom, or its copy if it has changed. An atom can't change while it
+        is being written.
+    */
+    synchronized void writeAtom(WorldSnapshot.Output output, int i)
+        throws IOException
+        {
+        Atom atom = atoms[i];
+        Atom copy = (Atom)copies.remove(atom);
+        if (copy != null)
+            copy.writeSnapshot(output);
+        else
+            atom.writeSnapshot(output);
+        if (baseChanged != null && i < baseCount)
+            baseChanged.remove(atom);
+        else
+            position = i + 1;
+        }
+    }
@@ -0,0 +1,563 @@
+// $Id$
+// State file holding a world's dynamic state, written where it has changed
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.util.*;
+
+/** A world's dynamic state file, to which only the changes since it was
+    last written are added.
+    <p>
+    The dynamic state is all the atoms which are not frozen, with the
+    world time and their timed events. Writing all of it every time meant
+    a save took time proportional to the size of the world, however little
+    of it had changed, so it was only done at shutdown.
+    <p>
+    Once the file has been written in full (or read in full), the atom
+    database tracks the atoms which change: those created or deleted,
+    whose fields or parents are changed or which are moved, containers
+    whose exits change, and atoms whose timed events are added, cancelled
+    or posted. A save appends a segment holding just those atoms and their
+    events, so it takes time proportional to the changes.
+    <p>
+    The file is a series of segments. The first is the whole state, as
+    'World.exportState' writes it, so state files written before this
+    class still load. Each later segment has the same layout: the changed
+    atoms (a deleted atom is written as AtomDatabase.EXPORT_DELETED and its
+    ID), the delimiter, the time, the events of the changed atoms, and the
+    delimiter. An atom in a segment replaces the atom and all its events in
+    the segments before it. A segment which is cut short (if the world
+    crashed while it was being written) is ignored, and the next save
+    writes the whole file again.
+    <p>
+    When the file has grown to COMPACT_RATIO times its size after it was
+    last compacted, a thread merges its segments into one. The compaction
+    only reads the file, not the world, so saves go on while it runs;
+    anything they append meanwhile is copied to the end of the merged file
+    before it replaces the old one.
+    <p>
+    Synchronization: writes to the file, and replacing it, are synched on
+    the file lock.
+*/
+public final class StateFile
+    implements Runnable
+    {
+    /** The file is compacted when it grows to this many times its size
+        after it was last written in full or compacted
+    */
+    public static final int COMPACT_RATIO = 2;
+
+    /** Files smaller than this are not compacted
+    */
+    public static final long MIN_COMPACT_SIZE = 64 * 1024;
+
+    /** Added to the file name for the merged file, while it is written
+    */
+    private static final String COMPACT_SUFFIX = ".new";
+
+    /** The world
+    */
+    private World world;
+
+    /** The name of the file
+    */
+    private String fileName;
+
+    /** Held while the file is written or replaced
+    */
+    private Object fileLock = new Object();
+
+    /** Can changes be appended to the file? Not until it has been written
+        or read in full, nor after a write fails.
+    */
+    private boolean canAppend = false;
+
+    /** The size of the file, up to the end of the last whole segment, and
+        the size at which it will be compacted
+    */
+    private long size = 0;
+    private long compactSize = MIN_COMPACT_SIZE;
+
+    /** Incremented whenever the whole file is written, so a compaction
+        which was started before knows it is out of date
+    */
+    private int generation = 0;
+
+    /** The thread compacting the file, or null
+    */
+    private Thread compactThread = null;
+
+    /** Counters
+    */
+    private long segments = 0;
+    private long atomsWritten = 0;
+    private long compactions = 0;
+
+    /** Create the state file for a world. Nothing is read or written until
+        'load' or 'save' is called.
+    */
+    StateFile(World world, String fileName)
+        {
+        this.world = world;
+        this.fileName = fileName;
+        }
+
+    /** Get the name of the file
+    */
+    public String getFileName()
+        {
+        return fileName;
+        }
+
+    /** Get the size of the file in bytes
+    */
+    public long getSize()
+        {
+        return size;
+        }
+
+    /** Get the number of segments of changes appended to the file
+    */
+    public long getSegmentCount()
+        {
+        return segments;
+        }
+
+    /** Get the number of atoms written to the file, in full and in
+        segments of changes
+    */
+    public long getAtomCount()
+        {
+        return atomsWritten;
+        }
+
+    /** Get the number of times the file has been compacted
+    */
+    public long getCompactionCount()
+        {
+        return compactions;
+        }
+
+    /** Is the file being compacted?
+    */
+    public boolean isCompacting()
+        {
+        synchronized (fileLock)
+            {
+            return compactThread != null;
+            }
+        }
+
+    /** Import the file into the world, then track the changes to it
+    */
+    void load()
+        throws IOException
+        {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(fileName)));
+        State state;
+        try {
+            state = read(in);
+            }
+        finally
+            {
+            in.close();
+            }
+        world.importState(state);
+
+        synchronized (fileLock)
+            {
+            generation++;
+            size = new File(fileName).length();
+            compactSize = Math.max(size * COMPACT_RATIO, MIN_COMPACT_SIZE);
+            canAppend = state.isComplete();
+            world.getAtomDatabase().trackChanges();
+            }
+        }
+
+    /** Save the world's dynamic state. Only the atoms which have changed
+        since the file was last written are added to it, unless it must be
+        written in full.
+    */
+    void save()
+        throws IOException
+        {
+        synchronized (fileLock)
+            {
+            AtomDatabase database = world.getAtomDatabase();
+            Hashtable changes = canAppend ? database.takeChangedAtoms() : null;
+            if (changes == null)
+                writeAll();
+            else if (!changes.isEmpty())
+                append(changes);
+
+            // Compact the file if it has grown enough
+            if (canAppend && size >= compactSize && compactThread == null)
+                {
+                compactThread = new Thread(this, "MUA state file compaction");
+                compactThread.setDaemon(true);
+                compactThread.start();
+                }
+            }
+        }
+
+    /** Write the whole state to the file. The changes are tracked from
+        before the state is written, so a change made while it is written
+        is written again in the next segment.
+    */
+    private void writeAll()
+        throws IOException
+        {
+        canAppend = false;
+        generation++;
+        world.getAtomDatabase().trackChanges();
+
+        // Write the new file beside the old one, then replace it
+        String tempName = fileName + WorldFactory.TEMP_SUFFIX;
+        FileOutputStream file = new FileOutputStream(tempName);
+        try {
+            OutputStream out = new BufferedOutputStream(file);
+            world.exportState(out);
+            out.flush();
+            file.getFD().sync();
+            }
+        finally
+            {
+            file.close();
+            }
+        WorldFactory.replaceFile(tempName, fileName);
+
+        size = new File(fileName).length();
+        compactSize = Math.max(size * COMPACT_RATIO, MIN_COMPACT_SIZE);
+        atomsWritten += world.getAtomDatabase().size();
+        canAppend = true;
+        }
+
+    /** Append a segment holding the changed atoms
+    */
+    private void append(Hashtable changes)
+        throws IOException
+        {
+        // If the write fails, the file may end with part of a segment
+        canAppend = false;
+        FileOutputStream file = new FileOutputStream(fileName, true);
+        try {
+            OutputStream out = new BufferedOutputStream(file);
+            world.exportChanges(out, changes);
+            out.flush();
+            file.getFD().sync();
+            }
+        finally
+            {
+            file.close();
+            }
+
+        size = new File(fileName).length();
+        segments++;
+        atomsWritten += changes.size();
+        canAppend = true;
+        }
+
+    /** The compaction thread
+    */
+    public void run()
+        {
+        try {
+            compact();
+            }
+        catch (IOException e)
+            {
+            //### Should be World.warning
+            System.out.println("StateFile: Can't compact " + fileName);
+            Debug.printStackTrace(e);
+            }
+        finally
+            {
+            synchronized (fileLock)
+                {
+                compactThread = null;
+                }
+            }
+        }
+
+    /** Merge the file's segments into one, so it holds each atom once
+    */
+    private void compact()
+        throws IOException
+        {
+        // Read the whole segments written so far, and merge them
+        int length;
+        int startGeneration;
+        synchronized (fileLock)
+            {
+            length = (int)size;
+            startGeneration = generation;
+            }
+        byte data[] = new byte[length];
+        DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+        try {
+            in.readFully(data);
+            }
+        finally
+            {
+            in.close();
+            }
+        State state = read(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(data))));
+        data = null;
+        if (!state.isComplete())
+            return;
+
+        // Write the merged state to a new file
+        String newName = fileName + COMPACT_SUFFIX;
+        FileOutputStream file = new FileOutputStream(newName);
+        boolean replaced = false;
+        try {
+            OutputStream out = new BufferedOutputStream(file);
+            state.write(out);
+
+            // Copy anything saved since, and replace the file, unless it
+            //  has been written again in full
+            synchronized (fileLock)
+                {
+                if (generation != startGeneration || !canAppend)
+                    return;
+                copyTail(length, out);
+                out.flush();
+                file.getFD().sync();
+                file.close();
+                WorldFactory.replaceFile(newName, fileName);
+                replaced = true;
+
+                size = new File(fileName).length();
+                compactSize = Math.max(size * COMPACT_RATIO, MIN_COMPACT_SIZE);
+                compactions++;
+                }
+            }
+        finally
+            {
+            if (!replaced)
+                {
+                file.close();
+                new File(newName).delete();
+                }
+            }
+        }
+
+    /** Copy the file from 'start' to its end (up to the last whole segment)
+    */
+    private void copyTail(long start, OutputStream out)
+        throws IOException
+        {
+        if (start >= size)
+            return;
+        InputStream in = new FileInputStream(fileName);
+        try {
+            long remaining = start;
+            while (remaining > 0)
+                remaining -= in.skip(remaining);
+            byte buf[] = new byte[8192];
+            remaining = size - start;
+            while (remaining > 0)
+                {
+                int n = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+                if (n < 0)
+                    throw new EOFException("State file is shorter than expected: " + fileName);
+                out.write(buf, 0, n);
+                remaining -= n;
+                }
+            }
+        finally
+            {
+            in.close();
+            }
+        }
+
+    /** Read a state file, merging its segments
+    */
+    static State read(BufferedReader in)
+        throws IOException
+        {
+        State state = new State();
+        while (true)
+            {
+            // The atoms, up to the delimiter
+            String s = in.readLine();
+            if (s == null)
+                break;
+            Vector atoms = new Vector();
+            while (s != null && !s.equals(AtomDatabase.EXPORT_DELIMITER))
+                {
+                atoms.addElement(s);
+                s = in.readLine();
+                }
+
+            // The time and the events, up to the delimiter. A segment which
+            //  ends before then was cut short.
+            String time = s != null ? in.readLine() : null;
+            Vector events = new Vector();
+            s = time != null ? in.readLine() : null;
+            while (s != null && !s.equals(AtomDatabase.EXPORT_DELIMITER))
+                {
+                events.addElement(s);
+                s = in.readLine();
+                }
+            if (s == null)
+                {
+                state.complete = false;
+                break;
+                }
+            state.apply(atoms, time, events);
+            }
+        return state;
+        }
+
+    /** The state read from a file
+    */
+    static final class State
+        {
+        /** The export format of each atom, by ID, and the IDs in the order
+            they were first read. An ID may be in the list more than once,
+            or after its atom has been deleted.
+        */
+        private Hashtable atoms = new Hashtable();
+        private Vector order = new Vector();
+
+        /** The export format of each atom's events, by the atom's ID
+        */
+        private Hashtable events = new Hashtable();
+
+        /** The time, in seconds, or null if there were no segments
+        */
+        private String time = null;
+
+        /** Did the file end with a whole segment?
+        */
+        private boolean complete = true;
+
+        /** Add a segment. Its atoms replace the same atoms and all their
+            events.
+        */
+        private void apply(Vector atomLines, String time, Vector eventLines)
+            {
+            String deletedPrefix = AtomDatabase.EXPORT_DELETED + AtomDatabase.EXPORT_DELIMITER;
+            for (int i = 0; i < atomLines.size(); i++)
+                {
+                String s = (String)atomLines.elementAt(i);
+                if (s.startsWith(deletedPrefix))
+                    {
+                    String id = s.substring(deletedPrefix.length());
+                    atoms.remove(id);
+                    events.remove(id);
+                    }
+                else {
+                    String id = getAtomID(s);
+                    if (atoms.put(id, s) == null)
+                        order.addElement(id);
+                    events.remove(id);
+                    }
+                }
+
+            this.time = time;
+            for (int i = 0; i < eventLines.size(); i++)
+                {
+                String s = (String)eventLines.elementAt(i);
+                String id = getCurrentID(s);
+                Vector v = (Vector)events.get(id);
+                if (v == null)
+                    {
+                    v = new Vector();
+                    events.put(id, v);
+                    }
+                v.addElement(s);
+                }
+            }
+
+        /** Did the file end with a whole segment? If not, the last segment
+            was ignored.
+        */
+        boolean isComplete()
+            {
+            return complete;
+            }
+
+        /** Enumerate the export format of the atoms
+        */
+        Enumeration getAtoms()
+            {
+            Vector result = new Vector();
+            Hashtable done = new Hashtable();
+            for (int i = 0; i < order.size(); i++)
+                {
+                Object id = order.elementAt(i);
+                Object s = atoms.get(id);
+                if (s != null && done.put(id, id) == null)
+                    result.addElement(s);
+                }
+            return result.elements();
+            }
+
+        /** Get the time, in seconds, or null if there were no segments
+        */
+        String getTime()
+            {
+            return time;
+            }
+
+        /** Enumerate the export format of the events
+        */
+        Enumeration getEvents()
+            {
+            Vector result = new Vector();
+            Enumeration lists = events.elements();
+            while (lists.hasMoreElements())
+                {
+                Vector v = (Vector)lists.nextElement();
+                for (int i = 0; i < v.size(); i++)
+                    result.addElement(v.elementAt(i));
+                }
+            return result.elements();
+            }
+
+        /** Write the state as one segment
+        */
+        void write(OutputStream _out)
+            throws IOException
+            {
+            PrintWriter out = new PrintWriter(_out);
+            Enumeration lines = getAtoms();
+            while (lines.hasMoreElements())
+                out.println(lines.nextElement());
+            out.println(AtomDatabase.EXPORT_DELIMITER);
+            out.println(time != null ? time : "0");
+            lines = getEvents();
+            while (lines.hasMoreElements())
+                out.println(lines.nextElement());
+            out.println(AtomDatabase.EXPORT_DELIMITER);
+            out.flush();
+            if (out.checkError())
+                throw new IOException("Can't write state file");
+            }
+
+        /** Get the ID from an atom's export format: its second field
+        */
+        private static String getAtomID(String s)
+            {
+            StringTokenizer tzr = new StringTokenizer(s, AtomDatabase.EXPORT_DELIMITER);
+            tzr.nextToken();
+            return tzr.nextToken();
+            }
+
+        /** Get the ID of the current atom from an event's export format:
+            its third field
+        */
+        private static String getCurrentID(String s)
+            {
+            StringTokenizer tzr = new StringTokenizer(s, AtomDatabase.EXPORT_DELIMITER);
+            tzr.nextToken();
+            tzr.nextToken();
+            return tzr.nextToken();
+            }
+        }
+    }
@@ -17,10 +17,15 @@ import com.ogalala.util.*;
     <li> Support timed events, which are to be posted to the event processor 
         at some future time.
     </ul>
-    All measurements are in real seconds. If game time is required to flow
-    at some other rate (e.g. 2 game seconds == 1 real second) this must be 
+    All measurements are in real seconds, or milliseconds for the functions
+    with 'Millis' in their names. If game time is required to flow at some
+    other rate (e.g. 2 game seconds == 1 real second) this must be 
     maintained in a game-specific module.
     <p>
+    Timed events are held on a timing wheel. The thread sleeps until the
+    next event is due, and is woken if an earlier event is added, so events
+    are posted within a few milliseconds of their time without polling.
+    <p>
     No time formatting or output functions are provided. This is assumed to be 
     the responsibility of a game-specific module.
 */
@@ -29,21 +34,23 @@ final class Timer
     {
     public static final int serialVersionUID = 1;
     
-    /** Time to sleep between looking for mature events (milliseconds)
-    */
-    private static final int SLEEP_TIME = 200;
-    
     /** Back-pointer to world
     */
     private World world;
 
-    /** Timed event queue
+    /** Timed events. The wheel's clock is world time in milliseconds. 
+        Access to the wheel is synchronized on the wheel.
+    */
+    private TimingWheel wheel = new TimingWheel();
+
+    /** The number of milliseconds the world had been running when it was last stopped
     */
-    private EventTimerQueue queue = new EventTimerQueue();
+    private long worldTimeMillis = 0L;
 
-    /** The number of seconds since the world was created
+    /** The time the thread will next wake up, or Long.MAX_VALUE if it is 
+        waiting for an event to be added
     */
-    private long worldTime = 0L;
+    private transient long wakeTime = Long.MAX_VALUE;
 
     /** The system time when the world was started with 'world.start'
     */
@@ -81,7 +88,7 @@ final class Timer
     public void stop()
         {
         thread.stop();
-        worldTime = getTime();
+        worldTimeMillis = getTimeMillis();
         thread = null;
         }
 
@@ -89,63 +96,212 @@ final class Timer
     */
     public long getTime()
         {
-        return worldTime + getElapsedTime();
+        return getTimeMillis() / 1000;
+        }
+
+    /** Get the number of milliseconds the game has been running
+    */
+    public long getTimeMillis()
+        {
+        if (thread == null)
+            return worldTimeMillis;
+        else
+            return worldTimeMillis + getElapsedTime();
         }
 
-    /** Get the time in seconds since the timer was started
+    /** Get the time in milliseconds since the timer was started
     */
     private final long getElapsedTime()
         {
-        return (new Date().getTime() - startTimeMillis) / 1000;
+        return new Date().getTime() - startTimeMillis;
         }
 
     /** Cause an event to be sent to the queue when its time matures
+        @return a handle which can be used to cancel the event
     */
-    public void putEvent(Event event)
+    public TimerHandle putEvent(Event event)
         {
-        queue.put(event);
+        TimerHandle result;
+        synchronized (wheel)
+            {
+            result = wheel.add(event);
+            
+            // Wake the thread if this event is due before it would wake
+            if (event.getTimeMillis() < wakeTime)
+                wheel.notify();
+            }
+        AtomDatabase database = world.getAtomDatabase();
+        if (database.journal != null)
+            database.journal.timerEvent(event);
+        eventsChanged(event.getCurrent());
+        return result;
         }
         
-    /** The thread waits until an event matures on the timer queue, then 
+    /** The thread waits until an event matures on the timing wheel, then 
         posts it to the event processor queue.
     */
     public void run()
         {
+        Vector due = new Vector();
         while (true)
             {
-            // If the queue is not empty, post any matured events
-            if (!queue.isEmpty())
+            // Wait until the next event is due or an earlier one is added
+            synchronized (wheel)
                 {
-                // The time to wait until the next event
-                long nextEventDelay = 0;
-                do  {
-                    // See if an event has matured
-                    nextEventDelay = queue.peek().getTime() - getTime();
-                    if (nextEventDelay <= 0)
+                wakeTime = wheel.getNextTime();
+                long delay = wakeTime - getTimeMillis();
+                if (wakeTime == Long.MAX_VALUE || delay > 0)
+                    {
+                    try {
+                        wheel.wait(wakeTime == Long.MAX_VALUE ? 0 : delay);
+                        }
+                    catch (InterruptedException e)
                         {
-                        // Remove the event from the timer queue and post it to the processor queue
-                        Event event = queue.get();
-                        world.postEvent(event);
                         }
+                    wakeTime = Long.MAX_VALUE;
+                    continue;
                     }
-                while (nextEventDelay <= 0);
+                wakeTime = Long.MAX_VALUE;
                 }
                 
-            // Go to sleep for a short time
+            // Collect the matured events and post them to the processor
+            //  queue, outside the lock. They pass through the event gate
+            //  together, so a snapshot has them in the wheel or in the queue.
+            EventGate gate = world.getEventGate();
+            gate.enter();
             try {
-                thread.sleep(SLEEP_TIME);
+                synchronized (wheel)
+                    {
+                    wheel.advance(getTimeMillis(), due);
+                    }
+                for (int i = 0; i < due.size(); i++)
+                    {
+                    Event event = (Event)due.elementAt(i);
+                    world.postEvent(event);
+                    eventsChanged(event.getCurrent());
+                    }
                 }
-            catch (InterruptedException e)
+            finally
                 {
+                gate.leave();
                 }
+            due.removeAllElements();
+            }
+        }
+
+    /** Cancel all the pending events whose current atom is 'atom'
+        @return the number of events cancelled
+    */
+    public int cancelEvents(Atom atom)
+        {
+        int count;
+        synchronized (wheel)
+            {
+            count = wheel.cancelAll(atom);
+            }
+        if (count > 0)
+            cancelled(atom, null);
+        return count;
+        }
+        
+    /** Cancel the pending events with ID 'id' whose current atom is 'atom'
+        @return the number of events cancelled
+    */
+    public int cancelEvents(Atom atom, String id)
+        {
+        int count;
+        synchronized (wheel)
+            {
+            count = wheel.cancelAll(atom, id);
             }
+        if (count > 0)
+            cancelled(atom, id);
+        return count;
         }
 
+    /** Some of the events for 'atom' (with ID 'id', or any ID if it is null)
+        have been cancelled. Write it to the journal, and note the change.
+    */
+    private void cancelled(Atom atom, String id)
+        {
+        AtomDatabase database = world.getAtomDatabase();
+        if (database.journal != null)
+            database.journal.cancelTimers(atom, id);
+        eventsChanged(atom);
+        }
+        
+    /** Cancel the pending event with ID 'id' whose current atom is 'atom', 
+        due at 'timeMillis'. Used when a journal is replayed.
+        @return true if the event was found
+    */
+    boolean cancelEvent(Atom atom, String id, long timeMillis)
+        {
+        synchronized (wheel)
+            {
+            return wheel.cancel(atom, id, timeMillis);
+            }
+        }
+        
+    /** Set the world time when a journal has been replayed. The timer must
+        be stopped. Events due by then were posted before the world stopped,
+        so they are taken off the wheel.
+        @return the number of events taken off
+    */
+    int recoverTime(long timeMillis)
+        {
+        if (timeMillis <= worldTimeMillis)
+            return 0;
+        worldTimeMillis = timeMillis;
+        Vector due = new Vector();
+        synchronized (wheel)
+            {
+            wheel.advance(timeMillis, due);
+            }
+        return due.size();
+        }
+        
+    /** The events for an atom have changed, so it must be written to the
+        state file again (see 'exportChanges')
+    */
+    private void eventsChanged(Atom atom)
+        {
+        if (atom != null)
+            world.getAtomDatabase().atomChanged(atom);
+        }
+        
+    /** Read a serialized timer. Worlds serialized before the timer had a 
+        timing wheel have the world time in seconds, and the events in an
+        EventTimerQueue, which are moved onto a new wheel.
+    */
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException
+        {
+        ObjectInputStream.GetField stream = in.readFields();
+        world = (World)stream.get("world", null);
+        wakeTime = Long.MAX_VALUE;
+        if (stream.getObjectStreamClass().getField("wheel") == null)
+            {
+            worldTimeMillis = stream.get("worldTime", 0L) * 1000;
+            wheel = new TimingWheel();
+            wheel.setNow(worldTimeMillis);
+            EventTimerQueue queue = (EventTimerQueue)stream.get("queue", null);
+            if (queue != null)
+                queue.moveTo(wheel);
+            }
+        else {
+            worldTimeMillis = stream.get("worldTimeMillis", 0L);
+            wheel = (TimingWheel)stream.get("wheel", null);
+            }
+        }
+        
     /** How many elements in the timer queue?
     */
     public int queueSize()
         {
-        return queue.count();
+        synchronized (wheel)
+            {
+            return wheel.size();
+            }
         }
         
     /** Export the timer's dynamic state. This contains the time and all
@@ -154,13 +310,18 @@ final class Timer
     protected final void exportState(PrintWriter out)
         throws IOException
         {
-        // Write the time
-        out.println(Long.toString(worldTime));
+        // Write the time (in seconds, as the format always has been)
+        out.println(Long.toString(getTimeMillis() / 1000));
         
         // Write the events
-        for (int i = 0; i < queue.count(); i++)
+        Enumeration events;
+        synchronized (wheel)
+            {
+            events = wheel.elements();
+            }
+        while (events.hasMoreElements())
             {
-            Event event = queue.elementAt(i);
+            Event event = (Event)events.nextElement();
             Atom curr = event.getCurrent();
             if (curr != null && !curr.isFrozen())
                 out.println(event.toExportFormat());
@@ -168,23 +329,47 @@ final class Timer
         out.println(AtomDatabase.EXPORT_DELIMITER);
         }
 
-    /** Import a dynamic state file
+    /** Export the time and the events whose current atom is one of 'atoms',
+        in the same format as 'exportState'. Used to write the changes to a
+        state file, when 'atoms' are the atoms written (see 'StateFile').
     */
-    protected final void importState(BufferedReader in)
+    protected final void exportChanges(PrintWriter out, Vector atoms)
         throws IOException
+        {
+        out.println(Long.toString(getTimeMillis() / 1000));
+        Vector events = new Vector();
+        synchronized (wheel)
+            {
+            for (int i = 0; i < atoms.size(); i++)
+                {
+                Atom atom = (Atom)atoms.elementAt(i);
+                for (TimerHandle handle = atom.timers; handle != null; handle = handle.atomNext)
+                    events.addElement(handle.event);
+                }
+            }
+        for (int i = 0; i < events.size(); i++)
+            out.println(((Event)events.elementAt(i)).toExportFormat());
+        out.println(AtomDatabase.EXPORT_DELIMITER);
+        }
+
+    /** Import the time and events from a state file, given as the lines
+        written by 'exportState'
+    */
+    protected final void importState(String time, Enumeration events)
         {
         // Get the time
-        String s = in.readLine();
-        worldTime = Long.parseLong(s);
+        worldTimeMillis = Long.parseLong(time) * 1000;
+        synchronized (wheel)
+            {
+            if (wheel.size() == 0)
+                wheel.setNow(worldTimeMillis);
+            }
         
         // Add the events to the queue
-        while (true)
+        while (events.hasMoreElements())
             {
-            s = in.readLine();
-            if (s == null || s.equals(AtomDatabase.EXPORT_DELIMITER))
-                break;
             try {
-                Event event = importEvent(s);
+                Event event = importEvent((String)events.nextElement());
                 putEvent(event);
                 }
             catch (RuntimeException e)
@@ -0,0 +1,86 @@
+// $Id$
+// Handle for a pending timer event
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+/** A handle for a timed event, returned by 'World.timerEvent' and
+    friends. The handle can be used to cancel the event before it is posted.
+    <p>
+    The handle is also the event's entry on the timer's timing wheel, and on
+    the list of pending timers of the event's current atom, so cancelling
+    takes constant time. Handles are not saved with the world: when a world
+    is loaded its timed events are given new handles.
+*/
+public final class TimerHandle
+    {
+    /** The event
+    */
+    final Event event;
+
+    /** The wheel holding this handle. Access to the handle's links is
+        synchronized on the wheel.
+    */
+    final TimingWheel wheel;
+
+    /** The level and slot on the wheel, or -1 if the event is not pending
+    */
+    int level = -1;
+    int slot;
+
+    /** Neighbours in the wheel slot's list
+    */
+    TimerHandle next, prev;
+
+    /** The atom whose list of pending timers holds this handle, and the
+        neighbours in that list
+    */
+    Atom atom;
+    TimerHandle atomNext, atomPrev;
+
+    /** Constructor
+    */
+    TimerHandle(TimingWheel wheel, Event event)
+        {
+        this.wheel = wheel;
+        this.event = event;
+        }
+
+    /** Get the event
+    */
+    public Event getEvent()
+        {
+        return event;
+        }
+
+    /** Is the event still waiting to be posted?
+    */
+    public boolean isPending()
+        {
+        synchronized (wheel)
+            {
+            return level >= 0;
+            }
+        }
+
+    /** Cancel the event, if it has not been posted yet
+        @return true if the event was cancelled
+    */
+    public boolean cancel()
+        {
+        boolean result;
+        synchronized (wheel)
+            {
+            result = wheel.cancel(this);
+            }
+        AtomDatabase database = event.getWorld().getAtomDatabase();
+        if (result)
+            {
+            if (database.journal != null)
+                database.journal.cancelTimer(event);
+            if (event.getCurrent() != null)
+                database.atomChanged(event.getCurrent());
+            }
+        return result;
+        }
+    }
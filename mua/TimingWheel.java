@@ -0,0 +1,400 @@
+// $Id$
+// Hierarchical timing wheel for timed events
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.io.*;
+import java.util.*;
+
+/** A hierarchical timing wheel holding events until their time matures.
+    <p>
+    Time is measured in ticks of one millisecond of world time. The wheel has
+    four levels of 256 slots. Level 0 holds events due in the next 256 ticks,
+    one slot per tick; level 1 holds events due in the next 65536 ticks, one
+    slot per 256 ticks; and so on. When the clock reaches the start of a
+    level's slot, the events in the slot are moved ("cascaded") down to the
+    level below. Events further ahead than the top level can reach are put in
+    its furthest slot, and placed again each time they are cascaded.
+    <p>
+    Each event is held in a TimerHandle on a doubly linked list, so adding
+    and cancelling an event take constant time however many there are. Events
+    which mature on the same tick are returned in the order they were added.
+    <p>
+    The handles are also kept on a list for each event's current atom, so
+    that all the events for an atom can be cancelled (e.g. when it is deleted)
+    without searching the wheel.
+    <p>
+    Advancing the clock skips quickly over levels with nothing in them, so
+    the clock need only be advanced when something is due. 'GetNextTime'
+    tells the caller when that is.
+    <p>
+    Synchronization: the caller must synchronize on the wheel.
+*/
+final class TimingWheel
+    implements Serializable
+    {
+    public static final int serialVersionUID = 1;
+
+    /** Number of levels, and bits per level
+    */
+    private static final int LEVELS = 4;
+    private static final int BITS = 8;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+
+    /** The slots. Each is the head of a circular list of entries, or null.
+    */
+    private transient TimerHandle slots[][];
+
+    /** Number of entries in each level
+    */
+    private transient int counts[];
+
+    /** The current tick. All entries due at or before this have been returned.
+    */
+    private transient long now = 0;
+
+    /** Total number of entries
+    */
+    private transient int size = 0;
+
+    /** Constructor
+    */
+    TimingWheel()
+        {
+        init();
+        }
+
+    /** Create the empty slots
+    */
+    private void init()
+        {
+        slots = new TimerHandle[LEVELS][SLOTS];
+        counts = new int[LEVELS];
+        size = 0;
+        }
+
+    /** Add an event, due at its 'timeMillis'. Events which are already due
+        will be returned by the next call to 'advance'.
+        @return the handle, which can be passed to 'cancel'
+    */
+    TimerHandle add(Event event)
+        {
+        TimerHandle handle = new TimerHandle(this, event);
+        place(handle, now + 1);
+        size++;
+
+        // Add it to the current atom's list
+        Atom atom = event.getCurrent();
+        if (atom != null)
+            {
+            handle.atom = atom;
+            handle.atomNext = atom.timers;
+            if (atom.timers != null)
+                atom.timers.atomPrev = handle;
+            atom.timers = handle;
+            }
+        return handle;
+        }
+
+    /** Remove a handle which has been added and has not yet matured
+        @return true if the handle was removed
+    */
+    boolean cancel(TimerHandle handle)
+        {
+        if (handle.level < 0)
+            return false;
+        remove(handle);
+        return true;
+        }
+
+    /** Cancel all the events whose current atom is 'atom'
+        @return the number of events cancelled
+    */
+    int cancelAll(Atom atom)
+        {
+        int result = 0;
+        while (atom.timers != null)
+            {
+            remove(atom.timers);
+            result++;
+            }
+        return result;
+        }
+
+    /** Cancel the events with ID 'id' whose current atom is 'atom'
+        @return the number of events cancelled
+    */
+    int cancelAll(Atom atom, String id)
+        {
+        int result = 0;
+        TimerHandle handle = atom.timers;
+        while (handle != null)
+            {
+            TimerHandle next = handle.atomNext;
+            if (handle.event.getID().equals(id))
+                {
+                remove(handle);
+                result++;
+                }
+            handle = next;
+            }
+        return result;
+        }
+
+    /** Cancel the event with ID 'id' whose current atom is 'atom', due at
+        'time'
+        @return true if there was one
+    */
+    boolean cancel(Atom atom, String id, long time)
+        {
+        for (TimerHandle handle = atom.timers; handle != null; handle = handle.atomNext)
+            {
+            if (handle.event.getTimeMillis() == time && handle.event.getID().equals(id))
+                {
+                remove(handle);
+                return true;
+                }
+            }
+        return false;
+        }
+
+    /** Advance the clock to 'time', adding the events which mature to 'due'
+        in order of time.
+    */
+    void advance(long time, Vector due)
+        {
+        while (now < time)
+            {
+            // Skip over ticks where nothing can happen: if the lowest levels
+            //  are empty, go to the last tick before the next slot boundary
+            //  of the first level which has entries.
+            int level = 0;
+            while (level < LEVELS && counts[level] == 0)
+                level++;
+            if (level == LEVELS)
+                {
+                now = time;
+                break;
+                }
+            if (level > 0)
+                {
+                long next = ((now >> (BITS * level)) + 1 << (BITS * level)) - 1;
+                if (next > now)
+                    now = Math.min(next, time);
+                if (now == time)
+                    break;
+                }
+
+            // Move to the next tick, cascading higher levels at their boundaries
+            now++;
+            for (level = 1; level < LEVELS && (now & ((1L << (BITS * level)) - 1)) == 0; level++)
+                cascade(level, (int)(now >> (BITS * level)) & MASK);
+
+            // Return the events for this tick
+            int i = (int)now & MASK;
+            while (slots[0][i] != null)
+                {
+                TimerHandle handle = slots[0][i];
+                remove(handle);
+                due.addElement(handle.event);
+                }
+            }
+        }
+
+    /** Get the time the next event is due, or at which a cascade may make
+        one due. The result may be earlier than the next event, but never later.
+        @return the time, or Long.MAX_VALUE if the wheel is empty
+    */
+    long getNextTime()
+        {
+        // An handle in a higher level may be due before those in a lower
+        //  level, so look at every level
+        long result = Long.MAX_VALUE;
+        for (int level = 0; level < LEVELS; level++)
+            {
+            if (counts[level] == 0)
+                continue;
+
+            // Look for the next slot with entries at this level. Level 0
+            //  slots are single ticks. Higher slots are cascaded when the
+            //  clock reaches their start.
+            int shift = BITS * level;
+            int current = (int)(now >> shift) & MASK;
+            for (int j = 1; j <= SLOTS; j++)
+                {
+                if (slots[level][(current + j) & MASK] != null)
+                    {
+                    long base = ((now >> shift) + j) << shift;
+                    result = Math.min(result, base);
+                    break;
+                    }
+                }
+            }
+        return result;
+        }
+
+    /** Get the current tick
+    */
+    long getNow()
+        {
+        return now;
+        }
+
+    /** Set the current tick. The wheel must be empty.
+    */
+    void setNow(long time)
+        {
+        now = time;
+        }
+
+    /** How many events are on the wheel?
+    */
+    int size()
+        {
+        return size;
+        }
+
+    /** Enumerate the events on the wheel, in no particular order
+    */
+    Enumeration elements()
+        {
+        Vector result = new Vector(size);
+        for (int level = 0; level < LEVELS; level++)
+            {
+            for (int i = 0; i < SLOTS; i++)
+                {
+                TimerHandle head = slots[level][i];
+                if (head == null)
+                    continue;
+                TimerHandle handle = head;
+                do  {
+                    result.addElement(handle.event);
+                    handle = handle.next;
+                    }
+                while (handle != head);
+                }
+            }
+        return result.elements();
+        }
+
+    /** Put a handle in the right slot for its time. Handles due before 
+        'earliest' are put in the slot for 'earliest'.
+    */
+    private void place(TimerHandle handle, long earliest)
+        {
+        long time = Math.max(handle.event.getTimeMillis(), earliest);
+        long delta = time - now;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1)))
+            level++;
+
+        // Events beyond the top level go in its furthest slot
+        int shift = BITS * level;
+        if (delta >= 1L << (BITS * LEVELS))
+            time = now + ((long)MASK << shift);
+        link(handle, level, (int)(time >> shift) & MASK);
+        }
+
+    /** Move the entries in a slot to lower levels. This is done at the start
+        of a tick, before the tick's events are returned, so entries due on 
+        this tick go in its slot.
+    */
+    private void cascade(int level, int i)
+        {
+        while (slots[level][i] != null)
+            {
+            TimerHandle handle = slots[level][i];
+            unlink(handle);
+            place(handle, now);
+            }
+        }
+
+    /** Add a handle to the end of a slot's list
+    */
+    private void link(TimerHandle handle, int level, int i)
+        {
+        TimerHandle head = slots[level][i];
+        if (head == null)
+            {
+            handle.next = handle.prev = handle;
+            slots[level][i] = handle;
+            }
+        else {
+            handle.next = head;
+            handle.prev = head.prev;
+            head.prev.next = handle;
+            head.prev = handle;
+            }
+        handle.level = level;
+        handle.slot = i;
+        counts[level]++;
+        }
+
+    /** Take a handle off the wheel, and off its atom's list
+    */
+    private void remove(TimerHandle handle)
+        {
+        unlink(handle);
+        size--;
+        Atom atom = handle.atom;
+        if (atom != null)
+            {
+            if (handle.atomPrev != null)
+                handle.atomPrev.atomNext = handle.atomNext;
+            else
+                atom.timers = handle.atomNext;
+            if (handle.atomNext != null)
+                handle.atomNext.atomPrev = handle.atomPrev;
+            handle.atom = null;
+            handle.atomNext = handle.atomPrev = null;
+            }
+        }
+
+    /** Remove a handle from its slot's list
+    */
+    private void unlink(TimerHandle handle)
+        {
+        int level = handle.level;
+        int i = handle.slot;
+        if (handle.next == handle)
+            slots[level][i] = null;
+        else {
+            handle.prev.next = handle.next;
+            handle.next.prev = handle.prev;
+            if (slots[level][i] == handle)
+                slots[level][i] = handle.next;
+            }
+        handle.next = handle.prev = null;
+        handle.level = -1;
+        counts[level]--;
+        }
+
+    /** Write the events and the current tick. The slots are not written, as
+        the events are placed again when they are read.
+    */
+    private void writeObject(ObjectOutputStream out)
+        throws IOException
+        {
+        out.defaultWriteObject();
+        out.writeLong(now);
+        out.writeInt(size);
+        Enumeration events = elements();
+        while (events.hasMoreElements())
+            out.writeObject(events.nextElement());
+        }
+
+    /** Read the events written by 'writeObject'
+    */
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException
+        {
+        in.defaultReadObject();
+        init();
+        now = in.readLong();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++)
+            add((Event)in.readObject());
+        }
+    }
@@ -62,6 +62,17 @@ public class World
     public static final String DESTINATION = "destination";
     public static final String OTHER_SIDE = "other_side";
     
+    /** What to do with a player's command when the event queue is full.
+        The default (0, which is also what a world saved without a limit
+        gets) is to drop the oldest command: commands are put on the queue
+        by the connection pool's reader threads, and blocking one would hold
+        up every connection it reads.
+        @see setEventQueueLimit
+    */
+    public static final int QUEUE_DROP_OLDEST = 0;
+    public static final int QUEUE_REJECT = 1;
+    public static final int QUEUE_BLOCK = 2;
+    
     /** The base file name (also the application ID)
     */
     private transient String fileName;
@@ -79,6 +90,11 @@ public class World
     */
     private EventProcessor eventProcessor;
     
+    /** The event processors for the world's zones, or null if the world
+        isn't divided into zones. The default zone is run by 'eventProcessor'.
+    */
+    private transient ZoneTable zones;
+    
     /** The game timer
     */
     private Timer timer;
@@ -110,6 +126,27 @@ public class World
     
     private transient PrintWriter eventLog = null;
     
+    /** The loader for the script being run, while scripts are loaded 
+        directly (see 'execScript')
+    */
+    private transient ScriptLoader scriptLoader = null;
+    
+    /** The number of the checkpoint at which the world was last saved. A
+        journal is only replayed into the world saved at its checkpoint
+        (see 'WorldJournal').
+    */
+    transient long checkpoint = 0;
+    
+    /** The state file the world's dynamic state was last written to or 
+        read from, or null (see 'WorldFactory.exportState')
+    */
+    transient StateFile stateFile = null;
+    
+    /** The gate events pass through, made when it is first needed
+        (see 'getEventGate')
+    */
+    private transient EventGate eventGate = null;
+    
     /** Construct a new World file
     */
     protected World(String fileName)
@@ -194,6 +231,8 @@ public class World
         if (!checkCoreAtoms())
             throw new AtomException("Not a valid Game World: " + fileName);
         eventProcessor.start();
+        if (zones != null)
+            zones.start();
         timer.start();
         startAtoms();
         isActive = true;
@@ -206,6 +245,8 @@ public class World
         {
         stopAtoms();
         timer.stop();
+        if (zones != null)
+            zones.stop();
         eventProcessor.stop();
         isActive = false;
         }
@@ -346,6 +387,12 @@ public class World
         }
 
     /** Run a script. 
+        <p>
+        While the world is not active, the script is loaded by a ScriptLoader,
+        which creates atoms and sets fields without going through the parser.
+        Scripts run by this script are loaded by the same loader. New Things
+        with an ON_CREATE handler get the event as they are made; the others
+        get it when the first script ends.
     */
     public void execScript(String fileName, Atom actor)
         throws IOException
@@ -354,14 +401,42 @@ public class World
         File f = findFile(fileName);
         actor.output("Executing Script: " + f.getAbsolutePath());
         BufferedReader in = new BufferedReader(new FileReader(f));
-        String s;
-        while ((s = in.readLine()) != null)
+        try {
+            // While the world is running, raw verbs are queued as events, so
+            //  every line must go through the parser to keep them in order
+            if (isActive())
+                {
+                String s;
+                while ((s = in.readLine()) != null)
+                    {
+                    // Note we do not use 'parseCommand' from this class because we want 
+                    //  to stop processing the script if there is an error 
+                    defaultParser.parseSentence(s, actor);
+                    }
+                }
+                
+            // Else if a script is being loaded, this one is part of it
+            else if (scriptLoader != null)
+                scriptLoader.load(in, fileName, actor);
+                
+            // Else start loading
+            else {
+                ScriptLoader loader = new ScriptLoader(this, defaultParser);
+                scriptLoader = loader;
+                try {
+                    loader.load(in, fileName, actor);
+                    }
+                finally
+                    {
+                    scriptLoader = null;
+                    loader.end();
+                    }
+                }
+            }
+        finally
             {
-            // Note we do not use 'parseCommand' from this class because we want 
-            //  to stop processing the script if there is an error 
-            defaultParser.parseSentence(s, actor);
+            in.close();
             }
-        in.close();
         }
 
     /** Create a parser
@@ -428,6 +503,13 @@ public class World
         return timer.getTime();
         }
     
+    /** Get the number of milliseconds the game has been running
+    */
+    public long getTimeMillis()
+        {
+        return timer.getTimeMillis();
+        }
+    
     /** Create an Event
     */
     public Event newEvent(Atom actor, String id, Atom current, Object args[])
@@ -446,40 +528,229 @@ public class World
     */
     public void postEvent(Event event)
         {
+        eventChanged();
+        
         // If the world is active, we add the event to the queue. Otherwise we execute it straight away.
         if (isActive())
-            eventProcessor.put(event);
+            getProcessor(event).put(event);
         else
             callEvent(event);
         }
         
+    /** Put a player's command on the queue. Unlike 'postEvent', this is
+        subject to the queue's limit on the number of commands.
+        @return false if the command was rejected because the queue is full
+        @see setEventQueueLimit
+    */
+    public boolean postCommand(Event event)
+        {
+        eventChanged();
+        if (isActive())
+            return getProcessor(event).putCommand(event);
+        else {
+            callEvent(event);
+            return true;
+            }
+        }
+        
+    /** Limit the number of players' commands on the event queue. 'Capacity'
+        is the greatest number of commands (0 for no limit), and 'policy' is
+        one of QUEUE_DROP_OLDEST, QUEUE_REJECT or QUEUE_BLOCK.
+    */
+    public void setEventQueueLimit(int capacity, int policy)
+        {
+        if (capacity < 0 || policy < QUEUE_DROP_OLDEST || policy > QUEUE_BLOCK)
+            throw new IllegalArgumentException("Invalid event queue limit");
+        Enumeration processors = getProcessors();
+        while (processors.hasMoreElements())
+            ((EventProcessor)processors.nextElement()).setLimit(capacity, policy);
+        }
+        
+    /** Get the greatest number of commands allowed on the event queue, or 0
+        if there is no limit
+    */
+    public int getEventQueueCapacity()
+        {
+        return eventProcessor.getCapacity();
+        }
+        
+    /** Get the policy applied when the event queue is full
+    */
+    public int getEventQueuePolicy()
+        {
+        return eventProcessor.getPolicy();
+        }
+        
+    /** Get the event queue's performance counters. If the world has zones,
+        these are the counters for the default zone.
+    */
+    public EventQueueMetrics getEventQueueMetrics()
+        {
+        return eventProcessor.getMetrics();
+        }
+        
+    /** Get the performance counters for a zone's event queue
+        @return the counters, or null if there is no such zone
+    */
+    public EventQueueMetrics getEventQueueMetrics(String zone)
+        {
+        Enumeration processors = getProcessors();
+        while (processors.hasMoreElements())
+            {
+            EventProcessor processor = (EventProcessor)processors.nextElement();
+            String name = processor.getZoneName();
+            if (zone == null ? name == null : zone.equalsIgnoreCase(name))
+                return processor.getMetrics();
+            }
+        return null;
+        }
+        
+    /** Divide the world into zones, each with its own event processor, or
+        go back to a single processor. This can't be changed while the world
+        is running.
+        @see ZoneTable
+    */
+    public void setZonesEnabled(boolean f)
+        {
+        if (isActive())
+            throw new AtomException("Can't change zones while the world is running");
+        if (f && zones == null)
+            zones = new ZoneTable(this, eventProcessor);
+        else if (!f && zones != null)
+            {
+            eventProcessor.setZone(null, 0, null);
+            zones = null;
+            }
+        }
+        
+    /** Is the world divided into zones?
+    */
+    public boolean isZonesEnabled()
+        {
+        return zones != null;
+        }
+        
+    /** Get the names of the zones which have event processors. The default
+        zone is not included.
+    */
+    public Enumeration getZoneNames()
+        {
+        Vector result = new Vector();
+        Enumeration processors = getProcessors();
+        while (processors.hasMoreElements())
+            {
+            String name = ((EventProcessor)processors.nextElement()).getZoneName();
+            if (name != null)
+                result.addElement(name);
+            }
+        return result.elements();
+        }
+        
+    /** If the world has zones, make sure the calling event processor holds
+        the lock on the zone containing 'atom', until the end of its event.
+        Only things are in zones: other atoms are shared by all of them.
+        Called before an event changes or calls an event on a thing, or
+        sends output to a container, which may be in another zone.
+        @see ZoneTable
+    */
+    final void enterZone(Atom atom)
+        {
+        if (zones != null && atom instanceof Thing)
+            zones.enter(atom);
+        }
+        
+    /** If the world has zones, note that the calling event processor's 
+        event has changed the world, posted an event or sent output, so it
+        can no longer give way to another zone's event and be run again.
+        @see ZoneTable
+    */
+    final void eventChanged()
+        {
+        if (zones != null)
+            zones.eventChanged();
+        }
+        
+    /** Get the processor which should process an event
+    */
+    private EventProcessor getProcessor(Event event)
+        {
+        if (zones == null)
+            return eventProcessor;
+        else
+            return zones.getProcessor(event);
+        }
+        
+    /** Enumerate all the event processors
+    */
+    private Enumeration getProcessors()
+        {
+        if (zones == null)
+            {
+            Vector v = new Vector(1);
+            v.addElement(eventProcessor);
+            return v.elements();
+            }
+        else
+            return zones.getProcessors();
+        }
+        
     /** Request an event to be sent in 'delay' seconds
+        @return a handle which can be used to cancel the event
+    */
+    public TimerHandle timerEvent(Event event, int delay)
+        {
+        return timerEventMillis(event, delay * 1000L);
+        }
+        
+    /** Request an event to be sent in 'delay' milliseconds
+        @return a handle which can be used to cancel the event
     */
-    public void timerEvent(Event event, int delay)
+    public TimerHandle timerEventMillis(Event event, long delay)
         {
-        timerEventAt(event, getTime() + delay);
+        event.setTimeMillis(getTimeMillis() + delay);
+        return timer.putEvent(event);
         }
         
     /** Request a timer event to be sent to 'current' in 'delay' seconds
+        @return a handle which can be used to cancel the event
     */
-    public void timerEvent(Atom actor, Atom current, int delay)
+    public TimerHandle timerEvent(Atom actor, Atom current, int delay)
         {
-        timerEvent(newEvent(actor, ON_TIMER, current, null), delay);
+        return timerEvent(newEvent(actor, ON_TIMER, current, null), delay);
         }
         
     /** Request a named timer event to be sent to 'current' in 'delay' seconds
+        @return a handle which can be used to cancel the event
     */
-    public void timerEvent(Atom actor, String id, Atom current, int delay)
+    public TimerHandle timerEvent(Atom actor, String id, Atom current, int delay)
         {
-        timerEvent(newEvent(actor, id, current, null), delay);
+        return timerEvent(newEvent(actor, id, current, null), delay);
         }
         
     /** Request an event to be sent at the specified world time (in seconds)
+        @return a handle which can be used to cancel the event
     */
-    public void timerEventAt(Event event, long time)
+    public TimerHandle timerEventAt(Event event, long time)
         {
         event.setTime(time);
-        timer.putEvent(event);
+        return timer.putEvent(event);
+        }
+        
+    /** Cancel all the timer events pending for 'atom' (i.e. with 'atom' as 
+        their current atom). This is done automatically when an atom is deleted.
+        @return the number of events cancelled
+    */
+    public int cancelTimers(Atom atom)
+        {
+        return timer.cancelEvents(atom);
+        }
+        
+    /** Cancel the timer events with ID 'id' pending for 'atom'
+        @return the number of events cancelled
+    */
+    public int cancelTimers(Atom atom, String id)
+        {
+        return timer.cancelEvents(atom, id);
         }
         
     /** Call an event 
@@ -526,6 +797,9 @@ public class World
         if (current == null)        //### Should be redundant with new parser
             current = getRoot();
         
+        // The target may be in another zone
+        enterZone(current);
+        
         // Get the property for this event
         Object value = current.getRawProperty(event.getID());
 
@@ -622,24 +896,39 @@ public class World
     */
     public Event getCurrentEvent()
         {
-        if (eventStack.empty())
+        Stack stack = getEventStack();
+        if (stack.empty())
             return null;
         else
-            return (Event)eventStack.peek();
+            return (Event)stack.peek();
         }
         
     /** Push an event onto the stack
     */
     public void pushEvent(Event event)
         {
-        eventStack.push(event);
+        getEventStack().push(event);
         }
         
     /** Pop an event from the stack
     */
     public void popEvent()
         {
-        eventStack.pop();
+        getEventStack().pop();
+        }
+        
+    /** Get the event stack for the calling thread. If the world has zones,
+        each zone's processor has its own stack.
+    */
+    private Stack getEventStack()
+        {
+        if (zones != null)
+            {
+            EventProcessor processor = zones.getCurrentProcessor();
+            if (processor != null)
+                return processor.eventStack;
+            }
+        return eventStack;
         }
         
     /** Construct a fully-qualified file name. Use this for files you intend
@@ -714,7 +1003,7 @@ public class World
     
     /** Initialise a Thing by calling its ON_CREATE and ON_START handlers
     */
-    private void initThing(Thing thing)
+    final void initThing(Thing thing)
         {
         Atom actor = getAdmin();
         callEvent(actor, ON_CREATE, thing);
@@ -793,13 +1082,38 @@ public class World
             	callEvent(actor, ON_STOP, atom);
             callEvent(actor, ON_DESTROY, atom);
             }
+            
+        // Deleting a container moves its contents to Limbo, so if the world 
+        //  has zones we need both zones' locks, and that of the container
+        //  the atom is taken out of
+        if (zones != null)
+            {
+            zones.enter(atom);
+            if (atom.getContainer() != null)
+                zones.enter(atom.getContainer());
+            zones.enter(getLimbo());
+            }
         database.deleteAtom(atom);
+        
+        // The atom's timer events would be ignored when they matured, so
+        //  remove them now
+        cancelTimers(atom);
         }
 
     /** Move an atom to a new location
     */
     public final void moveAtom(Atom atom, Atom newContainer)
         {
+        // If the world has zones, the event processor must hold the locks 
+        //  on the zones the atom is moving from and to. The atom may be in a
+        //  zone of its own, so its container's zone is needed too.
+        if (zones != null)
+            {
+            zones.enter(atom);
+            if (atom.getContainer() != null)
+                zones.enter(atom.getContainer());
+            zones.enter(newContainer);
+            }
         newContainer.putIn(atom);
         }
 
@@ -934,6 +1248,47 @@ public class World
         return database;
         }
 
+    /** Get the journal recording changes to the world, or null if it has
+        none (see 'WorldFactory.openJournal')
+    */
+    public final WorldJournal getJournal()
+        {
+        return database.journal;
+        }
+
+    /** Get the state file the world's dynamic state was last written to or
+        read from, or null (see 'WorldFactory.exportState')
+    */
+    public final StateFile getStateFile()
+        {
+        return stateFile;
+        }
+
+    /** Get the snapshot being written while the world goes on, or null
+        (see 'WorldFactory.startSave')
+    */
+    public final SnapshotWriter getSnapshotWriter()
+        {
+        return database.capture;
+        }
+
+    /** Get the gate events pass through, so they can be held back while
+        the world is captured for a snapshot
+    */
+    final synchronized EventGate getEventGate()
+        {
+        if (eventGate == null)
+            eventGate = new EventGate();
+        return eventGate;
+        }
+
+    /** Get the timer
+    */
+    final Timer getTimer()
+        {
+        return timer;
+        }
+
     /** How many atoms in the database
     */
     public final int size()
@@ -953,18 +1308,45 @@ public class World
     public final void exportState(OutputStream _out)
         throws IOException
         {
-        PrintWriter out = new PrintWriter(_out, true);
+        PrintWriter out = new PrintWriter(_out);
         database.exportState(out);
         timer.exportState(out);
+        out.flush();
+        if (out.checkError())
+            throw new IOException("Can't write the world's state");
         }
 
-    /** Import a dynamic state file
+    /** Export the changes to the world's dynamic state since 'atoms' began
+        to be tracked: the changed atoms, and the time and their events.
+        This is appended to a state file (see 'StateFile').
+    */
+    final void exportChanges(OutputStream _out, Hashtable atoms)
+        throws IOException
+        {
+        PrintWriter out = new PrintWriter(_out);
+        Vector changed = database.exportChanges(out, atoms);
+        timer.exportChanges(out, changed);
+        out.flush();
+        if (out.checkError())
+            throw new IOException("Can't write the world's state");
+        }
+
+    /** Import a dynamic state file. The file may have had changes appended
+        to it, which are merged with the state before it is imported.
     */
     public final void importState(InputStream _in)
         throws IOException
         {
         BufferedReader in = new BufferedReader(new InputStreamReader(_in));
-        database.importState(in);
-        timer.importState(in);
+        importState(StateFile.read(in));
+        }
+        
+    /** Import dynamic state which has been read from a state file
+    */
+    final void importState(StateFile.State state)
+        {
+        database.importState(state.getAtoms());
+        if (state.getTime() != null)
+            timer.importState(state.getTime(), state.getEvents());
         }
     }
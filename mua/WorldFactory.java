@@ -9,6 +9,12 @@ import java.io.*;
 
 /** The World Factory is responsible for the loading and saving of the 
     world.
+    <p>
+    Worlds are saved in the snapshot format (see WorldSnapshot). Worlds
+    saved by serializing the World object can still be loaded, and are
+    saved as snapshots the next time they are saved, or by 'convertWorld'.
+    Once a world has been frozen, the frozen atoms are saved in a base image
+    beside the snapshot, which must be kept with it.
 */
 public class WorldFactory
     {
@@ -20,6 +26,27 @@ public class WorldFactory
     */
     public static final String EXPORT_SUFFIX = ".state";
     
+    /** File name suffix added to old world databases by 'convertWorld'
+    */
+    public static final String BACKUP_SUFFIX = ".old";
+    
+    /** File name suffix for journals
+    */
+    public static final String JOURNAL_SUFFIX = ".journal";
+    
+    /** File name suffix for the base image of a world's frozen atoms
+    */
+    public static final String BASE_SUFFIX = ".base";
+    
+    /** File name suffix added to files while they are written, before they
+        replace the old ones
+    */
+    public static final String TEMP_SUFFIX = ".tmp";
+    
+    /** The number of the last checkpoint (see 'nextCheckpoint')
+    */
+    private static long lastCheckpoint = 0;
+    
     /** If a world 'name' exists, load it. If not, create a new world
         of that name.
     */
@@ -53,9 +80,18 @@ public class WorldFactory
         World result = null;
         try {
             String fileName = getFileName(name);
-            ObjectInputStream in = new ObjectInputStream(new FileInputStream(fileName));
-            result = (World)in.readObject();
-            in.close();
+            InputStream in = new BufferedInputStream(new FileInputStream(fileName));
+            try {
+                // Snapshots, or the old serialized worlds
+                if (WorldSnapshot.isSnapshot(in))
+                    result = WorldSnapshot.read(in, getFileName(name, BASE_SUFFIX));
+                else
+                    result = (World)new ObjectInputStream(in).readObject();
+                }
+            finally
+                {
+                in.close();
+                }
 			
 			// Set the file name and paths of the newly loaded world.            
             result.setFileName(removeSuffix(name, SUFFIX));
@@ -70,18 +106,160 @@ public class WorldFactory
         return result;
         }
 
-    /** Save a world
+    /** Save a world. If the world has a journal, this takes a checkpoint.
+        Events are only held back while the world is captured, but this
+        waits until the snapshot has been written.
     */
     public static void saveWorld(World world)
         throws IOException
         {
-        String fileName = getFileName(world.getFileName());
-        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(fileName));
-        out.writeObject(world);
-        out.close();
+        startSave(world).waitFor();
+        }
+
+    /** Start saving a world, and return without waiting for the snapshot to
+        be written (see 'SnapshotWriter'). If the world has a journal, this
+        takes a checkpoint. This waits for the events under way to finish,
+        so it must not be called by an event in a world with zones (see
+        'EventGate').
+    */
+    public static SnapshotWriter startSave(World world)
+        throws IOException
+        {
+        return startSnapshot(world, world.getJournal());
         }
 
-    /** Import dynamic state into an existing world.
+    /** Start writing a snapshot of a world, for a checkpoint of its journal
+        if 'journal' isn't null. The snapshot is written beside the old one,
+        then replaces it.
+    */
+    static SnapshotWriter startSnapshot(World world, WorldJournal journal)
+        throws IOException
+        {
+        String name = world.getFileName();
+        return SnapshotWriter.start(world, getFileName(name), getFileName(name, BASE_SUFFIX), journal);
+        }
+
+    /** Get a new checkpoint number
+    */
+    static synchronized long nextCheckpoint()
+        {
+        lastCheckpoint = Math.max(lastCheckpoint + 1, System.currentTimeMillis());
+        return lastCheckpoint;
+        }
+
+    /** Replace a file with a new one
+    */
+    static void replaceFile(String newName, String fileName)
+        throws IOException
+        {
+        // Renaming can't replace a file on some systems
+        File file = new File(fileName);
+        if (file.exists() && !file.delete())
+            throw new IOException("Can't replace " + fileName);
+        if (!new File(newName).renameTo(file))
+            throw new IOException("Can't rename " + newName + " to " + fileName);
+        }
+
+    /** Load a world and replay its journal, if it has one, to recover the
+        changes made since it was last saved. The world is not active, and
+        has no journal until 'openJournal' is called.
+    */
+    public static World recoverWorld(String name, String paths)
+        throws IOException
+        {
+        // If the world crashed while its snapshot was being replaced, the
+        //  new snapshot is complete
+        String fileName = getFileName(name);
+        File tempFile = new File(fileName + TEMP_SUFFIX);
+        if (!new File(fileName).exists() && tempFile.exists())
+            replaceFile(tempFile.getPath(), fileName);
+
+        // Likewise the journal. If the world crashed after its snapshot was
+        //  replaced but before its journal was, the old journal is older
+        //  than the snapshot, and the new one is beside it.
+        World world = loadWorld(name, paths);
+        String journalName = getFileName(name, JOURNAL_SUFFIX);
+        File journalTemp = new File(journalName + TEMP_SUFFIX);
+        if (!new File(journalName).exists() && journalTemp.exists())
+            replaceFile(journalTemp.getPath(), journalName);
+        if (new File(journalName).exists())
+            {
+            int n = WorldJournal.replay(world, journalName);
+            if (n < 0 && journalTemp.exists())
+                {
+                n = WorldJournal.replay(world, journalTemp.getPath());
+                if (n >= 0)
+                    replaceFile(journalTemp.getPath(), journalName);
+                }
+            if (n < 0)
+                System.out.println("WorldFactory: Journal " + journalName + " is older than the world, ignored");
+            else if (n > 0)
+                System.out.println("WorldFactory: Recovered " + n + " changes from " + journalName);
+            }
+        return world;
+        }
+
+    /** Start recording a world's changes in a journal, so that they can be
+        recovered if the world crashes. The world is saved, then the changes
+        are recorded from there.
+    */
+    public static WorldJournal openJournal(World world)
+        throws IOException
+        {
+        WorldJournal journal = world.getJournal();
+        if (journal == null)
+            {
+            journal = new WorldJournal(world, getFileName(world.getFileName(), JOURNAL_SUFFIX));
+            journal.open();
+            }
+        return journal;
+        }
+
+    /** Stop recording a world's changes. The changes recorded so far are 
+        kept, so the world should be saved first.
+    */
+    public static void closeJournal(World world)
+        throws IOException
+        {
+        WorldJournal journal = world.getJournal();
+        if (journal != null)
+            journal.close();
+        }
+
+    /** Convert a world saved in the old serialized format to a snapshot. 
+        The old file is kept, with BACKUP_SUFFIX added to its name.
+        @return false if the world was already a snapshot
+    */
+    public static boolean convertWorld(String name)
+        throws IOException
+        {
+        String fileName = getFileName(name);
+        InputStream in = new BufferedInputStream(new FileInputStream(fileName));
+        boolean isSnapshot;
+        try {
+            isSnapshot = WorldSnapshot.isSnapshot(in);
+            }
+        finally
+            {
+            in.close();
+            }
+        if (isSnapshot)
+            return false;
+            
+        // Load the world, keep the old file and save the world again
+        World world = loadWorld(name, null);
+        File backup = new File(fileName + BACKUP_SUFFIX);
+        if (backup.exists())
+            backup.delete();
+        if (!new File(fileName).renameTo(backup))
+            throw new IOException("Can't rename " + fileName + " to " + backup);
+        saveWorld(world);
+        return true;
+        }
+
+    /** Import dynamic state into an existing world. The world's changes
+        are then tracked, so that 'exportState' only needs to add them to 
+        the file.
         <p>
         Note that if the dynamic state file does not exist, no error occurs.
     */
@@ -91,21 +269,27 @@ public class WorldFactory
         String fileName = getFileName(name, EXPORT_SUFFIX);
         if (new File(fileName).exists())
             {
-            InputStream in = new FileInputStream(fileName);
-            world.importState(in);
-            in.close();
+            StateFile stateFile = new StateFile(world, fileName);
+            stateFile.load();
+            world.stateFile = stateFile;
             }
         }
         
-    /** Export dynamic state
+    /** Export dynamic state. If the world's state was last exported to or
+        imported from the same file, only the atoms which have changed since
+        are added to it (see 'StateFile'); otherwise it is written in full.
     */
     public static void exportState(World world, String name)
         throws IOException
         {
         String fileName = getFileName(name, EXPORT_SUFFIX);
-        OutputStream out = new FileOutputStream(fileName);
-        world.exportState(out);
-        out.close();
+        StateFile stateFile = world.stateFile;
+        if (stateFile == null || !stateFile.getFileName().equals(fileName))
+            {
+            stateFile = new StateFile(world, fileName);
+            world.stateFile = stateFile;
+            }
+        stateFile.save();
         }
         
     /** Does a world 'name' exist?
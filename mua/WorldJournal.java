@@ -0,0 +1,1161 @@
+// $Id$
+// Write-ahead journal of changes to a world
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import com.ogalala.util.*;
+
+/** The journal records every change made to a world's atoms since it was
+    last saved, so that a world can be recovered after a crash.
+    <p>
+    A world used to be saved only when its application was closed, so a
+    crash lost everything since it was opened. While the world has a
+    journal (see 'WorldFactory.openJournal'), the atom database, containers
+    and timer record each change as it is made: new and deleted atoms,
+    fields set and cleared, changes of parents, moves, exits, and timed
+    events added and cancelled. To recover, the world is loaded as it was
+    last saved and the journal is replayed into it (see
+    'WorldFactory.recoverWorld').
+    <p>
+    Each event processed is a transaction. The processor calls 'begin'
+    before the event and 'commit' after it, and the event's changes are kept
+    apart until it commits, so a journal never holds half an event, even
+    when zones' events run at the same time. Changes made by other threads
+    (such as scripts run while the world is inactive) are committed as they
+    are made.
+    <p>
+    Committed changes are written by the journal's thread, which writes
+    everything committed since its last write as one batch, then waits for
+    the file to reach the disk. While it waits, more events commit, so the
+    cost of the sync is shared by all of them ("group commit"). Events don't
+    wait for their batch to be written; a crash loses at most the batch
+    being written. 'flush' waits until everything committed has been written.
+    <p>
+    A checkpoint saves the world and starts a journal of the changes since.
+    Events are held back only while the world is captured (see
+    'SnapshotWriter'), so the snapshot and the journal agree; the journal
+    goes on recording while the snapshot is written, and is then replaced
+    by one holding only the changes since the capture. The journal's thread
+    starts a checkpoint when the journal grows past the checkpoint size, so
+    recovery only replays the changes since then, and doesn't wait for it.
+    Saving the world with 'WorldFactory.saveWorld' also takes a checkpoint.
+    <p>
+    Each checkpoint has a new number, written in the snapshot and at the
+    start of the journal, and a journal is only replayed into the snapshot
+    with the same number. So if the world crashes during a checkpoint,
+    after the snapshot is saved but before the new journal replaces the
+    old one, the old journal (whose changes are all in the snapshot) is
+    not replayed twice; the new journal, written before the snapshot was
+    replaced, is found beside it.
+    <p>
+    File format: MAGIC, VERSION, the checkpoint number and the world time
+    at the checkpoint, then the batches. Each batch is its length, a CRC of
+    its contents, the world time when it was written, and its records. A
+    batch which is cut short or doesn't match its CRC ends the journal.
+    Atoms are written as their IDs, and field values as in a snapshot (see
+    'WorldSnapshot').
+    <p>
+    Changes made by altering a list or table in a field without setting the
+    field again are not seen, and so not recorded; neither are changes to
+    the vocabulary.
+*/
+public final class WorldJournal
+    implements Runnable
+    {
+    /** The first four bytes of a journal: "OGWJ"
+    */
+    static final int MAGIC = 0x4f47574a;
+
+    /** The version of the format written
+    */
+    static final int VERSION = 1;
+
+    /** Default size in bytes at which the journal takes a checkpoint
+    */
+    public static final long DEFAULT_CHECKPOINT_SIZE = 16 * 1024 * 1024;
+
+    /** Record types
+    */
+    private static final int NEW_ATOM = 1;
+    private static final int DELETE_ATOM = 2;
+    private static final int PARENTS = 3;
+    private static final int SET_FIELD = 4;
+    private static final int CLEAR_FIELD = 5;
+    private static final int MOVE = 6;
+    private static final int ADD_EXIT = 7;
+    private static final int REMOVE_EXIT = 8;
+    private static final int TIMER_EVENT = 9;
+    private static final int CANCEL_TIMERS = 10;
+    private static final int CANCEL_TIMER = 11;
+
+    /** The world
+    */
+    private World world;
+    private AtomDatabase database;
+
+    /** The journal file, and the stream appending to it
+    */
+    private String fileName;
+    private FileOutputStream file;
+
+    /** The committed records waiting to be written
+    */
+    private Record pending = new Record();
+
+    /** The transactions in progress, by thread
+    */
+    private Hashtable transactions = new Hashtable();
+
+    /** Is the world being captured for a checkpoint, and by which thread?
+        While it is, other threads can't record changes.
+    */
+    private boolean checkpointing = false;
+    private Thread checkpointThread = null;
+
+    /** Held while a batch is written to the file, or the file is replaced
+    */
+    private Object fileLock = new Object();
+
+    /** Size of the journal file in bytes, and the size at which the journal
+        takes a checkpoint
+    */
+    private long size = 0;
+    private long checkpointSize = DEFAULT_CHECKPOINT_SIZE;
+
+    /** Counters
+    */
+    private long records = 0;
+    private long batches = 0;
+    private long checkpoints = 0;
+
+    /** The journal's thread, or null when it is closed
+    */
+    private Thread thread;
+
+    /** Create a journal for a world. It is opened by 'open'.
+    */
+    WorldJournal(World world, String fileName)
+        {
+        this.world = world;
+        this.fileName = fileName;
+        database = world.getAtomDatabase();
+        }
+
+    /** Open the journal. A checkpoint is taken, so the journal starts
+        empty, and recording changes from when the world is captured.
+    */
+    void open()
+        throws IOException
+        {
+        checkpoint();
+        thread = new Thread(this, "MUA world journal");
+        thread.setDaemon(true);
+        thread.start();
+        }
+
+    /** Close the journal. A checkpoint being written is finished, and
+        everything committed is written first.
+    */
+    void close()
+        throws IOException
+        {
+        SnapshotWriter writer = database.capture;
+        if (writer != null)
+            writer.join();
+        if (database.journal == this)
+            database.journal = null;
+        Thread t;
+        synchronized (pending)
+            {
+            t = thread;
+            thread = null;
+            pending.notifyAll();
+            }
+        if (t != null)
+            {
+            try {
+                t.join();
+                }
+            catch (InterruptedException e)
+                {
+                }
+            }
+        synchronized (fileLock)
+            {
+            writePending();
+            file.close();
+            file = null;
+            }
+        }
+
+    /** Get the name of the journal file
+    */
+    public String getFileName()
+        {
+        return fileName;
+        }
+
+    /** Get the size of the journal file in bytes
+    */
+    public long getSize()
+        {
+        return size;
+        }
+
+    /** Get the number of changes recorded since the journal was opened
+    */
+    public long getRecordCount()
+        {
+        return records;
+        }
+
+    /** Get the number of batches written since the journal was opened
+    */
+    public long getBatchCount()
+        {
+        return batches;
+        }
+
+    /** Get the number of checkpoints taken since the journal was opened
+    */
+    public long getCheckpointCount()
+        {
+        return checkpoints;
+        }
+
+    /** Set the size in bytes at which the journal takes a checkpoint, or 0
+        to take them only when the world is saved
+    */
+    public void setCheckpointSize(long checkpointSize)
+        {
+        this.checkpointSize = checkpointSize;
+        }
+
+    /** The thread writes committed changes in batches, and takes a
+        checkpoint when the journal is big enough
+    */
+    public void run()
+        {
+        while (true)
+            {
+            synchronized (pending)
+                {
+                while (pending.length() == 0 && thread != null)
+                    {
+                    try {
+                        pending.wait();
+                        }
+                    catch (InterruptedException e)
+                        {
+                        }
+                    }
+                if (thread == null)
+                    return;
+                }
+            try {
+                synchronized (fileLock)
+                    {
+                    writePending();
+                    }
+                if (checkpointSize > 0 && size > checkpointSize && database.capture == null)
+                    WorldFactory.startSnapshot(world, this);
+                }
+            catch (IOException e)
+                {
+                //### Should be World.warning
+                System.out.println("WorldJournal: Can't write journal " + fileName);
+                Debug.printStackTrace(e);
+                }
+            }
+        }
+
+    /** Wait until everything committed so far has been written to the disk
+    */
+    public void flush()
+        throws IOException
+        {
+        synchronized (fileLock)
+            {
+            writePending();
+            }
+        }
+
+    /** Write the committed changes as a batch, and sync the file. Must be
+        called synched on the file lock.
+    */
+    private void writePending()
+        throws IOException
+        {
+        byte data[];
+        synchronized (pending)
+            {
+            if (pending.length() == 0)
+                return;
+            data = pending.toByteArray();
+            pending.reset();
+            }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, data.length + 32));
+        out.writeInt(data.length);
+        out.writeLong(crc.getValue());
+        out.writeLong(world.getTimeMillis());
+        out.write(data);
+        out.flush();
+        file.getFD().sync();
+        size += data.length + 20;
+        batches++;
+        }
+
+    /** Save the world, and start a journal of the changes since. Waits
+        until the snapshot has been written, but events are only held back
+        while the world is captured (see 'SnapshotWriter').
+    */
+    public void checkpoint()
+        throws IOException
+        {
+        WorldFactory.startSnapshot(world, this).waitFor();
+        }
+
+    /** Called by the snapshot writer when it captures the world, with
+        events held back. Changes made outside events are held back too,
+        and everything committed is written. If the calling thread is
+        processing an event, the changes it has made so far are in the
+        snapshot, so they are committed now, before the capture. The first
+        capture starts the journal recording changes.
+        @return the size of the journal, after which the changes since the
+            capture begin
+    */
+    long beginCapture()
+        throws IOException
+        {
+        synchronized (this)
+            {
+            checkpointing = true;
+            checkpointThread = Thread.currentThread();
+            }
+        database.journal = this;
+        Record own = (Record)transactions.get(Thread.currentThread());
+        if (own != null && own.length() > 0)
+            {
+            synchronized (pending)
+                {
+                own.writeTo(pending);
+                }
+            own.reset();
+            }
+        synchronized (fileLock)
+            {
+            if (file != null)
+                writePending();
+            return size;
+            }
+        }
+
+    /** Called by the snapshot writer when the world has been captured, to
+        let changes made outside events go on
+    */
+    synchronized void endCapture()
+        {
+        checkpointing = false;
+        checkpointThread = null;
+        notifyAll();
+        }
+
+    /** Called by the snapshot writer when it has written a snapshot to
+        'snapshotTemp'. A new journal is written beside the old one, with
+        the changes after 'position' in the old one, and then the snapshot
+        and the journal are replaced. If the world crashes after the
+        snapshot is replaced and before the journal is, the new journal is
+        found beside the old one when the world is recovered.
+    */
+    void checkpointWritten(long checkpoint, long timeMillis, long position, String snapshotTemp,
+            String snapshotName)
+        throws IOException
+        {
+        synchronized (fileLock)
+            {
+            String tempName = fileName + WorldFactory.TEMP_SUFFIX;
+            FileOutputStream out = new FileOutputStream(tempName);
+            try {
+                DataOutputStream header = new DataOutputStream(out);
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.writeLong(checkpoint);
+                header.writeLong(timeMillis);
+                header.flush();
+                if (file != null)
+                    copy(position, out);
+                out.getFD().sync();
+                }
+            finally
+                {
+                out.close();
+                }
+
+            WorldFactory.replaceFile(snapshotTemp, snapshotName);
+            if (file != null)
+                file.close();
+            file = null;
+            WorldFactory.replaceFile(tempName, fileName);
+            file = new FileOutputStream(fileName, true);
+            size = new File(fileName).length();
+            checkpoints++;
+            }
+        }
+
+    /** Copy the journal file from 'position' to the end
+    */
+    private void copy(long position, OutputStream out)
+        throws IOException
+        {
+        InputStream in = new FileInputStream(fileName);
+        try {
+            while (position > 0)
+                {
+                long n = in.skip(position);
+                if (n <= 0)
+                    throw new EOFException("Journal is shorter than its checkpoint: " + fileName);
+                position -= n;
+                }
+            byte buf[] = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+            }
+        finally
+            {
+            in.close();
+            }
+        }
+
+// Transactions
+
+    /** Begin a transaction for the event being processed by the calling
+        thread. The event has passed through the world's event gate, so no
+        snapshot is being captured.
+    */
+    void begin()
+        {
+        transactions.put(Thread.currentThread(), new Record());
+        }
+
+    /** Commit the calling thread's transaction
+    */
+    void commit()
+        {
+        Record transaction = (Record)transactions.remove(Thread.currentThread());
+        if (transaction != null && transaction.length() > 0)
+            {
+            synchronized (pending)
+                {
+                transaction.writeTo(pending);
+                pending.notifyAll();
+                }
+            }
+        }
+
+    /** Is the atom a change is to in the database? If it is still being
+        made it is not yet, and its new atom record will be written when it
+        has been added.
+    */
+    private boolean isRecorded(Atom atom)
+        {
+        return database.atoms.get(atom.getID()) == atom;
+        }
+
+    /** Start writing a change to an atom
+    */
+    private static Record newChange(int type, Atom atom)
+        throws IOException
+        {
+        Record change = new Record();
+        change.writeByte(type);
+        change.writeUTF(atom.getID());
+        return change;
+        }
+
+    /** Add a change to the calling thread's transaction. If it has none, the
+        change is committed, after waiting for any checkpoint to end (unless
+        this thread is taking it).
+    */
+    private void add(Record change)
+        {
+        Record transaction = (Record)transactions.get(Thread.currentThread());
+        if (transaction != null)
+            change.writeTo(transaction);
+        else {
+            synchronized (this)
+                {
+                while (checkpointing && checkpointThread != Thread.currentThread())
+                    {
+                    try {
+                        wait();
+                        }
+                    catch (InterruptedException e)
+                        {
+                        }
+                    }
+                }
+            synchronized (pending)
+                {
+                change.writeTo(pending);
+                pending.notifyAll();
+                }
+            }
+        records++;
+        }
+
+    /** Report a change which can't be written, such as a field whose value
+        can't be serialized. The change is left out of the journal.
+    */
+    private static void changeFailed(Atom atom, IOException e)
+        {
+        //### Should be World.warning
+        System.out.println("WorldJournal: Can't record change to " + atom.getID());
+        Debug.printStackTrace(e);
+        }
+
+// Changes
+
+    /** An atom has been created
+    */
+    void newAtom(Atom atom, int atomType, Atom parent)
+        {
+        try {
+            Record change = newChange(NEW_ATOM, atom);
+            change.writeByte(atomType);
+            change.writeUTF(parent.getID());
+            add(change);
+            }
+        catch (IOException e)
+            {
+            changeFailed(atom, e);
+            }
+        }
+
+    /** An atom has been deleted
+    */
+    void deleteAtom(Atom atom)
+        {
+        try {
+            add(newChange(DELETE_ATOM, atom));
+            }
+        catch (IOException e)
+            {
+            changeFailed(atom, e);
+            }
+        }
+
+    /** An atom's parents have changed
+    */
+    void parentsChanged(Atom atom)
+        {
+        if (!isRecorded(atom))
+            return;
+        try {
+            Record change = newChange(PARENTS, atom);
+            Vector parents = (Vector)AtomData.enumToVector(atom.getParents());
+            change.writeInt(parents.size());
+            for (int i = 0; i < parents.size(); i++)
+                change.writeUTF(((Atom)parents.elementAt(i)).getID());
+            add(change);
+            }
+        catch (IOException e)
+            {
+            changeFailed(atom, e);
+            }
+        }
+
+    /** A field has been set or cleared
+    */
+    void fieldChanged(Atom atom, PropertyName name)
+        {
+        if (!isRecorded(atom))
+            return;
+        try {
+            Object value = atom.getField(name.getName());
+            Record change = newChange(value != null ? SET_FIELD : CLEAR_FIELD, atom);
+            change.writeUTF(name.getName());
+            if (value != null)
+                change.writeValue(value);
+            add(change);
+            }
+        catch (IOException e)
+            {
+            changeFailed(atom, e);
+            }
+        }
+
+    /** A thing has been moved to a container
+    */
+    void moveAtom(Atom atom, Atom container)
+        {
+        if (!isRecorded(atom))
+            return;
+        try {
+            Record change = newChange(MOVE, atom);
+            change.writeUTF(container.getID());
+            add(change);
+            }
+        catch (IOException e)
+            {
+            changeFailed(atom, e);
+            }
+        }
+
+    /** An exit has been added to a container
+    */
+    void addExit(Atom container, int direction, Atom exit)
+        {
+        if (!isRecorded(container))
+            return;
+        try {
+            Record change = newChange(ADD_EXIT, container);
+            change.writeInt(direction);
+            change.writeUTF(exit.getID());
+            add(change);
+            }
+        catch (IOException e)
+            {
+            changeFailed(container, e);
+            }
+        }
+
+    /** An exit has been removed from a container
+    */
+    void removeExit(Atom container, Atom exit)
+        {
+        if (!isRecorded(container))
+            return;
+        try {
+            Record change = newChange(REMOVE_EXIT, container);
+            change.writeUTF(exit.getID());
+            add(change);
+            }
+        catch (IOException e)
+            {
+            changeFailed(container, e);
+            }
+        }
+
+    /** A timed event has been added. Events for no atom aren't recorded.
+    */
+    void timerEvent(Event event)
+        {
+        Atom current = event.getCurrent();
+        if (current == null)
+            return;
+        try {
+            Record change = newChange(TIMER_EVENT, current);
+            Object args[] = event.getArgs();
+            int n = args != null ? args.length : 0;
+            change.writeUTF(event.getID());
+            change.writeAtom(event.getActor());
+            change.writeInt(n);
+            for (int i = 0; i < n; i++)
+                change.writeValue(args[i]);
+            change.writeLong(event.getTimeMillis());
+            add(change);
+            }
+        catch (IOException e)
+            {
+            changeFailed(current, e);
+            }
+        }
+
+    /** The timed events for an atom have been cancelled. 'Id' is null if
+        they all were.
+    */
+    void cancelTimers(Atom atom, String id)
+        {
+        // A deleted atom's timers are cancelled when the deletion is replayed
+        if (!isRecorded(atom))
+            return;
+        try {
+            Record change = newChange(CANCEL_TIMERS, atom);
+            change.writeBoolean(id != null);
+            if (id != null)
+                change.writeUTF(id);
+            add(change);
+            }
+        catch (IOException e)
+            {
+            changeFailed(atom, e);
+            }
+        }
+
+    /** A timed event has been cancelled by its handle
+    */
+    void cancelTimer(Event event)
+        {
+        Atom current = event.getCurrent();
+        if (current == null)
+            return;
+        try {
+            Record change = newChange(CANCEL_TIMER, current);
+            change.writeUTF(event.getID());
+            change.writeLong(event.getTimeMillis());
+            add(change);
+            }
+        catch (IOException e)
+            {
+            changeFailed(current, e);
+            }
+        }
+
+// Recovery
+
+    /** Replay a journal into the world saved at its checkpoint. The world
+        must not be active. Records which can't be replayed are reported
+        and skipped, as 'importState' does. The replay is one batch of
+        changes to the atom database, so the hierarchy is sorted once at
+        the end rather than for each new atom.
+        @return the number of changes replayed, or -1 if the journal
+            belongs to a different checkpoint
+    */
+    static int replay(World world, String fileName)
+        throws IOException
+        {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+        try {
+            if (in.readInt() != MAGIC)
+                throw new IOException("Not a world journal: " + fileName);
+            int version = in.readInt();
+            if (version > VERSION)
+                throw new IOException("World journal version " + version + " is newer than " + VERSION);
+            long checkpoint = in.readLong();
+            long timeMillis = in.readLong();
+            if (checkpoint != world.checkpoint)
+                return -1;
+
+            // Replay each batch, until one is incomplete or corrupt
+            int result = 0;
+            byte data[] = new byte[0];
+            CRC32 crc = new CRC32();
+            AtomDatabase database = world.getAtomDatabase();
+            database.beginBatch();
+            try {
+                while (true)
+                    {
+                    int length;
+                    long value, time;
+                    try {
+                        length = in.readInt();
+                        value = in.readLong();
+                        time = in.readLong();
+                        if (length < 0)
+                            break;
+                        if (length > data.length)
+                            data = new byte[length];
+                        in.readFully(data, 0, length);
+                        }
+                    catch (EOFException e)
+                        {
+                        break;
+                        }
+                    crc.reset();
+                    crc.update(data, 0, length);
+                    if (crc.getValue() != value)
+                        break;
+                    result += replayBatch(world, new Replay(new ByteArrayInputStream(data, 0, length), world));
+                    timeMillis = time;
+                    }
+                }
+            finally
+                {
+                database.endBatch();
+                }
+
+            // Timed events which matured before the last batch was written
+            //  have been posted already
+            world.getTimer().recoverTime(timeMillis);
+            return result;
+            }
+        finally
+            {
+            in.close();
+            }
+        }
+
+    /** Replay the records in a batch
+        @return the number replayed
+    */
+    private static int replayBatch(World world, Replay in)
+        throws IOException
+        {
+        int result = 0;
+        while (in.available() > 0)
+            {
+            int type = in.readByte();
+            try {
+                replayRecord(world, type, in);
+                result++;
+                }
+            catch (RuntimeException e)
+                {
+                //### Should be World.warning
+                System.out.println("WorldJournal: Can't replay change of type " + type);
+                Debug.printStackTrace(e);
+                }
+            }
+        return result;
+        }
+
+    /** Replay a record. The whole record is read even if the change
+        can't be made.
+    */
+    private static void replayRecord(World world, int type, Replay in)
+        throws IOException
+        {
+        AtomDatabase database = world.getAtomDatabase();
+        switch (type)
+            {
+        case NEW_ATOM:
+            {
+            String id = in.readUTF();
+            int atomType = in.readByte();
+            Atom parent = in.readAtom();
+            database.newAtom(id, parent, atomType);
+            break;
+            }
+        case DELETE_ATOM:
+            {
+            Atom atom = in.readAtom();
+            database.deleteAtom(atom);
+            world.cancelTimers(atom);
+            break;
+            }
+        case PARENTS:
+            {
+            Atom atom = in.readAtom();
+            int n = in.readInt();
+            Vector parents = new Vector(n);
+            for (int i = 0; i < n; i++)
+                parents.addElement(in.readAtom());
+
+            // Add the new parents, then remove the old ones
+            for (int i = 0; i < n; i++)
+                {
+                Atom parent = (Atom)parents.elementAt(i);
+                if (!Atom.enumContains(atom.getParents(), parent))
+                    atom.inherit(parent);
+                }
+            Vector old = (Vector)AtomData.enumToVector(atom.getParents());
+            for (int i = 0; i < old.size(); i++)
+                {
+                Atom parent = (Atom)old.elementAt(i);
+                if (!parents.contains(parent))
+                    atom.uninherit(parent);
+                }
+            break;
+            }
+        case SET_FIELD:
+            {
+            Atom atom = in.readAtom();
+            String name = in.readUTF();
+            atom.setField(name, in.readValue());
+            break;
+            }
+        case CLEAR_FIELD:
+            {
+            Atom atom = in.readAtom();
+            atom.clearField(in.readUTF());
+            break;
+            }
+        case MOVE:
+            {
+            Atom atom = in.readAtom();
+            in.readAtom().putIn(atom);
+            break;
+            }
+        case ADD_EXIT:
+            {
+            Atom container = in.readAtom();
+            int direction = in.readInt();
+            container.addExit(direction, in.readAtom());
+            break;
+            }
+        case REMOVE_EXIT:
+            {
+            Atom container = in.readAtom();
+            container.removeExit(in.readAtom());
+            break;
+            }
+        case TIMER_EVENT:
+            {
+            Atom current = in.readAtom();
+            String id = in.readUTF();
+            Atom actor = in.readNullableAtom();
+            int n = in.readInt();
+            Object args[] = n > 0 ? new Object[n] : null;
+            for (int i = 0; i < n; i++)
+                args[i] = in.readValue();
+            Event event = world.newEvent(actor, id, current, args);
+            event.setTimeMillis(in.readLong());
+            world.getTimer().putEvent(event);
+            break;
+            }
+        case CANCEL_TIMERS:
+            {
+            Atom atom = in.readAtom();
+            if (in.readBoolean())
+                world.cancelTimers(atom, in.readUTF());
+            else
+                world.cancelTimers(atom);
+            break;
+            }
+        case CANCEL_TIMER:
+            {
+            Atom atom = in.readAtom();
+            String id = in.readUTF();
+            world.getTimer().cancelEvent(atom, id, in.readLong());
+            break;
+            }
+        default:
+            throw new IOException("Bad record in world journal: " + type);
+            }
+        }
+
+// Records
+
+    /** A buffer of records
+    */
+    private static final class Record
+        extends DataOutputStream
+        {
+        Record()
+            {
+            super(new ByteArrayOutputStream());
+            }
+
+        int length()
+            {
+            return ((ByteArrayOutputStream)out).size();
+            }
+
+        byte[] toByteArray()
+            {
+            return ((ByteArrayOutputStream)out).toByteArray();
+            }
+
+        void reset()
+            {
+            ((ByteArrayOutputStream)out).reset();
+            }
+
+        /** Append the records to another buffer
+        */
+        void writeTo(Record record)
+            {
+            try {
+                ((ByteArrayOutputStream)out).writeTo(record);
+                }
+            catch (IOException e)
+                {
+                // Can't happen: the buffers are in memory
+                }
+            }
+
+        /** Write an atom, which may be null
+        */
+        void writeAtom(Atom atom)
+            throws IOException
+            {
+            writeBoolean(atom != null);
+            if (atom != null)
+                writeUTF(atom.getID());
+            }
+
+        /** Write a field value, with the same tags as a snapshot
+        */
+        void writeValue(Object value)
+            throws IOException
+            {
+            if (value == null)
+                writeByte(WorldSnapshot.T_NULL);
+            else if (value instanceof Atom)
+                {
+                writeByte(WorldSnapshot.T_ATOM);
+                writeUTF(((Atom)value).getID());
+                }
+            else if (value instanceof String)
+                {
+                String s = (String)value;
+                if (s.length() <= WorldSnapshot.MAX_UTF)
+                    {
+                    writeByte(WorldSnapshot.T_STRING);
+                    writeUTF(s);
+                    }
+                else {
+                    writeByte(WorldSnapshot.T_LONG_STRING);
+                    writeInt(s.length());
+                    writeChars(s);
+                    }
+                }
+            else if (value instanceof Integer)
+                {
+                writeByte(WorldSnapshot.T_INTEGER);
+                writeInt(((Integer)value).intValue());
+                }
+            else if (value instanceof Boolean)
+                writeByte(((Boolean)value).booleanValue() ? WorldSnapshot.T_TRUE : WorldSnapshot.T_FALSE);
+            else if (value.getClass() == Vector.class)
+                {
+                Vector v = (Vector)value;
+                int n = v.size();
+                writeByte(WorldSnapshot.T_LIST);
+                writeInt(n);
+                for (int i = 0; i < n; i++)
+                    writeValue(v.elementAt(i));
+                }
+            else if (value.getClass() == Hashtable.class)
+                {
+                Hashtable table = (Hashtable)value;
+                writeByte(WorldSnapshot.T_TABLE);
+                writeInt(table.size());
+                Enumeration keys = table.keys();
+                while (keys.hasMoreElements())
+                    {
+                    Object key = keys.nextElement();
+                    writeValue(key);
+                    writeValue(table.get(key));
+                    }
+                }
+            else if (WorldSnapshot.isLoadableAction(value))
+                {
+                writeByte(WorldSnapshot.T_ACTION);
+                writeUTF(value.getClass().getName());
+                }
+            else if (value instanceof NullPropertyValue)
+                writeByte(WorldSnapshot.T_NULL_PROPERTY);
+            else {
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(buf);
+                out.writeObject(value);
+                out.close();
+                writeByte(WorldSnapshot.T_OBJECT);
+                writeInt(buf.size());
+                buf.writeTo(this);
+                }
+            }
+        }
+
+    /** Reads the records in a batch
+    */
+    private static final class Replay
+        extends DataInputStream
+        {
+        private World world;
+
+        Replay(InputStream in, World world)
+            {
+            super(in);
+            this.world = world;
+            }
+
+        /** Read an atom written by 'Record.writeAtom', which may be null
+        */
+        Atom readNullableAtom()
+            throws IOException
+            {
+            return readBoolean() ? readAtom() : null;
+            }
+
+        /** Read an atom's ID. The atom must exist.
+        */
+        Atom readAtom()
+            throws IOException
+            {
+            String id = readUTF();
+            Atom atom = world.getAtom(id);
+            if (atom == null)
+                throw new AtomException("Atom not found: " + id);
+            return atom;
+            }
+
+        /** Read a field value written by 'Record.writeValue'. Atoms which
+            no longer exist are read as null.
+        */
+        Object readValue()
+            throws IOException
+            {
+            int tag = readByte();
+            switch (tag)
+                {
+            case WorldSnapshot.T_NULL:
+                return null;
+            case WorldSnapshot.T_ATOM:
+                return world.getAtom(readUTF());
+            case WorldSnapshot.T_STRING:
+                return readUTF();
+            case WorldSnapshot.T_LONG_STRING:
+                {
+                int n = readInt();
+                char chars[] = new char[n];
+                for (int i = 0; i < n; i++)
+                    chars[i] = readChar();
+                return new String(chars);
+                }
+            case WorldSnapshot.T_INTEGER:
+                return new Integer(readInt());
+            case WorldSnapshot.T_TRUE:
+                return Boolean.TRUE;
+            case WorldSnapshot.T_FALSE:
+                return Boolean.FALSE;
+            case WorldSnapshot.T_LIST:
+                {
+                int n = readInt();
+                Vector v = new Vector(n);
+                for (int i = 0; i < n; i++)
+                    v.addElement(readValue());
+                return v;
+                }
+            case WorldSnapshot.T_TABLE:
+                {
+                int n = readInt();
+                Hashtable table = new Hashtable(n * 2 + 1);
+                for (int i = 0; i < n; i++)
+                    {
+                    Object key = readValue();
+                    Object value = readValue();
+                    if (key != null && value != null)
+                        table.put(key, value);
+                    }
+                return table;
+                }
+            case WorldSnapshot.T_ACTION:
+                {
+                String className = readUTF();
+                try {
+                    return Class.forName(className).newInstance();
+                    }
+                catch (Exception e)
+                    {
+                    throw new AtomException("Can't make action: " + className);
+                    }
+                }
+            case WorldSnapshot.T_NULL_PROPERTY:
+                return world.getAtomDatabase().getNullPropertyValue();
+            case WorldSnapshot.T_OBJECT:
+                {
+                byte data[] = new byte[readInt()];
+                readFully(data);
+                try {
+                    return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+                    }
+                catch (ClassNotFoundException e)
+                    {
+                    throw new AtomException("Can't read field value: " + e.getMessage());
+                    }
+                }
+            default:
+                throw new IOException("Bad field type in world journal: " + tag);
+                }
+            }
+        }
+    }
@@ -0,0 +1,856 @@
+// $Id$
+// Binary snapshot format for saving and loading worlds
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.util.*;
+
+/** Reads and writes worlds in the snapshot format.
+    <p>
+    A world used to be saved by serializing the World object. The
+    serializer follows every reference from every atom, so it recursed
+    through the parent, child and contents lists as deep as the world was
+    big, and wrote the name of every field as a separate object. A world
+    of a few hundred thousand atoms took minutes to load, and could fail
+    with a stack overflow.
+    <p>
+    A snapshot is written in three parts:
+    <ol>
+    <li> The atom table: the class and ID of every atom in the database.
+        When it is read, an empty atom is made for each one.
+    <li> The rest of the world, serialized as before, except that atoms
+        are written as their IDs and the database's table of atoms is
+        left out. It is serialized while the world is captured (see 
+        'SnapshotWriter'), before the atoms are numbered, and written as
+        a block of bytes.
+    <li> The state of each atom, in the order of the table. Other atoms
+        are written as their indices, so nothing recurses. The fields are
+        written with a tag for their type (see 'AtomData'). Lists, tables
+        and values of other types are rare, and are serialized.
+    </ol>
+    IDs, property names and action names are written the first time they
+    are seen, and as their index in a table of strings after that.
+    <p>
+    Once a world has been frozen, most of it never changes, so from version
+    4 the frozen atoms are written once, to a base image beside the
+    snapshot, and the snapshots which follow refer to the image. The image
+    has its own atom table, and the states of its atoms, which refer to
+    atoms not in it by their IDs. A snapshot's atom table then leaves out
+    the image's atoms, which are numbered first, and after the states of
+    its own atoms come those of the image's atoms which have changed since
+    the image was written. These are read after the image, and replace the
+    states read from it. A new image is written when the world is frozen
+    again, or when more than half of the image has changed (see
+    'SnapshotWriter'). An atom deleted since the image was written, which
+    an unchanged atom in the image refers to, is read as null.
+    <p>
+    The file begins with MAGIC and VERSION, then (from version 2) the
+    world's checkpoint number, which ties the snapshot to its journal (see
+    'WorldJournal'), then (from version 4) the number of its base image, or
+    0 if it has none. A base image begins with BASE_MAGIC, VERSION and its
+    number. Before version 3 the rest of the world was part of the same
+    stream as the atoms, and referred to them by index. A serialized World
+    begins with the serialization stream header, so 'isSnapshot' can tell
+    the two apart. Loading a snapshot made with a newer version throws an
+    IOException.
+*/
+final class WorldSnapshot
+    {
+    /** The first four bytes of a snapshot: "OGWS"
+    */
+    static final int MAGIC = 0x4f475753;
+
+    /** The version of the format written
+    */
+    static final int VERSION = 4;
+
+    /** The first four bytes of a base image: "OGWB"
+    */
+    static final int BASE_MAGIC = 0x4f475742;
+
+    /** Atom classes in the atom table
+    */
+    private static final int ATOM = 0;
+    private static final int THING = 1;
+    private static final int CONTAINER = 2;
+    private static final int MOBILE = 3;
+    private static final int ROOT = 4;
+
+    /** Field value tags, also used by the journal
+    */
+    static final int T_NULL = 0;
+    static final int T_ATOM = 1;
+    static final int T_STRING = 2;
+    static final int T_LONG_STRING = 3;
+    static final int T_INTEGER = 4;
+    static final int T_TRUE = 5;
+    static final int T_FALSE = 6;
+    static final int T_LIST = 7;
+    static final int T_TABLE = 8;
+    static final int T_ACTION = 9;
+    static final int T_NULL_PROPERTY = 10;
+    static final int T_OBJECT = 11;
+
+    /** Longest string written with 'writeUTF', which is limited to 64K bytes
+    */
+    static final int MAX_UTF = 0xffff / 3;
+
+    /** Written after the last atom
+    */
+    private static final int END = 0x454e4421;
+
+    /** Prevent instantiation
+    */
+    private WorldSnapshot()
+        {
+        }
+
+    /** Does the stream hold a snapshot? The stream must support 'mark', and
+        is left where it was.
+    */
+    static boolean isSnapshot(InputStream in)
+        throws IOException
+        {
+        in.mark(4);
+        int magic = 0;
+        for (int i = 0; i < 4; i++)
+            magic = (magic << 8) | (in.read() & 0xff);
+        in.reset();
+        return magic == MAGIC;
+        }
+
+    /** Serialize the rest of the world, apart from the atoms. Atoms in
+        the database are written as their IDs.
+    */
+    static byte[] writeWorld(World world)
+        throws IOException
+        {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        WorldOutput out = new WorldOutput(buf, world.getAtomDatabase());
+        out.writeObject(world);
+        out.flush();
+        return buf.toByteArray();
+        }
+
+    /** Number atoms in the order they are given, for 'write' and
+        'writeBase'
+    */
+    static Hashtable numberAtoms(Atom atoms[])
+        {
+        Hashtable result = new Hashtable(atoms.length * 2 + 1);
+        for (int i = 0; i < atoms.length; i++)
+            result.put(atoms[i], new Integer(i));
+        return result;
+        }
+
+    /** Write a snapshot of a world captured by 'writer': its atoms, and
+        the rest of the world written by 'writeWorld'. Each atom is written
+        by the writer, which has kept it as it was if it has changed since.
+        <p>
+        The atoms are numbered by 'index'. If 'baseNumber' isn't 0, the
+        first 'baseCount' are the atoms of that base image, which are left
+        out, apart from the indices in 'changed'.
+    */
+    static void write(OutputStream out, SnapshotWriter writer, long checkpoint, long baseNumber, Atom atoms[],
+            int baseCount, int changed[], byte world[], Hashtable index, Object atomTable)
+        throws IOException
+        {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeLong(checkpoint);
+        header.writeLong(baseNumber);
+        header.flush();
+
+        // The atom table
+        int n = atoms.length;
+        Output output = new Output(out, index, n, atomTable);
+        output.writeInt(n - baseCount);
+        writeTable(output, atoms, baseCount, n);
+
+        // The rest of the world
+        output.writeInt(world.length);
+        output.write(world);
+
+        // The atoms, then the base image's atoms which have changed
+        for (int i = baseCount; i < n; i++)
+            writer.writeAtom(output, i);
+        output.writeInt(changed.length);
+        for (int i = 0; i < changed.length; i++)
+            {
+            output.writeInt(changed[i]);
+            writer.writeAtom(output, changed[i]);
+            }
+        output.writeInt(END);
+        output.flush();
+        }
+
+    /** Write the base image 'number' of a world captured by 'writer': the
+        first 'count' of the atoms numbered by 'index'. Atoms which aren't
+        in the image are written as their IDs.
+    */
+    static void writeBase(OutputStream out, SnapshotWriter writer, long number, Atom atoms[], int count,
+            Hashtable index, Object atomTable)
+        throws IOException
+        {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(BASE_MAGIC);
+        header.writeInt(VERSION);
+        header.writeLong(number);
+        header.flush();
+
+        Output output = new Output(out, index, count, atomTable);
+        output.writeInt(count);
+        writeTable(output, atoms, 0, count);
+        for (int i = 0; i < count; i++)
+            writer.writeAtom(output, i);
+        output.writeInt(END);
+        output.flush();
+        }
+
+    /** Write the class and ID of atoms 'from' to 'to' - 1
+    */
+    private static void writeTable(Output output, Atom atoms[], int from, int to)
+        throws IOException
+        {
+        for (int i = from; i < to; i++)
+            {
+            output.writeByte(getAtomClass(atoms[i]));
+            output.writeString(atoms[i].getID());
+            }
+        }
+
+    /** Read a world written by 'write'. If it refers to a base image, the
+        image is read from 'baseName'.
+    */
+    static World read(InputStream in, String baseName)
+        throws IOException, ClassNotFoundException
+        {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC)
+            throw new IOException("Not a world snapshot");
+        int version = header.readInt();
+        if (version > VERSION)
+            throw new IOException("World snapshot version " + version + " is newer than " + VERSION);
+        long checkpoint = version >= 2 ? header.readLong() : 0;
+        long baseNumber = version >= 4 ? header.readLong() : 0;
+
+        // Make an empty atom for each entry in the base image's table, then
+        //  in the snapshot's
+        Input base = null;
+        Atom baseAtoms[] = new Atom[0];
+        if (baseNumber != 0)
+            {
+            base = openBase(baseName, baseNumber);
+            baseAtoms = new Atom[base.readInt()];
+            readTable(base, baseAtoms, 0, baseAtoms.length);
+            }
+        try {
+            Input input = new Input(in);
+            int baseCount = baseAtoms.length;
+            Atom atoms[] = new Atom[baseCount + input.readInt()];
+            System.arraycopy(baseAtoms, 0, atoms, 0, baseCount);
+            readTable(input, atoms, baseCount, atoms.length);
+            input.atoms = atoms;
+
+            // The rest of the world
+            World world;
+            if (version >= 3)
+                {
+                byte data[] = new byte[input.readInt()];
+                input.readFully(data);
+                Input worldInput = new Input(new ByteArrayInputStream(data));
+                worldInput.atoms = atoms;
+                worldInput.atomTable = input.getAtomTable();
+                world = (World)worldInput.readObject();
+                }
+            else
+                world = (World)input.readObject();
+            world.checkpoint = checkpoint;
+            input.world = world;
+
+            // Fill in the atoms
+            for (int i = baseCount; i < atoms.length; i++)
+                atoms[i].readSnapshot(input);
+
+            // Then the base image's atoms, and those which have changed since
+            //  it was written again
+            Hashtable changed = new Hashtable();
+            if (base != null)
+                {
+                base.atoms = atoms;
+                base.atomTable = input.getAtomTable();
+                base.world = world;
+                for (int i = 0; i < baseCount; i++)
+                    atoms[i].readSnapshot(base);
+                if (base.readInt() != END)
+                    throw new IOException("World base image is corrupt");
+                int n = input.readInt();
+                for (int i = 0; i < n; i++)
+                    {
+                    Atom atom = atoms[input.readInt()];
+                    atom.readSnapshot(input);
+                    changed.put(atom, atom);
+                    }
+                }
+            if (input.readInt() != END)
+                throw new IOException("World snapshot is corrupt");
+
+            // Later snapshots refer to the same base image, until it is
+            //  written again
+            if (base != null)
+                {
+                AtomDatabase database = world.getAtomDatabase();
+                database.baseNumber = baseNumber;
+                database.baseAtoms = baseAtoms;
+                database.baseChanged = changed;
+                }
+            return world;
+            }
+        finally
+            {
+            if (base != null)
+                base.close();
+            }
+        }
+
+    /** Make an empty atom for each entry in an atom table, as atoms 'from'
+        to 'to' - 1
+    */
+    private static void readTable(Input input, Atom atoms[], int from, int to)
+        throws IOException
+        {
+        for (int i = from; i < to; i++)
+            {
+            int atomClass = input.readByte();
+            String id = input.readString();
+            switch (atomClass)
+                {
+            case ATOM:
+                atoms[i] = new Atom(id);
+                break;
+            case THING:
+                atoms[i] = new Thing(id);
+                break;
+            case CONTAINER:
+                atoms[i] = new Container(id);
+                break;
+            case MOBILE:
+                atoms[i] = new Mobile(id);
+                break;
+            case ROOT:
+                atoms[i] = new RootAtom(id);
+                break;
+            default:
+                throw new IOException("Bad atom class in world snapshot: " + atomClass);
+                }
+            }
+        }
+
+    /** Open the base image 'number' in 'fileName', and read its header. If
+        the world stopped after its snapshot was replaced but before its base
+        image was, the new image is complete beside the old one, and
+        replaces it.
+    */
+    private static Input openBase(String fileName, long number)
+        throws IOException
+        {
+        Input result = openBaseFile(fileName, number);
+        if (result == null)
+            {
+            String tempName = fileName + WorldFactory.TEMP_SUFFIX;
+            result = openBaseFile(tempName, number);
+            if (result == null)
+                throw new IOException("World base image " + fileName + " is missing or out of date");
+            result.close();
+            WorldFactory.replaceFile(tempName, fileName);
+            result = openBaseFile(fileName, number);
+            }
+        return result;
+        }
+
+    /** Open a file holding the base image 'number', and read its header
+        @return the stream, or null if the file doesn't exist or holds
+            another image
+    */
+    private static Input openBaseFile(String fileName, long number)
+        throws IOException
+        {
+        if (!new File(fileName).exists())
+            return null;
+        InputStream in = new BufferedInputStream(new FileInputStream(fileName));
+        try {
+            DataInputStream header = new DataInputStream(in);
+            if (header.readInt() == BASE_MAGIC && header.readInt() <= VERSION && header.readLong() == number)
+                return new Input(in);
+            }
+        catch (IOException e)
+            {
+            }
+        in.close();
+        return null;
+        }
+
+    /** Get the class of an atom, for the atom table
+    */
+    private static int getAtomClass(Atom atom)
+        {
+        if (atom.isRoot())
+            return ROOT;
+        else if (atom instanceof Mobile)
+            return MOBILE;
+        else if (atom instanceof Container)
+            return CONTAINER;
+        else if (atom instanceof Thing)
+            return THING;
+        else
+            return ATOM;
+        }
+
+    /** Is 'value' an action which is made by loading its class, and so
+        has no state worth saving?
+    */
+    static boolean isLoadableAction(Object value)
+        {
+        return value instanceof JavaAction &&
+                value.getClass().getName().startsWith(JavaAction.actionPackage);
+        }
+
+    /** Written in place of an atom in the table, or of the database's table
+        of atoms, when the rest of the world is serialized
+    */
+    private static final class Ref
+        implements Serializable
+        {
+        private static final long serialVersionUID = 1;
+
+        /** Index of the database's table of atoms
+        */
+        static final int ATOM_TABLE = -1;
+
+        /** Index of an atom given by its ID
+        */
+        static final int ID = -2;
+
+        int index;
+        String id;
+
+        Ref(int index)
+            {
+            this.index = index;
+            }
+
+        Ref(String id)
+            {
+            index = ID;
+            this.id = id;
+            }
+        }
+
+    /** The stream the rest of the world is serialized to by 'writeWorld'
+    */
+    private static final class WorldOutput
+        extends ObjectOutputStream
+        {
+        private AtomDatabase database;
+
+        private WorldOutput(OutputStream out, AtomDatabase database)
+            throws IOException
+            {
+            super(out);
+            enableReplaceObject(true);
+            this.database = database;
+            }
+
+        /** Write atoms in the database as their IDs, and leave out the
+            database's table of atoms
+        */
+        protected Object replaceObject(Object obj)
+            throws IOException
+            {
+            if (obj instanceof Atom)
+                {
+                String id = ((Atom)obj).getID();
+                if (database.atoms.get(id) == obj)
+                    return new Ref(id);
+                }
+            else if (obj == database.atoms)
+                return new Ref(Ref.ATOM_TABLE);
+            return obj;
+            }
+        }
+
+    /** The stream a snapshot is written to
+    */
+    static final class Output
+        extends ObjectOutputStream
+        {
+        /** The index of each atom in the table, and the number of atoms
+            written as their index. Atoms after those are written as their
+            IDs.
+        */
+        private Hashtable atomIndex;
+        private int limit;
+
+        /** The database's table of atoms
+        */
+        private Object atomTable;
+
+        /** The index of each string in the string table
+        */
+        private Hashtable strings = new Hashtable();
+
+        private Output(OutputStream out, Hashtable atomIndex, int limit, Object atomTable)
+            throws IOException
+            {
+            super(out);
+            enableReplaceObject(true);
+            this.atomIndex = atomIndex;
+            this.limit = limit;
+            this.atomTable = atomTable;
+            }
+
+        /** Write a string from the string table, such as an ID or a
+            property name
+        */
+        void writeString(String s)
+            throws IOException
+            {
+            Integer index = (Integer)strings.get(s);
+            if (index != null)
+                writeInt(index.intValue());
+            else {
+                writeInt(-1);
+                writeUTF(s);
+                strings.put(s, new Integer(strings.size()));
+                }
+            }
+
+        /** Write an atom, which may be null
+        */
+        void writeAtom(Atom atom)
+            throws IOException
+            {
+            if (atom == null)
+                writeInt(-1);
+            else {
+                Integer index = (Integer)atomIndex.get(atom);
+                if (index != null && index.intValue() < limit)
+                    writeInt(index.intValue());
+
+                // An atom which isn't in the base image being written
+                else if (index != null)
+                    {
+                    writeInt(-3);
+                    writeString(atom.getID());
+                    }
+
+                // The atom has been deleted from the database, but something
+                //  still refers to it
+                else {
+                    writeInt(-2);
+                    writeObject(atom);
+                    }
+                }
+            }
+
+        /** Write a list of atoms, which may be null
+        */
+        void writeAtoms(Vector v)
+            throws IOException
+            {
+            if (v == null)
+                writeInt(-1);
+            else {
+                int n = v.size();
+                writeInt(n);
+                for (int i = 0; i < n; i++)
+                    writeAtom((Atom)v.elementAt(i));
+                }
+            }
+
+        /** Write a field value
+        */
+        void writeValue(Object value)
+            throws IOException
+            {
+            if (value == null)
+                writeByte(T_NULL);
+            else if (value instanceof Atom)
+                {
+                writeByte(T_ATOM);
+                writeAtom((Atom)value);
+                }
+            else if (value instanceof String)
+                {
+                String s = (String)value;
+                if (s.length() <= MAX_UTF)
+                    {
+                    writeByte(T_STRING);
+                    writeUTF(s);
+                    }
+                else {
+                    writeByte(T_LONG_STRING);
+                    writeInt(s.length());
+                    writeChars(s);
+                    }
+                }
+            else if (value instanceof Integer)
+                {
+                writeByte(T_INTEGER);
+                writeInt(((Integer)value).intValue());
+                }
+            else if (value instanceof Boolean)
+                writeByte(((Boolean)value).booleanValue() ? T_TRUE : T_FALSE);
+            else if (value.getClass() == Vector.class)
+                {
+                Vector v = (Vector)value;
+                int n = v.size();
+                writeByte(T_LIST);
+                writeInt(n);
+                for (int i = 0; i < n; i++)
+                    writeValue(v.elementAt(i));
+                }
+            else if (value.getClass() == Hashtable.class)
+                {
+                Hashtable table = (Hashtable)value;
+                writeByte(T_TABLE);
+                writeInt(table.size());
+                Enumeration keys = table.keys();
+                while (keys.hasMoreElements())
+                    {
+                    Object key = keys.nextElement();
+                    writeValue(key);
+                    writeValue(table.get(key));
+                    }
+                }
+            else if (isLoadableAction(value))
+                {
+                writeByte(T_ACTION);
+                writeString(value.getClass().getName());
+                }
+            else if (value instanceof NullPropertyValue)
+                writeByte(T_NULL_PROPERTY);
+            else {
+                writeByte(T_OBJECT);
+                writeObject(value);
+                }
+            }
+
+        /** Write atoms as their index in the table, or their ID if they
+            aren't in the base image being written, and leave out the
+            database's table of atoms
+        */
+        protected Object replaceObject(Object obj)
+            throws IOException
+            {
+            if (obj instanceof Atom)
+                {
+                Integer index = (Integer)atomIndex.get(obj);
+                if (index != null && index.intValue() < limit)
+                    return new Ref(index.intValue());
+                else if (index != null)
+                    return new Ref(((Atom)obj).getID());
+                }
+            else if (obj == atomTable)
+                return new Ref(Ref.ATOM_TABLE);
+            return obj;
+            }
+        }
+
+    /** The stream a snapshot is read from
+    */
+    static final class Input
+        extends ObjectInputStream
+        {
+        /** The atoms in the table, and the table of them by ID once it
+            has been made
+        */
+        private Atom atoms[];
+        private Hashtable atomTable;
+
+        /** The world, once it has been read
+        */
+        private World world;
+
+        /** The string table
+        */
+        private Vector strings = new Vector();
+
+        /** Action classes, by name
+        */
+        private Hashtable actionClasses = new Hashtable();
+
+        private Input(InputStream in)
+            throws IOException
+            {
+            super(in);
+            enableResolveObject(true);
+            }
+
+        /** Get the world being read
+        */
+        World getWorld()
+            {
+            return world;
+            }
+
+        /** Read a string written by 'writeString'
+        */
+        String readString()
+            throws IOException
+            {
+            int index = readInt();
+            if (index >= 0)
+                return (String)strings.elementAt(index);
+            String s = readUTF();
+            strings.addElement(s);
+            return s;
+            }
+
+        /** Read an atom written by 'writeAtom'
+        */
+        Atom readAtom()
+            throws IOException, ClassNotFoundException
+            {
+            int index = readInt();
+            if (index >= 0)
+                return atoms[index];
+            else if (index == -1)
+                return null;
+            else if (index == -3)
+                return (Atom)getAtomTable().get(readString());
+            else
+                return (Atom)readObject();
+            }
+
+        /** Read a list of atoms written by 'writeAtoms' into 'v'
+            @return 'v', or null if the list was null
+        */
+        Vector readAtoms(Vector v)
+            throws IOException, ClassNotFoundException
+            {
+            int n = readInt();
+            if (n < 0)
+                return null;
+            v.ensureCapacity(n);
+            for (int i = 0; i < n; i++)
+                v.addElement(readAtom());
+            return v;
+            }
+
+        /** Read a field value written by 'writeValue'
+        */
+        Object readValue()
+            throws IOException, ClassNotFoundException
+            {
+            int tag = readByte();
+            switch (tag)
+                {
+            case T_NULL:
+                return null;
+            case T_ATOM:
+                return readAtom();
+            case T_STRING:
+                return readUTF();
+            case T_LONG_STRING:
+                {
+                int n = readInt();
+                char chars[] = new char[n];
+                for (int i = 0; i < n; i++)
+                    chars[i] = readChar();
+                return new String(chars);
+                }
+            case T_INTEGER:
+                return new Integer(readInt());
+            case T_TRUE:
+                return Boolean.TRUE;
+            case T_FALSE:
+                return Boolean.FALSE;
+            case T_LIST:
+                {
+                int n = readInt();
+                Vector v = new Vector(n);
+                for (int i = 0; i < n; i++)
+                    v.addElement(readValue());
+                return v;
+                }
+            case T_TABLE:
+                {
+                int n = readInt();
+                Hashtable table = new Hashtable(n * 2 + 1);
+                for (int i = 0; i < n; i++)
+                    {
+                    Object key = readValue();
+                    table.put(key, readValue());
+                    }
+                return table;
+                }
+            case T_ACTION:
+                return readAction(readString());
+            case T_NULL_PROPERTY:
+                return world.getAtomDatabase().getNullPropertyValue();
+            case T_OBJECT:
+                return readObject();
+            default:
+                throw new IOException("Bad field type in world snapshot: " + tag);
+                }
+            }
+
+        /** Make an action from its class name
+        */
+        private Action readAction(String className)
+            throws IOException, ClassNotFoundException
+            {
+            Class actionClass = (Class)actionClasses.get(className);
+            if (actionClass == null)
+                {
+                actionClass = Class.forName(className);
+                actionClasses.put(className, actionClass);
+                }
+            try {
+                return (Action)actionClass.newInstance();
+                }
+            catch (Exception e)
+                {
+                throw new InvalidClassException(className, "Can't make action: " + e.getMessage());
+                }
+            }
+
+        /** Get the table of atoms by ID, which becomes the database's
+            table of atoms
+        */
+        private Hashtable getAtomTable()
+            {
+            if (atomTable == null)
+                {
+                atomTable = new Hashtable(atoms.length * 2 + 1);
+                for (int i = 0; i < atoms.length; i++)
+                    atomTable.put(atoms[i].getID(), atoms[i]);
+                }
+            return atomTable;
+            }
+
+        /** Replace atom indices and IDs with the atoms, and build the
+            database's table of atoms
+        */
+        protected Object resolveObject(Object obj)
+            throws IOException
+            {
+            if (obj instanceof Ref)
+                {
+                Ref ref = (Ref)obj;
+                if (ref.index >= 0)
+                    return atoms[ref.index];
+                else if (ref.index == Ref.ID)
+                    return getAtomTable().get(ref.id);
+                else
+                    return getAtomTable();
+                }
+            return obj;
+            }
+        }
+    }
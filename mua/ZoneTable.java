@@ -0,0 +1,375 @@
+// $Id$
+// Event processors for the zones of a world
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.util.*;
+
+/** The zone table lets a world run an event processor for each zone, so
+    that a busy area doesn't hold up players everywhere else.
+    <p>
+    A zone is the set of atoms inside containers with the same value of the
+    'zone' property. An atom is in the zone of the nearest container
+    enclosing it (or the atom itself) which has a 'zone' property. Atoms
+    with no zone belong to the default zone, run by the world's own event
+    processor. The processor for a zone is created the first time an event
+    is posted to it.
+    <p>
+    Events are routed by their current atom, or by their actor if there is no
+    current atom (as with parser events). So a player's commands are processed
+    in the zone the player is in.
+    <p>
+    Within a zone, events are processed one at a time, as they always have
+    been. Each processor holds the lock on its zone while it processes an
+    event. When the event changes a thing in another zone, the processor
+    takes that zone's lock too (see 'World.enterZone'), and holds it until
+    the event is finished. The lock is taken when a thing is moved (both
+    its old and new zones) or deleted, when one of its fields is set or
+    cleared, when an exit is added or removed, when an event is called on
+    it, and when output is sent to a container.
+    <p>
+    So changes made through the world and its atoms are safe, but reading
+    a thing in another zone takes no lock: an action which only looks at
+    another zone (e.g. the name of the room an exit leads to) may see it
+    part way through one of that zone's events. An action which must see
+    another zone as it is between events, or which changes it in some other
+    way, must call an event on an atom there first. Static atoms (the types)
+    are in no zone, and are changed without a zone lock, e.g. by admin
+    commands. The caches shared by the zones (the property cache, each
+    container's contents index and audience) are synchronized.
+    <p>
+    A processor never lets go of a zone part way through an event. Before
+    it waits for a zone, it follows the chain of processors waiting for
+    each other's zones; if the chain comes back to it, waiting would
+    deadlock. Then one of the processors in the chain whose event has not
+    yet changed anything (see 'World.eventChanged') gives way: its event is
+    abandoned by throwing 'Retry', it lets go of its zones, and it runs the
+    event again from the start, taking every zone the event had needed in
+    order of zone number. If every event in the chain has changed
+    something, the event which would have waited fails with an
+    AtomException instead, keeping its zones and the changes it has made,
+    as when any action fails.
+    <p>
+    Each processor has its own event stack, so 'World.getCurrentEvent' gives
+    the event being processed on the calling thread.
+*/
+final class ZoneTable
+    {
+    /** The name of the property giving a container's zone
+    */
+    public static final String ZONE = "zone";
+
+    /** The world
+    */
+    private World world;
+
+    /** All the processors, in zone order. The default processor is first.
+    */
+    private Vector processors = new Vector();
+
+    /** The processors, by zone name
+    */
+    private Hashtable zones = new Hashtable();
+
+    /** Constructor
+    */
+    ZoneTable(World world, EventProcessor defaultProcessor)
+        {
+        this.world = world;
+        defaultProcessor.setZone(this, 0, null);
+        processors.addElement(defaultProcessor);
+        }
+
+    /** Get the processor for an event
+    */
+    EventProcessor getProcessor(Event event)
+        {
+        Atom atom = event.getCurrent();
+        if (atom == null)
+            atom = event.getActor();
+        return getProcessor(atom);
+        }
+
+    /** Get the processor for the zone containing 'atom', creating it if necessary
+    */
+    EventProcessor getProcessor(Atom atom)
+        {
+        String name = getZoneName(atom);
+        if (name == null)
+            return (EventProcessor)processors.elementAt(0);
+        EventProcessor result = (EventProcessor)zones.get(name);
+        if (result == null)
+            result = addZone(name);
+        return result;
+        }
+
+    /** Get the name of the zone containing 'atom', or null if it is in the default zone
+    */
+    static String getZoneName(Atom atom)
+        {
+        for (; atom != null && !atom.isLimbo(); atom = atom.getContainer())
+            {
+            Object zone = atom.getRawProperty(ZONE);
+            if (zone != null && !AtomData.isNullProperty(zone))
+                return zone.toString().toLowerCase();
+            }
+        return null;
+        }
+
+    /** Create the processor for a zone, and start it if the world is running
+    */
+    private synchronized EventProcessor addZone(String name)
+        {
+        // Another thread may have added it since we looked
+        EventProcessor result = (EventProcessor)zones.get(name);
+        if (result != null)
+            return result;
+
+        // Create the processor. New zones get the default zone's command limit.
+        EventProcessor first = (EventProcessor)processors.elementAt(0);
+        result = new EventProcessor(world);
+        result.setZone(this, processors.size(), name);
+        result.setLimit(first.getCapacity(), first.getPolicy());
+        if (world.isActive())
+            result.start();
+        processors.addElement(result);
+        zones.put(name, result);
+        return result;
+        }
+
+    /** Start the zones' processors. The default processor is started by the world.
+    */
+    void start()
+        {
+        for (int i = 1; i < processors.size(); i++)
+            ((EventProcessor)processors.elementAt(i)).start();
+        }
+
+    /** Stop the zones' processors
+    */
+    void stop()
+        {
+        for (int i = 1; i < processors.size(); i++)
+            ((EventProcessor)processors.elementAt(i)).stop();
+        }
+
+    /** Get all the processors, in zone order
+    */
+    Enumeration getProcessors()
+        {
+        return ((Vector)processors.clone()).elements();
+        }
+
+    /** Get the processor whose thread is the calling thread, or null if the
+        caller is not an event processor
+    */
+    EventProcessor getCurrentProcessor()
+        {
+        for (int i = 0; i < processors.size(); i++)
+            {
+            EventProcessor processor = (EventProcessor)processors.elementAt(i);
+            if (processor.isQueueThread())
+                return processor;
+            }
+        return null;
+        }
+
+// Locking
+
+    /** Called by a processor before it processes an event, and again each
+        time the event is retried. Takes the locks on the zones in 'zones',
+        which must be in zone order and include the processor's own.
+        @exception Retry if the processor must give way to another
+    */
+    void beginEvent(EventProcessor processor, Vector zones)
+        {
+        processor.eventChanged = false;
+        for (int i = 0; i < zones.size(); i++)
+            {
+            EventProcessor zone = (EventProcessor)zones.elementAt(i);
+            acquire(processor, zone);
+            processor.heldZones.addElement(zone);
+            }
+        }
+
+    /** Called by a processor when its event has been abandoned (see 'Retry'). 
+        Lets go of its zones, and waits until the zone it was waiting for
+        is free, so the processor it gave way to can go on.
+        @return the zones to take when the event is run again, in zone order
+    */
+    Vector retryEvent(EventProcessor processor)
+        {
+        Vector result = (Vector)processor.heldZones.clone();
+        EventProcessor wanted = processor.wantedZone;
+        if (wanted != null && !result.contains(wanted))
+            {
+            int i = 0;
+            while (i < result.size() && ((EventProcessor)result.elementAt(i)).zoneNumber < wanted.zoneNumber)
+                i++;
+            result.insertElementAt(wanted, i);
+            }
+        endEvent(processor);
+        if (wanted != null)
+            {
+            synchronized (this)
+                {
+                while (wanted.zoneLock.owner != null)
+                    {
+                    try {
+                        wait();
+                        }
+                    catch (InterruptedException e)
+                        {
+                        }
+                    }
+                }
+            }
+        return result;
+        }
+
+    /** Called by a processor when it has finished an event
+    */
+    void endEvent(EventProcessor processor)
+        {
+        synchronized (this)
+            {
+            Vector held = processor.heldZones;
+            for (int i = held.size() - 1; i >= 0; i--)
+                ((EventProcessor)held.elementAt(i)).zoneLock.owner = null;
+            notifyAll();
+            }
+        processor.heldZones.removeAllElements();
+        processor.wantedZone = null;
+        processor.retrying = false;
+        }
+
+    /** Make sure the calling processor holds the lock on the zone containing
+        'atom'. Threads which are not event processors don't take zone locks.
+        @exception Retry if the processor must give way to another
+    */
+    void enter(Atom atom)
+        {
+        EventProcessor self = getCurrentProcessor();
+        if (self == null)
+            return;
+        
+        // If an action caught the Retry, the event goes no further
+        if (self.retrying)
+            throw new Retry();
+        
+        EventProcessor target = getProcessor(atom);
+        Vector held = self.heldZones;
+        if (held.contains(target))
+            return;
+        acquire(self, target);
+        
+        // Keep the list in zone order
+        int i = 0;
+        while (i < held.size() && ((EventProcessor)held.elementAt(i)).zoneNumber < target.zoneNumber)
+            i++;
+        held.insertElementAt(target, i);
+        }
+
+    /** Note that the calling processor's event has changed the world (see 
+        'World.eventChanged')
+    */
+    void eventChanged()
+        {
+        EventProcessor self = getCurrentProcessor();
+        if (self != null)
+            self.eventChanged = true;
+        }
+
+    /** Take the lock on 'zone' for 'self', waiting for it unless that 
+        would deadlock
+        @exception Retry if 'self' must give way to another processor
+    */
+    private synchronized void acquire(EventProcessor self, EventProcessor zone)
+        {
+        Lock lock = zone.zoneLock;
+        while (lock.owner != null)
+            {
+            EventProcessor victim = findDeadlock(self, zone);
+            if (victim == self)
+                {
+                self.retrying = true;
+                self.wantedZone = zone;
+                throw new Retry();
+                }
+            else if (victim != null)
+                {
+                victim.retrying = true;
+                notifyAll();
+                }
+
+            self.waitingFor = lock;
+            try {
+                wait();
+                }
+            catch (InterruptedException e)
+                {
+                }
+            finally
+                {
+                self.waitingFor = null;
+                }
+                
+            // Another processor may have chosen us to give way
+            if (self.retrying)
+                {
+                self.wantedZone = zone;
+                throw new Retry();
+                }
+            }
+        lock.owner = self;
+        }
+
+    /** See whether 'self' waiting for 'zone' would deadlock, i.e. the
+        processors waiting for each other's zones would come back round 
+        to 'self'. Must be called synched on the zone table.
+        @return the processor which should give way (the first one in the 
+            chain, starting with 'self', whose event has changed nothing), 
+            or null if there would be no deadlock
+        @exception AtomException if there would be deadlock but every event
+            in the chain has changed something
+    */
+    private EventProcessor findDeadlock(EventProcessor self, EventProcessor zone)
+        {
+        EventProcessor victim = self.eventChanged ? null : self;
+        EventProcessor owner = zone.zoneLock.owner;
+        for (int i = 0; i < processors.size() && owner != self; i++)
+            {
+            // A processor which is giving way will let go of its zones
+            if (owner == null || owner.retrying || owner.waitingFor == null)
+                return null;
+            if (victim == null && !owner.eventChanged)
+                victim = owner;
+            owner = owner.waitingFor.owner;
+            }
+        if (owner != self)
+            return null;
+        if (victim == null)
+            throw new AtomException("Zone deadlock: can't enter zone " + zone.zoneNumber);
+        return victim;
+        }
+
+    /** The lock on a zone, held by one processor at a time. Its state is
+        guarded by the zone table.
+    */
+    static final class Lock
+        {
+        /** The processor holding the lock, or null
+        */
+        EventProcessor owner = null;
+        }
+
+    /** Thrown out of an event whose processor must give way to another, to
+        avoid deadlock. The event has changed nothing, and is run again. 
+        This is an Error, so actions which catch exceptions let it pass.
+    */
+    static final class Retry
+        extends Error
+        {
+        }
+    }
@@ -57,20 +57,46 @@ public class ModSave
     
     public boolean execute()
         {
-        // Save the world data
+        // Start saving the world data on a thread of its own. Events are
+        //  held back while the world is captured, which waits for the events
+        //  already under way to finish. If the world has zones, those events
+        //  may be waiting for this event's zone, which is locked until it
+        //  finishes, so it can't wait for them.
+        new SaveThread(world).start();
+        
+        // Report back to the user
+        actor.output("Saving database.");
+        
+        return true;
+        }
+    }
+
+/** Starts saving a world outside event processing, for ModSave. The
+    snapshot is written in the background, and an error writing it is
+    reported by the snapshot writer.
+*/
+class SaveThread
+    extends Thread
+    {
+    private World world;
+    
+    SaveThread(World world)
+        {
+        super("MUA save");
+        this.world = world;
+        setDaemon(true);
+        }
+    
+    public void run()
+        {
         try {
-            WorldFactory.saveWorld(world);
+            WorldFactory.startSave(world);
             }
         catch (java.io.IOException e)
             {
-            // Rethrow IO errors as runtime exceptions -- the caller will display to the user
-            throw new RuntimeException(e.getMessage());
+            //### Should be World.warning
+            System.out.println("ModSave: Can't save world: " + e.getMessage());
             }
-        
-        // Report back to the user
-        actor.output("Database saved.");
-        
-        return true;
         }
     }
 
@@ -125,3 +151,60 @@ public class ModTime
         return true;
         }
     }
+
+/** Show or set the limit on players' commands on the event queue
+    <p>
+    !QUEUE [capacity [DROP|REJECT|BLOCK]]
+    <p>
+    A capacity of 0 means there is no limit. The default policy is DROP.
+*/
+public class ModQueue
+    extends JavaAction
+    {
+    private static final long serialVersionUID = 1;
+    
+    /** Names of the policies, in the order of the World.QUEUE_ constants
+    */
+    private static final String POLICIES[] = { "DROP", "REJECT", "BLOCK" };
+    
+    public boolean execute()
+        {
+        // Set the limit if there are args
+        if (event.getArgCount() > 0)
+            {
+            int capacity;
+            try {
+                capacity = Integer.parseInt(event.getArg(0).toString());
+                }
+            catch (NumberFormatException e)
+                {
+                throw new AtomException("!QUEUE [capacity [DROP|REJECT|BLOCK]]");
+                }
+            
+            // Keep the current policy unless another is given
+            int policy = world.getEventQueuePolicy();
+            if (event.getArgCount() > 1)
+                {
+                String name = event.getArg(1).toString();
+                for (policy = 0; policy < POLICIES.length; policy++)
+                    {
+                    if (POLICIES[policy].equalsIgnoreCase(name))
+                        break;
+                    }
+                if (policy == POLICIES.length || capacity < 0)
+                    throw new AtomException("!QUEUE [capacity [DROP|REJECT|BLOCK]]");
+                }
+            world.setEventQueueLimit(capacity, policy);
+            }
+            
+        // Report back to the user
+        int capacity = world.getEventQueueCapacity();
+        if (capacity == 0)
+            actor.output("Event queue: no limit on commands.");
+        else
+            actor.output("Event queue: at most " + capacity + " commands, " + POLICIES[world.getEventQueuePolicy()] + " when full.");
+        actor.output(world.getEventQueueMetrics().toString());
+        
+        return true;
+        }
+    }
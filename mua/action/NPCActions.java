@@ -585,6 +585,10 @@ public class StartWalker
 		// reset walk_disabled
 		current.setProperty ( WALK_DISABLED, "FALSE" );
 		
+		// cancel any walk already pending, so that starting a
+		// walker twice doesn't make it walk twice as often
+		world.cancelTimers( current, DO_WALK );
+		
 		// create a timer event for the current atom with 
 		// the delay specified in the walk_interval property
 		// (note that the current atom is copied to the actor
@@ -601,7 +605,8 @@ public class StartWalker
 
 /**
  *  Action called in order to stop Walker NPCs. Sets the
- *  <b>walk_disabled</b> property.
+ *  <b>walk_disabled</b> property and cancels the pending
+ *  walk timer event.
  */
 public class StopWalker
 	extends NPCBase
@@ -610,6 +615,9 @@ public class StopWalker
 	{
 		// set the walk_disabled property
 		current.setProperty ( WALK_DISABLED, "TRUE" );
+		
+		// cancel the next walk
+		world.cancelTimers( current, DO_WALK );
 		return true;
 	}
 }
@@ -5,6 +5,8 @@
 
 package com.ogalala.mua.action;
 
+import java.util.Enumeration;
+
 import com.ogalala.mua.*;
 
 /** Add a noun
@@ -161,6 +163,22 @@ public class Status extends JavaAction
 		actor.output( world.getVocabulary().getAdjectivesSize() + " adjectives loaded in the Vocabulary.");
 		actor.output( world.getVocabulary().getRawVerbsSize() + " raw verbs loaded in the Vocabulary.");
 		
+		PropertyCache cache = world.getAtomDatabase().getPropertyCache();
+		actor.output( "Property cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses, " + cache.getInvalidations() + " invalidations.");
+		actor.output( "Format cache: " + OutputTemplate.getCacheCount() + " templates, " + OutputTemplate.getHits() + " hits, " + OutputTemplate.getMisses() + " misses.");
+		
+		EventQueueMetrics queue = world.getEventQueueMetrics();
+		actor.output( "Event queue: " + queue.getDepth() + " events (" + queue.getCommandDepth() + " commands), " + queue.getMaxDepth() + " at most.");
+		actor.output( "Event queue: " + queue.getQueued() + " queued, " + queue.getDropped() + " dropped, " + queue.getRejected() + " rejected, " + queue.getBlocked() + " blocked.");
+		actor.output( "Event queue: " + queue.getAverageEnqueueTime() + "ms to queue (" + queue.getMaxEnqueueTime() + "ms max), " + queue.getAverageWaitTime() + "ms waiting (" + queue.getMaxWaitTime() + "ms max).");
+		
+		Enumeration zones = world.getZoneNames();
+		while( zones.hasMoreElements() )
+		{
+			String zone = (String)zones.nextElement();
+			actor.output( "Zone " + zone + ": " + world.getEventQueueMetrics(zone) );
+		}
+		
 		return true;
 	}
 }
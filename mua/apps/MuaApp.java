@@ -16,7 +16,9 @@ public class MuaApp
     private World world;
     private String paths = null;
     private boolean adminLogEnabled = false;
+    private boolean zonesEnabled = false;
     private boolean eventLogEnabled = false;
+    private boolean journalEnabled = false;
 
     /** Create a new application. Implementations should avoid overwriting
         existing apps with the same ID.
@@ -29,8 +31,11 @@ public class MuaApp
             world = WorldFactory.createWorld(appID, paths);
             world.setAdminLog( adminLogEnabled );
             world.setEventLog( eventLogEnabled );
+            world.setZonesEnabled( zonesEnabled );
             world.runStartupScripts();
             WorldFactory.importState(world, appID);
+            if (journalEnabled)
+                WorldFactory.openJournal(world);
             world.start();
             }
         catch (AtomException e)
@@ -53,10 +58,13 @@ public class MuaApp
         throws ApplicationOpenException
         {
         try {
-            String paths = null;
-            if (args.hasMoreElements())
-                paths = args.nextElement().toString();
-            world = WorldFactory.loadWorld(appID, paths);
+            parseArgs(args);
+            
+            // Replay the changes since the world was saved, if it crashed
+            world = WorldFactory.recoverWorld(appID, paths);
+            world.setZonesEnabled( zonesEnabled );
+            if (journalEnabled)
+                WorldFactory.openJournal(world);
             world.start();
             }
         catch (Exception e)
@@ -75,6 +83,7 @@ public class MuaApp
             //### Some potential here to preserve the existing state file!!
             WorldFactory.saveWorld(world);
             WorldFactory.exportState(world, world.getFileName());
+            WorldFactory.closeJournal(world);
             world = null;
             }
         catch (Exception e)
@@ -129,6 +138,8 @@ public class MuaApp
         <ul>
         <li><tt>-adminLog</tt> Log admin watch messages to console
         <li><tt>-eventLog</tt> Log events to event log file
+        <li><tt>-zones</tt> Run an event processor for each zone
+        <li><tt>-journal</tt> Record changes in a journal, to recover from crashes
         </ul>
         The first argument that doesn't begin with a hyphen is taken to be
         the paths list. Any other non-switch arguments are ignored.
@@ -149,6 +160,10 @@ public class MuaApp
     				adminLogEnabled = true;
     			else if ( arg.equalsIgnoreCase("-eventLog") )
     				eventLogEnabled = true;
+    			else if ( arg.equalsIgnoreCase("-zones") )
+    				zonesEnabled = true;
+    			else if ( arg.equalsIgnoreCase("-journal") )
+    				journalEnabled = true;
     		    }
     		else if ( paths == null )
     			paths = arg;
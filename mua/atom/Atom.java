@@ -6,6 +6,7 @@
 package com.ogalala.mua;
 
 import java.util.*;
+import java.io.*;
 import com.ogalala.util.*;
 
 /** The Atom is the basic unit in the type hierarchy.
@@ -22,18 +23,22 @@ import com.ogalala.util.*;
         <code>getProperty</code> function looks for a field first in the
         current object, then in the parents of that object. Additional 
         utility functions are provided to enable different field types
-        to be set and retrieved.
-
-    <li><b>Marking</b>: Each atom has a "marked" flag. This is used to
-        mark atoms as visited in traversals.
+        to be set and retrieved. Field names are case insensitive; they are
+        held as PropertyNames, and each function taking a name as a string
+        has a version taking a PropertyName, for callers which look the
+        name up in advance.
 
     </ul>
     <p>
+    Traversals of the hierarchy record the atoms they have visited in their
+    own AtomMarks set, so they are safe to run on more than one thread. 
+    Changes to the hierarchy are serialized on the AtomDatabase.
+    <p>
     (Thanks to Richard Bartle for many of the algorithms used here.)
 
 */
 public class Atom
-    implements java.io.Serializable
+    implements java.io.Serializable, Cloneable
     {
     private static final long serialVersionUID = 1;
     
@@ -47,7 +52,7 @@ public class Atom
 
     /** Table of fields
     */
-    private Dictionary fields;
+    private FieldMap fields;
 
     /** Parents of this atom
     */
@@ -81,14 +86,28 @@ public class Atom
     */
     protected short frozen = 0;
 
-    /** The marked flag for this atom.
+    /** This atom's slot in the inheritance index, or -1 if it has none.
+        Maintained by InheritanceIndex.
     */
-    private transient int marked;
+    transient int typeIndex = -1;
 
-    /** This is the value of 'marked' in a marked atom
+    /** Bit set of the index slots of this atom's ancestors (static atoms
+        only). Maintained by InheritanceIndex.
     */
-    private static int markedValue = 0;
-    
+    transient int ancestorBits[];
+
+    /** This atom's ancestors in search order, and the database's inheritance
+        version when they were calculated.
+        @see getAncestorArray
+    */
+    private transient Atom ancestors[];
+    private transient int ancestorsVersion;
+
+    /** The first of the timed events pending for this atom (i.e. with this
+        atom as their current atom). Maintained by TimingWheel.
+    */
+    transient TimerHandle timers;
+
     /** Has this atom been deleted?
     */
     private boolean deleted = false;
@@ -103,7 +122,7 @@ public class Atom
         {
         this.world = world;
         this.id = id;
-        fields = new Hashtable();
+        fields = new FieldMap();
         depth = 0;
         height = 0;
         
@@ -145,6 +164,7 @@ public class Atom
     protected void unlink()
         {
         removeParentsAndChildren();
+        beforeChange();
         deleted = true;
         }
         
@@ -174,6 +194,46 @@ public class Atom
         return new AtomAncestorEnumeration(this);
         }
 
+    /** Get this atom's ancestors, in the same order as 'getAncestors'. This is
+        the order in which they are searched for properties.
+        <p>
+        The array is calculated once and kept until the inheritance hierarchy
+        changes (which includes the AtomSorter reordering any parent list). It 
+        is shared, so it must not be modified.
+    */
+    final Atom[] getAncestorArray()
+        {
+        int version = world.getAtomDatabase().getInheritanceVersion();
+        Atom result[] = ancestors;
+        if (result == null || ancestorsVersion != version)
+            {
+            Vector v = new Vector();
+            Enumeration e = new AtomAncestorEnumeration(this);
+            while (e.hasMoreElements())
+                v.addElement(e.nextElement());
+            result = new Atom[v.size()];
+            v.copyInto(result);
+            ancestors = result;
+            ancestorsVersion = version;
+            }
+        return result;
+        }
+
+    /** If this is a Thing with one parent, return the parent, else null.
+        <p>
+        The parent is deeper in the hierarchy than any of its own ancestors, so
+        such a Thing's ancestors are its parent followed by the parent's 
+        ancestors. This lets the many single-parent Things share their parents'
+        ancestor arrays instead of keeping their own.
+    */
+    private final Atom getSoleParent()
+        {
+        if (this instanceof Thing && parents instanceof Atom)
+            return (Atom)parents;
+        else
+            return null;
+        }
+
     /** Has this atom got any children?
     */
     public final boolean hasChildren()
@@ -237,15 +297,26 @@ public class Atom
         else if (newParent instanceof Thing)
             throw new AtomException("Atom cannot inherit from " + newParent.getClassName());
         
-        // Add the parent to the parents list
-        this.addParent(newParent);
-
-        // Add the current atom to the parent's child list
-        newParent.addChild(this);
-
-        // Rebalance the DAG, if necessary
-        //###
-        new AtomSorter(world.getRoot());
+        // Changes to the hierarchy are made one at a time
+        AtomDatabase database = world.getAtomDatabase();
+        synchronized (database)
+            {
+            // Add the parent to the parents list, and the current atom to the
+            //  parent's child list if it wasn't already a parent. The lists
+            //  match, so the child list needn't be searched.
+            if (this.addParent(newParent))
+                newParent.addChild(this);
+
+            // Rebalance the DAG, if necessary
+            //###
+            database.hierarchyChanged(this);
+
+            // Update the inheritance index
+            database.inheritanceChanged(this);
+            }
+        if (database.journal != null)
+            database.journal.parentsChanged(this);
+        database.atomChanged(this);
         }
 
     /** Remove the inheritance relationship between this atom and 'parent'.
@@ -253,6 +324,10 @@ public class Atom
     public final void uninherit(Atom parent)
         {
         uninherit(parent, true);
+        AtomDatabase database = world.getAtomDatabase();
+        if (database.journal != null)
+            database.journal.parentsChanged(this);
+        database.atomChanged(this);
         }
 
     /** Remove the inheritance relationship between this atom and 'parent'.
@@ -274,27 +349,35 @@ public class Atom
         if (this.isRoot())
             return;
 
-        // Remove the current atom from the parent's child list
-        parent.removeChild(this);
+        // Changes to the hierarchy are made one at a time
+        AtomDatabase database = world.getAtomDatabase();
+        synchronized (database)
+            {
+            // Remove the current atom from the parent's child list
+            parent.removeChild(this);
 
-        // Remove the parent from the parents list
-        this.removeParent(parent);
+            // Remove the parent from the parents list
+            this.removeParent(parent);
 
-        // If this atom is now an orphan, and orphans are not allowed, it must inherit from the root
-        Atom root = world.getRoot();
-        if (parents == null && preventOrphans)
-            {
-            // There should not be an error when inheriting from root, so ignore exceptions
-            try {
-                this.inherit(root);
+            // If this atom is now an orphan, and orphans are not allowed, it must inherit from the root
+            Atom root = world.getRoot();
+            if (parents == null && preventOrphans)
+                {
+                // There should not be an error when inheriting from root, so ignore exceptions
+                try {
+                    this.inherit(root);
+                    }
+                catch (AtomException e)
+                    { }
                 }
-            catch (AtomException e)
-                { }
-            }
 
-        // Reorder the DAG, if necessary
-        //###
-        new AtomSorter(root);
+            // Reorder the DAG, if necessary
+            //###
+            database.hierarchyChanged(this);
+
+            // Update the inheritance index
+            database.inheritanceChanged(this);
+            }
         }
     
     /** Remove this atom from the inheritanvce hierarchy (used when deleting)
@@ -341,17 +424,19 @@ public class Atom
         </ul>
         This is based on the assumption that if an atom has one child, it is
         likely to have more.
+        <p>
+        The child must not be in the list already. Searching for it would
+        take time in proportion to the number of children, which is large
+        for the common parents in a big world.
     */
     private final void addChild(Atom newChild)
         {
+        beforeChange();
+        
         // If there are no children, create a vector to keep them in
         if (children == null)
             children = new AtomVector();
 
-        // Else, if the new child is already in the list, do nothing
-        else if (children.contains(newChild))
-            return;
-
         // Add the child to the vector
         children.addElement(newChild);
         }
@@ -360,6 +445,8 @@ public class Atom
     */
     private final void removeChild(Atom oldChild)
         {
+        beforeChange();
+        
         // If there are no children, return
         if (children == null)
             return;
@@ -390,16 +477,19 @@ public class Atom
         </ul>
         The above is based on the assumption that there will be many atoms with only
         one parent, so it is worth optimising this case.
+        @return false if 'newParent' was already a parent
     */
-    private final void addParent(Atom newParent)
+    private final boolean addParent(Atom newParent)
         {
+        beforeChange();
+        
         // If 'parents' is null, simply add the atom as the only parent
         if (parents == null)
             parents = newParent;
 
         // Else, if the new parent is already present, do nothing
         else if (parents == newParent)
-            return;
+            return false;
 
         // Else, determine whether the vector needs to be created.
         else {
@@ -413,9 +503,11 @@ public class Atom
 
             // Add the new element to the vector, if it is not already present.
             AtomVector v = (AtomVector)parents;
-            if (!v.contains(newParent))
-                v.put(newParent);
+            if (v.contains(newParent))
+                return false;
+            v.put(newParent);
             }
+        return true;
         }
 
     /** Remove a parent from this atom
@@ -426,6 +518,8 @@ public class Atom
     */
     private final void removeParent(Atom oldParent)
         {
+        beforeChange();
+        
         // If there are no parents, do nothing.
         if (parents == null)
             return;
@@ -463,6 +557,9 @@ public class Atom
         }
 
     /** Is the current atom a descendant of 'atom'?
+        <p>
+        This uses the database's inheritance index rather than traversing
+        the hierarchy, so it is cheap enough to call in inner loops.
     */
     public final boolean isDescendantOf(Atom atom)
         {
@@ -470,14 +567,13 @@ public class Atom
         if (this == atom)
             return true;
             
-        // Else go through the descendants, looking for a match
-        Enumeration enum = atom.getDescendants();
-        while (enum.hasMoreElements())
-            {
-            if (this == enum.nextElement())
-                return true;
-            }
-        return false;
+        // Things never have children
+        else if (atom == null || atom instanceof Thing)
+            return false;
+            
+        // Else ask the index
+        else
+            return world.getAtomDatabase().isDescendant(this, atom);
         }
 
     /** Is this atom frozen?
@@ -512,6 +608,14 @@ public class Atom
         return result;
         }
         
+    /** Get a property, given its PropertyName.
+        @see getProperty(String)
+    */
+    public final Object getProperty(PropertyName name)
+        {
+        return AtomData.cookProperty(this, name.getName(), getRawProperty(name));
+        }
+        
     /** Get an unprocessed property.
         <p>
         Action values will be returned without calling them.
@@ -522,6 +626,19 @@ public class Atom
         If the property doesn't exist, null is returned.
     */
     public final Object getRawProperty(String name)
+        {
+        // If no atom has ever used this name, it can only be a system field
+        PropertyName key = PropertyName.find(name);
+        if (key == null)
+            return getSystemField(name.toLowerCase());
+        else
+            return getRawProperty(key);
+        }
+        
+    /** Get an unprocessed property, given its PropertyName.
+        @see getRawProperty(String)
+    */
+    public final Object getRawProperty(PropertyName name)
         {
         // Look for the property in this atom
         Object result = getField(name);
@@ -540,27 +657,25 @@ public class Atom
     */
     public final Object getPrecursorProperty(String name)
         {
-        // Ensure case insensitivity
-        //### I would prefer to be case-preserving -- impossible with Hashtable
-        //### Also note there is excessive calling of this function because of the multiple 
-        //###   entry points.
-        name = name.toLowerCase();
-
+        // If no atom has ever used this name, there can't be a precursor
+        PropertyName key = PropertyName.find(name);
+        if (key == null)
+            return null;
+        else
+            return getPrecursorProperty(key);
+        }
+    
+    /** Get the "precursor" property, given its PropertyName.
+        @see getPrecursorProperty(String)
+    */
+    public final Object getPrecursorProperty(PropertyName name)
+        {
         // If this is the root atom, there is no precursor, so stop here
         if (isRoot())
             return null;
 
-        // Get the ancestors and look for the property there
-        Enumeration ancestors = getAncestors();
-        while (ancestors.hasMoreElements())
-            {
-            Atom atom = (Atom)ancestors.nextElement();
-            Object result = atom.getDynamicField(name);
-            if (result != null)
-                return result;
-            }
-
-        return null;
+        // Look for the property in the ancestors
+        return findPrecursor(name).value;
         }
     
     /** Get the atom which defines the precursor to a property. That is, if the 
@@ -570,36 +685,82 @@ public class Atom
     */
     public final Atom getPrecursorAtom(String name)
         {
-        // Ensure case insensitivity
-        //### I would prefer to be case-preserving -- impossible with Hashtable
-        name = name.toLowerCase();
-
-        // If this is the root atom, there is no precursor, so stop here
-        if (isRoot())
+        // If this is the root atom, or no atom has ever used this name, 
+        //  there is no precursor, so stop here
+        PropertyName key = PropertyName.find(name);
+        if (isRoot() || key == null)
             return null;
             
         // If the property is defined in this atom, the precursor will be the
-        //  first atom which defines the property. If it is not defined here,
-        //  we need to skip the first definition of the property in the ancestors.
-        boolean skipFirst = (getDynamicField(name) == null);
-
-        // Get the ancestors and look for the property there
-        Enumeration ancestors = getAncestors();
-        while (ancestors.hasMoreElements())
+        //  first atom which defines the property. 
+        Atom first = findPrecursor(key).definer;
+        if (first == null || fields.get(key) != null)
+            return first;
+            
+        // If it is not defined here, we need to skip the first definition of 
+        //  the property in the ancestors. (Things with one parent search the 
+        //  parent first, then its ancestors.)
+        Atom parent = getSoleParent();
+        Atom ancestors[] = (parent != null) ? parent.getAncestorArray() : getAncestorArray();
+        int i = 0;
+        if (first != parent)
             {
-            Atom result = (Atom)ancestors.nextElement();
-            Object value = result.getDynamicField(name);
-            if (value != null)
-                {
-                if (skipFirst)
-                    skipFirst = false;
-                else   
-                    return result;
-                }
+            while (i < ancestors.length && ancestors[i] != first)
+                i++;
+            i++;
+            }
+            
+        // Look for the next definition
+        for (; i < ancestors.length; i++)
+            {
+            if (ancestors[i].fields.get(key) != null)
+                return ancestors[i];
             }
             
         return null;
         }
+
+    /** Find the first definition of a property in this atom's ancestors,
+        using the world's property cache.
+    */
+    private final PropertyCache.Entry findPrecursor(PropertyName name)
+        {
+        // Things with one parent search the parent first, then its ancestors.
+        //  They are cached under the parent, so that they share its entries.
+        Atom parent = getSoleParent();
+        Atom atom = (parent != null) ? parent : this;
+        boolean includeAtom = (parent != null);
+
+        // Look in the cache
+        PropertyCache cache = world.getAtomDatabase().getPropertyCache();
+        PropertyCache.Entry result = cache.get(atom, name, includeAtom);
+        if (result != null)
+            return result;
+
+        // Not found, so search the ancestors. We get the version first, so 
+        //  that a change while we are searching invalidates the result.
+        int version = cache.getVersion();
+        Atom definer = null;
+        Object value = null;
+        if (includeAtom && (value = atom.fields.get(name)) != null)
+            definer = atom;
+        else {
+            Atom ancestors[] = atom.getAncestorArray();
+            for (int i = 0; i < ancestors.length; i++)
+                {
+                if ((value = ancestors[i].fields.get(name)) != null)
+                    {
+                    definer = ancestors[i];
+                    break;
+                    }
+                }
+            }
+
+        // Add the result to the cache
+        result = new PropertyCache.Entry(atom, name, includeAtom, version, definer, value);
+        cache.put(result);
+        return result;
+        }
     
     /** Get a String property
     */
@@ -744,12 +905,9 @@ public class Atom
         getFields(table);
         
         // Get ancestors' fields
-        Enumeration ancestors = getAncestors();
-        while (ancestors.hasMoreElements())
-            {
-            Atom atom = (Atom)ancestors.nextElement();
-            atom.getFields(table);
-            }
+        Atom ancestors[] = getAncestorArray();
+        for (int i = 0; i < ancestors.length; i++)
+            ancestors[i].getFields(table);
         }
     
 // Fields
@@ -766,16 +924,25 @@ public class Atom
     */
     public final Object getField(String name)
         {
-        // Ensure case insensitivity
-        //### I would prefer to be case-preserving -- impossible with Hashtable
-        name = name.toLowerCase();
-        
+        // If no atom has ever used this name, it can only be a system field
+        PropertyName key = PropertyName.find(name);
+        if (key == null)
+            return getSystemField(name.toLowerCase());
+        else
+            return getField(key);
+        }
+
+    /** Get a field, given its PropertyName.
+        @see getField(String)
+    */
+    public final Object getField(PropertyName name)
+        {
         // Look in the fields
-        Object result = getDynamicField(name);
+        Object result = fields.get(name);
         
         // Not a defined field -- try the system fields
         if (result == null)
-            result = getSystemField(name);
+            result = getSystemField(name.getName());
             
         return result;
         }
@@ -789,13 +956,6 @@ public class Atom
         return AtomData.parse(fieldAsString, world);
         }
         
-    /** Get a dynamic field (one that is defined in the Dictionary).
-    */
-    private final Object getDynamicField(String name)
-        {
-        return fields.get(name);
-        }
-
     /** Get a system field. These are fields such as ID which are defined
         in the Java object.
         <p>
@@ -850,14 +1010,14 @@ public class Atom
             
         Debug.assert(AtomData.isValidType(value), "(Atom/720)");
         
-        // Ensure case insensitivity
-        //### I would prefer to be case-preserving -- impossible with Hashtable
-        name = name.toLowerCase();
-
         // Check name for validity
         if (!isValidID(name))
             throw new AtomException("Invalid field name: " + name);
         
+        // Get the case insensitive name
+        PropertyName key = PropertyName.get(name);
+        name = key.getName();
+
         // Try to set a system field
         if (setSystemField(name, value))
             return;
@@ -866,8 +1026,11 @@ public class Atom
         if (getSystemField(name) != null)
             throw new AtomException("Can't change read-only field: " + name);
             
-        // Set the field
-        fields.put(name, value);
+        // Set the field. The atom may be in another zone.
+        world.enterZone(this);
+        beforeChange();
+        fields.put(key, value);
+        world.getAtomDatabase().fieldChanged(this, key);
         }
 
     /** Set a system field. These are fields which are defined in the Java object.
@@ -891,7 +1054,14 @@ public class Atom
     */
     public final void clearField(String name)
         {
-        fields.remove(name);
+        PropertyName key = PropertyName.find(name);
+        if (key == null || fields.get(key) == null)
+            return;
+        world.enterZone(this);
+        beforeChange();
+        if (fields.remove(key) == null)
+            return;
+        world.getAtomDatabase().fieldChanged(this, key);
         }
 
     /** Add this atom's fields to a dictionary, avoiding overwriting existing values
@@ -923,30 +1093,130 @@ public class Atom
         return fields.elements();
         }
 
-// Marking
-    
-    /** Unmark all atoms
+// Snapshots
+
+    /** Create an empty atom, to be filled in by 'readSnapshot'
     */
-    public final static void clearAllMarks()
+    Atom(String id)
         {
-        // By incrementing 'markedValue', we ensure that no atom will be marked
-        markedValue++;
+        this.id = id;
         }
 
-    /** Is this atom marked?
+    /** Write the atom to a world snapshot (see WorldSnapshot). The atom's 
+        ID and class are in the snapshot's atom table.
     */
-    public final boolean isMarked()
+    void writeSnapshot(WorldSnapshot.Output out)
+        throws IOException
         {
-        return marked == markedValue;
+        out.writeShort(depth);
+        out.writeShort(height);
+        out.writeShort(frozen);
+        out.writeBoolean(deleted);
+
+        // Parents: none, one, or a vector
+        Object p = parents;
+        if (p == null)
+            out.writeByte(0);
+        else if (p instanceof Atom)
+            {
+            out.writeByte(1);
+            out.writeAtom((Atom)p);
+            }
+        else {
+            out.writeByte(2);
+            out.writeAtoms((AtomVector)p);
+            }
+        out.writeAtoms(children);
+        fields.writeSnapshot(out);
         }
 
-    /** Mark or unmark an atom
+    /** Read the atom from a world snapshot. An atom in a base image which
+        has changed since is read again, so this replaces all of its state.
     */
-    public final void setMark(boolean flag)
+    void readSnapshot(WorldSnapshot.Input in)
+        throws IOException, ClassNotFoundException
         {
-        // If 'flag' is true, set 'marked' to 'markedValue'. If 'flag'
-        //  is false, set 'marked' to any lower value.
-        marked = flag ? markedValue : markedValue - 1;
+        world = in.getWorld();
+        depth = in.readShort();
+        height = in.readShort();
+        frozen = in.readShort();
+        deleted = in.readBoolean();
+
+        int parentCount = in.readByte();
+        if (parentCount == 1)
+            parents = in.readAtom();
+        else if (parentCount == 2)
+            parents = in.readAtoms(new AtomVector());
+        else
+            parents = null;
+        children = (AtomVector)in.readAtoms(new AtomVector());
+        fields = new FieldMap();
+        fields.readSnapshot(in);
+        }
+
+    /** Read a serialized atom. Worlds serialized before the fields were
+        held in a FieldMap have them in a Dictionary, which is copied into
+        one (see 'WorldFactory.loadWorld').
+    */
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException
+        {
+        ObjectInputStream.GetField stream = in.readFields();
+        id = (String)stream.get("id", null);
+        world = (World)stream.get("world", null);
+        parents = stream.get("parents", null);
+        children = (AtomVector)stream.get("children", null);
+        depth = stream.get("depth", (short)0);
+        height = stream.get("height", (short)0);
+        frozen = stream.get("frozen", (short)0);
+        deleted = stream.get("deleted", false);
+
+        Object f = stream.get("fields", null);
+        if (f instanceof FieldMap)
+            fields = (FieldMap)f;
+        else {
+            fields = new FieldMap();
+            Dictionary old = (Dictionary)f;
+            for (Enumeration keys = old.keys(); keys.hasMoreElements(); )
+                {
+                Object key = keys.nextElement();
+                fields.put(key, old.get(key));
+                }
+            }
+        typeIndex = -1;
+        }
+
+    /** Called before anything the atom writes to a snapshot is changed, so
+        that a snapshot being written while the world goes on can keep the
+        atom as it was (see 'SnapshotWriter')
+    */
+    final void beforeChange()
+        {
+        world.getAtomDatabase().atomChanging(this);
+        }
+
+    /** Copy the atom as it would be written to a snapshot. The copy shares
+        the atom's field values and the atoms it refers to, but not its
+        lists of them, so it doesn't change when the atom does.
+        <p>
+        Subclasses with lists of their own must copy them too.
+    */
+    Atom copyState()
+        {
+        Atom copy;
+        try {
+            copy = (Atom)clone();
+            }
+        catch (CloneNotSupportedException e)
+            {
+            throw new InternalError(e.toString());
+            }
+        copy.fields = fields.copy();
+        if (parents instanceof AtomVector)
+            copy.parents = ((AtomVector)parents).clone();
+        if (children != null)
+            copy.children = (AtomVector)children.clone();
+        return copy;
         }
 
 // Utilities
@@ -970,10 +1240,11 @@ public class Atom
         {
         if (s == null)
             return false;
-        char [] chars = s.toCharArray();
-        for (int i = 0; i < chars.length; i++)
+        int length = s.length();
+        for (int i = 0; i < length; i++)
             {
-            if (!(Character.isLetterOrDigit(chars[i]) || chars[i] == '_'))
+            char c = s.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '_'))
                 return false;
             }
         return true;
@@ -981,12 +1252,17 @@ public class Atom
 
     // Utility functions for organising inheritance hierarchy
 
-    /** Sort this atom's parents
+    /** Sort this atom's parents. An atom whose parents are in order is
+        left alone, so that it isn't copied for a snapshot (see 
+        'beforeChange').
     */
     final void sortParents()
         {
-        if (parents instanceof AtomVector)
+        if (parents instanceof AtomVector && !((AtomVector)parents).isSorted())
+            {
+            beforeChange();
             ((AtomVector)parents).sort();
+            }
         }
 
     /** Get the depth of an atom in the inheritance DAG
@@ -1000,7 +1276,11 @@ public class Atom
     */
     final void setInheritanceDepth(int depth)
         {
-        this.depth = (short)depth;
+        if (this.depth != depth)
+            {
+            beforeChange();
+            this.depth = (short)depth;
+            }
         }
 
     /** Get the height of an atom in the inheritance DAG
@@ -1014,7 +1294,11 @@ public class Atom
     */
     final void setInheritanceHeight(int height)
         {
-        this.height = (short)height;
+        if (this.height != height)
+            {
+            beforeChange();
+            this.height = (short)height;
+            }
         }
 
     /** Compare two atoms by depth and height
@@ -1087,10 +1371,7 @@ public class Atom
         StringBuffer result = new StringBuffer(getID());
         
         // Static class
-        result.append(" (" + getClassName() + ")");
-        
-        // Marked
-        result.append(isMarked() ? " ' " : "   ");
+        result.append(" (" + getClassName() + ") ");
 
         // Depth and height
         result.append("[" + Integer.toHexString(depth) + "." + Integer.toHexString(height) + "]");
@@ -17,13 +17,15 @@ final class AtomAncestorEnumeration
     */
     AtomQueue queue;
 
+    /** The atoms which have been visited
+    */
+    AtomMarks marks = new AtomMarks();
+
     Atom nextAtom;
 
     public AtomAncestorEnumeration(Atom start)
         {
         // Initialise and put the first atom onto the queue
-        Atom.clearAllMarks();
-
         // Create the queue
         //### Initial queue size, we double the height of the root atom and hope for the best...
         int queueSize = start.getWorld().getRoot().getInheritanceHeight() * 2;
@@ -33,7 +35,7 @@ final class AtomAncestorEnumeration
 
         // Get the first atom and mark it
         nextAtom = start;
-        nextAtom.setMark(true);
+        marks.setMark(nextAtom, true);
 
         // The first element in the enum is 'start', so skip over it
         nextElement();
@@ -57,7 +59,7 @@ final class AtomAncestorEnumeration
         while (e.hasMoreElements())
             {
             Atom atom = (Atom)e.nextElement();
-            if (!atom.isMarked())
+            if (!marks.isMarked(atom))
                 queue.put(atom);
             }
 
@@ -71,13 +73,13 @@ final class AtomAncestorEnumeration
             Atom atom = (Atom)queue.get();
 
             // If it's not marked, make it the next one
-            if (!atom.isMarked())
+            if (!marks.isMarked(atom))
                 nextAtom = atom;
             }
 
         // If there's a next atom, mark it
         if (nextAtom != null)
-            nextAtom.setMark(true);
+            marks.setMark(nextAtom, true);
 
         return result;
         }
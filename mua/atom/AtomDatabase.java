@@ -54,6 +54,63 @@ public class AtomDatabase
     */
     private NullPropertyValue nullPropertyValue;
     
+    /** The inheritance index, used for descendant tests. This is rebuilt
+        when the database is loaded.
+    */
+    private transient InheritanceIndex inheritanceIndex;
+    
+    /** Incremented whenever the inheritance hierarchy changes. Atoms use this
+        to tell when their cached ancestor arrays are out of date.
+    */
+    private transient int inheritanceVersion = 0;
+    
+    /** Incremented whenever a static atom's 'is_closed' field or the
+        inheritance hierarchy changes. Containers use this to tell when 
+        their cached audiences are out of date (see 'Container.getAudience').
+        It is only changed with the database locked, so that no increment is
+        lost between threads, and it is volatile so that it can be read
+        without locking.
+    */
+    private transient volatile int listenVersion = 0;
+    
+    /** Cache of inherited property lookups. This is rebuilt when the database 
+        is loaded.
+    */
+    private transient PropertyCache propertyCache;
+    
+    /** The number of batches of changes in progress (see 'beginBatch'), and
+        whether the AtomSorter has been put off until they end
+    */
+    private transient int batchDepth = 0;
+    private transient boolean sortPending = false;
+    
+    /** The journal recording changes to the atoms, or null (see 'WorldJournal')
+    */
+    transient WorldJournal journal = null;
+    
+    /** The atoms changed since the state file was last written, by ID, or 
+        null if changes aren't being tracked (see 'StateFile'). It is only 
+        replaced with the database locked, but it is volatile so that 
+        'atomChanged' can see it is null without locking.
+    */
+    private transient volatile Hashtable changedAtoms = null;
+    
+    /** The snapshot being written while the world goes on, or null. Atoms
+        are kept as they were when it was captured before they change (see
+        'SnapshotWriter').
+    */
+    transient volatile SnapshotWriter capture = null;
+    
+    /** The number of the base image of frozen atoms which snapshots refer
+        to, the atoms in it, in its order, and the frozen atoms which have
+        changed since it was written, or 0 and null if there is no image
+        (see 'WorldSnapshot'). While a new image is being written, only the
+        changes are noted. Set synched on the database.
+    */
+    transient long baseNumber = 0;
+    transient Atom baseAtoms[] = null;
+    transient volatile Hashtable baseChanged = null;
+    
     /** Constants for creating essential atoms
     */
     public final static int ATOM = 0;
@@ -69,6 +126,10 @@ public class AtomDatabase
     */
     protected static final String EXPORT_DELIMITER = "@@";
     
+    /** Marks a deleted atom in the changes written to a state file
+    */
+    protected static final String EXPORT_DELETED = "-";
+    
     /** Create a new database object
     */
     protected AtomDatabase(World world)
@@ -77,6 +138,8 @@ public class AtomDatabase
         sequenceNumber = 0;
         atoms = new Hashtable();
         nullPropertyValue = new NullPropertyValue();
+        inheritanceIndex = new InheritanceIndex(this);
+        propertyCache = new PropertyCache(PropertyCache.DEFAULT_SIZE);
         }
 
     /** Default constructor, for serialization
@@ -130,6 +193,14 @@ public class AtomDatabase
         return (Thing)_newAtom(id, parent, atomType);
         }
         
+    /** Create a new Atom with the static type specified by 'atomType', as
+        recorded in a journal
+    */
+    final Atom newAtom(String id, Atom parent, int atomType)
+        {
+        return _newAtom(id, parent, atomType);
+        }
+        
     /** Create a new Thing of the of the appropriate static type for the list of parents.
         <p>
         If ID is null, a unique ID will be generated.
@@ -228,6 +299,9 @@ public class AtomDatabase
             
         // Add the atom to the database
         addAtom(result);
+        if (journal != null)
+            journal.newAtom(result, atomType, parent);
+        atomChanged(result);
 
         return result;
         }
@@ -296,22 +370,30 @@ public class AtomDatabase
         return result;
         }
         
-    /** Add an atom to the database
+    /** Add an atom to the database. An atom added while a snapshot is
+        being written is not in it.
     */
     private void addAtom(Atom atom)
         {
-        atoms.put(atom.getID(), atom);
+        synchronized (atoms)
+            {
+            atoms.put(atom.getID(), atom);
+            SnapshotWriter writer = capture;
+            if (writer != null)
+                writer.atomAdded(atom);
+            }
         }
 
     /** Get an existing Atom
     */
     public Atom getAtom(String id)
         {
-        // Ensure case insensitivity
-        //### I would prefer to be case-preserving -- impossible with Hashtable
-        id = id.toLowerCase();
-        
-        return (Atom)atoms.get(id);
+        // IDs are stored in lowercase, and are usually asked for in lowercase,
+        //  so only make a lowercase copy if the ID isn't found as it is
+        Atom result = (Atom)atoms.get(id);
+        if (result == null)
+            result = (Atom)atoms.get(id.toLowerCase());
+        return result;
         }
 
     /** Delete an atom from the database
@@ -327,7 +409,16 @@ public class AtomDatabase
             throw new AtomException("Can't delete limbo container");
             
         atom.unlink();
-        atoms.remove(atom.getID());
+        synchronized (atoms)
+            {
+            atoms.remove(atom.getID());
+            SnapshotWriter writer = capture;
+            if (writer != null)
+                writer.atomRemoved(atom);
+            }
+        if (journal != null)
+            journal.deleteAtom(atom);
+        atomChanged(atom);
         }
 
     /** Enumerate the atoms
@@ -344,6 +435,151 @@ public class AtomDatabase
         return rootAtom;
         }
 
+    /** Is 'atom' a descendant of 'ancestor'? (Used by 'Atom.isDescendantOf'.)
+    */
+    final boolean isDescendant(Atom atom, Atom ancestor)
+        {
+        return getInheritanceIndex().isDescendant(atom, ancestor);
+        }
+
+    /** Called by Atom when an atom's parents have changed
+    */
+    final void inheritanceChanged(Atom atom)
+        {
+        // The AtomSorter may have reordered any parent list, so all the
+        //  ancestor arrays are now out of date
+        inheritanceVersion++;
+        listenersChanged();
+        getInheritanceIndex().parentsChanged(atom);
+        getPropertyCache().invalidate();
+        }
+
+    /** Called by Atom when an atom's parents have changed, to reorder the
+        inheritance hierarchy. Must be called synched on the database.
+        <p>
+        Sorting visits every atom, so during a batch it is put off for atoms
+        with no children, which are the new atoms being loaded. Adding a
+        parent to such an atom can't change the order of any other atom's
+        parents, only its own, so the descendant tests stay correct; but the
+        order in which properties are inherited is not settled until the
+        batch ends or 'sortAtoms' is called.
+    */
+    final void hierarchyChanged(Atom atom)
+        {
+        if (batchDepth > 0 && !atom.hasChildren())
+            sortPending = true;
+        else {
+            new AtomSorter(getRoot());
+            sortPending = false;
+            }
+        }
+
+    /** Start a batch of changes to the inheritance hierarchy. The AtomSorter
+        is not run for new atoms until the last batch ends (see 'endBatch').
+        Batches may be nested.
+    */
+    public final synchronized void beginBatch()
+        {
+        batchDepth++;
+        }
+
+    /** End a batch of changes, and sort the hierarchy if this was the last one
+    */
+    public final synchronized void endBatch()
+        {
+        if (batchDepth > 0)
+            batchDepth--;
+        if (batchDepth == 0)
+            sortAtoms();
+        }
+
+    /** Run the AtomSorter if it has been put off during a batch. This should 
+        be called before anything looks up inherited properties in the middle 
+        of a batch.
+    */
+    public final synchronized void sortAtoms()
+        {
+        if (!sortPending)
+            return;
+        new AtomSorter(getRoot());
+        sortPending = false;
+
+        // Parent lists may have been reordered
+        inheritanceVersion++;
+        listenVersion++;
+        getPropertyCache().invalidate();
+        }
+
+    /** Called by Atom when one of an atom's fields has been set or cleared
+    */
+    final void fieldChanged(Atom atom, PropertyName name)
+        {
+        if (journal != null)
+            journal.fieldChanged(atom, name);
+        atomChanged(atom);
+
+        // Only static atoms' fields can be inherited, so only they affect the cache
+        if (!(atom instanceof Thing))
+            {
+            getPropertyCache().invalidate();
+            if (name == Container.IS_CLOSED)
+                listenersChanged();
+            }
+            
+        else {
+            // A container opening or closing changes who hears output around it
+            if (name == Container.IS_CLOSED && atom instanceof Container)
+                ((Container)atom).audienceChanged();
+            
+            // The thing may now have a property its container has indexed
+            Atom container = atom.getContainer();
+            if (container instanceof Container)
+                ((Container)container).contentsFieldChanged((Thing)atom, name);
+            }
+        }
+
+    /** Get the cache of inherited property lookups
+    */
+    public final PropertyCache getPropertyCache()
+        {
+        if (propertyCache == null)
+            propertyCache = new PropertyCache(PropertyCache.DEFAULT_SIZE);
+        return propertyCache;
+        }
+
+    /** Increment the listen version
+    */
+    private synchronized void listenersChanged()
+        {
+        listenVersion++;
+        }
+
+    /** Get the listen version (see 'Container.getAudience')
+    */
+    final int getListenVersion()
+        {
+        return listenVersion;
+        }
+
+    /** Get the inheritance version (see 'Atom.getAncestorArray')
+    */
+    final int getInheritanceVersion()
+        {
+        return inheritanceVersion;
+        }
+
+    /** Get the inheritance index, building it if the database has just been loaded
+    */
+    private InheritanceIndex getInheritanceIndex()
+        {
+        if (inheritanceIndex == null)
+            {
+            inheritanceIndex = new InheritanceIndex(this);
+            inheritanceIndex.rebuild();
+            }
+        return inheritanceIndex;
+        }
+
     /** Create the "inner core" atoms: root, thing, container, mobile, limbo
     */
     private void createCoreAtoms()
@@ -420,8 +656,23 @@ public class AtomDatabase
         while (atoms.hasMoreElements())
             {
             Atom atom = (Atom)atoms.nextElement();
+            atom.beforeChange();
             atom.frozen = -1;
             }
+            
+        // Rebuild the inheritance index, reclaiming the slots of deleted atoms
+        getInheritanceIndex().rebuild();
+        
+        // No atoms are in the state now, so it must be written again in full
+        stopTrackingChanges();
+        
+        // Likewise the base image, which holds only the atoms frozen before
+        synchronized (this)
+            {
+            baseNumber = 0;
+            baseAtoms = null;
+            baseChanged = null;
+            }
         }
     
     /** Export the dynamic state of the database -- all non-frozen atoms
@@ -438,24 +689,109 @@ public class AtomDatabase
         out.println(EXPORT_DELIMITER);
         }
 
-    /** Import a collection of atoms
+    /** Export the atoms in 'changes' (see 'takeChangedAtoms') which are 
+        not frozen. Deleted atoms are written as EXPORT_DELETED and their ID.
+        @return the atoms written, not counting deleted ones
     */
-    protected final void importState(BufferedReader in)
-        throws IOException
+    protected final Vector exportChanges(PrintWriter out, Hashtable changes)
         {
-        // Create the importer and add the templates
-        AtomImporter importer = new AtomImporter(world);
-        while (true)
+        Vector result = new Vector();
+        Enumeration atoms = changes.elements();
+        while (atoms.hasMoreElements())
             {
-            String s = in.readLine();
-            if (s == null || s.equals(EXPORT_DELIMITER))
-                break;
-            importer.addTemplate(s);
+            Atom atom = (Atom)atoms.nextElement();
+            if (atom.isDeleted())
+                out.println(EXPORT_DELETED + EXPORT_DELIMITER + atom.getID());
+            else if (!atom.isFrozen())
+                {
+                out.println(atom.toExportFormat());
+                result.addElement(atom);
+                }
             }
+        out.println(EXPORT_DELIMITER);
+        return result;
+        }
+
+    /** Import a collection of atoms, given as the lines written by 
+        'exportState'. The import is one batch of changes, so the hierarchy
+        is sorted once at the end rather than for each atom.
+    */
+    protected final void importState(Enumeration lines)
+        {
+        // Create the importer, and add and parse the templates
+        AtomImporter importer = new AtomImporter(world);
+        while (lines.hasMoreElements())
+            importer.addTemplate((String)lines.nextElement());
+        importer.parseTemplates();
         
         // Create the atoms and resolve the fields
-        importer.makeAtoms();
-        importer.resolveAtoms();
+        beginBatch();
+        try {
+            importer.makeAtoms();
+            importer.resolveAtoms();
+            }
+        finally
+            {
+            endBatch();
+            }
+        }
+
+    /** Start tracking the atoms which change, forgetting any changed so far.
+        The changes are taken with 'takeChangedAtoms'.
+    */
+    final synchronized void trackChanges()
+        {
+        changedAtoms = new Hashtable();
+        }
+    
+    /** Stop tracking changes
+    */
+    final synchronized void stopTrackingChanges()
+        {
+        changedAtoms = null;
+        }
+    
+    /** Take the atoms changed since tracking started or this was last 
+        called, by ID. Tracking goes on.
+        @return the changed atoms, or null if changes aren't being tracked
+    */
+    final synchronized Hashtable takeChangedAtoms()
+        {
+        Hashtable result = changedAtoms;
+        if (result != null)
+            changedAtoms = new Hashtable();
+        return result;
+        }
+    
+    /** An atom has been created, deleted or changed in a way that appears
+        in its export format, or its timed events have changed
+    */
+    final void atomChanged(Atom atom)
+        {
+        world.eventChanged();
+        if (changedAtoms == null)
+            return;
+
+        // Lock, so that the atom isn't added to a table that has just been taken
+        synchronized (this)
+            {
+            if (changedAtoms != null)
+                changedAtoms.put(atom.getID(), atom);
+            }
+        }
+
+    /** An atom is about to change in a way that appears in a world
+        snapshot (see 'Atom.beforeChange')
+    */
+    final void atomChanging(Atom atom)
+        {
+        world.eventChanged();
+        SnapshotWriter writer = capture;
+        if (writer != null)
+            writer.preserve(atom);
+        Hashtable changed = baseChanged;
+        if (changed != null && atom.isFrozen())
+            changed.put(atom, atom);
         }
     }
 
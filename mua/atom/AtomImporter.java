@@ -9,9 +9,21 @@ import java.util.*;
 import com.ogalala.util.*;
 
 /** Utility class for importing dynamic state
+    <p>
+    An import is done in three steps: the templates are parsed, the atoms
+    are made, then their fields, containment and exits are set. Parsing a
+    template only looks at its own line, so a big import is parsed by a few
+    threads at once (see 'parseTemplates'). The other steps look up and
+    change atoms in the world, so they are done by the calling thread.
 */
 final class AtomImporter
     {
+    /** The most threads which parse the templates, and the number of
+        templates for which it is worth starting another one
+    */
+    private static final int PARSER_THREADS = 4;
+    private static final int TEMPLATES_PER_THREAD = 2000;
+
     /** Back-pointer to world
     */
     private World world;
@@ -26,48 +38,203 @@ final class AtomImporter
         atomTemplates = new Vector();
         }
     
-    /** Add a template to the list
+    /** Add a template to the list. It is parsed by 'parseTemplates'.
     */
     public void addTemplate(String s)
         {
         atomTemplates.addElement(new AtomTemplate(s));
         }
-        
-    /** Create the atoms, without setting their properties
+
+    /** Parse the templates. If there are enough of them, they are shared
+        between a few threads, and this one parses the last share.
+        @exception RuntimeException if a template can't be parsed
     */
-    public void makeAtoms()
+    public void parseTemplates()
         {
-        Enumeration enum = atomTemplates.elements();
-        while (enum.hasMoreElements())
+        AtomTemplate templates[] = new AtomTemplate[atomTemplates.size()];
+        atomTemplates.copyInto(templates);
+        int threadCount = Math.min(PARSER_THREADS, templates.length / TEMPLATES_PER_THREAD);
+        if (threadCount <= 1)
+            {
+            parseTemplates(templates, 0, templates.length);
+            return;
+            }
+
+        int share = (templates.length + threadCount - 1) / threadCount;
+        TemplateParser parsers[] = new TemplateParser[threadCount - 1];
+        for (int i = 0; i < parsers.length; i++)
+            {
+            parsers[i] = new TemplateParser(templates, i * share, (i + 1) * share);
+            parsers[i].start();
+            }
+        try {
+            parseTemplates(templates, parsers.length * share, templates.length);
+            }
+        finally
+            {
+            for (int i = 0; i < parsers.length; i++)
+                parsers[i].waitFor();
+            }
+        for (int i = 0; i < parsers.length; i++)
+            {
+            if (parsers[i].failure != null)
+                throw parsers[i].failure;
+            }
+        }
+
+    /** Parse the templates from 'start' up to 'end'
+    */
+    private static void parseTemplates(AtomTemplate templates[], int start, int end)
+        {
+        for (int i = start; i < end; i++)
+            templates[i].parse();
+        }
+
+    /** A thread which parses a share of the templates
+    */
+    private static class TemplateParser
+        extends Thread
+        {
+        private AtomTemplate templates[];
+        private int start;
+        private int end;
+
+        /** The exception thrown by a template which couldn't be parsed, or
+            null
+        */
+        RuntimeException failure = null;
+
+        TemplateParser(AtomTemplate templates[], int start, int end)
+            {
+            super("MUA atom importer");
+            setDaemon(true);
+            this.templates = templates;
+            this.start = start;
+            this.end = end;
+            }
+
+        public void run()
             {
-            AtomTemplate template = null;
             try {
-                template = (AtomTemplate)enum.nextElement();
-                template.makeAtom();
+                parseTemplates(templates, start, end);
                 }
             catch (RuntimeException e)
                 {
-                //### Should be World.warning
-                System.out.println("AtomImporter: Can't make atom: " + template.id);
-                Debug.printStackTrace(e);
+                failure = e;
+                }
+            }
+
+        /** Wait until the thread has finished
+        */
+        void waitFor()
+            {
+            while (isAlive())
+                {
+                try {
+                    join();
+                    }
+                catch (InterruptedException e)
+                    {
+                    }
                 }
             }
         }
         
-    /** Set the fields of the atoms.
+    /** Create the atoms, without setting their properties.
+        <p>
+        The templates may not be in order of inheritance (the segments of a
+        state file are merged, see 'StateFile'), so atoms whose parents
+        haven't been made yet are put off until they have. If none of the 
+        rest can be made, they are tried anyway, so the errors are reported.
+    */
+    public void makeAtoms()
+        {
+        Vector templates = atomTemplates;
+        while (!templates.isEmpty())
+            {
+            Vector later = new Vector();
+            Enumeration enum = templates.elements();
+            while (enum.hasMoreElements())
+                {
+                AtomTemplate template = (AtomTemplate)enum.nextElement();
+                if (template.hasParents())
+                    makeAtom(template);
+                else
+                    later.addElement(template);
+                }
+            if (later.size() == templates.size())
+                {
+                enum = later.elements();
+                while (enum.hasMoreElements())
+                    makeAtom((AtomTemplate)enum.nextElement());
+                break;
+                }
+            templates = later;
+            }
+        }
+        
+    private void makeAtom(AtomTemplate template)
+        {
+        try {
+            template.makeAtom();
+            }
+        catch (RuntimeException e)
+            {
+            //### Should be World.warning
+            System.out.println("AtomImporter: Can't make atom: " + template.id);
+            Debug.printStackTrace(e);
+            }
+        }
+        
+    /** Set the fields of the atoms, then put them in their containers and
+        set their exits.
         <p>
         This is done separately so that any atoms referred to in properties will
-        be created before they are referenced
+        be created before they are referenced. The fields are set first, as
+        they tell whether a thing is an exit in a frozen container.
     */
     public void resolveAtoms()
         {
         Enumeration enum = atomTemplates.elements();
         while (enum.hasMoreElements())
             {
-            AtomTemplate template = null;
+            AtomTemplate template = (AtomTemplate)enum.nextElement();
+            try {
+                template.resolveFields();
+                }
+            catch (RuntimeException e)
+                {
+                template.resolved = false;
+                //### Should be World.warning
+                System.out.println("AtomImporter: Can't resolve atom: " + template.id);
+                Debug.printStackTrace(e);
+                }
+            }
+
+        // The new things were made in limbo. Those going elsewhere are taken
+        //  out together, as taking them out one by one would move the rest
+        //  of limbo's contents each time.
+        Container limbo = (Container)world.getLimbo();
+        Hashtable leaving = new Hashtable();
+        enum = atomTemplates.elements();
+        while (enum.hasMoreElements())
+            {
+            AtomTemplate template = (AtomTemplate)enum.nextElement();
+            if (template.isLeaving(limbo))
+                leaving.put(template.atom, template.atom);
+            }
+        if (!leaving.isEmpty())
+            limbo.removeThings(leaving);
+
+        enum = atomTemplates.elements();
+        while (enum.hasMoreElements())
+            {
+            AtomTemplate template = (AtomTemplate)enum.nextElement();
+            if (!template.resolved)
+                continue;
             try {
-                template = (AtomTemplate)enum.nextElement();
-                template.resolveAtom();
+                template.resolveContainment();
+                template.resolveExits();
                 }
             catch (RuntimeException e)
                 {
@@ -75,6 +242,14 @@ final class AtomImporter
                 System.out.println("AtomImporter: Can't resolve atom: " + template.id);
                 Debug.printStackTrace(e);
                 }
+            finally
+                {
+                // A thing taken out of limbo which couldn't be put in its
+                //  container goes back
+                if (template.atom != null && leaving.containsKey(template.atom) &&
+                        template.atom.getContainer() == null)
+                    limbo.putIn(template.atom);
+                }
             }
         }
         
@@ -112,16 +287,34 @@ final class AtomImporter
         */
         private Atom atom;
         
-        /** Create a template from a string. The string is in the format:
+        /** The line the template is parsed from, until it has been parsed
+        */
+        private String line;
+        
+        /** Were the atom's fields resolved?
+        */
+        boolean resolved = true;
+        
+        /** Create a template from a string, which is parsed by 'parse'
+        */
+        AtomTemplate(String s)
+            {
+            line = s;
+            }
+            
+        /** Parse the template. The string is in the format:
             <p>
             ClassName ID parents fields [ container ]
             <p>
             The above fields are separated by AtomDatabase.EXPORT_DELIMITER.
+            Nothing in the world is looked at, so templates can be parsed
+            by different threads.
         */
-        AtomTemplate(String s)
+        void parse()
             {
             // Class name, ID
-            StringTokenizer tzr = new StringTokenizer(s, AtomDatabase.EXPORT_DELIMITER);
+            StringTokenizer tzr = new StringTokenizer(line, AtomDatabase.EXPORT_DELIMITER);
+            line = null;
             className = tzr.nextToken();
             id = tzr.nextToken();
             
@@ -174,12 +367,27 @@ final class AtomImporter
             // Create the Atom/Thing to return. Note that we create with the 
             //  database because we don't want ON_CREATE to be sent to the atom;
             //  it has been created already, we are reconstituting it here.
-            if (atomType == database.ATOM)
-                atom = database.newAtom(id, parents);
-            else 
-                atom = database.newThing(id, parents);
+            //  The static type is the one recorded, rather than worked out
+            //  again from the parents, which would give a Thing with no
+            //  Container or Mobile parent an extra parent of its own.
+            atom = database.newAtom(id, (Atom)parents.elementAt(0), atomType);
+            for (int i = 1; i < parents.size(); i++)
+                atom.inherit((Atom)parents.elementAt(i));
             }
         
+        /** Do all the atom's parents exist?
+        */
+        boolean hasParents()
+            {
+            Enumeration enum = parentIDs.elements();
+            while (enum.hasMoreElements())
+                {
+                if (world.getAtom(enum.nextElement().toString()) == null)
+                    return false;
+                }
+            return true;
+            }
+            
         /** Convert the parent IDs into atoms
         */
         private Vector getParents()
@@ -194,19 +402,12 @@ final class AtomImporter
             return result;
             }
             
-        /** Resolve the atom's containment, fields and exits.
+        /** Resolve the atom's fields.
             <p>
             This is done separately from atom creation to ensure atoms 
             exist before they are referenced as properties.
         */
-        void resolveAtom()
-            {
-            resolveFields();
-            resolveContainment();
-            resolveExits();
-            }
-        
-        private void resolveFields()
+        void resolveFields()
             {
             Enumeration keys = fields.keys();
             Enumeration values = fields.elements();
@@ -240,7 +441,7 @@ final class AtomImporter
             {
             Dictionary result = new Hashtable();
             Enumeration keys = d.keys();
-            Enumeration values = exits.elements();
+            Enumeration values = d.elements();
             while (keys.hasMoreElements())
                 {
                 String key = keys.nextElement().toString();
@@ -266,7 +467,27 @@ final class AtomImporter
             return result;
             }
 
-        private void resolveContainment()
+        /** Is the atom a thing in limbo, going to another container?
+        */
+        boolean isLeaving(Atom limbo)
+            {
+            if (!resolved || containerID == null || atom == null || atom.getContainer() != limbo)
+                return false;
+            Atom container = world.getAtom(containerID);
+            return container != null && container != limbo && !isFrozenExit(container);
+            }
+        
+        /** Is the atom an exit, going in a frozen container? If it is, it
+            is added to the container's exits, and stays where it is.
+        */
+        private boolean isFrozenExit(Atom container)
+            {
+            return container.isFrozen() && atom.isDescendantOf(world.getAtom("exit"));
+            }
+        
+        /** Put the atom in its container
+        */
+        void resolveContainment()
             {
             if (containerID != null)
                 {
@@ -274,7 +495,7 @@ final class AtomImporter
 
                 // If the container is frozen and the atom is an exit, we need special handling.
                 //  (this is why we do containment after fields!)
-                if (container.isFrozen() && atom.isDescendantOf(world.getAtom("exit")))
+                if (isFrozenExit(container))
                     {
                     String directionLabel = atom.getString("direction");
                     Atom destination = atom.getAtom("destination");
@@ -285,7 +506,9 @@ final class AtomImporter
                 }
             }
 
-        private void resolveExits()
+        /** Set the atom's exits
+        */
+        void resolveExits()
             {
             if (exits != null)
                 {
@@ -0,0 +1,62 @@
+// $Id$
+// Set of atoms visited during a traversal
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.util.*;
+import com.ogalala.util.*;
+
+/** A set of marked atoms, used to record which atoms have been visited in
+    a traversal of the inheritance hierarchy.
+    <p>
+    Each traversal creates its own set, so traversals are reentrant and
+    can run on several threads at once (e.g. the event processor and the
+    connection threads which call the parser). An AtomMarks object must
+    not itself be shared between threads.
+*/
+public final class AtomMarks
+    {
+    /** The marked atoms. Atoms use identity for equality, so they can be
+        used as keys directly.
+    */
+    private Hashtable marked;
+
+    /** Constructor
+    */
+    public AtomMarks()
+        {
+        marked = new Hashtable();
+        }
+
+    /** Constructor, with the expected number of atoms to be marked
+    */
+    public AtomMarks(int size)
+        {
+        marked = new Hashtable(size);
+        }
+
+    /** Is 'atom' marked?
+    */
+    public boolean isMarked(Atom atom)
+        {
+        return marked.get(atom) != null;
+        }
+
+    /** Mark or unmark an atom
+    */
+    public void setMark(Atom atom, boolean flag)
+        {
+        if (flag)
+            marked.put(atom, atom);
+        else
+            marked.remove(atom);
+        }
+
+    /** Unmark all atoms
+    */
+    public void clear()
+        {
+        marked.clear();
+        }
+    }
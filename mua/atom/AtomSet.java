@@ -0,0 +1,330 @@
+// $Id$
+// An ordered set of atoms
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.util.*;
+
+/** An ordered set of atoms, hashed by identity.
+    <p>
+    This is the set used by the binder. Atoms are kept in the order they
+    were added, and each atom is in the set once. Testing for an atom takes
+    constant time, so intersecting or subtracting two sets is linear in
+    their sizes, rather than testing every atom in one against every atom in
+    the other.
+    <p>
+    The 'retain' and 'remove' operations change the set in place rather
+    than making a new one. The hash table is only built when a set is
+    searched and has more than a few atoms, and is thrown away when atoms
+    are removed.
+    <p>
+    Synchronization: none.
+*/
+public final class AtomSet
+    {
+    /** Sets no bigger than this are searched without the hash table
+    */
+    private static final int LINEAR_SIZE = 8;
+
+    /** The atoms, in order
+    */
+    private Atom atoms[];
+    private int size = 0;
+
+    /** The hash table: the index of each atom plus one, or 0 for an empty
+        slot. The size is a power of two, at least twice the number of atoms.
+        Null if it hasn't been built since atoms were last removed.
+    */
+    private int table[];
+
+    /** A test applied to each atom by 'retain'
+    */
+    public static abstract class Filter
+        {
+        public abstract boolean accept(Atom atom);
+        }
+
+    /** Create an empty set
+    */
+    public AtomSet()
+        {
+        this(16);
+        }
+
+    /** Create an empty set with room for 'capacity' atoms
+    */
+    public AtomSet(int capacity)
+        {
+        atoms = new Atom[Math.max(capacity, 4)];
+        }
+
+    /** Create a set of the atoms in an enumeration
+    */
+    public AtomSet(Enumeration atoms)
+        {
+        this();
+        addAll(atoms);
+        }
+
+    /** Add an atom to the end of the set, if it is not already in it
+        @return true if the atom was added
+    */
+    public boolean add(Atom atom)
+        {
+        if (indexOf(atom) >= 0)
+            return false;
+        if (size == atoms.length)
+            {
+            Atom newAtoms[] = new Atom[size * 2];
+            System.arraycopy(atoms, 0, newAtoms, 0, size);
+            atoms = newAtoms;
+            }
+        atoms[size++] = atom;
+
+        // Add it to the table, unless the table is now too full
+        if (table != null)
+            {
+            if (size * 2 > table.length)
+                table = null;
+            else
+                insert(size - 1);
+            }
+        return true;
+        }
+
+    /** Add the atoms in an enumeration
+    */
+    public void addAll(Enumeration e)
+        {
+        while (e.hasMoreElements())
+            add((Atom)e.nextElement());
+        }
+
+    /** Add the atoms in another set
+    */
+    public void addAll(AtomSet set)
+        {
+        for (int i = 0; i < set.size; i++)
+            add(set.atoms[i]);
+        }
+
+    /** Is 'atom' in the set?
+    */
+    public boolean contains(Atom atom)
+        {
+        return indexOf(atom) >= 0;
+        }
+
+    /** Get the number of atoms
+    */
+    public int size()
+        {
+        return size;
+        }
+
+    /** Is the set empty?
+    */
+    public boolean isEmpty()
+        {
+        return size == 0;
+        }
+
+    /** Get the i'th atom
+    */
+    public Atom elementAt(int i)
+        {
+        if (i >= size)
+            throw new ArrayIndexOutOfBoundsException(i + " >= " + size);
+        return atoms[i];
+        }
+
+    /** Enumerate the atoms, in order. The set must not be changed while the
+        enumeration is in use.
+    */
+    public Enumeration elements()
+        {
+        return new Enumeration()
+            {
+            private int i = 0;
+
+            public boolean hasMoreElements()
+                {
+                return i < size;
+                }
+
+            public Object nextElement()
+                {
+                if (i >= size)
+                    throw new NoSuchElementException("AtomSet");
+                return atoms[i++];
+                }
+            };
+        }
+
+    /** Make a copy of the set
+    */
+    public AtomSet copy()
+        {
+        AtomSet result = new AtomSet(size);
+        System.arraycopy(atoms, 0, result.atoms, 0, size);
+        result.size = size;
+        return result;
+        }
+
+    /** Keep only the atoms which are also in 'set'
+    */
+    public void retainAll(AtomSet set)
+        {
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            {
+            if (set.contains(atoms[i]))
+                atoms[n++] = atoms[i];
+            }
+        truncate(n);
+        }
+
+    /** Remove the atoms which are in 'set'
+    */
+    public void removeAll(AtomSet set)
+        {
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            {
+            if (!set.contains(atoms[i]))
+                atoms[n++] = atoms[i];
+            }
+        truncate(n);
+        }
+
+    /** Keep only the atoms accepted by 'filter'
+    */
+    public void retain(Filter filter)
+        {
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            {
+            if (filter.accept(atoms[i]))
+                atoms[n++] = atoms[i];
+            }
+        truncate(n);
+        }
+
+    /** Keep only the atoms descended from 'ancestor'
+    */
+    public void retainDescendantsOf(Atom ancestor)
+        {
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            {
+            if (atoms[i].isDescendantOf(ancestor))
+                atoms[n++] = atoms[i];
+            }
+        truncate(n);
+        }
+
+    /** Keep only the atoms whose property 'name' has a value of at least 'threshold'
+    */
+    public void retainAtLeast(PropertyName name, int threshold)
+        {
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            {
+            Object value = atoms[i].getRawProperty(name);
+            if (value != null && AtomData.toInt(value) >= threshold)
+                atoms[n++] = atoms[i];
+            }
+        truncate(n);
+        }
+
+    /** Keep only the first 'count' atoms
+    */
+    public void truncate(int count)
+        {
+        if (count >= size)
+            return;
+        for (int i = count; i < size; i++)
+            atoms[i] = null;
+        size = count;
+        table = null;
+        }
+
+    /** Remove all the atoms
+    */
+    public void clear()
+        {
+        truncate(0);
+        }
+
+    public String toString()
+        {
+        StringBuffer buf = new StringBuffer("[");
+        for (int i = 0; i < size; i++)
+            {
+            if (i > 0)
+                buf.append(", ");
+            buf.append(atoms[i].getID());
+            }
+        buf.append("]");
+        return buf.toString();
+        }
+
+// Hash table
+
+    /** Find an atom
+        @return the atom's index, or -1 if it isn't in the set
+    */
+    private int indexOf(Atom atom)
+        {
+        // Small sets are quicker to search than to hash
+        if (size <= LINEAR_SIZE)
+            {
+            for (int i = 0; i < size; i++)
+                {
+                if (atoms[i] == atom)
+                    return i;
+                }
+            return -1;
+            }
+
+        if (table == null)
+            buildTable();
+        int mask = table.length - 1;
+        for (int i = hash(atom) & mask; table[i] != 0; i = (i + 1) & mask)
+            {
+            if (atoms[table[i] - 1] == atom)
+                return table[i] - 1;
+            }
+        return -1;
+        }
+
+    /** Build the hash table for the current atoms
+    */
+    private void buildTable()
+        {
+        int n = 16;
+        while (n < size * 4)
+            n <<= 1;
+        table = new int[n];
+        for (int i = 0; i < size; i++)
+            insert(i);
+        }
+
+    /** Put the atom at index 'i' into the hash table
+    */
+    private void insert(int i)
+        {
+        int mask = table.length - 1;
+        int slot = hash(atoms[i]) & mask;
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        table[slot] = i + 1;
+        }
+
+    private static int hash(Atom atom)
+        {
+        int h = System.identityHashCode(atom);
+        return h ^ (h >>> 16);
+        }
+    }
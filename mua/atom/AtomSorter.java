@@ -29,6 +29,10 @@ final class AtomSorter
     */
     private Vector leaves = new Vector();
 
+    /** The atoms visited in the current pass
+    */
+    private AtomMarks marks = new AtomMarks();
+
     /** The actual maximum depth of the graph
     */
     //### May not be needed
@@ -74,7 +78,7 @@ final class AtomSorter
     private void calculateDepths()
         {
         // We clear the marks, to avoid having to set all the depths to 0.
-        Atom.clearAllMarks();
+        marks.clear();
         setDepth(root, 1);
         }
 
@@ -88,11 +92,11 @@ final class AtomSorter
         //  must always set its depth. Otherwise we only change the depth if
         //  the depth parameter is greater than the atom's depth, i.e. we have
         //  reached here by a longer path than last time.
-        if (atom.isMarked() && atom.getInheritanceDepth() >= depth)
+        if (marks.isMarked(atom) && atom.getInheritanceDepth() >= depth)
             return;
 
         // Mark the current atom and set its depth
-        atom.setMark(true);
+        marks.setMark(atom, true);
         atom.setInheritanceDepth(depth);
 
         // If the next tier of children will be too deep, indicate an error
@@ -131,7 +135,7 @@ final class AtomSorter
     private void calculateHeights()
         {
         // Clear marks to avoid having to set all the heights to 0.
-        Atom.clearAllMarks();
+        marks.clear();
 
         // Calculate height from each leaf
         Enumeration e = leaves.elements();
@@ -144,11 +148,11 @@ final class AtomSorter
     private void setHeight(Atom atom, int height)
         {
         // If the current atom is marked and has a greater height than the current height, do nothing
-        if (atom.isMarked() && atom.getInheritanceHeight() > height)
+        if (marks.isMarked(atom) && atom.getInheritanceHeight() > height)
             return;
 
         // Mark and set the height
-        atom.setMark(true);
+        marks.setMark(atom, true);
         atom.setInheritanceHeight(height);
 
         // If this is the root atom, return
@@ -167,7 +171,7 @@ final class AtomSorter
     private void sortParentLists()
         {
         // Clear the marks
-        Atom.clearAllMarks();
+        marks.clear();
 
         // Sort from each leaf
         Enumeration e = leaves.elements();
@@ -178,11 +182,11 @@ final class AtomSorter
     private void sortParents(Atom atom)
         {
         // If this is the root atom, or it is marked, do nothing
-        if (atom == root || atom.isMarked())
+        if (atom == root || marks.isMarked(atom))
             return;
 
         // Mark the atom and sort its parents
-        atom.setMark(true);
+        marks.setMark(atom, true);
         atom.sortParents();
 
         // Recursively sort the atom's parents parents...
@@ -17,7 +17,7 @@ public class AtomUtil
     */
     public static String formatOutput(Event event, String msg)
         {
-        return new OutputFormatter(event).format(msg);
+        return OutputFormatter.format(event, OutputFormatter.getDefaultAtom(event), null, msg);
         }
     
     /**
@@ -25,7 +25,7 @@ public class AtomUtil
     */
 	public static String formatOutput(Event event, String msg, String value[])
         {
-        return new OutputFormatter(event, value).format(msg);
+        return OutputFormatter.format(event, OutputFormatter.getDefaultAtom(event), value, msg);
         }
     
     /** Format a string for output, with specified default atom
@@ -33,7 +33,7 @@ public class AtomUtil
     */
     public static String formatOutput(Event event, Atom defaultAtom, String msg)
         {
-        return new OutputFormatter(event, defaultAtom).format(msg);
+        return OutputFormatter.format(event, defaultAtom, null, msg);
         }
     
     /**
@@ -41,7 +41,7 @@ public class AtomUtil
     */
     public static String formatOutput(Event event, Atom defaultAtom, String msg, String value[])
     	{
-    	return new OutputFormatter(event, defaultAtom, value).format(msg);
+    	return OutputFormatter.format(event, defaultAtom, value, msg);
     	}
     
     /** Prevent instantiation
@@ -59,6 +59,15 @@ public class AtomUtil
      */
     public static boolean containsDescendant(Atom container, Atom type)
     	{
+    	//a container's index lists the contents descended from each atom
+    	if( container instanceof Container && isIndexed(type) )
+    		{
+    		synchronized( container )
+    			{
+    			return !((Container)container).getContentsIndex().getDescendants(type).isEmpty();
+    			}
+    		}
+    	
     	Enumeration containerContents = container.getContents();
     	
     	while( containerContents.hasMoreElements() )
@@ -81,6 +90,10 @@ public class AtomUtil
     */
     public static Atom findDescendant(Atom container, Atom type)
     	{
+    	//search the containers' indexes rather than every atom inside
+    	if( container instanceof Container && isIndexed(type) )
+    		return SeedSearch.findFirst( new ContentsEnumeration(container), (Container)container, type );
+    	
     	Enumeration containerContents = container.getDeepContents();
     		
     	while( containerContents.hasMoreElements() )
@@ -92,6 +105,15 @@ public class AtomUtil
     	return null;		
     	}
     
+    /**
+    * Can things descended from 'type' be looked up in a ContentsIndex? Things have no
+    * descendants but themselves, so they are not in the index.
+    */
+    private static boolean isIndexed(Atom type)
+    	{
+    	return type != null && !(type instanceof Thing);
+    	}
+    
     
     
     }
@@ -66,6 +66,18 @@ public final class AtomVector
     		}
         }
 
+    /** Are the atoms sorted by their depth and height fields?
+    */
+    public boolean isSorted()
+        {
+        for (int i = 1; i < elementCount; i++)
+            {
+            if (Atom.compare((Atom)elementData[i - 1], (Atom)elementData[i]) > 0)
+                return false;
+            }
+        return true;
+        }
+
     /**
      * Swaps array[a] with array[b].
      */
@@ -6,6 +6,7 @@
 package com.ogalala.mua;
 
 import java.util.*;
+import java.io.*;
 import com.ogalala.util.*;
 
 /** A Container is a Thing that can contain other Things.
@@ -24,9 +25,25 @@ public class Container
     */
     private ExitTable exitTable;
     
+    /** The things which hear output sent to the container, or null if it
+        has to be worked out again (see 'getAudience')
+    */
+    private transient volatile Audience audience;
+    
+    /** Incremented whenever the audience is thrown away
+    */
+    private transient int audienceVersion = 0;
+    
+    /** Index of the contents, or null if it hasn't been needed since the
+        container was loaded (see 'getContentsIndex'). The index is built,
+        and changed with the contents, while synched on the container.
+    */
+    private transient ContentsIndex contentsIndex;
+    
     /** Property names
     */
     public static final String DIRECTION = "direction";
+    static final PropertyName IS_CLOSED = PropertyName.get(ListenEnumeration.IS_CLOSED);
     
     /** Create a new Container
     */
@@ -38,23 +55,59 @@ public class Container
         contents = new Vector();
         }
 
-    /** Send an Output Packet to all accessible contained atoms
+    /** Create an empty Container, to be filled in from a world snapshot
     */
-    public void output(OutPkt out)
+    Container(String id)
         {
-        // Get the expanded string
-        String outMsg = expandOutPkt(out);
+        super(id);
+        }
 
-        // Send output to the container itself
-        this.doOutput(outMsg);
-        
-        // Send the message to the contained atoms
-        Enumeration enum = newOutputEnumeration();
-        while (enum.hasMoreElements())  
+    /** Write the Container to a world snapshot
+    */
+    void writeSnapshot(WorldSnapshot.Output out)
+        throws IOException
+        {
+        super.writeSnapshot(out);
+        out.writeAtoms(contents);
+        out.writeBoolean(exitTable != null);
+        if (exitTable != null)
+            exitTable.writeSnapshot(out);
+        }
+
+    /** Read the Container from a world snapshot
+    */
+    void readSnapshot(WorldSnapshot.Input in)
+        throws IOException, ClassNotFoundException
+        {
+        super.readSnapshot(in);
+        contents = in.readAtoms(new Vector());
+        if (contents == null)
+            contents = new Vector();
+        if (in.readBoolean())
             {
-            Thing thing = (Thing)enum.nextElement();
-            thing.doOutput(outMsg);
+            exitTable = new ExitTable();
+            exitTable.readSnapshot(in);
             }
+        else
+            exitTable = null;
+        }
+
+    /** Copy the Container as it would be written to a snapshot
+    */
+    Atom copyState()
+        {
+        Container copy = (Container)super.copyState();
+        copy.contents = (Vector)contents.clone();
+        if (exitTable != null)
+            copy.exitTable = exitTable.copy();
+        return copy;
+        }
+
+    /** Send an Output Packet to all accessible contained atoms
+    */
+    public void output(OutPkt out)
+        {
+        output(out, null, null);
         }
 
     /** Send an Output Packet to all accessible contained atoms except 'missOut'.
@@ -64,20 +117,7 @@ public class Container
     */
     public void output(OutPkt out, Atom missOut)
         {
-        // Get the expanded string
-        String outMsg = expandOutPkt(out);
-
-        // Send output to the container itself
-        this.doOutput(outMsg);
-        
-        // Send the message to the contained atoms
-        Enumeration enum = newOutputEnumeration();
-        while (enum.hasMoreElements())  
-            {
-            Thing thing = (Thing)enum.nextElement();
-            if (thing != missOut)
-                thing.doOutput(outMsg);
-            }
+        output(out, missOut, null);
         }
 
     /** Send an Output Packet to all accessible contained atoms except 
@@ -89,32 +129,154 @@ public class Container
     */
     public void output(OutPkt out, Atom missOut1, Atom missOut2)
         {
-        // Get the expanded string
+        // The audience is worked out from the contents, which may be in another zone
+        world.enterZone(this);
+        
+        // Get the expanded string. The same string is sent to every listener.
         String outMsg = expandOutPkt(out);
+        Event event = world.getCurrentEvent();
 
         // Send output to the container itself
-        this.doOutput(outMsg);
+        this.doOutput(outMsg, event);
         
         // Send the message to the contained atoms
-        Enumeration enum = newOutputEnumeration();
-        while (enum.hasMoreElements())  
+        Thing listeners[] = getAudience();
+        for (int i = 0; i < listeners.length; i++)
             {
-            Thing thing = (Thing)enum.nextElement();
-            Atom atom = (Atom)enum.nextElement();
+            Thing thing = listeners[i];
             if (thing != missOut1 && thing != missOut2)
-                thing.doOutput(outMsg);
+                thing.doOutput(outMsg, event);
             }
         }
         
-    /** 
-    *	Get an enumeration of all accessible atoms that will receive output
-    *   when it is sent to this container.
-    *	The atoms include all items that exist within a container, along with
-    *	any items that are in open containers.
+    /** Get the things which will receive output when it is sent to this
+        container. These are the things with watchers among the contents,
+        and among the contents of open containers inside it (the same atoms
+        as a ListenEnumeration, less those which can't output anything).
+        <p>
+        The list is cached, so a broadcast doesn't have to look at every
+        container's 'is_closed' property each time. The cache is thrown away
+        when something is moved in or out of this container or one inside
+        it, when one of them opens or closes, or when a thing inside gains
+        its first watcher or loses its last. If any container's 'is_closed'
+        is an action, the list isn't cached, as the action could give a 
+        different answer each time.
     */
-    private Enumeration newOutputEnumeration()
+    Thing[] getAudience()
         {
-        return new ListenEnumeration( this );
+        int listenVersion = world.getAtomDatabase().getListenVersion();
+        Audience cached = audience;
+        if (cached != null && cached.listenVersion == listenVersion)
+            return cached.listeners;
+            
+        // Work out the list
+        int version;
+        synchronized (this)
+            {
+            version = audienceVersion;
+            }
+        Vector v = new Vector();
+        boolean cacheable = addListeners(this, v);
+        Thing listeners[] = new Thing[v.size()];
+        v.copyInto(listeners);
+        
+        // Keep it, unless it has been invalidated while we were working it out
+        if (cacheable)
+            {
+            synchronized (this)
+                {
+                if (version == audienceVersion)
+                    audience = new Audience(listeners, listenVersion);
+                }
+            }
+        return listeners;
+        }
+        
+    /** Add the listeners in 'container' to 'v'. The container may be in
+        another zone, whose processor may be changing its contents, so they
+        are copied first.
+        @return false if the result can't be cached
+    */
+    private static boolean addListeners(Container container, Vector v)
+        {
+        boolean result = true;
+        Thing contents[];
+        synchronized (container)
+            {
+            contents = new Thing[container.contents.size()];
+            container.contents.copyInto(contents);
+            }
+        for (int i = 0; i < contents.length; i++)
+            {
+            Thing thing = contents[i];
+            if (thing.hasWatchers())
+                v.addElement(thing);
+                
+            // Look inside open containers
+            if (thing instanceof Container && !thing.isEmpty())
+                {
+                if (thing.getRawProperty(IS_CLOSED) instanceof Action)
+                    result = false;
+                if (!thing.getBool(ListenEnumeration.IS_CLOSED))
+                    result &= addListeners((Container)thing, v);
+                }
+            }
+        return result;
+        }
+        
+    /** Throw away the cached audience of this container and the containers
+        around it. Called when something has changed who hears the output.
+    */
+    void audienceChanged()
+        {
+        Atom atom = this;
+        while (atom instanceof Container)
+            {
+            Container container = (Container)atom;
+            synchronized (container)
+                {
+                container.audienceVersion++;
+                container.audience = null;
+                }
+                
+            // Limbo is its own container
+            Atom next = container.getContainer();
+            if (next == container)
+                break;
+            atom = next;
+            }
+        }
+        
+    /** Get the index of the contents, building it if it hasn't been built
+        or is out of date. The caller must be synched on the container while
+        it uses the index (see 'ContentsIndex').
+    */
+    synchronized ContentsIndex getContentsIndex()
+        {
+        int version = world.getAtomDatabase().getPropertyCache().getVersion();
+        if (contentsIndex == null || contentsIndex.getVersion() != version)
+            contentsIndex = new ContentsIndex(contents, version);
+        return contentsIndex;
+        }
+        
+    /** Get the index of the contents if it has been built and is up to date,
+        else throw it away and return null. Used to keep the index up to date
+        as the contents change.
+    */
+    private ContentsIndex getBuiltContentsIndex()
+        {
+        if (contentsIndex != null && 
+                contentsIndex.getVersion() != world.getAtomDatabase().getPropertyCache().getVersion())
+            contentsIndex = null;
+        return contentsIndex;
+        }
+        
+    /** Called when a field of one of the contents has been set or cleared
+    */
+    synchronized void contentsFieldChanged(Thing thing, PropertyName name)
+        {
+        if (contentsIndex != null)
+            contentsIndex.fieldChanged(name);
         }
         
     /** Get the thing's static class name
@@ -181,6 +343,10 @@ public class Container
     public void putIn(Atom atom)
         {
         add(atom);
+        AtomDatabase database = world.getAtomDatabase();
+        if (database.journal != null)
+            database.journal.moveAtom(atom, this);
+        database.atomChanged(atom);
         }
 
     /** Add a thing to the contents
@@ -230,7 +396,15 @@ public class Container
     */
     private void addThing(Thing thing)
         {
-        contents.addElement(thing);
+        beforeChange();
+        synchronized (this)
+            {
+            contents.addElement(thing);
+            ContentsIndex index = getBuiltContentsIndex();
+            if (index != null)
+                index.add(thing);
+            }
+        audienceChanged();
         }
         
     /** Low-level remove function
@@ -240,7 +414,43 @@ public class Container
     */
     void removeThing(Thing thing)
         {
-        contents.removeElement(thing);
+        beforeChange();
+        boolean removed;
+        synchronized (this)
+            {
+            removed = contents.removeElement(thing);
+            ContentsIndex index = getBuiltContentsIndex();
+            if (removed && index != null)
+                index.remove(thing);
+            }
+        if (removed)
+            audienceChanged();
+        }
+        
+    /** Take a number of things out of the contents at once, leaving them in
+        no container, to be put in their containers by the caller. Used by
+        the importer, which takes the things it has made out of limbo
+        together: taking them out one by one would move the rest of the
+        contents down each time.
+    */
+    void removeThings(Hashtable things)
+        {
+        beforeChange();
+        Vector kept = new Vector(Math.max(contents.size() - things.size(), 10));
+        for (int i = 0; i < contents.size(); i++)
+            {
+            Thing thing = (Thing)contents.elementAt(i);
+            if (things.containsKey(thing))
+                thing.setContainer(null);
+            else
+                kept.addElement(thing);
+            }
+        synchronized (this)
+            {
+            contents = kept;
+            contentsIndex = null;
+            }
+        audienceChanged();
         }
         
     /** How many items are stored in this container?
@@ -282,7 +492,12 @@ public class Container
         else
             throw new AtomException("Not a valid exit object");
         
+        // The exit is moved in here, perhaps from another zone
+        world.enterZone(this);
+        world.enterZone(exit);
+        
         // If this container doesn't have an ET, create one
+        beforeChange();
         if (exitTable == null)
             exitTable = new ExitTable();
 
@@ -294,6 +509,10 @@ public class Container
         // Add the exit to the container and the exit table
         putIn(exit);
         exitTable.addExit(direction, exit);
+        AtomDatabase database = world.getAtomDatabase();
+        if (database.journal != null)
+            database.journal.addExit(this, direction, exit);
+        database.atomChanged(this);
         }
         
     /** Remove an exit
@@ -303,11 +522,17 @@ public class Container
         if (exitTable != null)
             {
             // Remove the exit from the exit table
+            world.enterZone(this);
+            beforeChange();
             exitTable.removeExit(exit);
             
             // If the exit table is now empty, remove it
             if (exitTable.isEmpty())
                 exitTable = null;
+            AtomDatabase database = world.getAtomDatabase();
+            if (database.journal != null)
+                database.journal.removeExit(this, exit);
+            database.atomChanged(this);
                 
             // If the exit object was an atom, move it to limbo
             //###??? I need to think about this... This is handled properly
@@ -371,4 +596,19 @@ public class Container
             
         return super.invariant();
         }
+
+    /** A cached list of the things which hear a container's output, and the
+        listen version it was worked out at
+    */
+    private static final class Audience
+        {
+        final Thing listeners[];
+        final int listenVersion;
+        
+        Audience(Thing listeners[], int listenVersion)
+            {
+            this.listeners = listeners;
+            this.listenVersion = listenVersion;
+            }
+        }
      }
@@ -0,0 +1,214 @@
+// $Id$
+// Index of a container's contents by ancestor and property
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.util.*;
+
+/** An index of the things directly inside a container, so the binder can
+    find the things a noun phrase might mean without testing everything in
+    the room.
+    <p>
+    For each atom that any of the contents is descended from, the index has
+    a list of the contents descended from it. So the list for the 'key' atom
+    holds all the keys in the container. The index also has lists of the
+    contents which have a property (i.e. an adjective, whatever its value),
+    made the first time each property is asked for, and a list of the
+    contents which are containers, which a traversal needs to look inside.
+    <p>
+    Each list is in the same order as the contents. Things are numbered as
+    they are added (see 'Thing.indexSeq') so lists can be merged in order.
+    <p>
+    The index is built when it is first needed, and changed as things are
+    moved in and out. The ancestors of the contents, and the properties they
+    inherit, only change with the inheritance or a static atom's field, both
+    of which invalidate the property cache, so the index is thrown away when
+    the property cache version changes (see 'Container.getContentsIndex').
+    When a thing's own field is set or cleared, only the list for that
+    property is thrown away.
+    <p>
+    Synchronization: the index is changed by the thread which holds the
+    container's zone, but may be read by the processor of another zone (e.g.
+    when a traversal looks into a container in that zone). It is only used
+    while synched on the container, which is also held while the contents
+    change. The lists are never changed once they have been returned:
+    adding or removing a thing replaces the lists it is on with new ones.
+    So a reader can go on using the lists it was given, a consistent (if
+    perhaps out of date) view of the contents, after letting go of the
+    container.
+*/
+final class ContentsIndex
+    {
+    /** An empty list, returned when nothing matches
+    */
+    static final Vector EMPTY = new Vector(0);
+
+    /** The container's contents
+    */
+    private Vector contents;
+
+    /** The property cache version the index was built for
+    */
+    private int version;
+
+    /** Lists of contents, by ancestor atom
+    */
+    private Hashtable byAncestor = new Hashtable();
+
+    /** Lists of contents with a property, by PropertyName
+    */
+    private Hashtable byProperty = new Hashtable();
+
+    /** The contents which are containers
+    */
+    private Vector containers = new Vector();
+
+    /** The number for the next thing added
+    */
+    private int nextSeq = 0;
+
+    /** Build the index of 'contents'
+    */
+    ContentsIndex(Vector contents, int version)
+        {
+        this.contents = contents;
+        this.version = version;
+        
+        // No-one else has the lists yet, so they can be added to as they are
+        for (int i = 0; i < contents.size(); i++)
+            add((Thing)contents.elementAt(i), false);
+        }
+
+    /** Get the property cache version the index was built for
+    */
+    int getVersion()
+        {
+        return version;
+        }
+
+    /** Add a thing, which has just been added to the end of the contents
+    */
+    void add(Thing thing)
+        {
+        add(thing, true);
+        }
+
+    /** Add a thing to the lists, copying them first if 'copy' is set
+    */
+    private void add(Thing thing, boolean copy)
+        {
+        thing.indexSeq = nextSeq++;
+
+        Atom ancestors[] = thing.getAncestorArray();
+        for (int i = 0; i < ancestors.length; i++)
+            {
+            Vector v = (Vector)byAncestor.get(ancestors[i]);
+            if (v == null)
+                v = new Vector();
+            else if (copy)
+                v = (Vector)v.clone();
+            v.addElement(thing);
+            byAncestor.put(ancestors[i], v);
+            }
+
+        if (thing instanceof Container)
+            {
+            if (copy)
+                containers = (Vector)containers.clone();
+            containers.addElement(thing);
+            }
+
+        Enumeration enum = byProperty.keys();
+        while (enum.hasMoreElements())
+            {
+            PropertyName name = (PropertyName)enum.nextElement();
+            if (thing.getRawProperty(name) != null)
+                {
+                Vector v = (Vector)byProperty.get(name);
+                if (copy)
+                    v = (Vector)v.clone();
+                v.addElement(thing);
+                byProperty.put(name, v);
+                }
+            }
+        }
+
+    /** Remove a thing, which has just been removed from the contents
+    */
+    void remove(Thing thing)
+        {
+        Atom ancestors[] = thing.getAncestorArray();
+        for (int i = 0; i < ancestors.length; i++)
+            {
+            Vector v = removed((Vector)byAncestor.get(ancestors[i]), thing);
+            if (v == null || v.isEmpty())
+                byAncestor.remove(ancestors[i]);
+            else
+                byAncestor.put(ancestors[i], v);
+            }
+
+        if (thing instanceof Container)
+            containers = removed(containers, thing);
+
+        Enumeration enum = byProperty.keys();
+        while (enum.hasMoreElements())
+            {
+            PropertyName name = (PropertyName)enum.nextElement();
+            byProperty.put(name, removed((Vector)byProperty.get(name), thing));
+            }
+        }
+
+    /** Return a copy of the list 'v' without 'thing', or 'v' itself if
+        'thing' isn't on it
+    */
+    private static Vector removed(Vector v, Thing thing)
+        {
+        if (v == null || !v.contains(thing))
+            return v;
+        v = (Vector)v.clone();
+        v.removeElement(thing);
+        return v;
+        }
+
+    /** A field of one of the contents has been set or cleared
+    */
+    void fieldChanged(PropertyName name)
+        {
+        byProperty.remove(name);
+        }
+
+    /** Get the contents descended from 'ancestor'. The list must not be changed.
+    */
+    Vector getDescendants(Atom ancestor)
+        {
+        Vector result = (Vector)byAncestor.get(ancestor);
+        return result != null ? result : EMPTY;
+        }
+
+    /** Get the contents which have the property 'name'. The list must not be changed.
+    */
+    Vector getWithProperty(PropertyName name)
+        {
+        Vector result = (Vector)byProperty.get(name);
+        if (result == null)
+            {
+            result = new Vector();
+            for (int i = 0; i < contents.size(); i++)
+                {
+                Thing thing = (Thing)contents.elementAt(i);
+                if (thing.getRawProperty(name) != null)
+                    result.addElement(thing);
+                }
+            byProperty.put(name, result);
+            }
+        return result;
+        }
+
+    /** Get the contents which are containers. The list must not be changed.
+    */
+    Vector getContainers()
+        {
+        return containers;
+        }
+    }
@@ -5,6 +5,7 @@
 
 package com.ogalala.mua;
 
+import java.io.*;
 
 /** An Exit Table is a collection of exits accessed by the directions
     they travel in. Containers have exit tables if 'Container.addExit'
@@ -105,6 +106,33 @@ public final class ExitTable
         {
         }
         
+    /** Write the exits to a world snapshot
+    */
+    void writeSnapshot(WorldSnapshot.Output out)
+        throws IOException
+        {
+        for (int i = 0; i < EXIT_TABLE_SIZE; i++)
+            out.writeAtom(exits[i]);
+        }
+        
+    /** Copy the exit table, for a snapshot (see 'Atom.copyState')
+    */
+    ExitTable copy()
+        {
+        ExitTable result = new ExitTable();
+        System.arraycopy(exits, 0, result.exits, 0, EXIT_TABLE_SIZE);
+        return result;
+        }
+        
+    /** Read the exits from a world snapshot
+    */
+    void readSnapshot(WorldSnapshot.Input in)
+        throws IOException, ClassNotFoundException
+        {
+        for (int i = 0; i < EXIT_TABLE_SIZE; i++)
+            exits[i] = in.readAtom();
+        }
+        
     /** Get an exit
     
         @return an exit atom or null if no exit is associated with the direction
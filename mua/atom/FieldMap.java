@@ -0,0 +1,344 @@
+// $Id$
+// Compact table of an atom's fields
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.util.*;
+
+/** The table of an atom's fields, keyed by PropertyName.
+    <p>
+    There can be hundreds of thousands of atoms in a world, most with a
+    handful of fields, so this is kept small: the keys and values are held
+    in alternate elements of a single array, with open addressing on the
+    property name's ID. There are no entry objects, and an atom with no
+    fields has no array at all.
+    <p>
+    Reads don't lock. Changes are synchronized. A change either writes a
+    single slot, or fills a new array before making it visible, so a reader
+    sees the map before or after the change. Removed fields leave a marker
+    in their slot, so other keys can still be found past it. The markers
+    are dropped when the array is next rebuilt.
+    <p>
+    This is also a Dictionary, keyed by name strings, so that it can be
+    used in the same way as the old Hashtable of fields. The enumerations
+    return the names as strings.
+*/
+final class FieldMap extends Dictionary
+    implements Serializable
+    {
+    private static final long serialVersionUID = 1;
+
+    /** Key marking a removed field
+    */
+    private static final Object REMOVED = new Object();
+
+    /** Size of the first array, in entries
+    */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /** The keys and values, in alternate elements. The number of entries
+        is a power of two. Null if the map has never had any entries.
+    */
+    private transient Object slots[];
+
+    /** The number of fields
+    */
+    private transient int count = 0;
+
+    /** The number of slots in use, including removed fields
+    */
+    private transient int used = 0;
+
+    /** Get a field
+        @return the value, or null if there is no field 'key'
+    */
+    Object get(PropertyName key)
+        {
+        Object s[] = slots;
+        if (s == null)
+            return null;
+        int mask = (s.length >> 1) - 1;
+        for (int i = key.id & mask; ; i = (i + 1) & mask)
+            {
+            Object k = s[i << 1];
+            if (k == key)
+                return s[(i << 1) + 1];
+            else if (k == null)
+                return null;
+            }
+        }
+
+    /** Set a field
+        @return the old value, or null if there wasn't one
+    */
+    synchronized Object put(PropertyName key, Object value)
+        {
+        // Make room. There is always at least one empty slot, so searches end.
+        if (slots == null)
+            slots = new Object[INITIAL_CAPACITY * 2];
+        else if ((used + 1) * 4 > (slots.length >> 1) * 3)
+            rebuild();
+
+        // Look for the key, noting the first removed slot we pass
+        Object s[] = slots;
+        int mask = (s.length >> 1) - 1;
+        int free = -1;
+        int i = key.id & mask;
+        for (; ; i = (i + 1) & mask)
+            {
+            Object k = s[i << 1];
+            if (k == key)
+                {
+                Object result = s[(i << 1) + 1];
+                s[(i << 1) + 1] = value;
+                return result;
+                }
+            else if (k == null)
+                break;
+            else if (k == REMOVED && free < 0)
+                free = i;
+            }
+
+        // Add it, reusing a removed slot if there was one. The value is
+        //  written before the key, so readers never see the key without it.
+        if (free >= 0)
+            i = free;
+        else
+            used++;
+        s[(i << 1) + 1] = value;
+        s[i << 1] = key;
+        count++;
+        return null;
+        }
+
+    /** Remove a field
+        @return the old value, or null if there wasn't one
+    */
+    synchronized Object remove(PropertyName key)
+        {
+        Object s[] = slots;
+        if (s == null)
+            return null;
+        int mask = (s.length >> 1) - 1;
+        for (int i = key.id & mask; ; i = (i + 1) & mask)
+            {
+            Object k = s[i << 1];
+            if (k == key)
+                {
+                Object result = s[(i << 1) + 1];
+                s[i << 1] = REMOVED;
+                s[(i << 1) + 1] = null;
+                count--;
+                return result;
+                }
+            else if (k == null)
+                return null;
+            }
+        }
+
+    /** Make a copy of the map, sharing the values (see 'Atom.copyState')
+    */
+    synchronized FieldMap copy()
+        {
+        FieldMap result = new FieldMap();
+        if (slots != null)
+            result.slots = (Object[])slots.clone();
+        result.count = count;
+        result.used = used;
+        return result;
+        }
+
+    /** Copy the fields into a new array, dropping removed slots, and
+        doubling the size if the map is more than half full.
+    */
+    private void rebuild()
+        {
+        int capacity = slots.length >> 1;
+        if (count * 2 > capacity)
+            capacity *= 2;
+        Object s[] = new Object[capacity * 2];
+        int mask = capacity - 1;
+        for (int j = 0; j < slots.length; j += 2)
+            {
+            Object k = slots[j];
+            if (k != null && k != REMOVED)
+                {
+                int i = ((PropertyName)k).id & mask;
+                while (s[i << 1] != null)
+                    i = (i + 1) & mask;
+                s[i << 1] = k;
+                s[(i << 1) + 1] = slots[j + 1];
+                }
+            }
+        used = count;
+        slots = s;
+        }
+
+// Dictionary
+
+    public int size()
+        {
+        return count;
+        }
+
+    public boolean isEmpty()
+        {
+        return count == 0;
+        }
+
+    public Object get(Object key)
+        {
+        PropertyName name = toPropertyName(key, false);
+        return (name == null) ? null : get(name);
+        }
+
+    public Object put(Object key, Object value)
+        {
+        if (value == null)
+            throw new NullPointerException();
+        return put(toPropertyName(key, true), value);
+        }
+
+    public Object remove(Object key)
+        {
+        PropertyName name = toPropertyName(key, false);
+        return (name == null) ? null : remove(name);
+        }
+
+    /** Enumerate the field names, as strings
+    */
+    public Enumeration keys()
+        {
+        return new FieldEnumeration(slots, true);
+        }
+
+    /** Enumerate the field values, in the same order as 'keys'
+    */
+    public Enumeration elements()
+        {
+        return new FieldEnumeration(slots, false);
+        }
+
+    /** Convert a Dictionary key to a property name
+        @param add if true, add the name to the table of property names
+    */
+    private static PropertyName toPropertyName(Object key, boolean add)
+        {
+        if (key instanceof PropertyName)
+            return (PropertyName)key;
+        else if (add)
+            return PropertyName.get(key.toString());
+        else
+            return PropertyName.find(key.toString());
+        }
+
+// Serialization
+
+    /** Write the fields as name and value pairs. Property name IDs are only
+        valid in this VM, so the names are written as strings.
+    */
+    private synchronized void writeObject(ObjectOutputStream out)
+        throws IOException
+        {
+        out.defaultWriteObject();
+        out.writeInt(count);
+        Object s[] = slots;
+        for (int j = 0; s != null && j < s.length; j += 2)
+            {
+            if (s[j] != null && s[j] != REMOVED)
+                {
+                out.writeObject(((PropertyName)s[j]).getName());
+                out.writeObject(s[j + 1]);
+                }
+            }
+        }
+
+    /** Read the fields written by 'writeObject'
+    */
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException
+        {
+        in.defaultReadObject();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++)
+            {
+            String name = (String)in.readObject();
+            put(PropertyName.get(name), in.readObject());
+            }
+        }
+
+    /** Write the fields to a world snapshot, as 'writeObject' does but with
+        the names in the snapshot's string table and the values tagged with 
+        their types
+    */
+    synchronized void writeSnapshot(WorldSnapshot.Output out)
+        throws IOException
+        {
+        out.writeInt(count);
+        Object s[] = slots;
+        for (int j = 0; s != null && j < s.length; j += 2)
+            {
+            if (s[j] != null && s[j] != REMOVED)
+                {
+                out.writeString(((PropertyName)s[j]).getName());
+                out.writeValue(s[j + 1]);
+                }
+            }
+        }
+
+    /** Read the fields written by 'writeSnapshot'
+    */
+    void readSnapshot(WorldSnapshot.Input in)
+        throws IOException, ClassNotFoundException
+        {
+        int n = in.readInt();
+        for (int i = 0; i < n; i++)
+            {
+            String name = in.readString();
+            put(PropertyName.get(name), in.readValue());
+            }
+        }
+
+    /** Enumerate the names or values in an array of slots
+    */
+    private static final class FieldEnumeration
+        implements Enumeration
+        {
+        private Object slots[];
+        private boolean names;
+        private int next = 0;
+
+        FieldEnumeration(Object slots[], boolean names)
+            {
+            this.slots = slots;
+            this.names = names;
+            skip();
+            }
+
+        public boolean hasMoreElements()
+            {
+            return slots != null && next < slots.length;
+            }
+
+        public Object nextElement()
+            {
+            if (!hasMoreElements())
+                throw new NoSuchElementException();
+            Object result = names ? ((PropertyName)slots[next]).getName() : slots[next + 1];
+            next += 2;
+            skip();
+            return result;
+            }
+
+        /** Move to the next slot in use
+        */
+        private void skip()
+            {
+            while (slots != null && next < slots.length && (slots[next] == null || slots[next] == REMOVED))
+                next += 2;
+            }
+        }
+    }
@@ -0,0 +1,198 @@
+// $Id$
+// Index of the inheritance hierarchy, for fast descendant tests
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.util.*;
+import com.ogalala.util.*;
+
+/** The inheritance index lets 'Atom.isDescendantOf' answer without
+    traversing the hierarchy.
+    <p>
+    Only static atoms (i.e. not Things) can be parents, so only static atoms
+    are indexed. Each one is given a slot number, and holds a bit set of the
+    slots of all its ancestors. A static atom is a descendant of 'a' if its
+    bit set contains the slot of 'a'. A Thing is a descendant of 'a' if one
+    of its parents is 'a' or a descendant of 'a'. So the test is constant
+    time for atoms and proportional to the number of parents for Things.
+    <p>
+    When an atom's parents change, the bit sets of that atom and its static
+    descendants are recalculated from their parents, in order of depth. This
+    must be done after the AtomSorter has run, as we rely on the depths.
+    <p>
+    Slots of deleted atoms are not reused until the index is rebuilt, which
+    happens when the database is frozen or loaded.
+*/
+final class InheritanceIndex
+    {
+    /** The database being indexed
+    */
+    private AtomDatabase database;
+
+    /** The next free slot
+    */
+    private int nextSlot = 0;
+
+    /** Constructor
+    */
+    InheritanceIndex(AtomDatabase database)
+        {
+        this.database = database;
+        }
+
+    /** Is 'atom' a descendant of 'ancestor'?
+        <p>
+        The caller has already checked that the atoms are not the same, and
+        that 'ancestor' is not a Thing.
+    */
+    boolean isDescendant(Atom atom, Atom ancestor)
+        {
+        // Slots are only given to atoms with static children, so an ancestor
+        //  without a slot can only be the parent of a Thing
+        int slot = ancestor.typeIndex;
+
+        // Static atoms hold their own bit set
+        if (!(atom instanceof Thing))
+            return slot >= 0 && testBit(atom.ancestorBits, slot);
+
+        // Things look in their parents' bit sets
+        Enumeration parents = atom.getParents();
+        while (parents.hasMoreElements())
+            {
+            Atom parent = (Atom)parents.nextElement();
+            if (parent == ancestor || (slot >= 0 && testBit(parent.ancestorBits, slot)))
+                return true;
+            }
+        return false;
+        }
+
+    /** Update the index after the parents of 'atom' have changed.
+    */
+    void parentsChanged(Atom atom)
+        {
+        // Things have no bit sets of their own
+        if (atom instanceof Thing)
+            return;
+
+        // Collect 'atom' and its static descendants, sort them so that
+        //  parents are calculated before their children, then recalculate
+        AtomVector v = new AtomVector();
+        collectStaticDescendants(atom, v, new Hashtable());
+        v.sort();
+        for (int i = 0; i < v.size(); i++)
+            calculate(v.get(i));
+        }
+
+    /** Discard all slots and rebuild the index for the whole database
+    */
+    void rebuild()
+        {
+        nextSlot = 0;
+
+        // Clear all the atoms' index fields, and gather the static atoms
+        AtomVector v = new AtomVector();
+        Enumeration atoms = database.getAtoms();
+        while (atoms.hasMoreElements())
+            {
+            Atom atom = (Atom)atoms.nextElement();
+            atom.typeIndex = -1;
+            atom.ancestorBits = null;
+            if (!(atom instanceof Thing))
+                v.put(atom);
+            }
+
+        // Calculate the bit sets in order of depth
+        v.sort();
+        for (int i = 0; i < v.size(); i++)
+            calculate(v.get(i));
+        }
+
+    /** Recursively add 'atom' and its static descendants to 'v'
+    */
+    private void collectStaticDescendants(Atom atom, AtomVector v, Hashtable visited)
+        {
+        if (visited.put(atom, atom) != null)
+            return;
+        v.put(atom);
+        Enumeration children = atom.getChildren();
+        while (children.hasMoreElements())
+            {
+            Atom child = (Atom)children.nextElement();
+            if (!(child instanceof Thing))
+                collectStaticDescendants(child, v, visited);
+            }
+        }
+
+    /** Calculate the bit set of a static atom from its parents
+    */
+    private void calculate(Atom atom)
+        {
+        // The root has no ancestors
+        int bits[] = null;
+        if (!atom.isRoot())
+            {
+            Enumeration parents = atom.getParents();
+            while (parents.hasMoreElements())
+                {
+                Atom parent = (Atom)parents.nextElement();
+                bits = or(bits, parent.ancestorBits);
+                bits = setBit(bits, getSlot(parent));
+                }
+            }
+        atom.ancestorBits = bits;
+        }
+
+    /** Get the slot for a static atom, allocating it if necessary
+    */
+    private int getSlot(Atom atom)
+        {
+        if (atom.typeIndex < 0)
+            atom.typeIndex = nextSlot++;
+        return atom.typeIndex;
+        }
+
+    /** Is bit 'i' set in 'bits'?
+    */
+    private static boolean testBit(int bits[], int i)
+        {
+        int word = i >> 5;
+        return bits != null && word < bits.length && (bits[word] & (1 << (i & 31))) != 0;
+        }
+
+    /** Set bit 'i' in 'bits', growing the array if necessary
+        @return the (possibly new) array
+    */
+    private static int[] setBit(int bits[], int i)
+        {
+        bits = grow(bits, (i >> 5) + 1);
+        bits[i >> 5] |= 1 << (i & 31);
+        return bits;
+        }
+
+    /** Or 'src' into 'dest', growing 'dest' if necessary
+        @return the (possibly new) array
+    */
+    private static int[] or(int dest[], int src[])
+        {
+        if (src == null)
+            return dest;
+        dest = grow(dest, src.length);
+        for (int i = 0; i < src.length; i++)
+            dest[i] |= src[i];
+        return dest;
+        }
+
+    /** Ensure 'bits' has at least 'length' words
+    */
+    private static int[] grow(int bits[], int length)
+        {
+        if (bits == null)
+            return new int[length];
+        else if (bits.length >= length)
+            return bits;
+        int result[] = new int[length];
+        System.arraycopy(bits, 0, result, 0, bits.length);
+        return result;
+        }
+    }
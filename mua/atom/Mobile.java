@@ -25,6 +25,13 @@ public class Mobile
         super(world, parent, id);
         }
 
+    /** Create an empty Mobile, to be filled in from a world snapshot
+    */
+    Mobile(String id)
+        {
+        super(id);
+        }
+
     /** Get the thing's static class name
     */
     public String getClassName()
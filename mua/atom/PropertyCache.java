@@ -0,0 +1,188 @@
+// $Id$
+// Cache of inherited property lookups
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.util.*;
+import com.ogalala.util.*;
+
+/** The property cache remembers the results of searching an atom's
+    ancestors for a property, so that properties such as 'is_closed' and
+    'name' don't need a search of the hierarchy each time they are used.
+    <p>
+    Only the search of the ancestors is cached, not the atom's own fields.
+    Since Things can't be parents, the result depends only on the fields of
+    static atoms and on the shape of the hierarchy. So the whole cache is
+    invalidated (by incrementing its version) when a static atom's field is
+    set or cleared, or when any atom's parents change. Neither happens much
+    once a world is running, while Things' fields change all the time and
+    don't affect the cache at all.
+    <p>
+    A Thing with one parent is looked up under its parent, with the parent
+    included in the search (see 'Atom.getSoleParent'). So all the Things
+    made from the same atom share their entries.
+    <p>
+    The cache is direct-mapped: each key has one slot, and a new entry
+    replaces whatever was there. This keeps its size fixed. Entries are
+    immutable, so readers on other threads never see a half-written entry.
+    The version is volatile, so an invalidation is seen at once by every
+    thread, as a world with zones uses the cache from several threads. The
+    hit and miss counters are not synched, so that a lookup never takes a
+    lock; with several threads some counts may be lost, which is good
+    enough for statistics.
+*/
+public final class PropertyCache
+    {
+    /** Default number of slots
+    */
+    public static final int DEFAULT_SIZE = 4096;
+
+    /** The slots. The size is a power of two.
+    */
+    private Entry slots[];
+
+    /** The current version. Entries with an older version are invalid.
+    */
+    private volatile int version = 0;
+
+    /** Performance counters. 'hits' and 'misses' are updated without a lock
+        (see above).
+    */
+    private long hits = 0;
+    private long misses = 0;
+    private long invalidations = 0;
+
+    /** Constructor. The size is rounded up to a power of two.
+    */
+    PropertyCache(int size)
+        {
+        int n = 1;
+        while (n < size)
+            n <<= 1;
+        slots = new Entry[n];
+        }
+
+    /** Get the current version. This must be read before the search whose
+        result is to be cached, so that a change during the search leaves the
+        new entry out of date.
+    */
+    int getVersion()
+        {
+        return version;
+        }
+
+    /** Invalidate all the entries
+    */
+    synchronized void invalidate()
+        {
+        version++;
+        invalidations++;
+        }
+
+    /** Find the entry for a search of 'atom's ancestors (including 'atom'
+        itself if 'includeAtom' is set) for the property 'name'.
+        @return the entry, or null if it isn't in the cache
+    */
+    Entry get(Atom atom, PropertyName name, boolean includeAtom)
+        {
+        Entry result = slots[hash(atom, name, includeAtom)];
+        if (result != null && result.atom == atom && result.name == name && 
+                result.version == version && result.includeAtom == includeAtom)
+            {
+            hits++;
+            return result;
+            }
+        misses++;
+        return null;
+        }
+
+    /** Add an entry to the cache
+    */
+    void put(Entry entry)
+        {
+        slots[hash(entry.atom, entry.name, entry.includeAtom)] = entry;
+        }
+
+    /** Get the slot number for a key
+    */
+    private int hash(Atom atom, PropertyName name, boolean includeAtom)
+        {
+        int h = System.identityHashCode(atom) * 31 + name.id;
+        if (includeAtom)
+            h = ~h;
+        return (h ^ (h >>> 16)) & (slots.length - 1);
+        }
+
+    /** How many lookups were found in the cache?
+    */
+    public long getHits()
+        {
+        return hits;
+        }
+
+    /** How many lookups had to search the hierarchy?
+    */
+    public long getMisses()
+        {
+        return misses;
+        }
+
+    /** How many times has the cache been invalidated?
+    */
+    public synchronized long getInvalidations()
+        {
+        return invalidations;
+        }
+
+    /** How many slots are there?
+    */
+    public int getSize()
+        {
+        return slots.length;
+        }
+
+    /** Reset the counters
+    */
+    public synchronized void resetCounters()
+        {
+        hits = misses = invalidations = 0;
+        }
+
+    public synchronized String toString()
+        {
+        return "PropertyCache: size=" + slots.length + " hits=" + hits +
+                " misses=" + misses + " invalidations=" + invalidations;
+        }
+
+    /** A cached search result
+    */
+    static final class Entry
+        {
+        /** The key
+        */
+        final Atom atom;
+        final PropertyName name;
+        final boolean includeAtom;
+
+        /** The cache version when the search was started
+        */
+        final int version;
+
+        /** The atom which defines the property, and the raw value. Both are
+            null if the property isn't defined.
+        */
+        final Atom definer;
+        final Object value;
+
+        Entry(Atom atom, PropertyName name, boolean includeAtom, int version, Atom definer, Object value)
+            {
+            this.atom = atom;
+            this.name = name;
+            this.includeAtom = includeAtom;
+            this.version = version;
+            this.definer = definer;
+            this.value = value;
+            }
+        }
+    }
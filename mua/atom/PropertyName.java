@@ -0,0 +1,191 @@
+// $Id$
+// Interned, case-folded property names
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.mua;
+
+import java.util.*;
+import com.ogalala.util.*;
+
+/** A property name. Property names are case insensitive, so each name is
+    folded to lowercase once, when it is first seen, and there is only ever
+    one PropertyName object for each name. So names can be compared with
+    '==', and each has a small integer ID which atoms' field maps use
+    as a hash key.
+    <p>
+    The table of names is shared by all worlds in the VM. It only grows:
+    a name stays in the table once any atom has used it. Looking up a name
+    with 'find' doesn't add it to the table, so looking up arbitrary names
+    (e.g. from a player's command) doesn't fill the table with rubbish.
+    <p>
+    'Find' doesn't allocate or lock. The lookup folds the case of each
+    character as it goes, rather than making a lowercase copy of the name.
+    Only 'get' locks, and only when it has to add a new name.
+    <p>
+    Property names are not serializable. Field maps write the names out
+    as strings, and look them up again when they are read in.
+*/
+public final class PropertyName
+    {
+    /** The name, in lowercase
+    */
+    private final String name;
+
+    /** The unique ID of this name
+    */
+    final int id;
+
+    /** The (case-folded) hash code of the name
+    */
+    private final int hash;
+
+    /** The table of names. This uses open addressing, and is kept no more
+        than half full. A slot is only written once (from null to a name,
+        whose fields are all final, so a reader which sees the name sees
+        all of it). A bigger table is filled before it is stored here, and
+        the field is volatile, so a reader which sees the new table sees
+        every name in it. So readers don't need to lock.
+    */
+    private static volatile PropertyName table[] = new PropertyName[512];
+
+    /** The number of names in the table
+    */
+    private static int count = 0;
+
+    /** Constructor
+    */
+    private PropertyName(String name, int id, int hash)
+        {
+        this.name = name;
+        this.id = id;
+        this.hash = hash;
+        }
+
+    /** Get the name, in lowercase
+    */
+    public String getName()
+        {
+        return name;
+        }
+
+    public String toString()
+        {
+        return name;
+        }
+
+    /** Find the property name for a string, ignoring case.
+        @return the property name, or null if no atom has ever used it
+    */
+    public static PropertyName find(String s)
+        {
+        PropertyName t[] = table;
+        int h = hash(s);
+        int mask = t.length - 1;
+        for (int i = h & mask; ; i = (i + 1) & mask)
+            {
+            PropertyName p = t[i];
+            if (p == null)
+                return null;
+            else if (p.hash == h && p.matches(s))
+                return p;
+            }
+        }
+
+    /** Get the property name for a string, ignoring case, adding it to the
+        table if necessary.
+    */
+    public static PropertyName get(String s)
+        {
+        // Most names will be in the table already
+        PropertyName result = find(s);
+        if (result != null)
+            return result;
+        return add(s);
+        }
+
+    /** Add a name to the table
+    */
+    private static synchronized PropertyName add(String s)
+        {
+        // Another thread may have added it since we looked
+        PropertyName result = find(s);
+        if (result != null)
+            return result;
+
+        // Make the name. The string is only copied if it isn't lowercase already.
+        int h = hash(s);
+        result = new PropertyName(fold(s), count++, h);
+
+        // Grow the table if it is half full
+        PropertyName t[] = table;
+        if (count * 2 > t.length)
+            {
+            PropertyName newTable[] = new PropertyName[t.length * 2];
+            for (int i = 0; i < t.length; i++)
+                {
+                if (t[i] != null)
+                    insert(newTable, t[i]);
+                }
+            insert(newTable, result);
+            table = newTable;
+            }
+        else
+            insert(t, result);
+        return result;
+        }
+
+    /** Put a name into the first free slot for its hash code
+    */
+    private static void insert(PropertyName t[], PropertyName p)
+        {
+        int mask = t.length - 1;
+        int i = p.hash & mask;
+        while (t[i] != null)
+            i = (i + 1) & mask;
+        t[i] = p;
+        }
+
+    /** Is this name the same as 's', ignoring case?
+    */
+    private boolean matches(String s)
+        {
+        int length = name.length();
+        if (s.length() != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            {
+            if (name.charAt(i) != Character.toLowerCase(s.charAt(i)))
+                return false;
+            }
+        return true;
+        }
+
+    /** Get the hash code of a string, as if it had been folded to lowercase
+    */
+    private static int hash(String s)
+        {
+        int h = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++)
+            h = 31 * h + Character.toLowerCase(s.charAt(i));
+        return h ^ (h >>> 16);
+        }
+
+    /** Fold a string to lowercase, character by character
+    */
+    private static String fold(String s)
+        {
+        int length = s.length();
+        for (int i = 0; i < length; i++)
+            {
+            if (Character.toLowerCase(s.charAt(i)) != s.charAt(i))
+                {
+                char chars[] = new char[length];
+                for (int j = 0; j < length; j++)
+                    chars[j] = Character.toLowerCase(s.charAt(j));
+                return new String(chars);
+                }
+            }
+        return s;
+        }
+    }
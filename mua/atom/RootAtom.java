@@ -26,6 +26,13 @@ class RootAtom
         frozen = -1;
         }
 
+    /** Create an empty root atom, to be filled in from a world snapshot
+    */
+    RootAtom(String id)
+        {
+        super(id);
+        }
+
     /** Is this the root atom? Of course it is
     */
     public boolean isRoot()
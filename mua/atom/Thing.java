@@ -6,6 +6,7 @@
 package com.ogalala.mua;
 
 import java.util.*;
+import java.io.*;
 import com.ogalala.util.*;
 
 /** A Thing is an Atom which can be placed in a Container.
@@ -26,6 +27,10 @@ public class Thing
     */
     private transient Watcher watcher;
     
+    /** The thing's number in its container's contents index (see 'ContentsIndex')
+    */
+    transient int indexSeq;
+    
     /** Create a new Thing
     */
     Thing(World world, Atom parent, String id)
@@ -99,10 +104,20 @@ public class Thing
     */
     protected final void doOutput(String msg)
         {
+        world.eventChanged();
         if (watcher != null)
             watcher.output(msg, world.getCurrentEvent());
         }
 
+    /** Low-level output function, for when the caller already has the event
+    */
+    final void doOutput(String msg, Event event)
+        {
+        world.eventChanged();
+        if (watcher != null)
+            watcher.output(msg, event);
+        }
+
     /** Get the thing's static class name
     */
     public String getClassName()
@@ -124,6 +139,7 @@ public class Thing
     */
     protected void setContainer(Container container)
         {
+        beforeChange();
         this.container = container;
         }
         
@@ -149,6 +165,7 @@ public class Thing
     protected void unlink()
         {
         container.removeThing(this);
+        beforeChange();
         this.container = null;
         removeAllWatchers();
         super.unlink();
@@ -161,9 +178,13 @@ public class Thing
     */
     public void addWatcher(Watcher newWatcher)
         {
-        // If there are no watchers, this is the first one
+        // If there are no watchers, this is the first one. The thing can
+        //  now hear output sent to its containers.
         if (watcher == null)
+            {
             watcher = newWatcher;
+            watchersChanged();
+            }
             
         // If the new watcher is lead
         else if (newWatcher.isLead())
@@ -219,6 +240,8 @@ public class Thing
             watcher = watcher.getNext();
         else
             prev.setNext(deadWatcher.getNext());
+        if (watcher == null)
+            watchersChanged();
         }
 
     /** Remove all watchers
@@ -231,6 +254,23 @@ public class Thing
             
         // Set the list to null
         watcher = null;
+        watchersChanged();
+        }
+        
+    /** Are there any watchers?
+    */
+    final boolean hasWatchers()
+        {
+        return watcher != null;
+        }
+        
+    /** Called when the thing gets its first watcher or loses its last one,
+        as this changes who hears output sent to its containers
+    */
+    private void watchersChanged()
+        {
+        if (container != null && container != this)
+            container.audienceChanged();
         }
         
     /** Convert to export format. This has the container ID added to the 
@@ -244,6 +284,31 @@ public class Thing
         return result.toString();
         }
         
+    /** Create an empty Thing, to be filled in from a world snapshot
+    */
+    Thing(String id)
+        {
+        super(id);
+        }
+
+    /** Write the Thing to a world snapshot
+    */
+    void writeSnapshot(WorldSnapshot.Output out)
+        throws IOException
+        {
+        super.writeSnapshot(out);
+        out.writeAtom(container);
+        }
+
+    /** Read the Thing from a world snapshot
+    */
+    void readSnapshot(WorldSnapshot.Input in)
+        throws IOException, ClassNotFoundException
+        {
+        super.readSnapshot(in);
+        container = (Container)in.readAtom();
+        }
+
     /** Test this atom for validity.
         @return true if this is a valid atom.
     */
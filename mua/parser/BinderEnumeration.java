@@ -8,10 +8,6 @@ package com.ogalala.mua;
 import java.util.Enumeration;
 import java.util.Vector;
 import com.ogalala.util.Debug;
-import com.ogalala.util.ResettableEnumeration;
-import com.ogalala.util.JoinEnumeration;
-import com.ogalala.util.SubtractEnumeration;
-import com.ogalala.util.UnionEnumeration;
 
 /**
 * Because of the nature of ParserEvents, a BinderEnumeration will return only one *kind*
@@ -207,14 +203,15 @@ public class BinderEnumeration implements Enumeration
 				return null;
 		}
 			
-		//The seedEnumeration contains *all* objects within the selected container
-		Enumeration seedEnumeration = createSeedEnumeration(target);
+		//The seed contains the objects within the selected container that the 
+		// NounPhrase might mean
+		AtomSet seed = createSeed(target);
 		
 		
-		//compare this seed enumeration with what is actually being searched for (in the NounPhrase).
+		//compare this seed with what is actually being searched for (in the NounPhrase).
 		// the returned set will contain all atoms that have something in common with the NounPhrases
 		// search paramateres
-		Enumeration set = target.bindNounPhrase( parserEvent, seedEnumeration );
+		Enumeration set = target.bindNounPhrase( parserEvent, seed );
 		
 		
 		if( set == null )
@@ -268,31 +265,25 @@ public class BinderEnumeration implements Enumeration
 	}
 	
 	/**
-    * Returns the contents of container, as long as they are not offLimit, as an Enumeration.
+    * Adds the contents of container to the seed, as long as they are not offLimit.
     *
+    * @param seed						the set to add to
     * @param contents					the contents of the container
     * @param container					the container itself
     * @param offLimit					any atoms contained within offLimit will be ignored.
     */
-    protected static Enumeration getAccessibleAtoms(Enumeration contents, Atom container, Atom offLimit)
+    protected static void addAccessibleAtoms(AtomSet seed, Enumeration contents, Atom container, Atom offLimit)
     {
     	if( container != null )
     	{
-    		//create the result set
-    		Vector result = new Vector();
-    		
     		//if the contents of the container are not related to atom, add them to the result
     		while( contents.hasMoreElements() )
     		{
     			Atom candidate = (Atom)contents.nextElement();
-    			if( offLimit == null )
-    				result.addElement( candidate );
-    			else if( !offLimit.contains(candidate) )
-    				result.addElement( candidate );
+    			if( offLimit == null || candidate.getContainer() != offLimit )
+    				seed.add( candidate );
     		}
-    		return new ResettableEnumeration(result);
     	}
-    	return null;
     }
 	
 	/**
@@ -308,82 +299,64 @@ public class BinderEnumeration implements Enumeration
 	
 	
 	/**
-	* Creates the starting enumeration of the bind. This generally contains all objects that
+	* Returns the atoms from a container traversal that could be meant by the target.
+	* Where it can, this finds them with the containers' contents indexes (see SeedSearch)
+	* rather than walking the whole traversal and leaving NounPhrase to test them all. 
+	* NounPhrase still does the tests, so the result of the bind is the same.
+	*
+	* @param traversal				a traversal of the contents of start
+	* @param start					the atom the traversal was started at
+	* @param target					the NounPhrase being bound
+	*/
+	protected Enumeration search(ContainerEnumeration traversal, Atom start, NounPhrase target)
+	{
+		if( SeedSearch.canSearch(start, target) )
+		{
+			AtomSet result = new AtomSet();
+			SeedSearch.find( traversal, (Container)start, target, result );
+			return result.elements();
+		}
+		return traversal;
+	}
+	
+	/**
+	* Creates the starting set of the bind. This generally contains all objects that
 	* fall within one of the crude look/search boundries :
 	*
 	*	
 	*/
-	protected Enumeration createSeedEnumeration(NounPhrase target)
+	protected AtomSet createSeed(NounPhrase target)
 	{
-		Enumeration seedEnumeration = null;
+		AtomSet seed = new AtomSet();
+		Atom actor = parserEvent.getActor();
+		Atom room = actor.getContainer();
 		
 		if( target.checkForArgumentType(VerbTemplate.SEARCH_CONTAINER) )
 		{
 			if( target.checkForArgumentType(VerbTemplate.SEARCH_INVENTORY) )
 			{
 				//bind from the Inventory and the Room
+				addAccessibleAtoms( seed, search( new ContentsEnumeration(actor), actor, target ), actor, null );
+				
 				if( target.checkForArgumentType( VerbTemplate.LOOK_SEARCH ) )
-				{
-					seedEnumeration = new JoinEnumeration( getAccessibleAtoms( new ContentsEnumeration(parserEvent.getActor() ), 
-																			parserEvent.getActor(), 
-																			null ),
-														getAccessibleAtoms( new VisibleEnumeration(parserEvent.getActor().getContainer(), parserEvent.getActor().getContainer(), parserEvent.getActor() ), 
-																			parserEvent.getActor().getContainer(), 
-																			null ) 
-													);
-				}
+					addAccessibleAtoms( seed, search( new VisibleEnumeration(room, room, actor), room, target ), room, null );
 				else //AQUIRE_SEARCH
-				{
-					seedEnumeration = new JoinEnumeration( getAccessibleAtoms( new ContentsEnumeration(parserEvent.getActor()), 
-																			parserEvent.getActor(), 
-																			null ),
-														getAccessibleAtoms( new GettableEnumeration( parserEvent.getActor().getContainer(), parserEvent.getActor().getContainer(), parserEvent.getActor() ), 
-																			parserEvent.getActor().getContainer(), 
-																			null )
-													);
-				}
+					addAccessibleAtoms( seed, search( new GettableEnumeration(room, room, actor), room, target ), room, null );
 			}
 			// we are search the container only
 			else
 			{
 				//LOOK_SEARCH
 				if( target.checkForArgumentType( VerbTemplate.LOOK_SEARCH ) )
-				{ 
-					seedEnumeration = getAccessibleAtoms( new VisibleEnumeration(parserEvent.getActor().getContainer(), parserEvent.getActor().getContainer(), parserEvent.getActor() ),
-														parserEvent.getActor().getContainer(), 
-														parserEvent.getActor());
-				}
+					addAccessibleAtoms( seed, search( new VisibleEnumeration(room, room, actor), room, target ), room, actor );
 				else //ACQUIRE_SEARCH
-				{ 
-					seedEnumeration = getAccessibleAtoms( new GettableEnumeration( parserEvent.getActor().getContainer(), parserEvent.getActor().getContainer(), parserEvent.getActor() ),
-														parserEvent.getActor().getContainer(), 
-														parserEvent.getActor());
-				}
-					
-					
+					addAccessibleAtoms( seed, search( new GettableEnumeration(room, room, actor), room, target ), room, actor );
 			}
 		}
 		//bind items only from the inventory
 		else if( target.checkForArgumentType(VerbTemplate.SEARCH_INVENTORY) )
-		{
-			
-			if( target.checkForArgumentType( VerbTemplate.LOOK_SEARCH ) )
-			{ 
-				seedEnumeration = getAccessibleAtoms( new ContentsEnumeration(parserEvent.getActor() ),
-													parserEvent.getActor(), 
-													null );
-			}
-			else //ACQUIRE_SEARCH
-			{ 
-				seedEnumeration = getAccessibleAtoms( new ContentsEnumeration(parserEvent.getActor() ),
-													parserEvent.getActor(), 
-													null );
-			}
-		}
-		
-		if( !(seedEnumeration instanceof ResettableEnumeration) )
-			seedEnumeration = new ResettableEnumeration(seedEnumeration);
+			addAccessibleAtoms( seed, search( new ContentsEnumeration(actor), actor, target ), actor, null );
 		
-		return seedEnumeration;
+		return seed;
 	}
 }
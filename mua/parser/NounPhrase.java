@@ -8,9 +8,6 @@ package com.ogalala.mua;
 import java.util.Vector;
 import java.util.Hashtable;
 import java.util.Enumeration;
-import com.ogalala.util.ResettableEnumeration;
-import com.ogalala.util.UnionEnumeration;
-import com.ogalala.util.SubtractEnumeration;
 
 
 /**
@@ -165,62 +162,41 @@ public class NounPhrase implements Cloneable
 	*/
 	public Enumeration bindNounPhrase( ParserEvent parserEvent, Enumeration beginEnumeration )
 	{
-		//if( ! (beginEnumeration instanceof ResettableEnumeration) )
-		//	return null;
-			
-		ResettableEnumeration candidates = (ResettableEnumeration)beginEnumeration;
+		return bindNounPhrase( parserEvent, new AtomSet(beginEnumeration) );
+	}
+	
+	/**
+	* Returns the atoms in the seed set that satisfy this NounPhrase. The seed is not changed.
+	*
+	* @param parserEvent			the event being bound, used to report errors
+	* @param seed					the atoms to choose from
+	* @returns						an Enumeration of the atoms, or null if an error has been reported
+	*/
+	public Enumeration bindNounPhrase( ParserEvent parserEvent, AtomSet seed )
+	{
+		AtomSet candidates = seed.copy();
 		
-		//bind the nouns with the beginning Enumeration
+		//keep the atoms that are descended from all the nouns
 		for( int i=0;i<nouns.size();i++ )
-		{
-			((ResettableEnumeration)beginEnumeration).resetCount();
-			// get all atoms in the Enumeration that are descended from this noun, and intersect
-			//  them with what we have so far
-			candidates = intersectAtomEnumeration( 
-								getDescendantAtomsOfAtom( (Atom)nouns.elementAt(i), beginEnumeration ),
-								candidates 
-								);
-		}
+			candidates.retainDescendantsOf( (Atom)nouns.elementAt(i) );
 		
-		//bind the adjectives with what we have so far
+		//keep the atoms that satisfy the adjectives isness threshold
 		for( int i=0;i<adjectives.size();i++ )
-		{
-			((ResettableEnumeration)beginEnumeration).resetCount();
-			// get all atoms in the Enumeration that satisfy the adjectives isness threshold, and intersect them
-			//  with what we have so far (in candidates).
-			candidates = intersectAtomEnumeration( 
-								getDescendantAtomsOfAdjective( (String)adjectives.elementAt(i), beginEnumeration ),
-								candidates
-								);
-		}
+			candidates.retainAtLeast( PropertyName.get( (String)adjectives.elementAt(i) ), BinderEnumeration.isnessThreshold );
 		
 		int existingItems = candidates.size();
 		
 		//if we have any property modifiers for this nounphrase, apply them to the list we have.
 		if( existingItems > 1 && argModProperties != null )
-		{
-			((ResettableEnumeration)beginEnumeration).resetCount();
+			candidates.retain( new ArgModFilter(argModProperties) );
 		
-			candidates = intersectAtomEnumeration(
-								getArgModAtoms( argModProperties, beginEnumeration ),
-								candidates
-								);
-		}//*/
-		
-		//now we have an enumeration which satisfys all the noun and adjective requirements.
+		//now we have a set which satisfys all the noun and adjective requirements.
 		//the next step is to apply the count parameter of this NounPhrase, so that we have <count> atoms.
-		Vector result = new Vector();
-		
-		
-		for( int i=0;i<count;i++ )
-		{
-			if( candidates.hasMoreElements() )
-				result.addElement(candidates.nextElement());
-			else break;
-		}
+		AtomSet result = candidates;
+		result.truncate( count );
 		
 		//if nothing has bound, then there is something definetly wrong !
-		if( result.size() == 0 )
+		if( result.isEmpty() )
 		{
 			/**
 			*/
@@ -279,14 +255,14 @@ public class NounPhrase implements Cloneable
 		if( child != null )
 		{
 			//we need to get the contents of the appropriate atoms into one
-			// enumeration, and pass this onto the child in order to bind itself
+			// set, and pass this onto the child in order to bind itself
 			if( modifier == MOD_IN)
 			{
-				Enumeration childEnum = null;
+				AtomSet childSeed = new AtomSet();
 				Atom atom;
 				for(int i=0;i<result.size();i++)
 				{
-					atom = (Atom)result.elementAt(i);
+					atom = result.elementAt(i);
 					
 					//check whether the atom is closed, if it is we can't return its children
 					if( atom.getBool("is_closed") )
@@ -299,148 +275,55 @@ public class NounPhrase implements Cloneable
 						
 		    			return null;
 					}
-					childEnum = new UnionEnumeration( new GettableEnumeration( atom, atom, parserEvent.getActor() ), childEnum );
+					childSeed.addAll( new GettableEnumeration( atom, atom, parserEvent.getActor() ) );
 				}
 				//recurse down
-				return child.bindNounPhrase( parserEvent, (ResettableEnumeration)childEnum );
+				return child.bindNounPhrase( parserEvent, childSeed );
 			}
-			//we need to subtract the contents of this NP enumeration from the results of the
-			// childs enumeration
+			//we need to subtract the contents of this NP from the results of the
+			// childs bind
 			else if( modifier == MOD_EXCEPT )
 			{
-				((ResettableEnumeration)beginEnumeration).resetCount();
-				SubtractEnumeration sub = new SubtractEnumeration( child.bindNounPhrase(parserEvent,(ResettableEnumeration)beginEnumeration),
-												result.elements()
-												);
-				return sub;
+				Enumeration childResult = child.bindNounPhrase( parserEvent, seed );
+				if( childResult == null )
+					return null;
+				
+				AtomSet sub = new AtomSet(childResult);
+				sub.removeAll( result );
+				return sub.elements();
 			}
 		}
 		
 		//if the child of this NP is null, just return the atoms we have found
 		return result.elements();
 	}
-
+	
 	/**
-	* Intersects two enumerations of atoms against each other.
-	*
-	* @returns				An intersection of the two enumerations as a ResettableEnumeration
+	* Accepts the atoms whose properties have the values given by the argument modifier
+	* properties (a table of property names to Booleans).
 	*/
-	protected static ResettableEnumeration intersectAtomEnumeration(Enumeration alphaEnum, Enumeration betaEnum )
+	private static class ArgModFilter extends AtomSet.Filter
 	{
-	    if(alphaEnum == null || betaEnum == null)
-	        return null;
-	    
-	    Vector result = new Vector();
-	    
-	    //loop through the first enumeration
-	    while( alphaEnum.hasMoreElements() )
-	    {
-            //Object enum1Element = enumeration1.nextElement();
-            Atom alphaElement = (Atom)alphaEnum.nextElement();
-            
-            ((ResettableEnumeration)betaEnum).resetCount();
-	        
-	        //look through the second enum, looking for matches with the first.
-	        while( betaEnum.hasMoreElements() )
-	        {
-	            //Object enum2Element = enumeration2.nextElement();
-                Atom betaElement = (Atom)betaEnum.nextElement();
-                
-                if( betaElement.isDescendantOf( alphaElement ) )
-                
-	            //if( enum1Element.equals( enum2Element ) );
-	                result.addElement( betaElement );
-	        }
-	    }                               
-	    return new ResettableEnumeration(result);
-	}
-	
-	protected static Enumeration getArgModAtoms(Hashtable hashtable, Enumeration candidates)
-	{
-		//set up a store for all atoms that qualify
-		Vector result = new Vector();
-		
-		String key;
-		Boolean value;
+		private Hashtable properties;
 		
-		boolean addTarget;
+		ArgModFilter(Hashtable properties)
+		{
+			this.properties = properties;
+		}
 		
-		//loop through the supplied enumeration
-		while( candidates.hasMoreElements() )
+		public boolean accept(Atom target)
 		{
-			Atom target = (Atom)candidates.nextElement();
-			
-			addTarget = true;
-			
-			Enumeration properties = hashtable.keys();
-			while( properties.hasMoreElements() )
+			Enumeration keys = properties.keys();
+			while( keys.hasMoreElements() )
 			{
-				//get the first hashtable item
-				key = (String)properties.nextElement();
-				value = (Boolean)hashtable.get((Object)key);
+				String key = (String)keys.nextElement();
 				
-				//does the item exist in the target atom properties ?
-				Object pv = target.getProperty(key);
-				
-				if( !pv.equals(value) )
-					addTarget = false;
+				//does the item have the same value for the property ?
+				if( !properties.get(key).equals( target.getProperty(key) ) )
+					return false;
 			}
-			
-			//if all the hashtable properties exist in the target atom, add it as a result.
-			if( addTarget )
-				result.addElement( target );
-		
+			return true;
 		}
-		return new ResettableEnumeration(result);
-	}
-	/**
-	* Returns an enumeration of all atoms within the candidates enumeration that are
-	* descended from intersect
-	* 
-	* @param intersect				all returned atoms will be descended from this
-	* @param candidates				an enumeration of atoms
-	* @returns						A group of atoms all descended in some way from intersect.
-	*/
-	protected static Enumeration getDescendantAtomsOfAtom(Atom intersect, Enumeration candidates)
-	{
-		//set up a store for all atoms that qualify
-		Vector result = new Vector();
-		
-		//loop through the supplied enumeration
-		while( candidates.hasMoreElements() )
-		{
-			Atom target = (Atom)candidates.nextElement();
-			
-			//is the atom from the enumeration a descendant of the supplied Atom
-			if( target.isDescendantOf( intersect ) )
-				result.addElement(target);
-		}
-		
-		return new ResettableEnumeration(result);
-	}
-	
-	/**
-	* Returns an enumeration of all atoms within the candidates enumeration that pass the isness
-	*  adjective threshold test.
-	*
-	* @param intersect
-	* @param candidates
-	*/
-	protected static Enumeration getDescendantAtomsOfAdjective(String intersect, Enumeration candidates)
-	{
-	    Vector result = new Vector();
-	    
-	    while( candidates.hasMoreElements() )
-	    {
-	        Atom dream = (Atom)candidates.nextElement();
-	        Object property = dream.getRawProperty(intersect);
-	        
-	        //does the property exceed the isness threshold ?  
-            if(  property != null && (AtomData.toInt(property) >= BinderEnumeration.isnessThreshold)  )
-	            result.addElement( dream );
-	    }
-	    
-	    return new ResettableEnumeration(result);
 	}
 	
 	/**
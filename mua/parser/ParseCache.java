@@ -0,0 +1,272 @@
+// $Id$
+// Cache of analysed sentences, for commands which are typed again and again
+// Copyright (C) Ogalala Ltd <www.ogalala.com>
+
+package com.ogalala.mua;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+/**
+* A cache of the parser's analysis of the commands it has seen.
+* <p>
+* Players and scripts send the same few commands over and over: 'n', 'look',
+* 'get all'. Everything the parser does to a command before binding its noun
+* phrases depends only on its words, the vocabulary and the privilege of the
+* parser, so the result (the sentences, with their word types and verbs) is
+* kept here and copied for the next parser to see the same command. Only the
+* event generation and binding, which depend on where the actor is, are done
+* each time.
+* <p>
+* Entries are keyed by the words and privilege (see 'makeKey'), and hold the
+* vocabulary snapshot they were made with. Any change to the vocabulary makes
+* a new snapshot, so the old entries are no longer found, and are replaced as
+* the commands are seen again. A verb's privilege can change without changing
+* the vocabulary, so it is checked again when an entry is found. The least
+* recently used entries are thrown out when the cache is full.
+* <p>
+* Synchronization: the cache is synched on its lock.
+*/
+public final class ParseCache
+{
+	/** Greatest number of entries in the cache
+	*/
+	public static final int CACHE_SIZE = 1024;
+
+	/** The entries by key, which are also on a list in order of use,
+	*  most recent first
+	*/
+	private static Object cacheLock = new Object();
+	private static Hashtable entries = new Hashtable();
+	private static Entry first = null;
+	private static Entry last = null;
+
+	/** Cache counters
+	*/
+	private static long hits = 0;
+	private static long misses = 0;
+
+	private ParseCache()
+	{
+	}
+
+	/**
+	* Make the cache key for a sentence, before its words are looked up
+	*
+	* @param sentence			the sentence
+	* @param privilege			the privilege of the parser
+	* @returns					the words, their types and the privilege, as a string
+	*/
+	static String makeKey(Sentence sentence, int privilege)
+	{
+		StringBuffer buf = new StringBuffer();
+		buf.append(privilege);
+		for(int i=0;i<sentence.size();i++)
+		{
+			Word word = sentence.getWord(i);
+			buf.append('\u0000');
+			buf.append(word.getValue());
+			buf.append('\u0000');
+			buf.append(word.getType());
+			buf.append(':');
+			buf.append(word.getPossibleWordTypes());
+		}
+		return buf.toString();
+	}
+
+	/**
+	* Find the sentences for a key, and add copies of them to 'store'
+	*
+	* @param key				the key made by 'makeKey'
+	* @param snapshot			the vocabulary snapshot the sentence is being parsed with
+	* @param privilege			the privilege of the parser
+	* @param store				the vector to add the sentences to
+	* @returns					true if the sentences were found
+	*/
+	static boolean get(String key, Vocabulary.Snapshot snapshot, int privilege, Vector store)
+	{
+		Sentence sentences[] = null;
+		synchronized (cacheLock)
+		{
+			Entry entry = (Entry)entries.get(key);
+			if( entry != null && entry.snapshot == snapshot )
+			{
+				unlink(entry);
+				linkFirst(entry);
+				sentences = entry.sentences;
+			}
+		}
+
+		// Check the verbs can still be used with this privilege
+		if( sentences != null )
+		{
+			for(int i=0;i<sentences.length;i++)
+			{
+				if( sentences[i].getVerb().getPrivilege() > privilege )
+				{
+					sentences = null;
+					break;
+				}
+			}
+		}
+
+		synchronized (cacheLock)
+		{
+			if( sentences == null )
+			{
+				misses++;
+				return false;
+			}
+			hits++;
+		}
+		for(int i=0;i<sentences.length;i++)
+			store.addElement( sentences[i].copy() );
+		return true;
+	}
+
+	/**
+	* Add the sentences for a key. Sentences without a verb aren't kept, as
+	*  they will fail anyway.
+	*
+	* @param key				the key made by 'makeKey'
+	* @param snapshot			the vocabulary snapshot the sentences were parsed with
+	* @param store				the sentences, after verbs have been assigned
+	*/
+	static void put(String key, Vocabulary.Snapshot snapshot, Vector store)
+	{
+		Sentence sentences[] = new Sentence[store.size()];
+		for(int i=0;i<sentences.length;i++)
+		{
+			Sentence sentence = (Sentence)store.elementAt(i);
+			if( sentence.getVerb() == null )
+				return;
+			sentences[i] = sentence.copy();
+		}
+
+		synchronized (cacheLock)
+		{
+			Entry entry = (Entry)entries.get(key);
+			if( entry != null )
+				remove(entry);
+			entry = new Entry(key, snapshot, sentences);
+			entries.put(key, entry);
+			linkFirst(entry);
+
+			// Throw out the least recently used entry if the cache is full
+			if( entries.size() > CACHE_SIZE )
+				remove(last);
+		}
+	}
+
+	/**
+	* Empty the cache
+	*/
+	public static void clear()
+	{
+		synchronized (cacheLock)
+		{
+			entries.clear();
+			first = null;
+			last = null;
+		}
+	}
+
+	/**
+	* Get the number of entries in the cache
+	*/
+	public static int getCount()
+	{
+		return entries.size();
+	}
+
+	/**
+	* Get the number of commands found in the cache
+	*/
+	public static long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	* Get the number of commands analysed because they weren't in the cache,
+	*  or the vocabulary had changed since they were
+	*/
+	public static long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	* Get the percentage of commands found in the cache
+	*/
+	public static int getHitRate()
+	{
+		synchronized (cacheLock)
+		{
+			long total = hits + misses;
+			return total == 0 ? 0 : (int)(hits * 100 / total);
+		}
+	}
+
+	//------------------------------ Entry List -------------------------------//
+
+	/**
+	* Add an entry to the front of the list
+	*/
+	private static void linkFirst(Entry entry)
+	{
+		entry.before = null;
+		entry.after = first;
+		if( first != null )
+			first.before = entry;
+		else
+			last = entry;
+		first = entry;
+	}
+
+	/**
+	* Take an entry off the list
+	*/
+	private static void unlink(Entry entry)
+	{
+		if( entry.before != null )
+			entry.before.after = entry.after;
+		else
+			first = entry.after;
+		if( entry.after != null )
+			entry.after.before = entry.before;
+		else
+			last = entry.before;
+	}
+
+	/**
+	* Remove an entry from the cache
+	*/
+	private static void remove(Entry entry)
+	{
+		unlink(entry);
+		entries.remove(entry.key);
+	}
+
+	/**
+	* An entry in the cache
+	*/
+	private static final class Entry
+	{
+		String key;
+		Vocabulary.Snapshot snapshot;
+		Sentence sentences[];
+
+		/** The neighbouring entries in order of use
+		*/
+		Entry before;
+		Entry after;
+
+		Entry(String key, Vocabulary.Snapshot snapshot, Sentence sentences[])
+		{
+			this.key = key;
+			this.snapshot = snapshot;
+			this.sentences = sentences;
+		}
+	}
+}
@@ -179,9 +179,9 @@ public class Parser
 	    		Sentence first = new Sentence();
 	    		
 	    		//-----//
-	    		//--2--// load a tokenized sentence into a sentence
+	    		//--2--// scan the words of the string into the sentence
 	    		//-----//
-	    		loadStringIntoSentence(first,tokenizeSentence(sentence));
+	    		SentenceScanner.scan(sentence, first);
 				
 	    		// If the input is a comment, we may have an empty sentence, which should be ignored.
 	            if( first.size() <= 0 )
@@ -203,34 +203,43 @@ public class Parser
 	    		
 	    		//-----//
 	    		//--5--// Look up all possible word	classes	for	this sentence
-	    		//-----//
-	    		lookUpWords(first);
-	    		
-	    		//-----//
-	    		//--6--// split the sentence up along the fullstops
-	    		//-----// note, we now deal	with the vector of sentences known as the sentenceStore,
-	    			   // not the single sentence anymore.
-	    		splitSentenceAlongTerminators(first,sentenceStore);
-	    		
-	    		//-----//
-	    		//--7--// Lexically analyse each sentence in the sentence storage
-	    		//-----//
-	    		lexicallyAnalyse(actor, sentenceStore, false);
-	    		
-	    		//-----//
-	    		//--8--// Split the sentences we have so far along their noun/conjunction borders.
-	    		//-----//
-	    		splitSentencesAlongConjunctions( sentenceStore );
-	    		
-	    		
-	    		// apply any alterations
-	    		correctSentences( sentenceStore );
-	    		
-	    		
-	    		//-----//
-	    		//--9--// Fold adverbs in to the main verb, and isolate the verb and adverb parts
-	    		//-----//
-	    		assignVerbsAndAdverbs(sentenceStore, vocabulary, privilege);
+	    		//-----// in one snapshot of the vocabulary, so it can't change underneath us.
+	    			   // Steps 5 to 9 depend only on the words, so if these words have been
+	    			   // parsed before with the same vocabulary, the sentences are reused.
+	    		Vocabulary.Snapshot words = vocabulary.getSnapshot();
+	    		String cacheKey = ParseCache.makeKey(first, privilege);
+	    		if( !ParseCache.get(cacheKey, words, privilege, sentenceStore) )
+	    		{
+		    		lookUpWords(first, words);
+		    		
+		    		//-----//
+		    		//--6--// split the sentence up along the fullstops
+		    		//-----// note, we now deal	with the vector of sentences known as the sentenceStore,
+		    			   // not the single sentence anymore.
+		    		splitSentenceAlongTerminators(first,sentenceStore);
+		    		
+		    		//-----//
+		    		//--7--// Lexically analyse each sentence in the sentence storage
+		    		//-----//
+		    		lexicallyAnalyse(actor, sentenceStore, false);
+		    		
+		    		//-----//
+		    		//--8--// Split the sentences we have so far along their noun/conjunction borders.
+		    		//-----//
+		    		splitSentencesAlongConjunctions( sentenceStore );
+		    		
+		    		
+		    		// apply any alterations
+		    		correctSentences( sentenceStore );
+		    		
+		    		
+		    		//-----//
+		    		//--9--// Fold adverbs in to the main verb, and isolate the verb and adverb parts
+		    		//-----//
+		    		assignVerbsAndAdverbs(sentenceStore, words, privilege);
+		    		
+		    		ParseCache.put(cacheKey, words, sentenceStore);
+		    	}
 	    		
 	    		//------//
 	    	    //--10--// Verb Template Search - Verbs get looked up here
@@ -337,7 +346,7 @@ public class Parser
 		{
 			sentence = (Sentence)store.elementAt(i);
 			if( sentence.getParserEvent() != null )
-				parser.getWorld().postEvent( sentence.getParserEvent() );
+				parser.getWorld().postCommand( sentence.getParserEvent() );
 		}
 	}
 	/**
@@ -351,7 +360,7 @@ public class Parser
 	private void postEvent(Atom actor, String propertyID, Object args[])
 	{
 		Event event = world.newEvent(actor, propertyID, world.getRoot(), args);
-		world.postEvent(event);
+		world.postCommand(event);
 	}
 	
 	
@@ -426,10 +435,10 @@ public class Parser
 	* 		'get chest' (get from previous sentence (which is from previous sentence (which is...) ) )
 	*
 	* @param store				the parsers store of sentences
-	* @param vocabulary			a reference to the main vocabulary
+	* @param words				a snapshot of the main vocabulary
 	* @param privilege			the parsers privilege level.
 	*/
-	private static void assignVerbsAndAdverbs(Vector store, Vocabulary vocabulary, int privilege)
+	private static void assignVerbsAndAdverbs(Vector store, Vocabulary.Snapshot words, int privilege)
 	{
 		Sentence sentence;
 		for(int i=0;i<store.size();i++)
@@ -458,14 +467,14 @@ public class Parser
 				else
 				{
 					//if no valid adverb is found, the vocab function will return ""
-					String postverb = vocabulary.applyAdverbMapping( adverb, verb );
+					String postverb = words.applyAdverbMapping( adverb, verb );
 					
 					//if we have a valid new verb, set it.
 					if(postverb != null && postverb.length() != 0)
 						verb = postverb;
 				
 					//set the sentences Verb object
-					sentence.setVerb( vocabulary.getVerb( verb, privilege ) );
+					sentence.setVerb( words.getVerb( verb, privilege ) );
 				}
 			}
 		}
@@ -790,113 +799,6 @@ public class Parser
         return sentence;
     }
 
-	/**
-	* Takes a string and tokenises it into an array of strings
-	*
-	* @param input				the string to tokenize
-	* @returns					an array of post-tokenized strings
-	*/
-	private static String[] tokenizeSentence(String input)
-	{
-	    Vector result = new Vector();
-	    ParserTokenizer st = new ParserTokenizer(input);
-		
-		while(st.hasMoreElements())
-		{
-		    result.addElement(st.nextToken());
-		}
-		String sresult[] = new String[result.size()];
-		result.copyInto(sresult);
-	    return sresult;
-	}
-	
-	/**
-	* Takes a string array of words and loads them into a sentence whilst assigning a
-	* wordtype.
-	*
-	* This may be less straightforwards than it first appears because there may be
-	* the added complication of fullstops or commas somewhere in the strings.
-	*
-	* It is also here that certain tokens embedded into the strings from the tokenizer
-	* are interpreted.
-	*
-	* The following interpretations occur:
-	*
-	* 	RawVerbs		-	A check is made for a exclamation mark at the beginning of 
-	*						the string. If it is found, then certain other processing is
-	*						turned off for this sequence of strings.
-	*	
-	*	Strings			-	Come out of the tokenizer surrounded with quotes
-	*
-	*	Numbers			-	Come out of the tokenizer prefixed by a '~'
-	*
-	*	Commas			-	The string is split about the commas position, creating up
-	*						to two new words. the comma itself is added as a CONNECTOR
-	*	
-	*	Fullstops		-	The string is split about the fullstops position, creating
-	*						up to two new words. the fullstop itself is added as a 
-	*						TERMINATOR
-	*
-	* @param sentence					the sentence to load the input string into
-	* @param input						a string array of words.
-	*/
-	private static void loadStringIntoSentence(Sentence sentence, String input[])
-	{
-		//we add a check for a raw verb, as various conditions within this method
-		// may not apply
-
-		boolean raw = false;
-		if( input.length > 1 && input[0].charAt(0) == ('!') )
-			raw = true;
-		
-	    for(int i=0;i<input.length;i++)
-	    {
-	        //Either cope with strings or commas and fullstops.
-	        if(input[i].length()==1)
-				sentence.addWord(input[i], Word.WT_UNKNOWN );
-		    
-		    //handle strings. they begin and end with quotes
-			else if(input[i].charAt(0) == '"' && input[i].charAt(input[i].length()-1) == '"'){
-			    sentence.addWord(input[i].substring(1,input[i].length()-1),Word.WT_STRING);
-			}
-			
-			//handle numbers. they begin and end with ~s
-			else if(input[i].charAt(0) == '~' && input[i].charAt(input[i].length()-1) == '~'){
-			    sentence.addWord(input[i].substring(1,input[i].length()-1),Word.WT_NUMERIC);   
-			}
-	        
-	        //check	for	comma at the end of	the	token
-			else if(input[i].charAt(input[i].length()-1) ==	',') {
-				sentence.addWord( input[i].substring(0,input[i].length()-1), Word.WT_UNKNOWN );
-				sentence.addWord( "," , Word.WT_CONNECTOR );
-			}
-	        
-	        //check for a comma somewhere in the word
-	        else if(input[i].indexOf(",")!=-1)	{
-				sentence.addWord( input[i].substring(0,input[i].indexOf(',')), Word.WT_UNKNOWN );
-				sentence.addWord( ",", Word.WT_CONNECTOR );
-				sentence.addWord( input[i].substring(input[i].indexOf(',')+1, input[i].length()), Word.WT_UNKNOWN );
-			}
-			
-	        //check	for	a full stop	at the end of the token
-			else if(input[i].charAt(input[i].length()-1) == '.') {
-			   sentence.addWord( input[i].substring(0,input[i].length()-1), Word.WT_UNKNOWN );
-			   sentence.addWord( ".", Word.WT_TERMINATOR );
-			}
-			
-			//check for a fullstop somewhere in the word
-       		else if( (!raw) && input[i].indexOf(".") !=-1 )
-			{
-				sentence.addWord( input[i].substring(0,input[i].indexOf(".")), Word.WT_UNKNOWN );
-				sentence.addWord( ".", Word.WT_TERMINATOR);
-				sentence.addWord( input[i].substring(input[i].indexOf('.')+1, input[i].length()), Word.WT_UNKNOWN );
-			}
-			//if nothing fun happens within the word, just add it to the sentence.
-			else
-				sentence.addWord( input[i], Word.WT_UNKNOWN );
-	    }
-	}
-	
 	/**
 	* The overall purpose is to determine the wordtype(s) of each of the words
 	* in the sentence. In most cases, the best the method will do is to compile
@@ -938,8 +840,9 @@ public class Parser
 	*										normal numerics.
 	*
 	* @param sentence			the Sentence to lookup
+	* @param words				a snapshot of the main vocabulary
 	*/
-	private static void lookUpWords(Sentence sentence)
+	private static void lookUpWords(Sentence sentence, Vocabulary.Snapshot words)
 	{
 		
 		//traps sentences beginning with a string
@@ -954,7 +857,7 @@ public class Parser
 		// which is the most likely scenario. In that case, cast it instantly
 		// to a verb type, and look up the appropriate Verb class.
 		//use the vocabulary to set the possible word types for this word.
-		sentence.getWord(0).setPossibleWordTypes( vocabulary.getWordTypes(sentence.getWordValue(0)) );
+		sentence.getWord(0).setPossibleWordTypes( words.getWordTypes(sentence.getWordValue(0)) );
 		
 		//if the sentence begins with a noun (and it couldn't possibly be a verb), then turn this
 		// into an attempt to communicate with that noun
@@ -971,7 +874,7 @@ public class Parser
 		  )
 		{
 			//get the Verb object from the possible verb string at position 0
-			Verb possible = vocabulary.getVerb(sentence.getWordValue(0));
+			Verb possible = words.getVerb(sentence.getWordValue(0));
 			
 			//Is this verb communicative ? If so, the sentence form is predictable....
 			if( possible.isCommunicative() )
@@ -988,8 +891,8 @@ public class Parser
 				{
 					//get the possible word types of the next two words, hoping that they will be preposition or noun
 					// followed by a noun
-					sentence.getWord(1).setPossibleWordTypes( vocabulary.getWordTypes(sentence.getWordValue(1)) );
-					sentence.getWord(2).setPossibleWordTypes( vocabulary.getWordTypes(sentence.getWordValue(2)) );
+					sentence.getWord(1).setPossibleWordTypes( words.getWordTypes(sentence.getWordValue(1)) );
+					sentence.getWord(2).setPossibleWordTypes( words.getWordTypes(sentence.getWordValue(2)) );
 					
 					if( sentence.getWord(1).checkForPossibleWordType(Word.WT_PREPOSITION) && 
 						sentence.getWord(2).checkForPossibleWordType(Word.WT_NOUN) 
@@ -1019,7 +922,7 @@ public class Parser
 			if(sentence.getWordType(i) == Word.WT_UNKNOWN)
 			{
 				//use the vocabulary to set the possible word types for this word.
-			    sentence.getWord(i).setPossibleWordTypes( vocabulary.getWordTypes(sentence.getWordValue(i)) );
+			    sentence.getWord(i).setPossibleWordTypes( words.getWordTypes(sentence.getWordValue(i)) );
 			    
 			    //catch numbers early
 				if( sentence.getWord(i).checkForPossibleWordType(Word.WT_NUMERIC) )
@@ -1596,6 +1499,16 @@ public class Parser
 		return actor;
 	}
 	
+	/**
+	* Returns this parsers privilege level. (See Privilege.java)
+	*
+	* @returns						this parsers privilege level
+	*/
+	public int getPrivilege()
+	{
+		return privilege;
+	}
+	
 	/**
 	* Sets this parsers 'actor'. The actor is the player representation
 	*  within the world, through which events happen.
@@ -1688,22 +1601,14 @@ public class Parser
         {
             verbName = st.nextToken().toLowerCase();
             
-            //check this verb isn't already in the vocabulary
-            Object o = vocabulary.getVerb(verbName);
-
-            // when in fact it should have.
-            if( o != null )
+            //add the verb, unless it is already in the vocabulary
+            if( !vocabulary.addVerbIfAbsent( verbName, verb ) )
             {
             	actor.output("Verb '" + verbName + "' is already defined. (Clue)" + synonyms);
                 throw new ParserException(" [vocab] Verb '" + verbName + "' is already defined. (Clue)" + synonyms);
-            //if it isn't, add the verb
             }
             else
-            {
-            	vocabulary.setVerb( verbName, verb );
-                vocabulary.addWordToDictionary(verbName,Word.WT_VERB);
                 actor.output("Verb '" + verbName + "'(" + Privilege.getDescription(verb.getPrivilege()) + ") added.");
-            }
         }
                	
         //begin decomposing the template to action definitions
@@ -1785,12 +1690,8 @@ public class Parser
         vocabulary.addWordToDictionary(adjective, Word.WT_ADJECTIVE);
 
         //add this adjective to the adjective list as long as it doesn't already exist
-        String test = vocabulary.getAdjective(adjective);
-        if( test == null )
-        {
-        	vocabulary.addAdjective(adjective, propertyID);
+        if( vocabulary.addAdjectiveIfAbsent(adjective, propertyID) )
         	actor.output("Adjective '" + adjective + "' added.");
-        }   
     }
     
     /**
@@ -1824,18 +1725,13 @@ public class Parser
             newVerbName = st.nextToken().toLowerCase();
         }
         
-     	//try and get the adverb from the Dictionary 
-        Adverb existingAdverb = vocabulary.getAdverb(adverbName);
+     	//if the adverb does not exist, create a new one and add it to the adverbs
+        Adverb adverb = new Adverb();
+        adverb.addNewMapping( verbName, newVerbName );
+        Adverb existingAdverb = vocabulary.addAdverbIfAbsent(adverbName, adverb);
         
         if(existingAdverb == null)
-        {
-        	//if the adverb does not exist, create a new one and add it to the adverbs
-	        Adverb adverb = new Adverb();
-	        adverb.addNewMapping( verbName, newVerbName );
-	        vocabulary.addAdverb(adverbName, adverb);
-	        
 	        actor.output("Adverb '" + adverbName + "' added.");
-	    }
 	    else
 	    {
 	    	//otherwise, just add a new mapping to the existing adverb
@@ -1974,13 +1870,12 @@ public class Parser
     		
     		String verbName = st.nextToken().toLowerCase();
     		
-    		// check to see whether the rawverb is already defined
-    		if(vocabulary.getRawVerb(verbName) != null)
+    		// add the rawverb, unless it is already defined
+    		if( !vocabulary.addRawVerbIfAbsent(verbName, rawVerb) )
     		{
     			actor.output("RawVerb '" + verbName + "' is already defined");
     			throw new ParserException("RawVerb '" + verbName + "' is already defined");
     		}
-    		vocabulary.addRawVerb(verbName, rawVerb);
     		actor.output("RawVerb '" + verbName + "'(" + Privilege.getDescription(rawVerb.getPrivilege()) + ")" + " added.");
     	}
     	//set the rawverb on the root atom
@@ -0,0 +1,167 @@
+// $Id$
+// Finds the candidates for a noun phrase using the containers' contents indexes
+// Copyright (C) Ogalala Ltd <www.ogalala.com>
+
+package com.ogalala.mua;
+
+import java.util.Vector;
+
+/**
+* Finds the atoms a container traversal would return which could be meant by a
+* NounPhrase, i.e. which are descended from all its nouns and pass the isness
+* threshold for all its adjectives. (Also used by AtomUtil to find things of a type.)
+* <p>
+* Rather than traversing the whole room and testing every atom, the search asks 
+* each container's ContentsIndex for the shortest list that any match must be 
+* on (e.g. the keys, or the things that can be red), and merges it with the list
+* of containers to look inside. The traversal's own rules decide what is returned
+* and which containers are entered, so the result is exactly the traversal's 
+* elements that match, in the same order.
+*/
+final class SeedSearch
+{
+	/**
+	* Can 'target' be searched for in the contents of 'start'?
+	* <p>
+	* There must be a noun or adjective to narrow the search. An EXCEPT phrase 
+	* can't be searched for this way, as its child binds against the same seed.
+	* Nor can a noun which is a Thing (e.g. a character's name): things have no
+	* descendants but themselves, so they are not in the index (see AtomUtil.isIndexed).
+	*/
+	static boolean canSearch(Atom start, NounPhrase target)
+	{
+		if( !(start instanceof Container) || target.modifier == NounPhrase.MOD_EXCEPT )
+			return false;
+		
+		if( target.nouns.size() == 0 && target.adjectives.size() == 0 )
+			return false;
+		
+		//a noun which isn't in the vocabulary, or is a Thing, can't be looked up
+		for( int i=0;i<target.nouns.size();i++ )
+		{
+			Object noun = target.nouns.elementAt(i);
+			if( noun == null || noun instanceof Thing )
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	* Adds the elements of 'traversal' (which was started at 'start') that could be
+	* meant by 'target' to 'result'.
+	*
+	* @param traversal				decides which atoms are returned, and which containers entered
+	* @param start					the container the traversal was started at
+	* @param target					the NounPhrase being bound
+	* @param result					the set to add to
+	*/
+	static void find(ContainerEnumeration traversal, Container start, NounPhrase target, AtomSet result)
+	{
+		Atom nouns[] = new Atom[target.nouns.size()];
+		target.nouns.copyInto(nouns);
+		
+		PropertyName adjectives[] = new PropertyName[target.adjectives.size()];
+		for( int i=0;i<adjectives.length;i++ )
+			adjectives[i] = PropertyName.get( (String)target.adjectives.elementAt(i) );
+		
+		search(traversal, start, nouns, adjectives, result, Integer.MAX_VALUE);
+	}
+	
+	/**
+	* Returns the first element of 'traversal' (which was started at 'start') descended
+	* from 'type', or null if there is none.
+	*/
+	static Atom findFirst(ContainerEnumeration traversal, Container start, Atom type)
+	{
+		AtomSet result = new AtomSet();
+		search(traversal, start, new Atom[] { type }, new PropertyName[0], result, 1);
+		return result.isEmpty() ? null : result.elementAt(0);
+	}
+	
+	/**
+	* Adds the matches in 'container' and the containers the traversal enters from it,
+	* until there are 'limit' atoms in the result
+	*/
+	private static void search(ContainerEnumeration traversal, Container container, Atom nouns[], PropertyName adjectives[], AtomSet result, int limit)
+	{
+		//every match is on each of these lists, so only the shortest has to be tested.
+		// the lists don't change once we have them, so the container can be let go
+		// (it may be in another zone)
+		Vector candidates = null;
+		Vector containers;
+		synchronized( container )
+		{
+			ContentsIndex index = container.getContentsIndex();
+			for( int i=0;i<nouns.length;i++ )
+				candidates = shorter( candidates, index.getDescendants(nouns[i]) );
+			for( int i=0;i<adjectives.length;i++ )
+				candidates = shorter( candidates, index.getWithProperty(adjectives[i]) );
+			containers = index.getContainers();
+		}
+		
+		//merge the candidates with the containers, in the order of the contents
+		int c = 0, d = 0;
+		while( (c < candidates.size() || d < containers.size()) && result.size() < limit )
+		{
+			Thing thing;
+			boolean isCandidate = false, isContainer = false;
+			if( d == containers.size() )
+				isCandidate = true;
+			else if( c == candidates.size() )
+				isContainer = true;
+			else
+			{
+				int candidateSeq = ((Thing)candidates.elementAt(c)).indexSeq;
+				int containerSeq = ((Thing)containers.elementAt(d)).indexSeq;
+				isCandidate = candidateSeq <= containerSeq;
+				isContainer = containerSeq <= candidateSeq;
+			}
+			
+			if( isCandidate )
+				thing = (Thing)candidates.elementAt(c++);
+			else
+				thing = (Thing)containers.elementAt(d);
+			if( isContainer )
+				d++;
+			
+			if( !traversal.acceptForReturn(thing) )
+				continue;
+			
+			if( isCandidate && matches(thing, nouns, adjectives) )
+				result.add(thing);
+			
+			if( isContainer && !thing.isEmpty() && traversal.acceptForTraversal(thing) )
+				search(traversal, (Container)thing, nouns, adjectives, result, limit);
+		}
+	}
+	
+	/**
+	* Is 'atom' descended from all the nouns, and like enough all the adjectives?
+	* This is the same test as NounPhrase.bindNounPhrase.
+	*/
+	private static boolean matches(Atom atom, Atom nouns[], PropertyName adjectives[])
+	{
+		for( int i=0;i<nouns.length;i++ )
+			if( !atom.isDescendantOf(nouns[i]) )
+				return false;
+		
+		for( int i=0;i<adjectives.length;i++ )
+		{
+			Object property = atom.getRawProperty(adjectives[i]);
+			if( property == null || AtomData.toInt(property) < BinderEnumeration.isnessThreshold )
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	* Returns the shorter of two lists, treating null as the longest
+	*/
+	private static Vector shorter(Vector a, Vector b)
+	{
+		if( a == null || b.size() < a.size() )
+			return b;
+		return a;
+	}
+}
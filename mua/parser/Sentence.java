@@ -726,6 +726,24 @@ public class Sentence
 		return result;
 	}
 	
+	/**
+	* Returns a copy of the sentence as it is after lexical analysis: its words
+	* (which are copied too), verb and verb string. The noun phrases, prepositions
+	* and event, which are filled in when the sentence's event is generated, are
+	* not copied.
+	*/
+	final Sentence copy()
+	{
+		Sentence result = new Sentence();
+		for(int i=0;i<words.size();i++)
+			result.words.addElement( ((Word)words.elementAt(i)).copy() );
+		result.verb = verb;
+		result.verbString = verbString;
+		result.verbPropertyID = verbPropertyID;
+		result.pluralCheckingFlag = pluralCheckingFlag;
+		return result;
+	}
+	
 	/**
 	* Flushes all the words from this sentence.
 	*/
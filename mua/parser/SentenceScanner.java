@@ -0,0 +1,359 @@
+// $Id$
+// Single-pass scanner which loads a command line into a Sentence
+// Copyright (C) Ogalala Ltd <www.ogalala.com>
+
+package com.ogalala.mua;
+
+/**
+* Breaks a command line into words and loads them into a Sentence, in one
+* pass over its characters.
+* <p>
+* This replaces running a ParserTokenizer (and so a StreamTokenizer reading a
+* StringReader) into a Vector of strings, then picking the strings apart again
+* to find which were quoted strings and numbers. The scanner is a small state
+* machine driven by a table of character classes, and knows what kind of token
+* it has found, so numbers and strings go straight into the sentence with their
+* word types. Words are taken from the input with 'substring', so they share its
+* characters.
+* <p>
+* The tokens are the same as the ParserTokenizer's: words are runs of printing
+* characters, numbers begin with a digit, '.' or '-', strings are quoted with
+* " or ', and # starts a comment. The words are then loaded into the sentence
+* as follows:
+*
+* 	RawVerbs		-	A check is made for a exclamation mark at the beginning of
+*						the first word. If it is found, then a fullstop within a word
+*						doesn't split it.
+*
+*	Strings			-	Added as STRING words, without their quotes
+*
+*	Numbers			-	Added as NUMERIC words
+*
+*	Commas			-	The word is split about the comma's position, creating up
+*						to two new words. the comma itself is added as a CONNECTOR
+*
+*	Fullstops		-	The word is split about the fullstop's position, creating
+*						up to two new words. the fullstop itself is added as a
+*						TERMINATOR
+*/
+final class SentenceScanner
+{
+	/** Character classes. A character may be in more than one.
+	*/
+	private static final byte ORDINARY = 0;
+	private static final byte SPACE = 1;
+	private static final byte WORD = 2;
+	private static final byte NUMBER = 4;
+	private static final byte QUOTE = 8;
+	private static final byte COMMENT = 16;
+
+	/** The class of each 8-bit character. Other characters are WORD.
+	*/
+	private static final byte charClass[] = new byte[256];
+	static
+	{
+		for (int c = 0; c <= ' '; c++)
+			charClass[c] = SPACE;
+		for (int c = 33; c <= 126; c++)
+			charClass[c] = WORD;
+		for (int c = 128; c <= 255; c++)
+			charClass[c] = WORD;
+		for (int c = '0'; c <= '9'; c++)
+			charClass[c] |= NUMBER;
+		charClass['.'] |= NUMBER;
+		charClass['-'] |= NUMBER;
+		charClass['"'] = QUOTE;
+		charClass['\''] = QUOTE;
+		charClass['#'] = COMMENT;
+	}
+
+	/** Token kinds
+	*/
+	private static final int T_WORD = 0;
+	private static final int T_NUMBER = 1;
+	private static final int T_STRING = 2;
+	private static final int T_CHAR = 3;
+
+	/** The command line, and the position of the next character
+	*/
+	private String input;
+	private int pos = 0;
+
+	/** The tokens found so far, and their kinds
+	*/
+	private String tokens[] = new String[16];
+	private int kinds[] = new int[16];
+	private int count = 0;
+
+	private SentenceScanner(String input)
+	{
+		this.input = input;
+	}
+
+	/**
+	* Scan a command line into a sentence
+	*
+	* @param input				the command line
+	* @param sentence			the sentence to add the words to
+	*/
+	static void scan(String input, Sentence sentence)
+	{
+		SentenceScanner scanner = new SentenceScanner(input);
+		scanner.scanTokens();
+		scanner.load(sentence);
+	}
+
+	//------------------------------ Scanning ---------------------------------//
+
+	/**
+	* Break the whole input into tokens
+	*/
+	private void scanTokens()
+	{
+		int c = read();
+		while (true)
+		{
+			while (c >= 0 && classOf(c) == SPACE)
+				c = read();
+			if (c < 0)
+				return;
+
+			int cls = classOf(c);
+			if ((cls & NUMBER) != 0)
+				c = scanNumber(c);
+			else if ((cls & WORD) != 0)
+				c = scanWord(c);
+			else if (cls == QUOTE)
+				c = scanString(c);
+			else if (cls == COMMENT)
+			{
+				while (c >= 0 && c != '\n' && c != '\r')
+					c = read();
+			}
+			else
+			{
+				addToken(String.valueOf((char)c), T_CHAR);
+				c = read();
+			}
+		}
+	}
+
+	/**
+	* Scan a word
+	*
+	* @param c					the first character of the word
+	* @returns					the character after the word, or -1 at the end
+	*/
+	private int scanWord(int c)
+	{
+		int start = pos - 1;
+		do
+			c = read();
+		while (c >= 0 && (classOf(c) & (WORD | NUMBER)) != 0);
+		addToken(input.substring(start, c < 0 ? pos : pos - 1), T_WORD);
+		return c;
+	}
+
+	/**
+	* Scan a number. Numbers may have a sign and a decimal point, but only
+	*  their integer part is kept. A '-' which doesn't start a number is a
+	*  token by itself.
+	*
+	* @param c					the first character of the number
+	* @returns					the character after the number, or -1 at the end
+	*/
+	private int scanNumber(int c)
+	{
+		boolean negative = false;
+		if (c == '-')
+		{
+			c = read();
+			if (c != '.' && (c < '0' || c > '9'))
+			{
+				addToken("-", T_CHAR);
+				return c;
+			}
+			negative = true;
+		}
+
+		double value = 0;
+		int decimals = 0;
+		boolean seenDot = false;
+		while (true)
+		{
+			if (c == '.' && !seenDot)
+				seenDot = true;
+			else if (c >= '0' && c <= '9')
+			{
+				value = value * 10 + (c - '0');
+				if (seenDot)
+					decimals++;
+			}
+			else
+				break;
+			c = read();
+		}
+		if (decimals > 0)
+		{
+			double denominator = 1;
+			for (int i = 0; i < decimals; i++)
+				denominator *= 10;
+			value /= denominator;
+		}
+
+		addToken(String.valueOf((int)(negative ? -value : value)), T_NUMBER);
+		return c;
+	}
+
+	/**
+	* Scan a quoted string, which ends at its closing quote or the end of the
+	*  line. Backslash escapes are understood as in Java.
+	*
+	* @param quote				the opening quote character
+	* @returns					the character after the string, or -1 at the end
+	*/
+	private int scanString(int quote)
+	{
+		StringBuffer buf = new StringBuffer();
+		int d = read();
+		while (d >= 0 && d != quote && d != '\n' && d != '\r')
+		{
+			int c;
+			if (d == '\\')
+			{
+				c = read();
+				int first = c;
+				if (c >= '0' && c <= '7')
+				{
+					// Octal escape, up to three digits
+					c = c - '0';
+					d = read();
+					if (d >= '0' && d <= '7')
+					{
+						c = (c << 3) + (d - '0');
+						d = read();
+						if (d >= '0' && d <= '7' && first <= '3')
+						{
+							c = (c << 3) + (d - '0');
+							d = read();
+						}
+					}
+				}
+				else
+				{
+					switch (c)
+					{
+						case 'a': c = 0x7; break;
+						case 'b': c = '\b'; break;
+						case 'f': c = 0xC; break;
+						case 'n': c = '\n'; break;
+						case 'r': c = '\r'; break;
+						case 't': c = '\t'; break;
+						case 'v': c = 0xB; break;
+					}
+					d = read();
+				}
+			}
+			else
+			{
+				c = d;
+				d = read();
+			}
+			buf.append((char)c);
+		}
+		addToken(buf.toString(), T_STRING);
+		return d == quote ? read() : d;
+	}
+
+	/**
+	* Returns the next character, or -1 at the end of the input
+	*/
+	private int read()
+	{
+		if (pos >= input.length())
+			return -1;
+		return input.charAt(pos++);
+	}
+
+	private static int classOf(int c)
+	{
+		return c < 256 ? charClass[c] : WORD;
+	}
+
+	private void addToken(String token, int kind)
+	{
+		if (count == tokens.length)
+		{
+			String newTokens[] = new String[count * 2];
+			System.arraycopy(tokens, 0, newTokens, 0, count);
+			tokens = newTokens;
+			int newKinds[] = new int[count * 2];
+			System.arraycopy(kinds, 0, newKinds, 0, count);
+			kinds = newKinds;
+		}
+		tokens[count] = token;
+		kinds[count] = kind;
+		count++;
+	}
+
+	//------------------------------- Loading ---------------------------------//
+
+	/**
+	* Add the tokens to a sentence
+	*/
+	private void load(Sentence sentence)
+	{
+		//we add a check for a raw verb, as various conditions within this method
+		// may not apply
+		boolean raw = count > 1 && kinds[0] == T_WORD && tokens[0].charAt(0) == '!';
+
+		for (int i = 0; i < count; i++)
+		{
+			String token = tokens[i];
+			int commaPos, dotPos;
+
+			if (kinds[i] == T_STRING)
+				sentence.addWord(token, Word.WT_STRING);
+
+			else if (kinds[i] == T_NUMBER)
+				sentence.addWord(token, Word.WT_NUMERIC);
+
+			else if (token.length() == 1)
+				sentence.addWord(token, Word.WT_UNKNOWN);
+
+			//check for a comma at the end of the word
+			else if (token.charAt(token.length() - 1) == ',')
+			{
+				sentence.addWord(token.substring(0, token.length() - 1), Word.WT_UNKNOWN);
+				sentence.addWord(",", Word.WT_CONNECTOR);
+			}
+
+			//check for a comma somewhere in the word
+			else if ((commaPos = token.indexOf(',')) != -1)
+			{
+				sentence.addWord(token.substring(0, commaPos), Word.WT_UNKNOWN);
+				sentence.addWord(",", Word.WT_CONNECTOR);
+				sentence.addWord(token.substring(commaPos + 1), Word.WT_UNKNOWN);
+			}
+
+			//check for a full stop at the end of the word
+			else if (token.charAt(token.length() - 1) == '.')
+			{
+				sentence.addWord(token.substring(0, token.length() - 1), Word.WT_UNKNOWN);
+				sentence.addWord(".", Word.WT_TERMINATOR);
+			}
+
+			//check for a fullstop somewhere in the word
+			else if (!raw && (dotPos = token.indexOf('.')) != -1)
+			{
+				sentence.addWord(token.substring(0, dotPos), Word.WT_UNKNOWN);
+				sentence.addWord(".", Word.WT_TERMINATOR);
+				sentence.addWord(token.substring(dotPos + 1), Word.WT_UNKNOWN);
+			}
+
+			//if nothing fun happens within the word, just add it to the sentence.
+			else
+				sentence.addWord(token, Word.WT_UNKNOWN);
+		}
+	}
+}
@@ -19,12 +19,17 @@ package com.ogalala.mua;
 */
 
 import java.util.Vector;
+import java.util.Hashtable;
 
 import com.ogalala.util.Privilege;
 import com.ogalala.util.Privileged;
 
 class Verb implements Privileged, java.io.Serializable
 {
+	/** The value computed for the class before one was declared, so worlds
+	*  serialized then can still be read
+	*/
+	private static final long serialVersionUID = 4366428532826858993L;
 
 	/** Holds the privilege level for this Verb
 	*/
@@ -34,6 +39,11 @@ class Verb implements Privileged, java.io.Serializable
     */
     private Vector templates = new Vector();
     
+    /** The templates indexed by their prepositions, or null if the
+    *  templates have changed since it was built. See getIndex().
+    */
+    private transient volatile TemplateIndex index;
+    
     /** Is this a Communicative Verb ? Such verbs do not require Templates
     */
     private boolean isCommunicative = false;
@@ -49,26 +59,27 @@ class Verb implements Privileged, java.io.Serializable
     * Adds a template to the store, while following certain conditions:
     *  - there cannot be more than one single argument template
     */
-    public void addTemplate(VerbTemplate template)
+    public synchronized void addTemplate(VerbTemplate template)
     {
-    	VerbTemplate vtemp = matchTemplate();
-    	
     	//### Suspended for the time being, as there needs to be more than one single argument
     	// template attached to a verb.
-    	/*if(	template.getPreposition(0).equals("") && vtemp != null &&
+    	/*VerbTemplate vtemp = matchTemplate();
+    	if(	template.getPreposition(0).equals("") && vtemp != null &&
     		vtemp.getArgType(0) != VerbTemplate.EMPTY ) 
     	{
     		throw new ParserException("Only one single argument template allowed: " + template.getPropertyID());
         }//*/
         templates.addElement(template);
+        index = null;
     }
     
     /**
     * As it says. Rather drastic, but hey.
     */
-    public void removeAllTemplates()
+    public synchronized void removeAllTemplates()
     {
         templates.removeAllElements();
+        index = null;
     }
     
     /**
@@ -76,12 +87,12 @@ class Verb implements Privileged, java.io.Serializable
     *
     * @param propertyID			all templates with this ID will be removed
     */
-    public void removeTemplate(String propertyID)
+    public synchronized void removeTemplate(String propertyID)
     {
     	for(int i=0;i<templates.size();i++)
     		if( ((VerbTemplate)templates.elementAt(i)).getPropertyID().equals(propertyID) )
     			templates.removeElementAt(i);
-    	
+    	index = null;
     }
     /**
     * Attempt to find a template that matches.
@@ -100,19 +111,7 @@ class Verb implements Privileged, java.io.Serializable
     {
     	//Communicative Verbs do not require Templates
     	if(!isCommunicative)
-    	{
-	        if(templates.size()==0) 
-	            return null;
-	        VerbTemplate temp;    
-	        //loop through all the templates
-	        for(int i=0;i<templates.size();i++)
-	        {
-	            temp = (VerbTemplate)templates.elementAt(i);
-	            if(temp.getPreposition(0).equals(prep1) && temp.getPreposition(1).equals(prep2))
-	                //return temp.getPropertyID();
-	                return temp;
-	        }
-	    }
+    		return getIndex().get(prep1, prep2);
         return null;
     }
     
@@ -123,19 +122,7 @@ class Verb implements Privileged, java.io.Serializable
     public VerbTemplate matchTemplate(String prep)
     {
     	if(!isCommunicative)
-    	{
-	        if(templates.size()==0)
-	            return null;
-	        VerbTemplate temp;    
-	        //loop through all the templates
-	        for(int i=0;i<templates.size();i++)
-	        {
-	            temp = (VerbTemplate)templates.elementAt(i);
-	            if(temp.getPreposition(0).equals(prep) && temp.getPreposition(1).equals(""))
-	                //return temp.getPropertyID();
-	                return temp;
-	        }
-	    }
+    		return getIndex().get(prep, "");
         return null;
     }
     
@@ -145,18 +132,12 @@ class Verb implements Privileged, java.io.Serializable
     */
     public VerbTemplate matchTemplate(int argType)
     {
-    	if(templates.size() == 0)
-    		return null;
-    	VerbTemplate temp;
-    	//loop through all of the templates
-    	for(int i=0;i<templates.size();i++)
+    	//only the templates without prepositions are looked at
+    	VerbTemplate plain[] = getIndex().plain;
+    	for(int i=0;i<plain.length;i++)
     	{
-    		temp = (VerbTemplate)templates.elementAt(i);
-    		if( temp.getPreposition(0).equals("") && temp.getPreposition(1).equals(""))
-    		{
-    			if( temp.checkForArgType(argType,0) )
-    				return temp;
-    		}
+    		if( plain[i].checkForArgType(argType,0) )
+    			return plain[i];
     	}
     	return null;
     }
@@ -166,18 +147,8 @@ class Verb implements Privileged, java.io.Serializable
     */
     public VerbTemplate matchTemplate()
     {
-        if(templates.size() == 0)
-            return null;
-        VerbTemplate temp;    
-        //loop through all the templates
-        for(int i=0;i<templates.size();i++)
-        {
-            temp = (VerbTemplate)templates.elementAt(i);
-            if(temp.getPreposition(0).equals("") && temp.getPreposition(1).equals(""))
-                //return temp.getPropertyID();
-                return temp;
-        }
-        return null;
+        VerbTemplate plain[] = getIndex().plain;
+        return plain.length > 0 ? plain[0] : null;
     }
     
     /**
@@ -225,6 +196,88 @@ class Verb implements Privileged, java.io.Serializable
         return null;
     }
     
+    //----------------------------- Template Index --------------------------------//
+    
+    /**
+    * Returns the index of the templates, building it if the templates have
+    *  changed since it was last built. The index is built while synched on
+    *  the verb, as the templates are changed, so an index built from the old
+    *  templates can't be stored after they change.
+    */
+    private TemplateIndex getIndex()
+    {
+    	TemplateIndex result = index;
+    	if( result == null )
+    	{
+    		synchronized( this )
+    		{
+    			result = index;
+    			if( result == null )
+    			{
+    				result = new TemplateIndex(templates);
+    				index = result;
+    			}
+    		}
+    	}
+    	return result;
+    }
+    
+    /**
+    * The templates of a verb, indexed so that the template for a pair of
+    *  prepositions can be found without comparing it with every template.
+    *  An index is never changed once it is built; when the templates change,
+    *  it is thrown away and a new one built.
+    */
+    private static final class TemplateIndex
+    {
+    	/** The first template for each pair of prepositions: a Hashtable
+    	*  of Hashtables, by first and then second preposition. A missing
+    	*  preposition is "".
+    	*/
+    	private Hashtable byPrepositions = new Hashtable();
+    	
+    	/** The templates with no prepositions, in order
+    	*/
+    	VerbTemplate plain[];
+    	
+    	TemplateIndex(Vector templates)
+    	{
+    		Vector plainTemplates = new Vector();
+    		for(int i=0;i<templates.size();i++)
+    		{
+    			VerbTemplate template = (VerbTemplate)templates.elementAt(i);
+    			String prep1 = template.getPreposition(0);
+    			String prep2 = template.getPreposition(1);
+    			
+    			Hashtable second = (Hashtable)byPrepositions.get(prep1);
+    			if( second == null )
+    			{
+    				second = new Hashtable();
+    				byPrepositions.put(prep1, second);
+    			}
+    			//only the first template for each pair is ever matched
+    			if( !second.containsKey(prep2) )
+    				second.put(prep2, template);
+    			
+    			if( prep1.equals("") && prep2.equals("") )
+    				plainTemplates.addElement(template);
+    		}
+    		plain = new VerbTemplate[plainTemplates.size()];
+    		plainTemplates.copyInto(plain);
+    	}
+    	
+    	/**
+    	* Returns the first template with these prepositions, or null if there is none
+    	*/
+    	VerbTemplate get(String prep1, String prep2)
+    	{
+    		if( prep1 == null || prep2 == null )
+    			return null;
+    		Hashtable second = (Hashtable)byPrepositions.get(prep1);
+    		return second != null ? (VerbTemplate)second.get(prep2) : null;
+    	}
+    }
+    
     //-------------------- Accessor/Mutator Privilege Methods --------------------//
     
     public void setCommunicative(boolean isCommunicative)
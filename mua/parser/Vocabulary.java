@@ -69,8 +69,14 @@ import com.ogalala.util.Privilege;
 *
 *	Removing Nouns			-
 *
-
-
+*	Synchronization		-	The parser looks words up far more often than the vocabulary
+*								changes, so lookups take no lock. They are made in a Snapshot,
+*								an immutable copy of the word tables. Changes are synched on the
+*								vocabulary; each one throws the current snapshot away, and the
+*								next lookup makes a new one. Callers which make several lookups,
+*								such as the parser with each sentence, should get one snapshot and
+*								use it for all of them, so the words can't change part way through.
+*								(Note the Verb objects themselves are shared, not copied.)
 */
 public class Vocabulary implements Serializable
 {
@@ -107,6 +113,11 @@ public class Vocabulary implements Serializable
     /** List of Raw verbs
     */
     protected Dictionary rawVerbs = new Hashtable();
+    
+    /** The current snapshot of the dictionaries above, or null if they
+    *  have changed since it was made
+    */
+    private transient volatile Snapshot snapshot;
 	
 	/** 
 	* Words such as 'all' and 'every' when used as numerics get replaced
@@ -134,11 +145,7 @@ public class Vocabulary implements Serializable
     */
     public int getWordTypes(String word)
     {
-        int result = 0;
-        Integer wordValue = (Integer)words.get(word.toLowerCase());
-        if (wordValue != null)
-            result = wordValue.intValue();
-        return result;
+        return getSnapshot().getWordTypes(word);
     }
     
     /**
@@ -151,12 +158,7 @@ public class Vocabulary implements Serializable
     */
     public int composeWordTypes(String word, int possiblewordlist)
     {
-        word = word.toLowerCase();
-    	
-    	if( ((Hashtable)words).containsKey(word))
-    		return possiblewordlist |= ((Integer)words.get(word)).intValue();
-    		
-    	return possiblewordlist;
+        return getSnapshot().composeWordTypes(word, possiblewordlist);
     }
 
 
@@ -167,7 +169,7 @@ public class Vocabulary implements Serializable
     * @param word 					the string value of the word
     * @param type 					the word type (verb,noun) expressed as a Constant (see Word.java)
     */
-    public void addWordToDictionary(String word,int type)
+    public synchronized void addWordToDictionary(String word,int type)
     {
         word = word.toLowerCase();
 
@@ -186,7 +188,7 @@ public class Vocabulary implements Serializable
         //add it along with its word type
         else
             words.put(word,new Integer(type));
-    
+        snapshot = null;
     }
 
     /**
@@ -194,10 +196,11 @@ public class Vocabulary implements Serializable
     *
     * @param word 					the word to remove
     */
-    public void removeWordFromDictionary(String word)
+    public synchronized void removeWordFromDictionary(String word)
     {
         word = word.toLowerCase();
         words.remove(word);
+        snapshot = null;
     }
     
     
@@ -208,15 +211,31 @@ public class Vocabulary implements Serializable
     */
     public Adverb getAdverb(String adverbName)
     {
-    	return (Adverb)adverbs.get(adverbName);
+    	return getSnapshot().getAdverb(adverbName);
     }
     
     /**
     *
     */
-    public void addAdverb(String adverbName, Adverb adverb)
+    public synchronized void addAdverb(String adverbName, Adverb adverb)
     {
     	adverbs.put(adverbName, adverb);
+    	snapshot = null;
+    }
+    
+    /**
+    * Adds an adverb, unless there is already one of that name. The check is made
+    *  in the live table, not a snapshot: the snapshot would be thrown away by
+    *  the change, so loading n words would copy the vocabulary n times.
+    *
+    * @returns						the existing adverb, or null if 'adverb' was added
+    */
+    public synchronized Adverb addAdverbIfAbsent(String adverbName, Adverb adverb)
+    {
+    	Adverb existing = (Adverb)adverbs.get(adverbName);
+    	if( existing == null )
+    		addAdverb(adverbName, adverb);
+    	return existing;
     }
 
     
@@ -225,9 +244,24 @@ public class Vocabulary implements Serializable
     /**
     *
     */
-    public void addAdjective(String adjective, String propertyID)
+    public synchronized void addAdjective(String adjective, String propertyID)
     {
     	adjectives.put(adjective, propertyID);
+    	snapshot = null;
+    }
+    
+    /**
+    * Adds an adjective, unless it is already in the vocabulary. The check is
+    *  made in the live table (see addAdverbIfAbsent).
+    *
+    * @returns						false if the adjective was already there
+    */
+    public synchronized boolean addAdjectiveIfAbsent(String adjective, String propertyID)
+    {
+    	if( adjectives.get(adjective) != null )
+    		return false;
+    	addAdjective(adjective, propertyID);
+    	return true;
     }
     
     /**
@@ -237,7 +271,7 @@ public class Vocabulary implements Serializable
     */
     public String getAdjective(String adjective)
     {
-        return (String)adjectives.get(adjective);
+        return getSnapshot().getAdjective(adjective);
     }
     
     /**
@@ -245,7 +279,7 @@ public class Vocabulary implements Serializable
     *
     * @param adjective				the adjective to remove
     */
-    public void removeAdjective(String adjective)
+    public synchronized void removeAdjective(String adjective)
     {
     	adjectives.remove(adjective);
         removeWordFromDictionary(adjective);
@@ -262,7 +296,7 @@ public class Vocabulary implements Serializable
     * @param actor				the actor who commissioned this operation
     * @param synonyms			a delimited list of adverbs to remove.
     */
-    public void removeAdverb(Atom actor, String synonyms)
+    public synchronized void removeAdverb(Atom actor, String synonyms)
     {
     	//seperate out the delimted list of strings
     	StringTokenizer st = newSynonymTokenizer(synonyms);
@@ -286,11 +320,7 @@ public class Vocabulary implements Serializable
     */
     public String applyAdverbMapping(String adverb, String verb)
     {
-    	Adverb target = (Adverb)adverbs.get(adverb.toLowerCase());
-    	if(target == null)
-    		return "";
-    	else
-    		return target.getVerbName(verb);
+    	return getSnapshot().applyAdverbMapping(adverb, verb);
     }
     
     //------------------------------------------------------------------------------//
@@ -306,7 +336,7 @@ public class Vocabulary implements Serializable
     *
     * @param verbName			the verb to remove
     */
-    public void removeVerb(String verbName)
+    public synchronized void removeVerb(String verbName)
     {
     	verbs.remove(verbName);
     	removeWordFromDictionary(verbName);
@@ -321,7 +351,7 @@ public class Vocabulary implements Serializable
     */
     public void removeTemplate(Atom actor, String verbSynonym, String verbPropertyID)
     {
-    	Verb target = (Verb)verbs.get(verbSynonym);
+    	Verb target = (Verb)getSnapshot().verbs.get(verbSynonym);
     	
     	//we tell the Verb to remove all templates that have this propertyID
     	target.removeTemplate(verbPropertyID);
@@ -336,17 +366,32 @@ public class Vocabulary implements Serializable
 	*/
     public Verb getVerb(String verbName)
     {
-        // Ensure case-insensitivity
-        verbName = verbName.toLowerCase();
-        return (Verb)verbs.get(verbName);
+        return getSnapshot().getVerb(verbName);
     }
 	
 	/**
 	* A direct accessor to the Verbs Hashtable
 	*/
-	public void setVerb(String verbName, Verb verb)
+	public synchronized void setVerb(String verbName, Verb verb)
 	{
 		verbs.put(verbName, verb);
+		snapshot = null;
+	}
+	
+	/**
+	* Adds a verb and its word, unless the name is already a verb. The check is
+	*  made in the live table (see addAdverbIfAbsent).
+	*
+	* @returns					false if the name was already a verb
+	*/
+	public synchronized boolean addVerbIfAbsent(String verbName, Verb verb)
+	{
+		verbName = verbName.toLowerCase();
+		if( verbs.get(verbName) != null )
+			return false;
+		setVerb(verbName, verb);
+		addWordToDictionary(verbName, Word.WT_VERB);
+		return true;
 	}
 	/** 
 	* Returns a verb as long as the supplied privilege is greater
@@ -358,10 +403,7 @@ public class Vocabulary implements Serializable
 	*/
 	public Verb getVerb(String verbName, int privilege)
 	{
-		Verb result = (Verb)verbs.get(verbName.toLowerCase());
-		if( result.getPrivilege() <= privilege )
-			return result;
-		else return null;
+		return getSnapshot().getVerb(verbName, privilege);
 	}
 	
     /**
@@ -370,12 +412,27 @@ public class Vocabulary implements Serializable
     * @param rawVerbName		the raw verb identifier
     * @param rawVerb			the raw verb Object
     */
-    public void addRawVerb(String rawVerbName, RawVerb rawVerb)
+    public synchronized void addRawVerb(String rawVerbName, RawVerb rawVerb)
     {
     	rawVerbs.put(rawVerbName, rawVerb);
     	addWordToDictionary(rawVerbName, Word.WT_RAWVERB);
     }
     
+    /**
+    * Adds a raw verb, unless the name is already a raw verb. The check is made
+    *  in the live table (see addAdverbIfAbsent).
+    *
+    * @returns					false if the name was already a raw verb
+    */
+    public synchronized boolean addRawVerbIfAbsent(String rawVerbName, RawVerb rawVerb)
+    {
+    	rawVerbName = rawVerbName.toLowerCase();
+    	if( rawVerbs.get(rawVerbName) != null )
+    		return false;
+    	addRawVerb(rawVerbName, rawVerb);
+    	return true;
+    }
+    
     /**
     * Get the property ID of a 'raw' verb.
     *
@@ -385,7 +442,7 @@ public class Vocabulary implements Serializable
     */
     public RawVerb getRawVerb(String rawVerbName)
     {
-    	return (RawVerb)rawVerbs.get( rawVerbName.toLowerCase() );
+    	return getSnapshot().getRawVerb(rawVerbName);
     }
     
     
@@ -399,10 +456,7 @@ public class Vocabulary implements Serializable
 	*/
 	public String getRawVerb(String rawVerbName, int privilege)
 	{
-		RawVerb result = (RawVerb)rawVerbs.get(rawVerbName.toLowerCase());
-		if( result.getPrivilege() <= privilege )
-			return result.getPropertyID();
-		else return null;
+		return getSnapshot().getRawVerb(rawVerbName, privilege);
 	}
 	
     //-------------------------------- Noun Methods -------------------------------//
@@ -414,7 +468,7 @@ public class Vocabulary implements Serializable
     * @param atom				the atom to which the Nouns will attach
     * @param synonyms			a delimited list of noun strings
     */
-    public boolean addNoun(Atom actor, Atom atom, String synonyms)
+    public synchronized boolean addNoun(Atom actor, Atom atom, String synonyms)
     {
         // Nouns are delimited
         StringTokenizer st = newSynonymTokenizer(synonyms.toLowerCase());
@@ -466,7 +520,7 @@ public class Vocabulary implements Serializable
     * @param actor				the actor who initiated the command
     * @param synonyms			a delimited list of string nouns to remove
     */
-    public void removeNoun(Atom actor, String synonyms)
+    public synchronized void removeNoun(Atom actor, String synonyms)
     {
         // Nouns are delimited with semicolon
         StringTokenizer st = newSynonymTokenizer(synonyms.toLowerCase());
@@ -503,7 +557,7 @@ public class Vocabulary implements Serializable
     */
     public Atom getNoun(String nounName)
     {
-        return (Atom)nouns.get(nounName.toLowerCase());
+        return getSnapshot().getNoun(nounName);
     }
     
     /**
@@ -511,7 +565,7 @@ public class Vocabulary implements Serializable
     */
    	public Enumeration getNouns ()
    	{
-   		return nouns.keys();
+   		return getSnapshot().nouns.keys();
    	}
     
     /**
@@ -521,55 +575,153 @@ public class Vocabulary implements Serializable
     * @returns          A list of all the nouns defined by that atom, or <tt>null</tt>
     *                   if the atom defines no nouns.
     */
-    public Vector getAtomNouns(Atom atom)
+    public synchronized Vector getAtomNouns(Atom atom)
     {
     	return (Vector) reverseNouns.get(atom);
     }
 
+	//----------------------------- Snapshot Methods ---------------------------------//
+	
+	/**
+	* Returns the current snapshot of the vocabulary, making a new one if
+	*  the vocabulary has changed since the last was made. No lock is taken
+	*  unless a new snapshot is needed.
+	*
+	* @returns					an immutable copy of the vocabulary's words
+	*/
+	public Snapshot getSnapshot()
+	{
+		Snapshot result = snapshot;
+		if( result == null )
+		{
+			synchronized(this)
+			{
+				result = snapshot;
+				if( result == null )
+				{
+					result = new Snapshot(this);
+					snapshot = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	* An immutable copy of the vocabulary's words, verbs, adverbs, nouns,
+	*  adjectives and raw verbs, for looking words up without a lock.
+	*  The lookup methods behave as the Vocabulary methods of the same name.
+	*/
+	public static final class Snapshot
+	{
+		private WordTable words;
+		private WordTable verbs;
+		private WordTable adverbs;
+		private WordTable nouns;
+		private WordTable adjectives;
+		private WordTable rawVerbs;
+		
+		/** Copy the vocabulary. Must be called with the vocabulary locked.
+		*/
+		private Snapshot(Vocabulary vocabulary)
+		{
+			words = new WordTable(vocabulary.words);
+			verbs = new WordTable(vocabulary.verbs);
+			adverbs = new WordTable(vocabulary.adverbs);
+			nouns = new WordTable(vocabulary.nouns);
+			adjectives = new WordTable(vocabulary.adjectives);
+			rawVerbs = new WordTable(vocabulary.rawVerbs);
+		}
+		
+		public int getWordTypes(String word)
+		{
+			Integer wordValue = (Integer)words.get(word.toLowerCase());
+			return wordValue != null ? wordValue.intValue() : 0;
+		}
+		
+		public int composeWordTypes(String word, int possiblewordlist)
+		{
+			return possiblewordlist | getWordTypes(word);
+		}
+		
+		public Adverb getAdverb(String adverbName)
+		{
+			return (Adverb)adverbs.get(adverbName);
+		}
+		
+		public String applyAdverbMapping(String adverb, String verb)
+		{
+			Adverb target = (Adverb)adverbs.get(adverb.toLowerCase());
+			if(target == null)
+				return "";
+			else
+				return target.getVerbName(verb);
+		}
+		
+		public String getAdjective(String adjective)
+		{
+			return (String)adjectives.get(adjective);
+		}
+		
+		public Verb getVerb(String verbName)
+		{
+			return (Verb)verbs.get(verbName.toLowerCase());
+		}
+		
+		public Verb getVerb(String verbName, int privilege)
+		{
+			Verb result = getVerb(verbName);
+			if( result.getPrivilege() <= privilege )
+				return result;
+			else return null;
+		}
+		
+		public RawVerb getRawVerb(String rawVerbName)
+		{
+			return (RawVerb)rawVerbs.get(rawVerbName.toLowerCase());
+		}
+		
+		public String getRawVerb(String rawVerbName, int privilege)
+		{
+			RawVerb result = getRawVerb(rawVerbName);
+			if( result.getPrivilege() <= privilege )
+				return result.getPropertyID();
+			else return null;
+		}
+		
+		public Atom getNoun(String nounName)
+		{
+			return (Atom)nouns.get(nounName.toLowerCase());
+		}
+	}
+	
 	//----------------------------- Utility Methods ----------------------------------//
 	
+	/** The numbers for 'getNumberFromWord'
+	*/
+	private static final Hashtable numberWords = new Hashtable();
+	static
+	{
+		String names[] = { "zero", "one", "once", "two", "twice", "three", "thrice",
+			"four", "some", "five", "six", "seven", "eight", "nine", "ten", "eleven",
+			"twelve", "thirteen", "fourteen", "fifteen", "sixteen", "seventeen",
+			"eighteen", "nineteen", "twenty", "thirty", "forty", "all", "every", "everything" };
+		int values[] = { 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14,
+			15, 16, 17, 18, 19, 20, 30, 40, INFINITY, INFINITY, INFINITY };
+		for( int i=0;i<names.length;i++ )
+			numberWords.put( names[i], new Integer(values[i]) );
+	}
+	
 	/**
 	* A not terribly sophisticated way of turning words into
 	*  numbers.
 	* @param word the word to convert
-	* @returns the int value of the word.
+	* @returns the int value of the word, or 0 if it isn't a number.
 	*/
 	public static int getNumberFromWord(String word)
 	{
-        word = word.toLowerCase();
-		if( "zero".equals(word) )			return 0;
-		else if( "one".equals(word) )		return 1;
-		else if( "once".equals(word) )		return 1;
-		else if( "two".equals(word) )		return 2;
-		else if( "twice".equals(word) )		return 2;
-		else if( "three".equals(word) )		return 3;
-		else if( "thrice".equals(word) )	return 3;
-		else if( "four".equals(word) )		return 4;
-		else if( "some".equals(word) )		return 4;
-		else if( "five".equals(word) )		return 5;
-		else if( "six".equals(word) )		return 6;
-		else if( "seven".equals(word) )		return 7;
-		else if( "eight".equals(word) )		return 8;
-		else if( "nine".equals(word) )		return 9;
-		else if( "ten".equals (word) )		return 10;
-		else if( "eleven".equals(word) )	return 11;
-		else if( "twelve".equals(word) )	return 12;
-		else if( "thirteen".equals(word) )	return 13;
-		else if( "fourteen".equals(word) )	return 14;
-		else if( "fifteen".equals(word) )	return 15;
-		else if( "sixteen".equals(word) )	return 16;
-		else if( "seventeen".equals(word) )	return 17;
-		else if( "eighteen".equals(word) )	return 18;
-		else if( "nineteen".equals(word) )	return 19;
-		else if( "twenty".equals(word) )	return 20;
-		else if( "thirty".equals(word) )	return 30;
-		else if( "forty".equals(word) )		return 40;
-		
-		else if( "all".equals(word) )		return INFINITY;
-		else if( "every".equals(word) )		return INFINITY;
-		else if( "everything".equals(word) )return INFINITY;
-		
-		return 0;
+		Integer result = (Integer)numberWords.get(word.toLowerCase());
+		return result != null ? result.intValue() : 0;
 	}
 	
     /** 
@@ -624,7 +776,7 @@ public class Vocabulary implements Serializable
 	*/
 	public int getWordsSize()
 	{
-		return words.size();
+		return getSnapshot().words.size();
 	}
 	
 	/**
@@ -634,7 +786,7 @@ public class Vocabulary implements Serializable
 	*/
 	public int getVerbsSize()
 	{
-		return verbs.size();
+		return getSnapshot().verbs.size();
 	}
 	
 	/**
@@ -644,7 +796,7 @@ public class Vocabulary implements Serializable
 	*/
 	public int getAdverbsSize()
 	{
-		return adverbs.size();
+		return getSnapshot().adverbs.size();
 	}
 	
 	/**
@@ -654,7 +806,7 @@ public class Vocabulary implements Serializable
 	*/
 	public int getNounsSize()
 	{
-		return nouns.size();
+		return getSnapshot().nouns.size();
 	}
 	
 	/**
@@ -664,7 +816,7 @@ public class Vocabulary implements Serializable
 	*/
 	public int getAdjectivesSize()
 	{
-		return adjectives.size();
+		return getSnapshot().adjectives.size();
 	}
 	
 	/**
@@ -674,7 +826,7 @@ public class Vocabulary implements Serializable
 	*/
 	public int getRawVerbsSize()
 	{
-		return rawVerbs.size();
+		return getSnapshot().rawVerbs.size();
 	}
    
 }
@@ -235,6 +235,17 @@ public class Word
     		return false;
     }
     
+    /**
+    * Returns a copy of this word
+    */
+    Word copy()
+    {
+        Word result = new Word(value, wordtype);
+        result.numvalue = numvalue;
+        result.possiblewordtypes = possiblewordtypes;
+        return result;
+    }
+    
     /**
     *
     */
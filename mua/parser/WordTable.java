@@ -0,0 +1,125 @@
+// $Id$
+// Read-only table of words, for vocabulary snapshots
+// Copyright (C) Ogalala Ltd <www.ogalala.com>
+
+package com.ogalala.mua;
+
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+
+/**
+* A table of values keyed by word, which can't be changed once it is made.
+* <p>
+* The words and values are kept in two arrays, hashed with open addressing,
+* so looking up a word takes no lock and makes no objects. A table is made
+* by copying a Dictionary (see Vocabulary.Snapshot), and is thrown away
+* rather than changed when the vocabulary changes.
+* <p>
+* Synchronization: none needed, the table is immutable.
+*/
+final class WordTable
+{
+	/** The words and their values. The size is a power of two, at least
+	*  twice the number of words. Null words are empty slots.
+	*/
+	private String keys[];
+	private Object values[];
+
+	/** The number of words
+	*/
+	private int size;
+
+	/**
+	* Copy a dictionary of words
+	*
+	* @param source				a dictionary whose keys are all Strings
+	*/
+	WordTable(Dictionary source)
+	{
+		size = source.size();
+		int n = 16;
+		while (n < size * 2)
+			n <<= 1;
+		keys = new String[n];
+		values = new Object[n];
+
+		int mask = n - 1;
+		Enumeration e = source.keys();
+		while (e.hasMoreElements())
+		{
+			String key = (String)e.nextElement();
+			int i = hash(key) & mask;
+			while (keys[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = key;
+			values[i] = source.get(key);
+		}
+	}
+
+	/**
+	* Get the value of a word
+	*
+	* @param key				the word, which must match exactly
+	* @returns					the value, or null if the word isn't in the table
+	*/
+	Object get(String key)
+	{
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; keys[i] != null; i = (i + 1) & mask)
+		{
+			if (keys[i].equals(key))
+				return values[i];
+		}
+		return null;
+	}
+
+	/**
+	* Returns the number of words in the table
+	*/
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	* Enumerate the words in the table
+	*/
+	Enumeration keys()
+	{
+		return new Enumeration()
+		{
+			private int i = nextKey(0);
+
+			public boolean hasMoreElements()
+			{
+				return i < keys.length;
+			}
+
+			public Object nextElement()
+			{
+				if (i >= keys.length)
+					throw new NoSuchElementException("WordTable");
+				Object result = keys[i];
+				i = nextKey(i + 1);
+				return result;
+			}
+		};
+	}
+
+	/**
+	* Returns the index of the first word at or after 'i', or the table size if there is none
+	*/
+	private int nextKey(int i)
+	{
+		while (i < keys.length && keys[i] == null)
+			i++;
+		return i;
+	}
+
+	private static int hash(String key)
+	{
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
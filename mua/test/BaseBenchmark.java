@@ -0,0 +1,172 @@
+// $Id$
+// Benchmark for saving worlds with a base image of their frozen atoms
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.mua.*;
+
+/** Compare the first save of a frozen world, which writes the base image
+    of its frozen atoms, with the saves which follow, which only write the
+    dynamic atoms and the frozen atoms which have changed.
+    <p>
+    The benchmark builds a world with a few kinds of thing and a number of
+    rooms, with descriptions, which are frozen, and dynamic things in the
+    rooms. It saves the world, then makes a number of rounds of changes to
+    a few of the things, moving some of them between rooms, saving after
+    each, and reports the time and the size of the snapshot and the image
+    for the first save and for the average save after it. Finally the
+    world is loaded and checked against the original.
+    <p>
+    Usage: BASEBENCHMARK [rooms [things [changes_per_round [rounds]]]]
+*/
+public class BaseBenchmark
+    {
+    /** Number of kinds of thing
+    */
+    private static final int KINDS = 10;
+
+    /** Name of the world files
+    */
+    private static final String NAME = "base_benchmark";
+
+    public static void main(String args[])
+        throws Exception
+        {
+        int roomCount = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int thingCount = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int changes = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        System.out.println("BaseBenchmark: " + roomCount + " frozen rooms, " + thingCount + " things, " + rounds +
+                " rounds of " + changes + " changes");
+
+        // The frozen world
+        World world = WorldFactory.createWorld(NAME, null);
+        Atom thing = world.getAtom(AtomDatabase.THING_ID);
+        Atom container = world.getAtom(AtomDatabase.CONTAINER_ID);
+        world.getAtomDatabase().beginBatch();
+        for (int i = 0; i < KINDS; i++)
+            {
+            Atom kind = world.newAtom("kind_" + i, thing);
+            kind.setInt("weight", i * 10);
+            kind.setString("description", "This is a thing of kind " + i + ".");
+            }
+        Atom rooms[] = new Atom[roomCount];
+        for (int i = 0; i < roomCount; i++)
+            {
+            rooms[i] = world.newThing("room_" + i, container);
+            rooms[i].setString("name", "Room " + i);
+            rooms[i].setString("description", "This is room " + i + ", one of many rooms just like it.");
+            }
+        world.getAtomDatabase().endBatch();
+        world.freeze();
+
+        // The dynamic things
+        Atom things[] = new Atom[thingCount];
+        world.getAtomDatabase().beginBatch();
+        for (int i = 0; i < thingCount; i++)
+            {
+            things[i] = world.newThing(null, world.getAtom("kind_" + i % KINDS));
+            things[i].setString("name", "thing " + i);
+            things[i].setInt("number", i);
+            world.moveAtom(things[i], rooms[i % roomCount]);
+            }
+        world.getAtomDatabase().endBatch();
+
+        // The first save writes the base image
+        long start = System.currentTimeMillis();
+        WorldFactory.saveWorld(world);
+        System.out.println("First save: " + (System.currentTimeMillis() - start) + "ms, " + getSize(WorldFactory.SUFFIX) /
+                1024 + "KB and base image " + getSize(WorldFactory.BASE_SUFFIX) / 1024 + "KB");
+
+        // Rounds of changes. The time doesn't include making the changes.
+        Random random = new Random(0);
+        long millis = 0;
+        long bytes = 0;
+        for (int round = 0; round < rounds; round++)
+            {
+            for (int i = 0; i < changes; i++)
+                {
+                Atom atom = things[choose(random, thingCount)];
+                if (i % 10 == 0)
+                    world.moveAtom(atom, rooms[choose(random, roomCount)]);
+                else
+                    atom.setInt("number", round);
+                }
+            start = System.currentTimeMillis();
+            WorldFactory.saveWorld(world);
+            millis += System.currentTimeMillis() - start;
+            bytes += getSize(WorldFactory.SUFFIX);
+            }
+        System.out.println("Later saves: " + (float)millis / rounds + "ms, " + bytes / rounds / 1024 +
+                "KB on average; base image " + getSize(WorldFactory.BASE_SUFFIX) / 1024 + "KB");
+
+        // Load the world
+        start = System.currentTimeMillis();
+        World loaded = WorldFactory.loadWorld(NAME, null);
+        System.out.println("Loaded in " + (System.currentTimeMillis() - start) + "ms");
+        check(world, loaded);
+
+        new File(NAME + WorldFactory.SUFFIX).delete();
+        new File(NAME + WorldFactory.BASE_SUFFIX).delete();
+        System.exit(0);
+        }
+
+    /** Get the size of one of the world's files
+    */
+    private static long getSize(String suffix)
+        {
+        return new File(NAME + suffix).length();
+        }
+
+    /** Check a loaded world has the same atoms, with the same parents,
+        containers and fields, as the original
+    */
+    private static void check(World original, World loaded)
+        {
+        if (original.getAtomDatabase().size() != loaded.getAtomDatabase().size())
+            {
+            System.out.println("*** Loaded world has a different number of atoms");
+            return;
+            }
+        Enumeration atoms = original.getAtomDatabase().getAtoms();
+        while (atoms.hasMoreElements())
+            {
+            Atom atom = (Atom)atoms.nextElement();
+            Atom copy = loaded.getAtom(atom.getID());
+            if (copy == null || !describe(atom).equals(describe(copy)))
+                {
+                System.out.println("*** Loaded world differs at " + atom.getID());
+                return;
+                }
+            }
+        }
+
+    /** Describe an atom's parents, container and fields
+    */
+    private static String describe(Atom atom)
+        {
+        StringBuffer buf = new StringBuffer(atom.getClass().getName());
+        Enumeration parents = atom.getParents();
+        while (parents.hasMoreElements())
+            buf.append(" " + ((Atom)parents.nextElement()).getID());
+        if (atom.getContainer() != null)
+            buf.append(" in " + atom.getContainer().getID());
+        Enumeration names = atom.getFieldNames();
+        while (names.hasMoreElements())
+            {
+            String name = names.nextElement().toString();
+            buf.append(" " + name + "=" + AtomData.toString(atom.getField(name)));
+            }
+        return buf.toString();
+        }
+
+    /** Choose a number from 0 to n - 1
+    */
+    private static int choose(Random random, int n)
+        {
+        return (random.nextInt() & 0x7fffffff) % n;
+        }
+    }
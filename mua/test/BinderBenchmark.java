@@ -0,0 +1,179 @@
+// $Id$
+// Benchmark for the binder's set operations
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.util.*;
+import com.ogalala.util.*;
+import com.ogalala.mua.*;
+
+/** Compare binding noun phrases with AtomSets against the old binding,
+    which intersected Vectors with nested loops, in rooms of 10 to 10,000
+    things.
+    <p>
+    Each room holds things made from a few nouns, half of them red. For
+    each room the benchmark binds "red <noun>" for every noun, with every
+    match wanted, first the old way and then with 'NounPhrase.bindNounPhrase',
+    and checks that both find the same things. The old way is slow enough
+    in big rooms that it is timed with fewer noun phrases.
+    <p>
+    Usage: BINDERBENCHMARK [max_room_size]
+*/
+public class BinderBenchmark
+    {
+    /** Number of nouns
+    */
+    private static final int NOUNS = 8;
+
+    /** Roughly how many things are bound in each test, which sets how many
+        times each room is bound
+    */
+    private static final int WORK = 200000;
+
+    /** The old binding takes time proportional to the square of the room
+        size, so it is only repeated this many times for each noun...
+    */
+    private static final int OLD_WORK = 20000000;
+
+    /** ...and in rooms bigger than this, only tried with one noun
+    */
+    private static final int OLD_ALL_NOUNS = 1000;
+
+    private World world;
+    private Atom thing;
+    private Atom nouns[] = new Atom[NOUNS];
+
+    public BinderBenchmark(int maxRoomSize)
+        throws WorldException
+        {
+        world = WorldFactory.createWorld("binder_benchmark", null);
+        thing = world.getAtom(AtomDatabase.THING_ID);
+        Atom portable = world.newAtom("portable", thing);
+        for (int i = 0; i < NOUNS; i++)
+            nouns[i] = world.newAtom(null, portable);
+
+        for (int roomSize = 10; roomSize <= maxRoomSize; roomSize *= 10)
+            testRoom(roomSize);
+        }
+
+    public static void main(String args[])
+        throws WorldException
+        {
+        int maxRoomSize = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        System.out.println("BinderBenchmark: rooms of up to " + maxRoomSize + " things");
+        new BinderBenchmark(maxRoomSize);
+        }
+
+    /** Build a room and time binding noun phrases against it
+    */
+    private void testRoom(int roomSize)
+        {
+        // Build the room
+        Atom room = world.newThing(null, world.getAtom(AtomDatabase.CONTAINER_ID));
+        Vector contents = new Vector();
+        for (int i = 0; i < roomSize; i++)
+            {
+            Atom item = world.newThing(null, nouns[i % NOUNS]);
+            item.setInt("red", (i / NOUNS) % 2 == 0 ? 100 : 0);
+            world.moveAtom(item, room);
+            contents.addElement(item);
+            }
+        int repeat = Math.max(1, WORK / roomSize);
+
+        // The old way
+        int oldRepeat = (int)Math.max(1, Math.min(repeat, OLD_WORK / ((long)roomSize * roomSize)));
+        int oldNouns = roomSize <= OLD_ALL_NOUNS ? NOUNS : 1;
+        int found = 0;
+        long start = System.currentTimeMillis();
+        for (int r = 0; r < oldRepeat; r++)
+            {
+            for (int i = 0; i < oldNouns; i++)
+                found += oldBind(nouns[i], "red", contents).size();
+            }
+        report(roomSize, "old", System.currentTimeMillis() - start, oldRepeat * oldNouns, found);
+
+        // With AtomSets
+        found = 0;
+        start = System.currentTimeMillis();
+        for (int r = 0; r < repeat; r++)
+            {
+            AtomSet seed = new AtomSet(contents.elements());
+            for (int i = 0; i < NOUNS; i++)
+                {
+                NounPhrase np = new NounPhrase(nouns[i], roomSize, 0);
+                np.addAdjective("red");
+                Enumeration e = np.bindNounPhrase(null, seed);
+                while (e.hasMoreElements())
+                    {
+                    e.nextElement();
+                    found++;
+                    }
+                }
+            }
+        report(roomSize, "AtomSet", System.currentTimeMillis() - start, repeat * NOUNS, found);
+
+        // Check the results are the same
+        for (int i = 0; i < oldNouns; i++)
+            {
+            NounPhrase np = new NounPhrase(nouns[i], roomSize, 0);
+            np.addAdjective("red");
+            Vector v = (Vector)AtomData.enumToVector(np.bindNounPhrase(null, new AtomSet(contents.elements())));
+            if (!v.equals(oldBind(nouns[i], "red", contents)))
+                System.out.println("*** Results differ for noun " + i);
+            }
+        }
+
+    /** Bind a noun and an adjective against 'seed' as the binder used to:
+        filter the seed, then intersect the result with the candidates so far
+        by testing every pair.
+    */
+    private static Vector oldBind(Atom noun, String adjective, Vector seed)
+        {
+        Vector candidates = intersect(seed, filterDescendants(noun, seed));
+        PropertyName name = PropertyName.get(adjective);
+        Vector v = new Vector();
+        for (int i = 0; i < seed.size(); i++)
+            {
+            Atom atom = (Atom)seed.elementAt(i);
+            Object value = atom.getRawProperty(name);
+            if (value != null && AtomData.toInt(value) >= BinderEnumeration.isnessThreshold)
+                v.addElement(atom);
+            }
+        return intersect(candidates, v);
+        }
+
+    private static Vector filterDescendants(Atom noun, Vector seed)
+        {
+        Vector result = new Vector();
+        for (int i = 0; i < seed.size(); i++)
+            {
+            Atom atom = (Atom)seed.elementAt(i);
+            if (atom.isDescendantOf(noun))
+                result.addElement(atom);
+            }
+        return result;
+        }
+
+    private static Vector intersect(Vector beta, Vector alpha)
+        {
+        Vector result = new Vector();
+        for (int i = 0; i < alpha.size(); i++)
+            {
+            Atom a = (Atom)alpha.elementAt(i);
+            for (int j = 0; j < beta.size(); j++)
+                {
+                Atom b = (Atom)beta.elementAt(j);
+                if (b.isDescendantOf(a))
+                    result.addElement(b);
+                }
+            }
+        return result;
+        }
+
+    private static void report(int roomSize, String test, long millis, int binds, int found)
+        {
+        System.out.println(roomSize + " things, " + test + ": " + millis + "ms for " + binds +
+                " noun phrases (" + (millis * 1000 / binds) + "us each), " + found + " bound");
+        }
+    }
@@ -0,0 +1,115 @@
+// $Id$
+// Test that the binder finds things named by the nouns that are the things themselves
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.util.*;
+import com.ogalala.util.*;
+import com.ogalala.mua.*;
+
+/** Bind noun phrases the way the parser does for a player in a room, and
+    check what they bind to.
+    <p>
+    A character is usually given a noun which is the character itself, e.g.
+    <pre>
+    !mobile steve male person
+    !noun steve "steve"
+    </pre>
+    so "look at steve" gives the binder a noun phrase whose noun is a Thing.
+    Things have no descendants but themselves, so they are not in the
+    containers' contents indexes, and the binder must not look them up
+    there. The test binds such a noun phrase from the room and from the
+    player's inventory, and binds a noun which is a type, to check that the
+    index is still used where it can be.
+    <p>
+    Usage: BINDERTEST
+*/
+public class BinderTest
+    {
+    /** A count big enough to want every match
+    */
+    private static final int ALL = 100;
+
+    private World world;
+    private Parser parser;
+    private Atom player;
+    private int failures = 0;
+
+    public BinderTest()
+        throws WorldException
+        {
+        world = WorldFactory.createWorld("binder_test", null);
+        parser = new Parser(world);
+        Atom thing = world.getAtom(AtomDatabase.THING_ID);
+        Atom container = world.getAtom(AtomDatabase.CONTAINER_ID);
+        Atom mobile = world.getAtom(AtomDatabase.MOBILE_ID);
+
+        // The properties the traversals use, as set by the inner core script
+        thing.setInt("visibility", 50);
+        thing.setBool("is_closed", false);
+        thing.setBool("is_transparent", false);
+        container.setInt("concealment", 0);
+        mobile.setInt("visibility", 100);
+        mobile.setInt("detection_skill", 250);
+
+        Atom person = world.newAtom("person", mobile);
+        Atom portable = world.newAtom("portable", thing);
+        Atom key = world.newAtom("key", portable);
+        key.setInt("visibility", 100);
+
+        Atom room = world.newThing(null, container);
+        player = world.newThing("player", person);
+        world.moveAtom(player, room);
+        Atom steve = world.newThing("steve", person);
+        world.moveAtom(steve, room);
+        Atom brass = world.newThing(null, key);
+        world.moveAtom(brass, room);
+        Atom iron = world.newThing(null, key);
+        world.moveAtom(iron, player);
+
+        // "look at steve"
+        check("steve in the room", steve, VerbTemplate.SEARCH_CONTAINER | VerbTemplate.LOOK_SEARCH, new Atom[] { steve });
+
+        // "look at brass key", which is a Thing noun for a portable
+        check("a thing in the room", brass, VerbTemplate.SEARCH_CONTAINER | VerbTemplate.LOOK_SEARCH, new Atom[] { brass });
+
+        // ...and in the inventory
+        check("a thing carried", iron, VerbTemplate.SEARCH_INVENTORY, new Atom[] { iron });
+        check("a thing not carried", brass, VerbTemplate.SEARCH_INVENTORY, new Atom[0]);
+
+        // "look at keys", which is looked up in the index
+        check("keys", key, VerbTemplate.SEARCH_CONTAINER | VerbTemplate.SEARCH_INVENTORY | VerbTemplate.LOOK_SEARCH,
+                new Atom[] { iron, brass });
+
+        System.out.println(failures == 0 ? "BinderTest: passed" : "BinderTest: " + failures + " failed");
+        }
+
+    public static void main(String args[])
+        throws WorldException
+        {
+        new BinderTest();
+        }
+
+    /** Bind a noun phrase for 'noun', searching where 'argument' says, and
+        check it binds to 'expected' (in any order)
+    */
+    private void check(String test, Atom noun, int argument, Atom expected[])
+        {
+        NounPhrase np = new NounPhrase(noun, ALL, argument);
+        ParserEvent event = new ParserEvent(parser, world, player, "look", np, null, null);
+        Vector bound = new Vector();
+        Enumeration e = event.getBindings();
+        while (e.hasMoreElements())
+            bound.addElement(((Event)e.nextElement()).getCurrent());
+
+        boolean ok = bound.size() == expected.length;
+        for (int i = 0; ok && i < expected.length; i++)
+            ok = bound.contains(expected[i]);
+        if (!ok)
+            {
+            failures++;
+            System.out.println("*** " + test + ": bound " + bound.size() + " atoms, expected " + expected.length);
+            }
+        }
+    }
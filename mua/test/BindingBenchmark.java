@@ -0,0 +1,149 @@
+// $Id$
+// Benchmark for noun binding and descendant tests
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.util.*;
+import com.ogalala.mua.*;
+
+/** Build a synthetic world and time the operations used by the binder.
+    <p>
+    The world has a tree of noun atoms under 'portable', and a room
+    containing things made from the leaf nouns. The rest of the world's
+    atoms are placed in Limbo so the database has the requested size.
+    <p>
+    Usage: BINDINGBENCHMARK [atoms [room_size]]
+*/
+public class BindingBenchmark
+    {
+    /** Number of noun atoms in each tier of the noun tree
+    */
+    private static final int BRANCHING = 8;
+
+    /** Depth of the noun tree
+    */
+    private static final int TIERS = 3;
+
+    /** Number of times each test is repeated
+    */
+    private static final int REPEAT = 20;
+
+    private World world;
+    private Atom portable;
+    private Vector nouns = new Vector();
+    private Vector leafNouns = new Vector();
+    private Vector roomContents = new Vector();
+
+    public BindingBenchmark(int atomCount, int roomSize)
+        throws WorldException
+        {
+        long start = System.currentTimeMillis();
+        buildWorld(atomCount, roomSize);
+        report("Build " + world.size() + " atoms", System.currentTimeMillis() - start, 1);
+
+        testDescendants();
+        testBinding();
+        }
+
+    public static void main(String args[])
+        throws WorldException
+        {
+        int atomCount = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int roomSize = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        System.out.println("BindingBenchmark: " + atomCount + " atoms, " + roomSize + " in room");
+        new BindingBenchmark(atomCount, roomSize);
+        }
+
+    /** Create the world, the noun tree and the things
+    */
+    private void buildWorld(int atomCount, int roomSize)
+        throws WorldException
+        {
+        world = WorldFactory.createWorld("binding_benchmark", null);
+        Atom thing = world.getAtom(AtomDatabase.THING_ID);
+        portable = world.newAtom("portable", thing);
+
+        // Make the noun tree
+        Vector tier = new Vector();
+        tier.addElement(portable);
+        for (int t = 0; t < TIERS; t++)
+            {
+            Vector nextTier = new Vector();
+            for (int i = 0; i < tier.size(); i++)
+                {
+                for (int j = 0; j < BRANCHING; j++)
+                    {
+                    Atom noun = world.newAtom(null, (Atom)tier.elementAt(i));
+                    nouns.addElement(noun);
+                    nextTier.addElement(noun);
+                    }
+                }
+            tier = nextTier;
+            }
+        leafNouns = tier;
+
+        // Make the room and fill it. Every leaf noun has red and non-red
+        //  items, so every noun phrase binds something.
+        roomSize = Math.max(roomSize, leafNouns.size() * 2);
+        Atom room = world.newThing("room", world.getAtom(AtomDatabase.CONTAINER_ID));
+        for (int i = 0; i < roomSize; i++)
+            {
+            Atom item = world.newThing(null, (Atom)leafNouns.elementAt(i % leafNouns.size()));
+            item.setInt("red", (i / leafNouns.size()) % 2 == 0 ? 100 : 0);
+            world.moveAtom(item, room);
+            roomContents.addElement(item);
+            }
+
+        // Pad the world out to the requested size
+        int i = 0;
+        while (world.size() < atomCount)
+            world.newThing(null, (Atom)leafNouns.elementAt(i++ % leafNouns.size()));
+        }
+
+    /** Test every item in the room against every noun
+    */
+    private void testDescendants()
+        {
+        long start = System.currentTimeMillis();
+        int found = 0;
+        for (int r = 0; r < REPEAT; r++)
+            {
+            for (int i = 0; i < nouns.size(); i++)
+                {
+                Atom noun = (Atom)nouns.elementAt(i);
+                for (int j = 0; j < roomContents.size(); j++)
+                    {
+                    if (((Atom)roomContents.elementAt(j)).isDescendantOf(noun))
+                        found++;
+                    }
+                }
+            }
+        long tests = (long)REPEAT * nouns.size() * roomContents.size();
+        report("isDescendantOf x " + tests + " (" + found + " true)", System.currentTimeMillis() - start, REPEAT);
+        }
+
+    /** Bind a noun phrase with one noun and one adjective against the room
+    */
+    private void testBinding()
+        {
+        long start = System.currentTimeMillis();
+        for (int r = 0; r < REPEAT; r++)
+            {
+            for (int i = 0; i < nouns.size(); i++)
+                {
+                NounPhrase np = new NounPhrase((Atom)nouns.elementAt(i), roomContents.size(), 0);
+                np.addAdjective("red");
+                np.bindNounPhrase(null, new ResettableEnumeration(roomContents));
+                }
+            }
+        report("Bind " + nouns.size() + " noun phrases", System.currentTimeMillis() - start, REPEAT);
+        }
+
+    private static void report(String test, long millis, int repeat)
+        {
+        System.out.println(test + ": " + millis + "ms total, " + (millis / repeat) + "ms per pass");
+        }
+    }
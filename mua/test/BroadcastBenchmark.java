@@ -0,0 +1,133 @@
+// $Id$
+// Benchmark for broadcasting output to a room
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.util.*;
+import com.ogalala.util.*;
+import com.ogalala.mua.*;
+
+/** Time broadcasts to rooms of increasing population.
+    <p>
+    Each room holds the given number of listeners (things with a watcher),
+    plus as many silent things, some open and closed boxes with listeners
+    inside, and a container holding more things. For each room the
+    benchmark times a broadcast when the room's audience is cached, a
+    broadcast after a thing has been moved into the room (so the audience
+    has to be worked out again), and a plain ListenEnumeration walk for
+    comparison.
+    <p>
+    Usage: BROADCASTBENCHMARK [max_population]
+*/
+public class BroadcastBenchmark
+    {
+    /** Number of broadcasts timed for each room
+    */
+    private static final int REPEAT = 1000;
+
+    /** Number of boxes in each room
+    */
+    private static final int BOXES = 10;
+
+    private World world;
+    private Atom thing;
+    private Atom container;
+
+    /** Total number of messages received by the watchers
+    */
+    private long received = 0;
+
+    public BroadcastBenchmark(int maxPopulation)
+        throws WorldException
+        {
+        world = WorldFactory.createWorld("broadcast_benchmark", null);
+        thing = world.getAtom(AtomDatabase.THING_ID);
+        container = world.getAtom(AtomDatabase.CONTAINER_ID);
+
+        for (int population = 10; population <= maxPopulation; population *= 3)
+            testRoom(population);
+        }
+
+    public static void main(String args[])
+        throws WorldException
+        {
+        int maxPopulation = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        System.out.println("BroadcastBenchmark: up to " + maxPopulation + " listeners");
+        new BroadcastBenchmark(maxPopulation);
+        }
+
+    /** Build a room and time broadcasts to it
+    */
+    private void testRoom(int population)
+        {
+        // Build the room
+        Atom room = world.newThing(null, container);
+        for (int i = 0; i < population; i++)
+            {
+            addListener(room);
+            world.moveAtom(world.newThing(null, thing), room);
+            }
+        for (int i = 0; i < BOXES; i++)
+            {
+            Atom box = world.newThing(null, container);
+            box.setBool("is_closed", i % 2 == 0);
+            world.moveAtom(box, room);
+            addListener(box);
+            }
+        Atom visitor = world.newThing(null, thing);
+        OutPkt out = new OutPkt("misc", "msg", "Someone shouts, \"Hello!\"");
+
+        // Cached audience
+        received = 0;
+        long start = System.currentTimeMillis();
+        for (int r = 0; r < REPEAT; r++)
+            room.output(out);
+        report(population, "cached", System.currentTimeMillis() - start, received);
+
+        // Audience rebuilt after each move
+        received = 0;
+        start = System.currentTimeMillis();
+        for (int r = 0; r < REPEAT; r++)
+            {
+            world.moveAtom(visitor, r % 2 == 0 ? room : world.getLimbo());
+            room.output(out);
+            }
+        report(population, "after move", System.currentTimeMillis() - start, received);
+
+        // Walk the room as the old broadcast did, without sending anything
+        int walked = 0;
+        start = System.currentTimeMillis();
+        for (int r = 0; r < REPEAT; r++)
+            {
+            Enumeration enum = new ListenEnumeration(room);
+            while (enum.hasMoreElements())
+                {
+                enum.nextElement();
+                walked++;
+                }
+            }
+        report(population, "ListenEnumeration walk", System.currentTimeMillis() - start, walked);
+        }
+
+    /** Make a thing with a counting watcher and put it in 'where'
+    */
+    private void addListener(Atom where)
+        {
+        Atom listener = world.newThing(null, thing);
+        listener.addWatcher(new Watcher(listener, false)
+            {
+            protected void doOutput(String msg, Event event)
+                {
+                received++;
+                }
+            });
+        world.moveAtom(listener, where);
+        }
+
+    private static void report(int population, String test, long millis, long count)
+        {
+        System.out.println(population + " listeners, " + test + ": " + millis + "ms for " + REPEAT +
+                " (" + (millis * 1000 / REPEAT) + "us each), " + count + " deliveries");
+        }
+    }
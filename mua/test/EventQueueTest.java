@@ -0,0 +1,243 @@
+// $Id$
+// Test what the event queue does with commands when it is full
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.util.*;
+import com.ogalala.mua.*;
+
+/** Fill the event queue with players' commands while its thread is held up,
+    and check what each of the queue's policies does with the commands which
+    don't fit:
+    <ul>
+    <li> drop oldest: the actor's own oldest command is dropped, or the
+        oldest command from the actor with most commands queued
+    <li> reject: the command is not queued
+    <li> block: the caller waits until there is room
+    </ul>
+    <p>
+    Usage: EVENTQUEUETEST
+*/
+public class EventQueueTest
+    {
+    /** How long to wait for the queue before giving up
+    */
+    private static final long TIMEOUT = 10000;
+
+    /** The commands run, in order
+    */
+    private static Vector noted = new Vector();
+
+    /** How many times the queue's thread has been held up, and let go
+    */
+    private static int holds = 0;
+    private static int releases = 0;
+
+    private World world;
+    private Atom alice;
+    private Atom bob;
+    private int failures = 0;
+
+    public EventQueueTest()
+        throws Exception
+        {
+        world = WorldFactory.createWorld("event_queue_test", null);
+        Atom thing = world.getAtom(AtomDatabase.THING_ID);
+        Atom player = world.newAtom("player", thing);
+        player.setAction("hold", new Hold());
+        player.setAction("note", new Note());
+        alice = world.newThing("alice", player);
+        bob = world.newThing("bob", player);
+        world.start();
+
+        testDropOldest();
+        testReject();
+        testBlock();
+
+        System.out.println(failures == 0 ? "EventQueueTest: passed" : "EventQueueTest: " + failures + " failed");
+        System.exit(0);
+        }
+
+    public static void main(String args[])
+        throws Exception
+        {
+        new EventQueueTest();
+        }
+
+    /** A full queue drops the actor's own oldest command, or else one from
+        the busiest actor
+    */
+    private void testDropOldest()
+        throws InterruptedException
+        {
+        world.setEventQueueLimit(3, World.QUEUE_DROP_OLDEST);
+        world.getEventQueueMetrics().resetCounters();
+        noted = new Vector();
+        hold();
+        for (int i = 1; i <= 4; i++)
+            check("drop oldest: alice " + i + " accepted", command(alice, "alice " + i));
+        check("drop oldest: bob 1 accepted", command(bob, "bob 1"));
+        release();
+        check("drop oldest: commands run", "[alice 3, alice 4, bob 1]", noted.toString());
+        check("drop oldest: 2 dropped", world.getEventQueueMetrics().getDropped() == 2);
+        }
+
+    /** A full queue rejects a command
+    */
+    private void testReject()
+        throws InterruptedException
+        {
+        world.setEventQueueLimit(2, World.QUEUE_REJECT);
+        world.getEventQueueMetrics().resetCounters();
+        noted = new Vector();
+        hold();
+        check("reject: alice 1 accepted", command(alice, "alice 1"));
+        check("reject: bob 1 accepted", command(bob, "bob 1"));
+        check("reject: alice 2 rejected", !command(alice, "alice 2"));
+        release();
+        check("reject: commands run", "[alice 1, bob 1]", noted.toString());
+        check("reject: 1 rejected", world.getEventQueueMetrics().getRejected() == 1);
+        check("reject: none dropped", world.getEventQueueMetrics().getDropped() == 0);
+        }
+
+    /** A full queue makes the caller wait for room
+    */
+    private void testBlock()
+        throws InterruptedException
+        {
+        world.setEventQueueLimit(1, World.QUEUE_BLOCK);
+        world.getEventQueueMetrics().resetCounters();
+        noted = new Vector();
+        hold();
+        check("block: alice 1 accepted", command(alice, "alice 1"));
+        Thread producer = new Thread()
+            {
+            public void run()
+                {
+                command(bob, "bob 1");
+                }
+            };
+        producer.start();
+        producer.join(500);
+        check("block: bob 1 waits", producer.isAlive());
+        check("block: 1 blocked", world.getEventQueueMetrics().getBlocked() == 1);
+        release();
+        producer.join(TIMEOUT);
+        check("block: bob 1 queued", !producer.isAlive());
+        waitForQueue();
+        check("block: commands run", "[alice 1, bob 1]", noted.toString());
+        }
+
+    /** Post a command to note 'text'
+        @return false if the command was rejected
+    */
+    private boolean command(Atom actor, String text)
+        {
+        Object args[] = { text };
+        return world.postCommand(world.newEvent(actor, "note", actor, args));
+        }
+
+    /** Hold up the queue's thread, and wait until it has got to the hold
+    */
+    private void hold()
+        throws InterruptedException
+        {
+        boolean held;
+        synchronized (EventQueueTest.class)
+            {
+            int hold = holds + 1;
+            world.postEvent(world.newEvent(alice, "hold", alice, null));
+            long end = System.currentTimeMillis() + TIMEOUT;
+            while (holds < hold && System.currentTimeMillis() < end)
+                EventQueueTest.class.wait(TIMEOUT);
+            held = holds >= hold;
+            }
+        check("queue held", held);
+        }
+
+    /** Let the queue's thread go, and wait for the commands on the queue
+    */
+    private void release()
+        throws InterruptedException
+        {
+        synchronized (EventQueueTest.class)
+            {
+            releases++;
+            EventQueueTest.class.notifyAll();
+            }
+        waitForQueue();
+        }
+
+    /** Wait until the events on the queue have run, by holding it up and
+        letting it go again
+    */
+    private void waitForQueue()
+        throws InterruptedException
+        {
+        hold();
+        synchronized (EventQueueTest.class)
+            {
+            releases++;
+            EventQueueTest.class.notifyAll();
+            }
+        }
+
+    /** Hold up the queue's thread until it is released
+    */
+    public static class Hold
+        extends Action
+        {
+        public boolean execute()
+            {
+            synchronized (EventQueueTest.class)
+                {
+                int hold = ++holds;
+                EventQueueTest.class.notifyAll();
+                while (releases < hold)
+                    {
+                    try {
+                        EventQueueTest.class.wait();
+                        }
+                    catch (InterruptedException e)
+                        {
+                        }
+                    }
+                }
+            return true;
+            }
+        }
+
+    /** Note the command's argument
+    */
+    public static class Note
+        extends Action
+        {
+        public boolean execute()
+            {
+            synchronized (EventQueueTest.class)
+                {
+                noted.addElement(event.getArg());
+                }
+            return true;
+            }
+        }
+
+    private void check(String test, boolean ok)
+        {
+        if (!ok)
+            {
+            failures++;
+            System.out.println("*** " + test);
+            }
+        }
+
+    private void check(String test, String expected, String result)
+        {
+        if (!expected.equals(result))
+            {
+            failures++;
+            System.out.println("*** " + test + ": " + result + ", expected " + expected);
+            }
+        }
+    }
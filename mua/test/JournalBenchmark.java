@@ -0,0 +1,234 @@
+// $Id$
+// Benchmark for the world journal
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.mua.*;
+
+/** Measure how fast changes can be recorded in a world's journal, and how
+    long a world takes to recover from it.
+    <p>
+    The benchmark builds a world of things in rooms, opens its journal,
+    then starts a number of threads which each make changes to the things:
+    mostly setting and clearing fields and moving things between rooms,
+    with a few things created and deleted. The journal syncs its file once for each batch it
+    writes, so the report gives the changes per second and per batch. Then
+    the world is "crashed" (closed without being saved), recovered from its
+    snapshot and journal, and checked against the original. The time to
+    load the snapshot by itself is given for comparison.
+    <p>
+    Usage: JOURNALBENCHMARK [things [threads [changes_per_thread]]]
+*/
+public class JournalBenchmark
+    {
+    /** Number of things in each room
+    */
+    private static final int ROOM_SIZE = 20;
+
+    /** Name of the world files
+    */
+    private static final String NAME = "journal_benchmark";
+
+    private static World world;
+    private static Atom things[];
+    private static Atom rooms[];
+
+    public static void main(String args[])
+        throws Exception
+        {
+        int thingCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int changes = args.length > 2 ? Integer.parseInt(args[2]) : 5000;
+        System.out.println("JournalBenchmark: " + thingCount + " things, " + threadCount + " threads, " +
+                changes + " changes each");
+
+        // Without the journal, for comparison
+        makeWorld(thingCount);
+        System.out.println("Made the changes without a journal in " + makeChanges(threadCount, changes) + "ms");
+
+        // With the journal, which isn't allowed to take a checkpoint. The
+        //  time includes waiting for the last batch to be written.
+        makeWorld(thingCount);
+        WorldJournal journal = WorldFactory.openJournal(world);
+        journal.setCheckpointSize(0);
+        long start = System.currentTimeMillis();
+        makeChanges(threadCount, changes);
+        journal.flush();
+        long millis = Math.max(System.currentTimeMillis() - start, 1);
+
+        long records = journal.getRecordCount();
+        long batches = Math.max(journal.getBatchCount(), 1);
+        System.out.println("Recorded " + records + " changes in " + millis + "ms: " + records * 1000 / millis +
+                " changes/sec, " + batches + " batches (" + records / batches + " changes/batch), journal " +
+                journal.getSize() / 1024 + "KB");
+
+        // Crash, and recover. Closing the journal stops its thread without
+        //  taking a checkpoint, so the world is left as it was last saved.
+        WorldFactory.closeJournal(world);
+
+        start = System.currentTimeMillis();
+        WorldFactory.loadWorld(NAME, null);
+        long loadMillis = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        World recovered = WorldFactory.recoverWorld(NAME, null);
+        System.out.println("Recovered in " + (System.currentTimeMillis() - start) + "ms (snapshot loaded in " +
+                loadMillis + "ms)");
+        check(world, recovered);
+
+        new File(NAME + WorldFactory.SUFFIX).delete();
+        new File(NAME + WorldFactory.JOURNAL_SUFFIX).delete();
+        }
+
+    /** Build a world
+    */
+    private static void makeWorld(int thingCount)
+        throws WorldException
+        {
+        world = WorldFactory.createWorld(NAME, null);
+        world.getAtomDatabase().beginBatch();
+        Atom thing = world.getAtom(AtomDatabase.THING_ID);
+        Atom container = world.getAtom(AtomDatabase.CONTAINER_ID);
+        things = new Atom[thingCount];
+        rooms = new Atom[(thingCount + ROOM_SIZE - 1) / ROOM_SIZE];
+        for (int i = 0; i < thingCount; i++)
+            {
+            if (i % ROOM_SIZE == 0)
+                {
+                rooms[i / ROOM_SIZE] = world.newThing(null, container);
+                rooms[i / ROOM_SIZE].setString("name", "Room " + i / ROOM_SIZE);
+                }
+            things[i] = world.newThing(null, thing);
+            things[i].setString("name", "thing " + i);
+            things[i].setInt("number", i);
+            world.moveAtom(things[i], rooms[i / ROOM_SIZE]);
+            }
+        world.getAtomDatabase().endBatch();
+        }
+
+    /** Make changes to the world from a number of threads
+        @return the time taken in milliseconds
+    */
+    private static long makeChanges(final int threadCount, final int changes)
+        throws InterruptedException
+        {
+        // New things would each make the AtomSorter visit the whole world,
+        //  which would take longer than recording the changes
+        world.getAtomDatabase().beginBatch();
+        long start = System.currentTimeMillis();
+        Thread threads[] = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++)
+            {
+            final int seed = i;
+            threads[i] = new Thread()
+                {
+                public void run()
+                    {
+                    makeChanges(seed, threadCount, changes);
+                    }
+                };
+            threads[i].start();
+            }
+        for (int i = 0; i < threadCount; i++)
+            threads[i].join();
+        long millis = System.currentTimeMillis() - start;
+        world.getAtomDatabase().endBatch();
+        return millis;
+        }
+
+    /** Make one thread's changes. Each thread changes its own share of the
+        things, so the result doesn't depend on how the threads run.
+    */
+    private static void makeChanges(int seed, int threadCount, int changes)
+        {
+        Random random = new Random(seed);
+        Atom thing = world.getAtom(AtomDatabase.THING_ID);
+        int share = things.length / threadCount;
+        for (int i = 0; i < changes; i++)
+            {
+            Atom atom = things[seed + choose(random, share) * threadCount];
+            switch (i % 32)
+                {
+                default:
+                    atom.setInt("number", i);
+                    break;
+                case 1:
+                case 11:
+                case 21:
+                    atom.setString("description", "Changed by thread " + seed + ", change " + i);
+                    break;
+                case 2:
+                case 12:
+                case 22:
+                    atom.clearField("description");
+                    break;
+                case 3:
+                case 13:
+                case 23:
+                    world.moveAtom(atom, rooms[choose(random, rooms.length)]);
+                    break;
+                case 30:
+                    Atom newThing = world.newThing(null, thing);
+                    newThing.setInt("number", i);
+                    world.moveAtom(newThing, rooms[choose(random, rooms.length)]);
+                    break;
+                case 31:
+                    Atom oldThing = world.newThing(null, thing);
+                    world.deleteAtom(oldThing);
+                    break;
+                }
+            }
+        }
+
+    /** Check a recovered world has the same atoms, with the same parents,
+        containers and fields, as the original
+    */
+    private static void check(World original, World loaded)
+        {
+        if (original.getAtomDatabase().size() != loaded.getAtomDatabase().size())
+            {
+            System.out.println("*** Recovered world has a different number of atoms");
+            return;
+            }
+        Enumeration atoms = original.getAtomDatabase().getAtoms();
+        while (atoms.hasMoreElements())
+            {
+            Atom atom = (Atom)atoms.nextElement();
+            Atom copy = loaded.getAtom(atom.getID());
+            if (copy == null || !describe(atom).equals(describe(copy)))
+                {
+                System.out.println("*** Recovered world differs at " + atom.getID());
+                return;
+                }
+            }
+        }
+
+    /** Describe an atom's parents, container and fields
+    */
+    private static String describe(Atom atom)
+        {
+        StringBuffer buf = new StringBuffer(atom.getClass().getName());
+        Enumeration parents = atom.getParents();
+        while (parents.hasMoreElements())
+            buf.append(" " + ((Atom)parents.nextElement()).getID());
+        if (atom.getContainer() != null)
+            buf.append(" in " + atom.getContainer().getID());
+        Enumeration names = atom.getFieldNames();
+        while (names.hasMoreElements())
+            {
+            String name = names.nextElement().toString();
+            buf.append(" " + name + "=" + AtomData.toString(atom.getField(name)));
+            }
+        return buf.toString();
+        }
+
+    /** Choose a number from 0 to n - 1
+    */
+    private static int choose(Random random, int n)
+        {
+        return (random.nextInt() & 0x7fffffff) % n;
+        }
+    }
@@ -0,0 +1,123 @@
+// $Id$
+// Test that a world serialized by older code still loads
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.mua.*;
+
+/** Load a world which was serialized before the atoms' fields, the event
+    queue and the timer changed form, and check it against the dynamic state
+    exported from it when it was saved.
+    <p>
+    The exported state is imported into a new world, which then holds what
+    the old code wrote. Each atom and timer event of that world must be in
+    the loaded world as well.
+    <p>
+    The world can't be kept in the source tree, as it is a snapshot of the
+    classes of the time. Make it with the older code, e.g.
+    <pre>
+    WorldFactory.saveWorld(world);
+    WorldFactory.exportState(world, name);
+    </pre>
+    <p>
+    Usage: LEGACYWORLDTEST world_name
+*/
+public class LegacyWorldTest
+    {
+    /** The line which ends each section of an exported state
+    */
+    private static final String DELIMITER = "@@";
+
+    private static int failures = 0;
+
+    public static void main(String args[])
+        throws Exception
+        {
+        if (args.length != 1)
+            {
+            System.out.println("Usage: LEGACYWORLDTEST world_name");
+            System.exit(1);
+            }
+        String name = args[0];
+
+        World world = null;
+        try {
+            world = WorldFactory.loadWorld(name, null);
+            }
+        catch (Exception e)
+            {
+            check("load " + name + ": " + e, false);
+            }
+        if (world != null)
+            {
+            World expected = WorldFactory.createWorld(name, null);
+            WorldFactory.importState(expected, name);
+
+            check("same number of atoms", world.getAtomDatabase().size() == expected.getAtomDatabase().size());
+            Enumeration atoms = expected.getAtomDatabase().getAtoms();
+            while (atoms.hasMoreElements())
+                {
+                Atom atom = (Atom)atoms.nextElement();
+                Atom loaded = world.getAtom(atom.getID());
+                check("same " + atom.getID(), loaded != null && describe(loaded).equals(describe(atom)));
+                }
+            Vector events = getTimerEvents(world);
+            Vector expectedEvents = getTimerEvents(expected);
+            check("same number of timer events", events.size() == expectedEvents.size());
+            for (int i = 0; i < expectedEvents.size(); i++)
+                check("timer event " + expectedEvents.elementAt(i), events.contains(expectedEvents.elementAt(i)));
+            }
+
+        System.out.println(failures == 0 ? "LegacyWorldTest: passed" : "LegacyWorldTest: " + failures + " failed");
+        System.exit(0);
+        }
+
+    /** Get the time and the timer events from a world's exported state,
+        where they follow the atoms
+    */
+    private static Vector getTimerEvents(World world)
+        throws IOException
+        {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        world.exportState(out);
+        BufferedReader in = new BufferedReader(new StringReader(out.toString()));
+        String line;
+        while ((line = in.readLine()) != null && !line.equals(DELIMITER))
+            ;
+        Vector result = new Vector();
+        while ((line = in.readLine()) != null && !line.equals(DELIMITER))
+            result.addElement(line);
+        return result;
+        }
+
+    private static void check(String test, boolean ok)
+        {
+        if (!ok)
+            {
+            failures++;
+            System.out.println("*** " + test);
+            }
+        }
+
+    /** Describe an atom's parents, container and fields
+    */
+    private static String describe(Atom atom)
+        {
+        StringBuffer buf = new StringBuffer(atom.getClass().getName());
+        Enumeration parents = atom.getParents();
+        while (parents.hasMoreElements())
+            buf.append(" " + ((Atom)parents.nextElement()).getID());
+        if (atom.getContainer() != null)
+            buf.append(" in " + atom.getContainer().getID());
+        Enumeration names = atom.getFieldNames();
+        while (names.hasMoreElements())
+            {
+            String name = names.nextElement().toString();
+            buf.append(" " + name + "=" + AtomData.toString(atom.getField(name)));
+            }
+        return buf.toString();
+        }
+    }
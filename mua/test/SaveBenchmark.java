@@ -0,0 +1,127 @@
+// $Id$
+// Benchmark for saving a world in the background
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.mua.*;
+
+/** Measure how long events are held back while a world is saved, and
+    check that the snapshot holds the world as it was when it was captured.
+    <p>
+    The benchmark builds a world of things in rooms, and saves it once,
+    waiting, for comparison: before snapshots were written in the
+    background, events were held back for all of that time. Then it starts
+    a save and, while the snapshot is being written, a thread changes the
+    things and moves them between rooms, makes new things and deletes some
+    of the old ones. The report gives the time events
+    were held back while the world was captured, the time taken to write
+    the snapshot, and the number of atoms copied because they changed.
+    Finally the snapshot is loaded and checked against the world as it was
+    before the changes.
+    <p>
+    Usage: SAVEBENCHMARK [things]
+*/
+public class SaveBenchmark
+    {
+    /** Number of things in each room
+    */
+    private static final int ROOM_SIZE = 20;
+
+    /** Number of things which may be deleted while the snapshot is written
+    */
+    private static final int DOOMED = 1000;
+
+    /** Name of the world files
+    */
+    private static final String NAME = "save_benchmark";
+
+    public static void main(String args[])
+        throws Exception
+        {
+        int thingCount = args.length > 0 ? Integer.parseInt(args[0]) : 190000;
+
+        final World world = WorldFactory.createWorld(NAME, null);
+        Atom thing = world.getAtom(AtomDatabase.THING_ID);
+        Atom container = world.getAtom(AtomDatabase.CONTAINER_ID);
+        final Atom things[] = new Atom[thingCount];
+        final Atom rooms[] = new Atom[(thingCount + ROOM_SIZE - 1) / ROOM_SIZE];
+        world.getAtomDatabase().beginBatch();
+        for (int i = 0; i < thingCount; i++)
+            {
+            if (i % ROOM_SIZE == 0)
+                {
+                rooms[i / ROOM_SIZE] = world.newThing(null, container);
+                rooms[i / ROOM_SIZE].setString("name", "Room " + i / ROOM_SIZE);
+                }
+            things[i] = world.newThing(null, thing);
+            things[i].setString("name", "thing " + i);
+            things[i].setInt("number", i);
+            world.moveAtom(things[i], rooms[i / ROOM_SIZE]);
+            }
+        world.getAtomDatabase().endBatch();
+        System.out.println("SaveBenchmark: " + world.getAtomDatabase().size() + " atoms");
+
+        // Saving and waiting
+        long start = System.currentTimeMillis();
+        WorldFactory.saveWorld(world);
+        System.out.println("Saved in " + (System.currentTimeMillis() - start) + "ms, " +
+                new File(NAME + WorldFactory.SUFFIX).length() / 1024 + "KB");
+
+        // Saving in the background, while the things change. The changes
+        //  begin once the world has been captured.
+        // New things would each make the AtomSorter visit the whole world
+        int atomCount = world.getAtomDatabase().size();
+        world.getAtomDatabase().beginBatch();
+        final SnapshotWriter writer = WorldFactory.startSave(world);
+        Thread changer = new Thread()
+            {
+            public void run()
+                {
+                Atom thing = world.getAtom(AtomDatabase.THING_ID);
+                int c = 0;
+                int deleted = 0;
+                while (!writer.isFinished())
+                    {
+                    Atom atom = things[c % (things.length - DOOMED)];
+                    if (c % 100 == 5)
+                        world.moveAtom(world.newThing(null, thing), rooms[(c / 100) % rooms.length]);
+                    else if (c % 100 == 50 && deleted < DOOMED)
+                        world.deleteAtom(things[things.length - 1 - deleted++]);
+                    else if (c % 10 == 0)
+                        world.moveAtom(atom, rooms[(c / 10) % rooms.length]);
+                    else
+                        atom.setInt("number", -1 - c);
+                    c++;
+                    }
+                System.out.println("Made " + c + " changes while the snapshot was written");
+                }
+            };
+        changer.start();
+        writer.waitFor();
+        changer.join();
+        world.getAtomDatabase().endBatch();
+        System.out.println("Events held back for " + writer.getCaptureMillis() + "ms; snapshot written in " +
+                writer.getWriteMillis() + "ms, " + writer.getCopyCount() + " atoms copied");
+
+        // The snapshot holds the things as they were before the changes
+        World loaded = WorldFactory.loadWorld(NAME, null);
+        if (loaded.getAtomDatabase().size() != atomCount)
+            System.out.println("*** Snapshot has " + loaded.getAtomDatabase().size() + " atoms, not " + atomCount);
+        for (int i = 0; i < thingCount; i++)
+            {
+            Atom copy = loaded.getAtom(things[i].getID());
+            if (copy == null || copy.getInt("number") != i ||
+                    copy.getContainer() == null || !copy.getContainer().getID().equals(rooms[i / ROOM_SIZE].getID()))
+                {
+                System.out.println("*** Snapshot differs at " + things[i].getID());
+                break;
+                }
+            }
+
+        new File(NAME + WorldFactory.SUFFIX).delete();
+        System.exit(0);
+        }
+    }
@@ -0,0 +1,166 @@
+// $Id$
+// Benchmark for saving and loading worlds
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.mua.*;
+
+/** Compare saving and loading worlds by serializing the World object, as
+    'WorldFactory' used to, against the snapshot format, in worlds of 1,000
+    to 100,000 things.
+    <p>
+    Each world has a few kinds of thing, each with some fields, and things
+    of each kind in a chain of rooms, with a name and a number of their own.
+    For each world the benchmark saves and loads it both ways, reports the
+    times and file sizes, and checks that both loaded worlds have the same
+    atoms and fields as the original. Serialization follows the references
+    between atoms recursively, so the old way may run out of stack in big
+    worlds.
+    <p>
+    Usage: SNAPSHOTBENCHMARK [max_things]
+*/
+public class SnapshotBenchmark
+    {
+    /** Number of kinds of thing
+    */
+    private static final int KINDS = 10;
+
+    /** Number of things in each room
+    */
+    private static final int ROOM_SIZE = 20;
+
+    /** Name of the world files
+    */
+    private static final String NAME = "snapshot_benchmark";
+
+    public static void main(String args[])
+        throws Exception
+        {
+        int maxThings = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        System.out.println("SnapshotBenchmark: worlds of up to " + maxThings + " things");
+        for (int things = 1000; things <= maxThings; things *= 10)
+            test(makeWorld(things), things);
+        new File(NAME + WorldFactory.SUFFIX).delete();
+        }
+
+    /** Build a world
+    */
+    private static World makeWorld(int things)
+        throws WorldException
+        {
+        World world = WorldFactory.createWorld(NAME, null);
+        world.getAtomDatabase().beginBatch();
+        Atom thing = world.getAtom(AtomDatabase.THING_ID);
+        Atom container = world.getAtom(AtomDatabase.CONTAINER_ID);
+        Atom kinds[] = new Atom[KINDS];
+        for (int i = 0; i < KINDS; i++)
+            {
+            kinds[i] = world.newAtom("kind_" + i, thing);
+            kinds[i].setInt("weight", i * 10);
+            kinds[i].setString("description", "This is a thing of kind " + i + ".");
+            kinds[i].setBool("portable", i % 2 == 0);
+            }
+
+        Atom room = null;
+        for (int i = 0; i < things; i++)
+            {
+            if (i % ROOM_SIZE == 0)
+                {
+                Atom lastRoom = room;
+                room = world.newThing(null, container);
+                room.setString("name", "Room " + i / ROOM_SIZE);
+                if (lastRoom != null)
+                    room.setAtom("previous", lastRoom);
+                }
+            Atom item = world.newThing(null, kinds[i % KINDS]);
+            item.setString("name", "thing " + i);
+            item.setInt("number", i);
+            world.moveAtom(item, room);
+            }
+        world.getAtomDatabase().endBatch();
+        return world;
+        }
+
+    /** Save and load a world both ways
+    */
+    private static void test(World world, int things)
+        throws Exception
+        {
+        String fileName = NAME + WorldFactory.SUFFIX;
+
+        // The old way
+        try {
+            long start = System.currentTimeMillis();
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+            out.writeObject(world);
+            out.close();
+            long saved = System.currentTimeMillis();
+            World loaded = WorldFactory.loadWorld(NAME, null);
+            report(things, "serialized", saved - start, System.currentTimeMillis() - saved, fileName);
+            check(world, loaded);
+            }
+        catch (StackOverflowError e)
+            {
+            System.out.println(things + " things, serialized: stack overflow");
+            }
+
+        // Snapshots
+        long start = System.currentTimeMillis();
+        WorldFactory.saveWorld(world);
+        long saved = System.currentTimeMillis();
+        World loaded = WorldFactory.loadWorld(NAME, null);
+        report(things, "snapshot", saved - start, System.currentTimeMillis() - saved, fileName);
+        check(world, loaded);
+        }
+
+    /** Check a loaded world has the same atoms, with the same parents,
+        containers and fields, as the original
+    */
+    private static void check(World original, World loaded)
+        {
+        if (original.getAtomDatabase().size() != loaded.getAtomDatabase().size())
+            {
+            System.out.println("*** Loaded world has a different number of atoms");
+            return;
+            }
+        Enumeration atoms = original.getAtomDatabase().getAtoms();
+        while (atoms.hasMoreElements())
+            {
+            Atom atom = (Atom)atoms.nextElement();
+            Atom copy = loaded.getAtom(atom.getID());
+            if (copy == null || !describe(atom).equals(describe(copy)))
+                {
+                System.out.println("*** Loaded world differs at " + atom.getID());
+                return;
+                }
+            }
+        }
+
+    /** Describe an atom's parents, container and fields
+    */
+    private static String describe(Atom atom)
+        {
+        StringBuffer buf = new StringBuffer(atom.getClass().getName());
+        Enumeration parents = atom.getParents();
+        while (parents.hasMoreElements())
+            buf.append(" " + ((Atom)parents.nextElement()).getID());
+        if (atom.getContainer() != null)
+            buf.append(" in " + atom.getContainer().getID());
+        Enumeration names = atom.getFieldNames();
+        while (names.hasMoreElements())
+            {
+            String name = names.nextElement().toString();
+            buf.append(" " + name + "=" + AtomData.toString(atom.getField(name)));
+            }
+        return buf.toString();
+        }
+
+    private static void report(int things, String test, long saveMillis, long loadMillis, String fileName)
+        {
+        System.out.println(things + " things, " + test + ": saved in " + saveMillis + "ms, loaded in " +
+                loadMillis + "ms, " + new File(fileName).length() / 1024 + "KB");
+        }
+    }
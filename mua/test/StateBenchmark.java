@@ -0,0 +1,175 @@
+// $Id$
+// Benchmark for saving a world's dynamic state
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.mua.*;
+
+/** Compare writing a world's whole dynamic state with writing only the
+    atoms which have changed since the last save.
+    <p>
+    The benchmark builds a world with a few kinds of thing, which are frozen,
+    and dynamic things in rooms. It saves the state in full, then makes a
+    number of rounds of changes to a few of the things, saving after each,
+    and reports the time and the bytes written for the full save and for
+    the average save of changes. The state file is compacted as it grows.
+    Finally the state is loaded into a new world and checked against the
+    original.
+    <p>
+    Usage: STATEBENCHMARK [things [changes_per_round [rounds]]]
+*/
+public class StateBenchmark
+    {
+    /** Number of kinds of thing
+    */
+    private static final int KINDS = 10;
+
+    /** Number of things in each room
+    */
+    private static final int ROOM_SIZE = 20;
+
+    /** Name of the world files
+    */
+    private static final String NAME = "state_benchmark";
+
+    public static void main(String args[])
+        throws Exception
+        {
+        int thingCount = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int changes = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        System.out.println("StateBenchmark: " + thingCount + " things, " + rounds + " rounds of " + changes +
+                " changes");
+
+        World world = makeWorld();
+        Atom container = world.getAtom(AtomDatabase.CONTAINER_ID);
+        Atom things[] = new Atom[thingCount];
+        Atom rooms[] = new Atom[(thingCount + ROOM_SIZE - 1) / ROOM_SIZE];
+        world.getAtomDatabase().beginBatch();
+        for (int i = 0; i < thingCount; i++)
+            {
+            if (i % ROOM_SIZE == 0)
+                {
+                rooms[i / ROOM_SIZE] = world.newThing(null, container);
+                rooms[i / ROOM_SIZE].setString("name", "Room " + i / ROOM_SIZE);
+                }
+            things[i] = world.newThing(null, world.getAtom("kind_" + i % KINDS));
+            things[i].setString("name", "thing " + i);
+            things[i].setInt("number", i);
+            world.moveAtom(things[i], rooms[i / ROOM_SIZE]);
+            }
+        world.getAtomDatabase().endBatch();
+
+        // The whole state
+        long start = System.currentTimeMillis();
+        WorldFactory.exportState(world, NAME);
+        StateFile stateFile = world.getStateFile();
+        System.out.println("Full save: " + (System.currentTimeMillis() - start) + "ms, " +
+                stateFile.getSize() / 1024 + "KB");
+
+        // Rounds of changes. The time doesn't include making the changes.
+        Random random = new Random(0);
+        long millis = 0;
+        long bytes = 0;
+        for (int round = 0; round < rounds; round++)
+            {
+            for (int i = 0; i < changes; i++)
+                {
+                Atom atom = things[choose(random, thingCount)];
+                if (i % 10 == 0)
+                    world.moveAtom(atom, rooms[choose(random, rooms.length)]);
+                else
+                    atom.setInt("number", round);
+                }
+            long size = stateFile.getSize();
+            start = System.currentTimeMillis();
+            WorldFactory.exportState(world, NAME);
+            millis += System.currentTimeMillis() - start;
+            bytes += Math.max(stateFile.getSize() - size, 0);
+            }
+        while (stateFile.isCompacting())
+            Thread.sleep(10);
+        System.out.println("Save of changes: " + (float)millis / rounds + "ms, " + bytes / rounds / 1024 +
+                "KB on average; " + stateFile.getCompactionCount() + " compactions, file " +
+                stateFile.getSize() / 1024 + "KB");
+
+        // Load the state into a new world
+        World loaded = makeWorld();
+        start = System.currentTimeMillis();
+        WorldFactory.importState(loaded, NAME);
+        System.out.println("Loaded in " + (System.currentTimeMillis() - start) + "ms");
+        check(world, loaded);
+
+        new File(NAME + WorldFactory.EXPORT_SUFFIX).delete();
+        System.exit(0);
+        }
+
+    /** Build a world with the kinds of thing, and freeze it
+    */
+    private static World makeWorld()
+        throws WorldException
+        {
+        World world = WorldFactory.createWorld(NAME, null);
+        Atom thing = world.getAtom(AtomDatabase.THING_ID);
+        for (int i = 0; i < KINDS; i++)
+            {
+            Atom kind = world.newAtom("kind_" + i, thing);
+            kind.setInt("weight", i * 10);
+            kind.setString("description", "This is a thing of kind " + i + ".");
+            }
+        world.freeze();
+        return world;
+        }
+
+    /** Check a loaded world has the same atoms, with the same parents,
+        containers and fields, as the original
+    */
+    private static void check(World original, World loaded)
+        {
+        if (original.getAtomDatabase().size() != loaded.getAtomDatabase().size())
+            {
+            System.out.println("*** Loaded world has a different number of atoms");
+            return;
+            }
+        Enumeration atoms = original.getAtomDatabase().getAtoms();
+        while (atoms.hasMoreElements())
+            {
+            Atom atom = (Atom)atoms.nextElement();
+            Atom copy = loaded.getAtom(atom.getID());
+            if (copy == null || !describe(atom).equals(describe(copy)))
+                {
+                System.out.println("*** Loaded world differs at " + atom.getID());
+                return;
+                }
+            }
+        }
+
+    /** Describe an atom's parents, container and fields
+    */
+    private static String describe(Atom atom)
+        {
+        StringBuffer buf = new StringBuffer(atom.getClass().getName());
+        Enumeration parents = atom.getParents();
+        while (parents.hasMoreElements())
+            buf.append(" " + ((Atom)parents.nextElement()).getID());
+        if (atom.getContainer() != null)
+            buf.append(" in " + atom.getContainer().getID());
+        Enumeration names = atom.getFieldNames();
+        while (names.hasMoreElements())
+            {
+            String name = names.nextElement().toString();
+            buf.append(" " + name + "=" + AtomData.toString(atom.getField(name)));
+            }
+        return buf.toString();
+        }
+
+    /** Choose a number from 0 to n - 1
+    */
+    private static int choose(Random random, int n)
+        {
+        return (random.nextInt() & 0x7fffffff) % n;
+        }
+    }
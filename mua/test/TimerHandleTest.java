@@ -0,0 +1,154 @@
+// $Id$
+// Test cancelling and rescheduling timer events through their handles
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.util.*;
+import com.ogalala.mua.*;
+
+/** Set timer events going in a running world, and check what their handles
+    do when the events are cancelled, rescheduled (by cancelling an event
+    and putting it on the timer again for a new time), cancelled after they
+    have been posted, and cancelled twice.
+    <p>
+    Usage: TIMERHANDLETEST
+*/
+public class TimerHandleTest
+    {
+    /** How long to wait for an event which should be posted
+    */
+    private static final long TIMEOUT = 5000;
+
+    /** The arguments of the events which have rung, in order
+    */
+    private static Vector rung = new Vector();
+
+    private World world;
+    private Atom bell;
+    private int failures = 0;
+
+    public TimerHandleTest()
+        throws Exception
+        {
+        world = WorldFactory.createWorld("timer_handle_test", null);
+        Atom thing = world.getAtom(AtomDatabase.THING_ID);
+        Atom clock = world.newAtom("clock", thing);
+        clock.setAction("ring", new Ring());
+        bell = world.newThing("bell", clock);
+        world.start();
+
+        // Cancel an event before it is due
+        TimerHandle handle = ring("cancelled", 200);
+        check("pending", handle.isPending());
+        check("cancelled", handle.cancel());
+        check("not pending once cancelled", !handle.isPending());
+        Thread.sleep(500);
+        check("cancelled event not rung", !rung.contains("cancelled"));
+
+        // Reschedule an event for sooner
+        long start = System.currentTimeMillis();
+        handle = ring("rescheduled", 10000);
+        check("rescheduled: first time cancelled", handle.cancel());
+        TimerHandle newHandle = world.timerEventMillis(handle.getEvent(), 100);
+        check("rescheduled: same event", newHandle.getEvent() == handle.getEvent());
+        check("rescheduled: old handle not pending", !handle.isPending());
+        check("rescheduled: new handle pending", newHandle.isPending());
+        check("rescheduled: rung", waitFor("rescheduled"));
+        check("rescheduled: rung at the new time", System.currentTimeMillis() - start < TIMEOUT);
+        Thread.sleep(300);
+        check("rescheduled: rung once", count("rescheduled") == 1);
+        check("rescheduled: not pending once rung", !newHandle.isPending());
+
+        // Cancel an event which has already been posted
+        handle = ring("fired", 50);
+        check("fired: rung", waitFor("fired"));
+        check("fired: not pending", !handle.isPending());
+        check("fired: can't be cancelled", !handle.cancel());
+        check("fired: rung once", count("fired") == 1);
+
+        // Cancel an event twice
+        handle = ring("twice", 10000);
+        check("twice: first cancel", handle.cancel());
+        check("twice: second cancel", !handle.cancel());
+        check("twice: no events left", world.cancelTimers(bell) == 0);
+
+        System.out.println(failures == 0 ? "TimerHandleTest: passed" : "TimerHandleTest: " + failures + " failed");
+        System.exit(0);
+        }
+
+    public static void main(String args[])
+        throws Exception
+        {
+        new TimerHandleTest();
+        }
+
+    /** Set the bell to ring with 'name' in 'delay' milliseconds
+    */
+    private TimerHandle ring(String name, long delay)
+        {
+        Object args[] = { name };
+        return world.timerEventMillis(world.newEvent(world.getAdmin(), "ring", bell, args), delay);
+        }
+
+    /** Wait until the bell has rung with 'name'
+        @return false if it didn't ring within TIMEOUT
+    */
+    private boolean waitFor(String name)
+        throws InterruptedException
+        {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        synchronized (TimerHandleTest.class)
+            {
+            while (!rung.contains(name))
+                {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0)
+                    return false;
+                TimerHandleTest.class.wait(wait);
+                }
+            }
+        return true;
+        }
+
+    /** How many times has the bell rung with 'name'?
+    */
+    private int count(String name)
+        {
+        int result = 0;
+        synchronized (TimerHandleTest.class)
+            {
+            for (int i = 0; i < rung.size(); i++)
+                {
+                if (rung.elementAt(i).equals(name))
+                    result++;
+                }
+            }
+        return result;
+        }
+
+    /** Note the event's argument
+    */
+    public static class Ring
+        extends Action
+        {
+        public boolean execute()
+            {
+            synchronized (TimerHandleTest.class)
+                {
+                rung.addElement(event.getArg());
+                TimerHandleTest.class.notifyAll();
+                }
+            return true;
+            }
+        }
+
+    private void check(String test, boolean ok)
+        {
+        if (!ok)
+            {
+            failures++;
+            System.out.println("*** " + test);
+            }
+        }
+    }
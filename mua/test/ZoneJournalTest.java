@@ -0,0 +1,203 @@
+// $Id$
+// Test that a journal written by zones' events replays to the same world
+// Copyright (C) Ogalala Ltd. <info@ogalala.com>
+
+package com.ogalala.test.mua;
+
+import java.io.*;
+import java.util.*;
+import com.ogalala.mua.*;
+
+/** Run events in several zones at once with the world's journal open, then
+    recover the world from its journal and check it against the original.
+    <p>
+    The journal commits each event as it finishes, so replaying it gives
+    the original world only if events which change the same atoms finish
+    in the order they made their changes. Each event bumps a counter on a
+    thing, moves it to a room in some zone, then bumps the counter on 
+    another thing, which may be in another zone, so the zones' events keep
+    changing the same fields of each other's atoms. Only the last change to
+    a field shows in the recovered world, so each few events use a counter
+    of their own.
+    <p>
+    Usage: ZONEJOURNALTEST [events]
+*/
+public class ZoneJournalTest
+    {
+    /** Name of the world files
+    */
+    private static final String NAME = "zone_journal_test";
+
+    /** The number of rooms, each in its own zone, and of things
+    */
+    private static final int ROOMS = 4;
+    private static final int THINGS = 100;
+    
+    /** The number of events which share a counter
+    */
+    private static final int COUNTER_EVENTS = 20;
+
+    private static Atom rooms[] = new Atom[ROOMS];
+    private static Atom things[] = new Atom[THINGS];
+    private static int finished = 0;
+    private static int failures = 0;
+
+    public static void main(String args[])
+        throws Exception
+        {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+
+        World world = WorldFactory.createWorld(NAME, null);
+        world.setZonesEnabled(true);
+        Atom thing = world.getAtom(AtomDatabase.THING_ID);
+        Atom container = world.getAtom(AtomDatabase.CONTAINER_ID);
+        Atom item = world.newAtom("item", thing);
+        item.setAction("shuffle", new Shuffle());
+        item.setAction("bump", new Bump());
+        for (int i = 0; i < ROOMS; i++)
+            {
+            rooms[i] = world.newThing(null, container);
+            if (i > 0)
+                rooms[i].setString("zone", "zone " + i);
+            }
+        for (int i = 0; i < THINGS; i++)
+            {
+            things[i] = world.newThing(null, item);
+            world.moveAtom(things[i], rooms[i % ROOMS]);
+            }
+
+        WorldJournal journal = WorldFactory.openJournal(world);
+        journal.setCheckpointSize(0);
+        world.start();
+        Random random = new Random(1);
+        for (int i = 0; i < events; i++)
+            {
+            Object counter[] = { "n" + i / COUNTER_EVENTS };
+            world.postEvent(world.newEvent(world.getAdmin(), "shuffle", things[choose(random, THINGS)], counter));
+            }
+        if (!waitFor(events, 60000))
+            check("events finished", false);
+            
+        // The last events commit just after they finish
+        Thread.sleep(500);
+        journal.flush();
+        world.stop();
+
+        // Crash, and recover
+        WorldFactory.closeJournal(world);
+        World recovered = WorldFactory.recoverWorld(NAME, null);
+        check("same number of atoms", world.getAtomDatabase().size() == recovered.getAtomDatabase().size());
+        Enumeration atoms = world.getAtomDatabase().getAtoms();
+        while (atoms.hasMoreElements())
+            {
+            Atom atom = (Atom)atoms.nextElement();
+            Atom copy = recovered.getAtom(atom.getID());
+            check("same " + atom.getID(), copy != null && describe(atom).equals(describe(copy)));
+            }
+
+        new File(NAME + WorldFactory.SUFFIX).delete();
+        new File(NAME + WorldFactory.JOURNAL_SUFFIX).delete();
+        System.out.println(failures == 0 ? "ZoneJournalTest: passed" : "ZoneJournalTest: " + failures + " failed");
+        System.exit(0);
+        }
+
+    /** Bump the thing's counter and move it to a room, then bump another 
+        thing's counter
+    */
+    public static class Shuffle
+        extends Action
+        {
+        public boolean execute()
+            {
+            try {
+                Random random = new Random();
+                world.callEvent(actor, "bump", current, event.getArgs());
+                world.moveAtom(current, rooms[choose(random, ROOMS)]);
+                world.callEvent(current, "bump", things[choose(random, THINGS)], event.getArgs());
+                }
+            catch (RuntimeException e)
+                {
+                // The event failed (e.g. on a zone deadlock), but its changes stand
+                finished();
+                throw e;
+                }
+            finished();
+            return true;
+            }
+        }
+
+    /** Add one to the thing's counter named by the event's argument, and 
+        note who did it
+    */
+    public static class Bump
+        extends Action
+        {
+        public boolean execute()
+            {
+            String counter = (String)event.getArg();
+            Object n = current.getField(counter);
+            Thread.yield();
+            current.setInt(counter, n == null ? 1 : ((Integer)n).intValue() + 1);
+            current.setField("bumped_by", actor);
+            return true;
+            }
+        }
+
+    private static synchronized void finished()
+        {
+        finished++;
+        ZoneJournalTest.class.notifyAll();
+        }
+
+    /** Wait until 'events' events have finished
+        @return false if they didn't finish within 'millis'
+    */
+    private static synchronized boolean waitFor(int events, long millis)
+        throws InterruptedException
+        {
+        long end = System.currentTimeMillis() + millis;
+        while (finished < events)
+            {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0)
+                return false;
+            ZoneJournalTest.class.wait(wait);
+            }
+        return true;
+        }
+
+    private static void check(String test, boolean ok)
+        {
+        if (!ok)
+            {
+            failures++;
+            System.out.println("*** " + test);
+            }
+        }
+
+    /** Describe an atom's parents, container and fields
+    */
+    private static String describe(Atom atom)
+        {
+        StringBuffer buf = new StringBuffer(atom.getClass().getName());
+        Enumeration parents = atom.getParents();
+        while (parents.hasMoreElements())
+            buf.append(" " + ((Atom)parents.nextElement()).getID());
+        if (atom.getContainer() != null)
+            buf.append(" in " + atom.getContainer().getID());
+        Enumeration names = atom.getFieldNames();
+        while (names.hasMoreElements())
+            {
+            String name = names.nextElement().toString();
+            buf.append(" " + name + "=" + AtomData.toString(atom.getField(name)));
+            }
+        return buf.toString();
+        }
+
+    /** Choose a number from 0 to n - 1
+    */
+    private static int choose(Random random, int n)
+        {
+        return (random.nextInt() & 0x7fffffff) % n;
+        }
+    }
@@ -374,7 +374,7 @@ public class HTMLAtomFormatter
 		Enumeration e = startAtom.getChildren();
 		
 		// start traversal
-		Atom.clearAllMarks();
+		AtomMarks marks = new AtomMarks();
 		
 		try
 		{
@@ -416,10 +416,10 @@ public class HTMLAtomFormatter
 				
 				// if the atom isn't marked, we need to process it and
 				// iterate its children
-				if ( !atom.isMarked() )
+				if ( !marks.isMarked(atom) )
 				{
 					// mark the atom (only traverse children once)
-					atom.setMark(true);
+					marks.setMark(atom, true);
 					
 					if ( atom.hasChildren() )
 					{
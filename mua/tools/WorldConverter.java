@@ -0,0 +1,54 @@
+// $Id$
+// Converts world databases to the snapshot format
+// Copyright (c) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.tools;
+
+import java.io.*;
+
+import com.ogalala.mua.*;
+
+/**
+ *  Converts world databases saved by serializing the
+ *  World object to the snapshot format, which is what
+ *  <tt>WorldFactory.saveWorld()</tt> now writes.
+ *  <p>
+ *  Each old file is kept, with <tt>WorldFactory.BACKUP_SUFFIX</tt>
+ *  added to its name. Worlds which are already
+ *  snapshots are left alone.
+ *  <p>
+ *  Usage: WORLDCONVERTER world_name...
+ */
+public class WorldConverter
+{
+	//----------------------------------------------------------------
+	//  main
+	//----------------------------------------------------------------
+
+	/**
+	 *  Convert each world named on the command line.
+	 */
+	public static void main( String[] args )
+	{
+		if ( args.length == 0 )
+		{
+			System.out.println( "Usage: WORLDCONVERTER world_name..." );
+			return;
+		}
+
+		for ( int i = 0; i < args.length; i++ )
+		{
+			try
+			{
+				if ( WorldFactory.convertWorld( args[i] ) )
+					System.out.println( args[i] + ": converted" );
+				else
+					System.out.println( args[i] + ": already a snapshot" );
+			}
+			catch ( IOException e )
+			{
+				System.out.println( args[i] + ": " + e.getMessage() );
+			}
+		}
+	}
+}
@@ -7,17 +7,36 @@ package com.ogalala.server;
 
 import java.net.*;
 import java.io.*;
+import java.util.*;
 import com.ogalala.util.*;
 
 /** Connection class, represents a logged-in user
+    <p>
+    Connections don't have threads of their own. The input and output of all
+    the connections is done by a few shared threads (see ConnectionPool).
+    Input is split into lines by one of the pool's reader threads and added
+    to the connection's input buffer, and the lines are passed to
+    'processInput' by one of the pool's handler threads. Output is added to
+    the connection's output buffer and written by one of the pool's writer
+    threads. Only a stream connection has a thread of its own, to read its
+    input.
 */
 abstract public class Connection
-    implements Runnable
 	{
     /** List of active connections
     */
     protected static ConnectionList connectionList = new ConnectionList();
 
+    /** The shared I/O threads, created when the first connection is started
+    */
+    private static ConnectionPool pool = null;
+
+    /** Numbers of reader, handler and writer threads in the pool
+    */
+    private static int poolReaders = ConnectionPool.DEFAULT_READERS;
+    private static int poolHandlers = ConnectionPool.DEFAULT_HANDLERS;
+    private static int poolWriters = ConnectionPool.DEFAULT_WRITERS;
+
     /** Back-pointer to server
     */
     protected Server server;
@@ -26,33 +45,83 @@ abstract public class Connection
     */
     private Socket socket = null;
 
-    /** Input thread
+    /** Priority for input threads
     */
-    private Thread inThread;
+	public static final int INPUT_PRIORITY = Thread.MAX_PRIORITY - 1;
 
-    /** Priority for input thread
+    /** Input timeout (milliseconds). Socket reads are only made when input
+        has arrived, or to check whether an idle connection has been closed,
+        so this is kept short. A read which times out throws InterruptedIOException.
     */
-	public static final int INPUT_PRIORITY = Thread.MAX_PRIORITY - 1;
+	public static final int INPUT_TIMEOUT = 1;
 
-    /** Output queue
+    /** Idle time (milliseconds) after which a socket is checked to see if it
+        has been closed by the client. Each check of an open socket holds up
+        its reader for INPUT_TIMEOUT, so this shouldn't be too short.
     */
-    private OutputQueue outQueue;
+    public static final int IDLE_TIMEOUT = 15 * 1000;
 
-    /** Input timeout (milliseconds). This is the time that input 
-        will block for before throwing InterruptedIOException
+    /** Longest line of input. Longer lines are split.
     */
-	public static final int INPUT_TIMEOUT = 1000;
+    public static final int MAX_LINE_LENGTH = 4096;
 
-    /** Output timeout (milliseconds). This is the time that output
-        will wait for before checking if the server is alive.
+    /** Greatest number of lines of input waiting to be processed. While
+        there are this many, no more input is read from the client.
     */
-	public static final int OUTPUT_TIMEOUT = 5000;
+    public static final int MAX_INPUT_BACKLOG = 100;
+
+    /** Greatest number of output strings waiting to be written. If a client
+        doesn't read its output, the connection is closed when this is reached.
+    */
+    public static final int MAX_OUTPUT_BACKLOG = 1000;
 
     /** I/O streams
     */
-    protected BufferedReader inStream;
+    protected InputStream inStream;
     protected PrintWriter outStream;
 
+    /** Input received but not yet processed, because it is not a complete line
+    */
+    private byte lineBuffer[] = new byte[256];
+    private int lineLength = 0;
+
+    /** If the last line ended with CR, an LF following it is ignored
+    */
+    private boolean skipLF = false;
+
+    /** Lines of input waiting to be processed
+    */
+    private Vector inBuffer = new Vector();
+
+    /** Is the connection on the pool's list of connections with input?
+    */
+    private boolean inputScheduled = false;
+
+    /** Time that input was last received
+    */
+    private long lastInputTime;
+
+    /** Output waiting to be written
+    */
+    private Vector outBuffer = new Vector();
+
+    /** Lock held while output is written to the stream
+    */
+    private Object writeLock = new Object();
+
+    /** Is the connection on the pool's list of connections with output?
+    */
+    private boolean outputScheduled = false;
+
+    /** Has the output backlog been exceeded?
+    */
+    private boolean outputOverflow = false;
+
+    /** Is the connection stopped, with output still to be written by a
+        writer thread before the socket is closed?
+    */
+    private boolean closePending = false;
+
     /** User information
     */
     private String userName;
@@ -103,7 +172,9 @@ abstract public class Connection
         	}
 	    }
 
-    /** Create a stream-based connection
+    /** Create a stream-based connection. The stream is read by a thread of
+        the connection's own, which waits for input, so the connection is
+        stopped when the input ends.
     */
     public Connection(Server server, String userName, InputStream in, OutputStream out)
     	{
@@ -122,12 +193,9 @@ abstract public class Connection
     */
     private void initIntern(InputStream in, OutputStream out)
         {
-	    // Set up I/O streams
-    	inStream = new BufferedReader(new InputStreamReader(in));
-    	outStream = new PrintWriter(out, true);
-
-    	// Create the output queue
-    	outQueue = new OutputQueue("Output thread for user: " + userName);
+	    // Set up I/O streams. Output is flushed by the writer when its buffer is empty.
+    	inStream = in;
+    	outStream = new PrintWriter(new BufferedOutputStream(out), false);
 
 	    // Call the inheritable initialise function
 	    init();
@@ -135,15 +203,34 @@ abstract public class Connection
     	// Add this connection to the connection list
     	connectionList.add(this);
 
-    	// Create/start the threads
-    	inThread = new Thread(this, "Input thread for user: " + userName);
-        inThread.setPriority(INPUT_PRIORITY);
-
         // Call the inheritable start function
         start();
         log("Started");
         }
 
+    /** Set the numbers of reader, handler and writer threads shared by the
+        connections. This must be called before any connections are started.
+    */
+    public static synchronized void setPoolSize(int readers, int handlers, int writers)
+    	{
+        if (pool != null)
+            throw new IllegalStateException("Connection pool already started");
+        if (readers < 1 || handlers < 1 || writers < 1)
+            throw new IllegalArgumentException("Connection pool needs at least one reader, handler and writer");
+        poolReaders = readers;
+        poolHandlers = handlers;
+        poolWriters = writers;
+	    }
+
+    /** Get the shared I/O threads, starting them if necessary
+    */
+    private static synchronized ConnectionPool getPool()
+    	{
+        if (pool == null)
+            pool = new ConnectionPool(poolReaders, poolHandlers, poolWriters);
+        return pool;
+	    }
+
     /** Called after the connection is created, before it is started
     */
     public void init()
@@ -161,8 +248,17 @@ abstract public class Connection
 	public void start()
 	    {
         state = RUNNING;
-    	inThread.start();
-    	outQueue.start();
+        lastInputTime = System.currentTimeMillis();
+        getPool().add(this);
+
+        // A stream can't be polled for its end, so it has a thread to wait on it
+        if (socket == null)
+            {
+            Thread reader = new ConnectionPool.StreamReader("Input thread for user: " + userName, this);
+            reader.setPriority(INPUT_PRIORITY);
+            reader.setDaemon(true);
+            reader.start();
+            }
 	    }
 
 	/** Called to stop the connection
@@ -175,7 +271,7 @@ abstract public class Connection
 
 	/** Close the connection and remove it from the list
 	*/
-	private void disconnect()
+	private synchronized void disconnect()
 	    {
 	    // If the connection is still running, stop it
 	    if (state == RUNNING)
@@ -187,36 +283,72 @@ abstract public class Connection
 	        // Call inheritable destroy function
 	        destroy();
 
-    	    // Remove from the connection list
+    	    // Remove from the connection list, and from the pool
     	    connectionList.remove(this);
-
-	        // Clean up resources. If the socket is not null then the streams belong
-	        //  to the creator of the channel, so we don't close them.
-            if (socket != null)
+    	    if (pool != null)
+    	        pool.remove(this);
+
+            // Go into stopped state. Any further output is discarded, but
+            //  output still waiting, e.g. a parting message, is written by a
+            //  writer thread, which then closes the socket. This may be a
+            //  reader thread, which mustn't wait for the client, so if a
+            //  writer has the connection it closes the socket too. If the
+            //  client wasn't reading its output, none is written, and the
+            //  socket is closed at once, so that a writer blocked writing to
+            //  it gives up.
+            boolean schedule = false;
+            boolean closeNow = false;
+            synchronized (outBuffer)
     	        {
-    	        try {
-    	            inStream.close();
-                    outStream.close();
-      	            socket.close();
-        	        }
-        	    catch (IOException e)
-        	        {
-        	        }
-    			catch (NullPointerException e)
-    				{
-    				}
+                state = STOPPED;
+                if (outputOverflow)
+                    {
+                    outBuffer.removeAllElements();
+                    closeNow = true;
+                    }
+                else if (!outBuffer.isEmpty() || outputScheduled)
+                    {
+                    closePending = true;
+                    schedule = !outputScheduled;
+                    outputScheduled = true;
+                    }
+                else
+                    closeNow = true;
                 }
-                
-            // Go into stopped state
-            state = STOPPED;
+            if (schedule)
+                getPool().outputReady(this);
+            else if (closeNow)
+                close(outputOverflow);
             log("Stopped");
-
-	        // kill threads
-            outQueue.stop();
-            inThread.stop();    // This must be last, as it can kill the current thread!
 	        }
         }
 
+    /** Clean up resources. If the socket is null then the streams belong
+        to the creator of the channel, so we don't close them. If a writer
+        may be blocked writing to the socket, only the socket is closed, as
+        closing the output stream would wait for the writer.
+    */
+    private void close(boolean writerBlocked)
+    	{
+        if (socket != null)
+    	    {
+    	    try {
+                if (!writerBlocked)
+                    {
+    	            inStream.close();
+                    outStream.close();
+                    }
+      	        socket.close();
+        	    }
+        	catch (IOException e)
+        	    {
+        	    }
+    		catch (NullPointerException e)
+    			{
+    			}
+            }
+	    }
+
     /*  Implement 'finalize' to ensure that 'disconnect' gets called
     */
     protected void finalize()
@@ -228,8 +360,35 @@ abstract public class Connection
 	*/
 	public void output(String s)
 	    {
-	    // Add the string to the output queue
-        outQueue.put(s);
+	    // Add the string to the output buffer, and if the connection isn't already
+	    //  waiting for a writer, add it to the pool's list.
+	    boolean schedule = false;
+	    boolean overflow = false;
+	    synchronized (outBuffer)
+            {
+	        if (outputOverflow || state == STOPPED)
+	            return;
+	        if (outBuffer.size() >= MAX_OUTPUT_BACKLOG)
+    	        {
+	            outputOverflow = overflow = true;
+	            outBuffer.removeAllElements();
+                }
+    	    else {
+	            outBuffer.addElement(s);
+	            schedule = !outputScheduled;
+	            outputScheduled = true;
+                }
+            }
+	    if (schedule)
+	        getPool().outputReady(this);
+
+	    // The client isn't reading its output, so give up on it
+	    if (overflow)
+            {
+	        log("Output backlog exceeded");
+            if (state == RUNNING)
+    	        stop();
+            }
 	    }
 
 	/** Get the user iD.
@@ -253,58 +412,134 @@ abstract public class Connection
         Debug.println("Connection (" + userName + "): " + msg);
         }
 
-    /** Get strings from the input stream and dispatch them
+    /** Read any input which has arrived and dispatch the complete lines.
+        This is called repeatedly by one of the pool's reader threads, and
+        must not block. A stream connection's input is read by its own 
+        thread (see 'readStream'), so it is only closed down here.
+        @return true if there was any input
     */
-    public void run()
+    boolean poll()
     	{
-    	while (state == RUNNING)
-    	    {
-          	// Get a string from the input stream
-          	String s = null;
+        // If the connection has been stopped, close it down
+        if (state != RUNNING)
+            {
+            disconnect();
+            return false;
+            }
+
+        // Leave the input with the client until the lines waiting have been processed
+        if (socket == null || isInputBacklogged())
+            return false;
+
+        boolean result = false;
+    	try {
+            int n = inStream.available();
+            if (n > 0)
+    	        {
+                // Read what has arrived. This doesn't block.
+                ensureCapacity(n);
+                n = inStream.read(lineBuffer, lineLength, n);
+                if (n < 0)
+                    stop();
+                else {
+                    lastInputTime = System.currentTimeMillis();
+                    processLines(lineLength, n);
+                    result = true;
+        	        }
+                }
+
+            // If the socket has been idle for a while, see if the client has
+            //  gone. A closed socket has nothing available, but reading it
+            //  returns end of file at once. An open one times out.
+            else if (socket != null && System.currentTimeMillis() - lastInputTime > IDLE_TIMEOUT)
+    	        {
+                lastInputTime = System.currentTimeMillis();
+                int c = inStream.read();
+                if (c < 0)
+                    stop();
+                else {
+                    ensureCapacity(1);
+                    lineBuffer[lineLength] = (byte)c;
+                    processLines(lineLength, 1);
+                    result = true;
+        	        }
+                }
+            }
+
+        // This exception indicates that the read has timed out, so the
+        //  client is still there.
+        catch (InterruptedIOException e)
+            {
+            }
+
+        // If there's an error in the communication stream, we can assume that the user has departed
+        catch (IOException e)
+            {
+	        stop();
+            }
+
+        // If we've lost the connection, close it down
+        if (state != RUNNING)
+            disconnect();
+        return result;
+	    }
+
+    /** Read a stream connection's input until it ends, waiting for it to
+        arrive. Called by the connection's own thread (see 'start'). When the
+        input ends the connection is stopped, and its reader in the pool
+        closes it down.
+    */
+    void readStream()
+        {
+        while (state == RUNNING)
+            {
+            // Leave the input in the stream until the lines waiting have been processed
+            if (isInputBacklogged())
+                {
+                try {
+                    Thread.sleep(ConnectionPool.POLL_INTERVAL);
+                    }
+                catch (InterruptedException e)
+                    {
+                    }
+                continue;
+                }
+
+            int n;
             try {
-                s = inStream.readLine();
+                ensureCapacity(1);
+                n = inStream.read(lineBuffer, lineLength, lineBuffer.length - lineLength);
                 }
-                
-            // This exception indicates that the read has timed out. If 
-            //  the connection has been closed while the IO blocked this is 
-            //  our opportunity to close down.
             catch (InterruptedIOException e)
                 {
-                if (state == RUNNING)
-                    continue;
-                else
-                    s = null;
+                continue;
                 }
-                
-            // If there's an error in the communication stream, we can assume that the user has departed
             catch (IOException e)
                 {
-                s = null;
-            	}
-
-    	    // If the string is null, then we've lost the connection
-    	    if (s == null)
-    	        stop();
+                n = -1;
+                }
 
-    	    // Else, send it off to be processed
-    	    else {
-    	        try {
-        	        processInput(s);
-        	        }
+            // The input has ended, so the user has departed
+            if (n < 0)
+                {
+                stop();
+                log("End of input");
+                }
+            else {
+                lastInputTime = System.currentTimeMillis();
+                processLines(lineLength, n);
+                }
+            }
+        }
 
-    	        // If 'processInput' allows errors through, report them
-    	        //  here to prevent the connection dying.
-        	    catch (RuntimeException e)
-        	        {
-        	        log("processInput exception");
-        	        Debug.printStackTrace( e );
-        	        output("Error processing input: " + e.toString());
-        	        }
-            	}
+    /** Are there too many lines of input waiting to be processed?
+    */
+    private boolean isInputBacklogged()
+        {
+        synchronized (inBuffer)
+            {
+            return inBuffer.size() >= MAX_INPUT_BACKLOG;
             }
-            
-        // Close down the connection
-        disconnect();
         }
 
     /** This function must be overridden by child classes to process the input
@@ -319,68 +554,171 @@ abstract public class Connection
         outStream.println(s); 
         }
 
-    /** The output queue waits for output strings to be added and then dispatches
-        them to the connection's 'processOutput' function.
-        <p>
-        Synchronization: The 'put' and 'get' functions are synched. This class uses
-            an "Optimistic single-threaded" strategy to wait for items to be added to
-            the queue. (See Java Language Reference, O'Reilly, section 8.2.2.)
+    /** Make room in the input buffer for 'n' more bytes
     */
-    class OutputQueue
-        extends Thread
-        {
-        // The queue of output strings
-        Queue queue = new Queue();
+    private void ensureCapacity(int n)
+    	{
+        if (lineLength + n > lineBuffer.length)
+            {
+            byte newBuffer[] = new byte[Math.max(lineLength + n, lineBuffer.length * 2)];
+            System.arraycopy(lineBuffer, 0, newBuffer, 0, lineLength);
+            lineBuffer = newBuffer;
+            }
+	    }
 
-        OutputQueue(String msg)
+    /** Split the input buffer into lines and dispatch them. Bytes up to
+        'start' have already been searched for line ends; 'n' new bytes
+        follow them. Lines may end with CR, LF or CR LF. Any incomplete line
+        at the end is kept for next time.
+    */
+    private void processLines(int start, int n)
+    	{
+        int end = start + n;
+        int lineStart = 0;
+        for (int i = start; i < end; i++)
             {
-            super(msg);
+            byte b = lineBuffer[i];
+            if (skipLF)
+    	        {
+                skipLF = false;
+                if (b == '\n')
+        	        {
+                    lineStart = i + 1;
+                    continue;
+        	        }
+                }
+            if (b == '\r' || b == '\n' || i - lineStart >= MAX_LINE_LENGTH)
+    	        {
+                dispatch(new String(lineBuffer, lineStart, i - lineStart));
+                if (b == '\r' || b == '\n')
+        	        {
+                    skipLF = (b == '\r');
+                    lineStart = i + 1;
+        	        }
+                else
+                    lineStart = i;
+                }
             }
 
-        /** Add a string to the queue. (Called only by 'connection.output')
-        */
-        synchronized void put(String s)
+        // Keep the incomplete line
+        lineLength = end - lineStart;
+        System.arraycopy(lineBuffer, lineStart, lineBuffer, 0, lineLength);
+	    }
+
+    /** Send a line of input off to be processed. It is added to the input
+        buffer and, if the connection isn't already waiting, the connection is
+        added to the pool's list for a handler thread.
+    */
+    private void dispatch(String s)
+    	{
+        boolean schedule;
+        synchronized (inBuffer)
             {
-            // Add the object to the queue
-            queue.put(s);
+            if (state != RUNNING)
+                return;
+            inBuffer.addElement(s);
+            schedule = !inputScheduled;
+            inputScheduled = true;
+            }
+        if (schedule)
+            getPool().inputReady(this);
+	    }
 
-            // Inform waiting processes that something has been added
-            notify();
+    /** Process the lines of input waiting in the buffer, in order. Called
+        only by one of the pool's handler threads, which is the only handler
+        to have the connection until this returns. Lines waiting when the
+        connection is stopped are dropped.
+    */
+    void handleInput()
+    	{
+        // Take the lines from the buffer
+        String lines[];
+        synchronized (inBuffer)
+            {
+            lines = new String[inBuffer.size()];
+            inBuffer.copyInto(lines);
+            inBuffer.removeAllElements();
             }
 
-        /* Get a string from the queue. (Called only by 'run')
-        */
-        synchronized private String get()
+        for (int i = 0; i < lines.length && state == RUNNING; i++)
             {
-            // Wait until something arrives
-            while (queue.isEmpty())
-                {
-                try {
-                    wait(OUTPUT_TIMEOUT);
-                    }
+        	try {
+                processInput(lines[i]);
+                }
 
-                catch (InterruptedException e)
-                    {
-                    }
+            // If 'processInput' allows errors through, report them
+            //  here to prevent the connection dying.
+            catch (RuntimeException e)
+                {
+                log("processInput exception");
+                Debug.printStackTrace( e );
+                output("Error processing input: " + e.toString());
                 }
+            }
 
-            // Return the queue item or null if the connection is stopped
-            if (state == RUNNING)
-                return (String)queue.get();
-            else
-                return null;
+        // If more input has arrived meanwhile, go to the back of the pool's
+        //  list, so that other connections get a turn
+        boolean more;
+        synchronized (inBuffer)
+            {
+            if (state != RUNNING)
+                inBuffer.removeAllElements();
+            more = !inBuffer.isEmpty();
+            inputScheduled = more;
             }
+        if (more)
+            getPool().inputReady(this);
+	    }
 
-        public void run()
+    /** Write the output waiting in the buffer, and flush it. Called only by
+        one of the pool's writer threads, which is the only writer to have
+        the connection until this returns. If the connection has been
+        stopped with output still waiting, the socket is closed once it has
+        been written.
+    */
+    void writeOutput()
+    	{
+        boolean error = false;
+        synchronized (writeLock)
             {
-            String s;
-            do  {
-                // Get the string and dispatch it
-                s = get();
-                if (s != null)
-                    processOutput(s);
+            // Take the strings from the buffer
+            String strings[];
+            synchronized (outBuffer)
+    	        {
+                strings = new String[outBuffer.size()];
+                outBuffer.copyInto(strings);
+                outBuffer.removeAllElements();
+                }
+
+            // Write them and flush once
+            if ((state != STOPPED || closePending) && strings.length > 0)
+    	        {
+                for (int i = 0; i < strings.length; i++)
+                    processOutput(strings[i]);
+                outStream.flush();
+                error = outStream.checkError();
                 }
-            while (s != null);
             }
-        }
+
+        // If more output has arrived while we were writing, go to the back
+        //  of the pool's list, so that other connections get a turn.
+        boolean more;
+        boolean close;
+        synchronized (outBuffer)
+            {
+            more = !outBuffer.isEmpty() && (state != STOPPED || closePending);
+            outputScheduled = more;
+            close = closePending && !more;
+            if (close)
+                closePending = false;
+            }
+        if (more)
+            getPool().outputReady(this);
+        else if (close)
+            close(false);
+
+        // If the write failed the client has gone
+        if (error && state == RUNNING)
+	        stop();
+	    }
 	}
@@ -0,0 +1,334 @@
+// $Id$
+// Shared I/O threads for the connections
+// Copyright (C) Ogalala Ltd <info@ogalala.com>
+
+package com.ogalala.server;
+
+import java.util.*;
+import com.ogalala.util.*;
+
+/** The connection pool does the network I/O for all the connections with a
+    few threads, rather than two threads for each connection.
+    <p>
+    Input: each connection is given to the reader thread with fewest
+    connections. A reader goes round its connections in turn, taking
+    whatever input has arrived without blocking, and adding complete lines
+    to the connection's input buffer (see 'Connection.poll'). When a pass
+    finds no input at all, the reader sleeps for POLL_INTERVAL. A stream
+    connection can't be polled for the end of its input, so it has a
+    StreamReader thread of its own, which waits for input; its reader only
+    closes it down once it has stopped.
+    <p>
+    The input is processed much as the output is written. When lines are
+    added to a connection's empty input buffer, the connection is added to
+    the pool's list of connections with input. The handler threads take
+    connections off the list and pass their lines to 'processInput'. Only
+    one handler has a connection at a time, so its lines are processed in
+    order. So a slow 'processInput' (e.g. one waiting for room on the event
+    queue) holds up one handler, and the readers go on reading the other
+    connections.
+    <p>
+    Output: 'Connection.output' adds the string to the connection's output
+    buffer and, if the connection isn't already waiting, adds it to the
+    pool's list of connections with output. The writer threads take
+    connections off the list, write all their buffered output, and flush it
+    once. Only one writer handles a connection at a time, so its output
+    stays in order. A client which is slow to read holds up one writer, not
+    the whole server.
+    <p>
+    There are no non-blocking sockets in this version of Java, so input is
+    found by polling 'InputStream.available', and a write to a client which
+    isn't reading may still block its writer. Only writers write: when a
+    connection is stopped its last output is left to a writer, or dropped if
+    the client had stopped reading, so a reader never waits for a client.
+    <p>
+    Synchronization: the lists of connections with input and with output
+    are synched on themselves, and each reader's list of connections on the
+    reader.
+*/
+final class ConnectionPool
+    {
+    /** Default numbers of reader, handler and writer threads
+    */
+    public static final int DEFAULT_READERS = 2;
+    public static final int DEFAULT_HANDLERS = 4;
+    public static final int DEFAULT_WRITERS = 4;
+
+    /** Time (milliseconds) a reader sleeps when none of its connections have input
+    */
+    public static final int POLL_INTERVAL = 20;
+
+    /** The reader threads
+    */
+    private Reader readers[];
+
+    /** The handler threads
+    */
+    private Thread handlers[];
+
+    /** The writer threads
+    */
+    private Thread writers[];
+
+    /** The connections with input waiting, and with output waiting
+    */
+    private ReadyList withInput = new ReadyList();
+    private ReadyList withOutput = new ReadyList();
+
+    /** Create and start the threads
+    */
+    ConnectionPool(int readerCount, int handlerCount, int writerCount)
+        {
+        readers = new Reader[readerCount];
+        for (int i = 0; i < readerCount; i++)
+            {
+            readers[i] = new Reader("Connection reader " + i);
+            readers[i].setPriority(Connection.INPUT_PRIORITY);
+            readers[i].setDaemon(true);
+            readers[i].start();
+            }
+
+        handlers = new Thread[handlerCount];
+        for (int i = 0; i < handlerCount; i++)
+            {
+            handlers[i] = new Handler("Connection handler " + i);
+            handlers[i].setDaemon(true);
+            handlers[i].start();
+            }
+
+        writers = new Thread[writerCount];
+        for (int i = 0; i < writerCount; i++)
+            {
+            writers[i] = new Writer("Connection writer " + i);
+            writers[i].setDaemon(true);
+            writers[i].start();
+            }
+        }
+
+    /** Add a connection to the reader with fewest connections
+    */
+    void add(Connection connection)
+        {
+        Reader best = readers[0];
+        for (int i = 1; i < readers.length; i++)
+            {
+            if (readers[i].size() < best.size())
+                best = readers[i];
+            }
+        best.add(connection);
+        }
+
+    /** Remove a connection from its reader
+    */
+    void remove(Connection connection)
+        {
+        for (int i = 0; i < readers.length; i++)
+            readers[i].remove(connection);
+        }
+
+    /** Add a connection to the list of connections with input. (Called
+        only by the connection, which makes sure it is on the list once.)
+    */
+    void inputReady(Connection connection)
+        {
+        withInput.add(connection);
+        }
+
+    /** Add a connection to the list of connections with output. (Called
+        only by the connection, which makes sure it is on the list once.)
+    */
+    void outputReady(Connection connection)
+        {
+        withOutput.add(connection);
+        }
+
+    /** A list of connections waiting for a thread, in the order they were added
+    */
+    private static final class ReadyList
+        {
+        private Vector connections = new Vector();
+
+        synchronized void add(Connection connection)
+            {
+            connections.addElement(connection);
+            notify();
+            }
+
+        /** Wait for a connection and take it off the list
+        */
+        synchronized Connection next()
+            {
+            while (connections.isEmpty())
+                {
+                try {
+                    wait();
+                    }
+                catch (InterruptedException e)
+                    {
+                    }
+                }
+            Connection result = (Connection)connections.firstElement();
+            connections.removeElementAt(0);
+            return result;
+            }
+        }
+
+    /** A reader thread, polling a share of the connections for input
+    */
+    private static final class Reader
+        extends Thread
+        {
+        /** The connections, and an array copy of them which is replaced
+            (not changed) when a connection is added or removed
+        */
+        private Vector connections = new Vector();
+        private Connection list[] = new Connection[0];
+
+        Reader(String name)
+            {
+            super(name);
+            }
+
+        synchronized void add(Connection connection)
+            {
+            connections.addElement(connection);
+            update();
+            }
+
+        synchronized void remove(Connection connection)
+            {
+            if (connections.removeElement(connection))
+                update();
+            }
+
+        synchronized int size()
+            {
+            return connections.size();
+            }
+
+        private void update()
+            {
+            Connection newList[] = new Connection[connections.size()];
+            connections.copyInto(newList);
+            list = newList;
+            }
+
+        private synchronized Connection[] getList()
+            {
+            return list;
+            }
+
+        public void run()
+            {
+            while (true)
+                {
+                // Poll each connection once
+                boolean busy = false;
+                Connection list[] = getList();
+                for (int i = 0; i < list.length; i++)
+                    {
+                    try {
+                        if (list[i].poll())
+                            busy = true;
+                        }
+
+                    // Don't let one connection's errors stop the others
+                    catch (RuntimeException e)
+                        {
+                        Debug.printStackTrace(e);
+                        }
+                    }
+
+                // If nothing has arrived, give it time to
+                if (!busy)
+                    {
+                    try {
+                        sleep(POLL_INTERVAL);
+                        }
+                    catch (InterruptedException e)
+                        {
+                        }
+                    }
+                }
+            }
+        }
+
+    /** A stream connection's own reader thread, which waits for input
+        (see 'Connection.readStream')
+    */
+    static final class StreamReader
+        extends Thread
+        {
+        private Connection connection;
+
+        StreamReader(String name, Connection connection)
+            {
+            super(name);
+            this.connection = connection;
+            }
+
+        public void run()
+            {
+            try {
+                connection.readStream();
+                }
+            catch (RuntimeException e)
+                {
+                Debug.printStackTrace(e);
+                connection.stop();
+                }
+            }
+        }
+
+    /** A handler thread, processing the input of connections on the list
+    */
+    private final class Handler
+        extends Thread
+        {
+        Handler(String name)
+            {
+            super(name);
+            }
+
+        public void run()
+            {
+            while (true)
+                {
+                Connection connection = withInput.next();
+                try {
+                    connection.handleInput();
+                    }
+                catch (RuntimeException e)
+                    {
+                    Debug.printStackTrace(e);
+                    }
+                }
+            }
+        }
+
+    /** A writer thread, writing the output of connections on the list
+    */
+    private final class Writer
+        extends Thread
+        {
+        Writer(String name)
+            {
+            super(name);
+            }
+
+        public void run()
+            {
+            while (true)
+                {
+                Connection connection = withOutput.next();
+                try {
+                    connection.writeOutput();
+                    }
+                catch (RuntimeException e)
+                    {
+                    Debug.printStackTrace(e);
+                    }
+                }
+            }
+        }
+    }